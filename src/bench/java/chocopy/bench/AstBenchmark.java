@@ -0,0 +1,31 @@
+package chocopy.bench;
+
+import chocopy.common.astnodes.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks reading typed ASTs from their JSON form. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AstBenchmark {
+
+    /** Read every input of CORPUS with {@link Node#fromJSON(String)}. */
+    @Benchmark
+    public void fromJSON(Corpus corpus, Blackhole blackhole) throws IOException {
+        for (String text : corpus.json) {
+            blackhole.consume(Node.fromJSON(text));
+        }
+    }
+}
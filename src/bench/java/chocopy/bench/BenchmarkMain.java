@@ -0,0 +1,27 @@
+package chocopy.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the compiler benchmarks with the GC profiler, which reports the allocation rate of each.
+ * Takes the usual JMH command-line options, e.g. a regular expression selecting benchmarks or
+ * `-p corpus=benchmarks` to run over a single corpus.
+ */
+public class BenchmarkMain {
+
+    /** Run the benchmarks selected by ARGS. */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(
+                        new OptionsBuilder()
+                                .parent(commandLine)
+                                .addProfiler(GCProfiler.class)
+                                .build())
+                .run();
+    }
+}
@@ -0,0 +1,99 @@
+package chocopy.bench;
+
+import chocopy.common.astnodes.Program;
+import chocopy.common.codegen.PeepholeOptimizer;
+import chocopy.common.codegen.RiscVBackend;
+import chocopy.pa3.CodeGenImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the phases of code generation separately: the analysis of a program into Info
+ * objects, the emission of its code, and the rendering of the emitted code as assembly text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CodeGenBenchmark {
+
+    /** A code generator exposing its analysis phase. */
+    static class AnalyzingCodeGen extends CodeGenImpl {
+
+        /** A code generator emitting into BACKEND. */
+        AnalyzingCodeGen(RiscVBackend backend) {
+            super(backend);
+        }
+
+        /** Run only the analysis of PROGRAM. */
+        void analyze(Program program) {
+            analyzeProgram(program);
+        }
+    }
+
+    /** Backends holding the emitted, not yet rendered code of every input of a corpus. */
+    @State(Scope.Thread)
+    public static class Emitted {
+
+        /** One backend per input. */
+        List<RiscVBackend> backends;
+
+        /** Emit the code of every input of CORPUS, before each rendering. */
+        @Setup(Level.Invocation)
+        public void emit(Corpus corpus) {
+            backends = new ArrayList<>();
+            for (Program program : corpus.programs) {
+                backends.add(generate(program));
+            }
+        }
+    }
+
+    /** Returns a backend holding the code emitted for PROGRAM, not yet rendered. */
+    private static RiscVBackend generate(Program program) {
+        RiscVBackend backend = new RiscVBackend();
+        backend.setPeephole(new PeepholeOptimizer());
+        new CodeGenImpl(backend).generate(program);
+        return backend;
+    }
+
+    /** Analyze every input of CORPUS, as {@code CodeGenBase.analyzeProgram} does. */
+    @Benchmark
+    public void analyzeProgram(Corpus corpus, Blackhole blackhole) {
+        for (Program program : corpus.programs) {
+            AnalyzingCodeGen codeGen = new AnalyzingCodeGen(new RiscVBackend());
+            codeGen.analyze(program);
+            blackhole.consume(codeGen);
+        }
+    }
+
+    /** Emit the code of every input of CORPUS with {@link CodeGenImpl}, without rendering it. */
+    @Benchmark
+    public void emit(Corpus corpus, Blackhole blackhole) {
+        for (Program program : corpus.programs) {
+            blackhole.consume(generate(program));
+        }
+    }
+
+    /** Render the code emitted for every input of a corpus with {@link RiscVBackend#toString}. */
+    @Benchmark
+    public void render(Emitted emitted, Blackhole blackhole) {
+        for (RiscVBackend backend : emitted.backends) {
+            blackhole.consume(backend.toString());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package chocopy.bench;
+
+import chocopy.common.astnodes.BinaryAst;
+import chocopy.common.astnodes.Node;
+import chocopy.common.astnodes.Program;
+import chocopy.common.astnodes.Stmt;
+import chocopy.pa3.CompileServer;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The typed ASTs a benchmark runs over.
+ *
+ * <p>CORPUS names a directory under the pa3 test data (sample, benchmarks or AdditionalTestCase,
+ * including its subdirectories), or is synthetic-N for the benchmark programs scaled up N times by
+ * repeating their top-level statements. The test data is looked up in the directory given by the
+ * system property chocopy.bench.data, by default src/test/data/pa3.
+ *
+ * <p>Programs without a typed AST next to them are parsed and analyzed by the reference passes,
+ * which requires chocopy-ref.jar on the class path.
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+
+    /** Prefix of the names of synthetic corpora. */
+    private static final String SYNTHETIC = "synthetic-";
+
+    /** The corpus to run over. */
+    @Param({"sample", "benchmarks", "AdditionalTestCase", "synthetic-10", "synthetic-100"})
+    public String corpus;
+
+    /** The JSON text of each input. */
+    public List<String> json;
+
+    /** The AST of each input. */
+    public List<Program> programs;
+
+    /** Load the inputs. */
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        Path data = Paths.get(System.getProperty("chocopy.bench.data", "src/test/data/pa3"));
+        json = new ArrayList<>();
+        programs = new ArrayList<>();
+        if (corpus.startsWith(SYNTHETIC)) {
+            int scale = Integer.parseInt(corpus.substring(SYNTHETIC.length()));
+            for (Path path : inputs(data.resolve("benchmarks"))) {
+                Program program = scale(Node.fromJSON(typedAst(path)), scale);
+                json.add(program.toJSON());
+                programs.add(program);
+            }
+        } else {
+            for (Path path : inputs(data.resolve(corpus))) {
+                String text = typedAst(path);
+                Program program = (Program) Node.fromJSON(text);
+                if (!program.hasErrors()) {
+                    json.add(text);
+                    programs.add(program);
+                }
+            }
+        }
+        if (programs.isEmpty()) {
+            throw new IOException("No inputs for corpus " + corpus + " in " + data);
+        }
+    }
+
+    /** Returns the programs under directory DIR, in order. */
+    private static List<Path> inputs(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(path -> path.toString().endsWith(".py"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /** Returns the JSON text of the typed AST of the program at PATH. */
+    private static String typedAst(Path path) throws IOException {
+        Path typed = path.resolveSibling(path.getFileName() + ".ast.typed");
+        if (Files.isRegularFile(typed)) {
+            return new String(Files.readAllBytes(typed), StandardCharsets.UTF_8);
+        }
+        String source = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        try {
+            return CompileServer.compile(source, "rr");
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Cannot analyze " + path + " without chocopy-ref.jar", e);
+        }
+    }
+
+    /**
+     * Returns a copy of PROGRAM, whose top-level statements are repeated SCALE times. Every
+     * repetition is a separate copy of the statements.
+     */
+    private static Program scale(Node program, int scale) throws IOException {
+        byte[] serialized = BinaryAst.toBytes(program);
+        Program scaled = (Program) BinaryAst.fromBytes(serialized);
+        List<Stmt> statements = new ArrayList<>();
+        for (int i = 0; i < scale; i += 1) {
+            statements.addAll(((Program) BinaryAst.fromBytes(serialized)).statements);
+        }
+        scaled.statements.clear();
+        scaled.statements.addAll(statements);
+        return scaled;
+    }
+}
@@ -0,0 +1,74 @@
+package chocopy.common.analysis.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of types, returning the same instance for all equal types it is asked for.
+ *
+ * <p>A typed AST mentions only a handful of distinct types, but has an inferred type on every
+ * expression. Readers of ASTs use one table per AST, so that all expressions of the same type
+ * share one type object. The predefined types are shared with {@link Type}'s constants. The types
+ * returned are shared, so they must not be modified.
+ */
+public class TypeInterner {
+
+    /** Class types by class name. */
+    private final Map<String, ClassValueType> classTypes = new HashMap<>();
+
+    /** List types by element type. */
+    private final Map<ValueType, ListValueType> listTypes = new HashMap<>();
+
+    /** Function types by their parameter types followed by their return type. */
+    private final Map<List<ValueType>, FuncType> funcTypes = new HashMap<>();
+
+    /** An empty table, holding the predefined types. */
+    public TypeInterner() {
+        for (ClassValueType type :
+                Arrays.asList(
+                        Type.OBJECT_TYPE,
+                        Type.INT_TYPE,
+                        Type.STR_TYPE,
+                        Type.BOOL_TYPE,
+                        Type.NONE_TYPE,
+                        Type.EMPTY_TYPE)) {
+            classTypes.put(type.className(), type);
+        }
+    }
+
+    /** Returns the class type for the class named CLASSNAME. */
+    public ClassValueType classType(String className) {
+        ClassValueType type = classTypes.get(className);
+        if (type == null) {
+            type = new ClassValueType(className);
+            classTypes.put(className, type);
+        }
+        return type;
+    }
+
+    /** Returns the type [ELEMENTTYPE]. */
+    public ListValueType listType(ValueType elementType) {
+        ListValueType type = listTypes.get(elementType);
+        if (type == null) {
+            type = new ListValueType(elementType);
+            listTypes.put(elementType, type);
+        }
+        return type;
+    }
+
+    /** Returns the type of functions with PARAMETERS returning RETURNTYPE. */
+    public FuncType funcType(List<ValueType> parameters, ValueType returnType) {
+        List<ValueType> key = new ArrayList<>(parameters.size() + 1);
+        key.addAll(parameters);
+        key.add(returnType);
+        FuncType type = funcTypes.get(key);
+        if (type == null) {
+            type = new FuncType(parameters, returnType);
+            funcTypes.put(key, type);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,376 @@
+package chocopy.common.astnodes;
+
+import chocopy.common.analysis.types.Type;
+import chocopy.common.analysis.types.TypeInterner;
+import chocopy.common.analysis.types.ValueType;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the JSON form of an AST, as written by {@link Node#toJSON()}, directly from the token
+ * stream of a {@link JsonParser}.
+ *
+ * <p>Unlike binding through an ObjectMapper, no intermediate JSON tree is built and no reflection
+ * is involved: the fields of each object are read into a small map and the node is constructed as
+ * soon as its object ends. The fields of an object may come in any order, since every value is
+ * self-describing: nodes and types carry their "kind", and the only other values are locations,
+ * strings, integers, booleans and lists of these.
+ */
+public class AstReader {
+
+    /** Factory for parsers. Thread-safe once configured. */
+    private static final JsonFactory factory = new JsonFactory();
+
+    /** The token stream being read. */
+    private final JsonParser parser;
+
+    /** The types of the AST, each read once. */
+    private final TypeInterner types = new TypeInterner();
+
+    /** The strings of the AST, such as identifiers, each kept once. */
+    private final Map<String, String> strings = new HashMap<>();
+
+    /** A reader of the JSON text from PARSER. */
+    private AstReader(JsonParser parser) {
+        this.parser = parser;
+    }
+
+    /** Returns the AST serialized in JSON, which must be a value of type CLAS. */
+    public static <T extends Node> T read(String json, Class<T> clas) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return new AstReader(parser).readDocument(clas);
+        }
+    }
+
+    /**
+     * Returns the AST serialized in the file at PATH, which must be a value of type CLAS. The file
+     * is memory-mapped rather than read into a buffer first.
+     */
+    public static <T extends Node> T read(Path path, Class<T> clas) throws IOException {
+        MappedByteBuffer contents;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try (JsonParser parser = factory.createParser(new ByteBufferBackedInputStream(contents))) {
+            return new AstReader(parser).readDocument(clas);
+        }
+    }
+
+    /** Returns the single value of type CLAS making up the input. */
+    private <T extends Node> T readDocument(Class<T> clas) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw error("Expected a JSON object");
+        }
+        Object value = readObject();
+        if (!clas.isInstance(value)) {
+            throw error("Expected a " + clas.getSimpleName());
+        }
+        if (parser.nextToken() != null) {
+            throw error("Unexpected text after the AST");
+        }
+        return clas.cast(value);
+    }
+
+    /**
+     * Returns the value whose first token is the current token of the parser, leaving the parser
+     * at its last token.
+     */
+    private Object readValue() throws IOException {
+        JsonToken token = parser.currentToken();
+        switch (token) {
+            case START_OBJECT:
+                return readObject();
+            case START_ARRAY:
+                ArrayList<Object> elements = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    elements.add(readValue());
+                }
+                elements.trimToSize();
+                return elements;
+            case VALUE_STRING:
+                String text = parser.getText();
+                String interned = strings.putIfAbsent(text, text);
+                return interned == null ? text : interned;
+            case VALUE_NUMBER_INT:
+                return parser.getIntValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw error("Unexpected " + token);
+        }
+    }
+
+    /**
+     * Returns the node or type whose START_OBJECT token is the current token of the parser,
+     * leaving the parser at its END_OBJECT token.
+     */
+    private Object readObject() throws IOException {
+        String kind = null;
+        long location = 0;
+        boolean hasLocation = false;
+        Map<String, Object> fields = new HashMap<>();
+        for (String name = parser.nextFieldName(); name != null; name = parser.nextFieldName()) {
+            JsonToken token = parser.nextToken();
+            if (name.equals("kind")) {
+                kind = parser.getValueAsString();
+            } else if (name.equals("location") && token == JsonToken.START_ARRAY) {
+                location = readLocation();
+                hasLocation = true;
+            } else {
+                fields.put(name, readValue());
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT) {
+            throw error("Expected a field name");
+        }
+        if (kind == null) {
+            throw error("Missing \"kind\"");
+        }
+        Object value = build(kind, fields);
+        if (value instanceof Node) {
+            Node node = (Node) value;
+            if (hasLocation) {
+                node.setPackedLocation(location);
+            }
+            node.setErrorMsg(get(fields, "errorMsg", String.class));
+            if (node instanceof Expr) {
+                ((Expr) node).setInferredType(get(fields, "inferredType", Type.class));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the source location whose START_ARRAY token is the current token of the parser, in
+     * the packed form of {@link Node#packLocation}, leaving the parser at its END_ARRAY token.
+     */
+    private long readLocation() throws IOException {
+        int[] location = new int[4];
+        int i = 0;
+        while (parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+            if (i == location.length) {
+                throw error("Location has more than 4 components");
+            }
+            location[i] = parser.getIntValue();
+            i += 1;
+        }
+        if (parser.currentToken() != JsonToken.END_ARRAY) {
+            throw error("Location components must be integers");
+        }
+        try {
+            return Node.packLocation(location[0], location[1], location[2], location[3]);
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage());
+        }
+    }
+
+    /** Returns the node or type of kind KIND with the given FIELDS. */
+    private Object build(String kind, Map<String, Object> fields) throws IOException {
+        switch (kind) {
+            case "Program":
+                return new Program(
+                        null,
+                        null,
+                        list(fields, "declarations", Declaration.class),
+                        list(fields, "statements", Stmt.class),
+                        get(fields, "errors", Errors.class));
+            case "Errors":
+                return new Errors(list(fields, "errors", CompilerError.class));
+            case "CompilerError":
+                return new CompilerError(
+                        null,
+                        null,
+                        get(fields, "message", String.class),
+                        Boolean.TRUE.equals(get(fields, "syntax", Boolean.class)));
+            case "ClassDef":
+                return new ClassDef(
+                        null,
+                        null,
+                        get(fields, "name", Identifier.class),
+                        get(fields, "superClass", Identifier.class),
+                        list(fields, "declarations", Declaration.class));
+            case "FuncDef":
+                return new FuncDef(
+                        null,
+                        null,
+                        get(fields, "name", Identifier.class),
+                        list(fields, "params", TypedVar.class),
+                        get(fields, "returnType", TypeAnnotation.class),
+                        list(fields, "declarations", Declaration.class),
+                        list(fields, "statements", Stmt.class));
+            case "VarDef":
+                return new VarDef(
+                        null,
+                        null,
+                        get(fields, "var", TypedVar.class),
+                        get(fields, "value", Literal.class));
+            case "GlobalDecl":
+                return new GlobalDecl(null, null, get(fields, "variable", Identifier.class));
+            case "NonLocalDecl":
+                return new NonLocalDecl(null, null, get(fields, "variable", Identifier.class));
+            case "TypedVar":
+                return new TypedVar(
+                        null,
+                        null,
+                        get(fields, "identifier", Identifier.class),
+                        get(fields, "type", TypeAnnotation.class));
+            case "ClassType":
+                return new ClassType(null, null, get(fields, "className", String.class));
+            case "ListType":
+                return new ListType(
+                        null, null, get(fields, "elementType", TypeAnnotation.class));
+            case "AssignStmt":
+                return new AssignStmt(
+                        null,
+                        null,
+                        list(fields, "targets", Expr.class),
+                        get(fields, "value", Expr.class));
+            case "ExprStmt":
+                return new ExprStmt(null, null, get(fields, "expr", Expr.class));
+            case "ForStmt":
+                return new ForStmt(
+                        null,
+                        null,
+                        get(fields, "identifier", Identifier.class),
+                        get(fields, "iterable", Expr.class),
+                        list(fields, "body", Stmt.class));
+            case "IfStmt":
+                return new IfStmt(
+                        null,
+                        null,
+                        get(fields, "condition", Expr.class),
+                        list(fields, "thenBody", Stmt.class),
+                        list(fields, "elseBody", Stmt.class));
+            case "ReturnStmt":
+                return new ReturnStmt(null, null, get(fields, "value", Expr.class));
+            case "WhileStmt":
+                return new WhileStmt(
+                        null,
+                        null,
+                        get(fields, "condition", Expr.class),
+                        list(fields, "body", Stmt.class));
+            case "BinaryExpr":
+                return new BinaryExpr(
+                        null,
+                        null,
+                        get(fields, "left", Expr.class),
+                        get(fields, "operator", String.class),
+                        get(fields, "right", Expr.class));
+            case "UnaryExpr":
+                return new UnaryExpr(
+                        null,
+                        null,
+                        get(fields, "operator", String.class),
+                        get(fields, "operand", Expr.class));
+            case "CallExpr":
+                return new CallExpr(
+                        null,
+                        null,
+                        get(fields, "function", Identifier.class),
+                        list(fields, "args", Expr.class));
+            case "MethodCallExpr":
+                return new MethodCallExpr(
+                        null,
+                        null,
+                        get(fields, "method", MemberExpr.class),
+                        list(fields, "args", Expr.class));
+            case "MemberExpr":
+                return new MemberExpr(
+                        null,
+                        null,
+                        get(fields, "object", Expr.class),
+                        get(fields, "member", Identifier.class));
+            case "IndexExpr":
+                return new IndexExpr(
+                        null,
+                        null,
+                        get(fields, "list", Expr.class),
+                        get(fields, "index", Expr.class));
+            case "IfExpr":
+                return new IfExpr(
+                        null,
+                        null,
+                        get(fields, "condition", Expr.class),
+                        get(fields, "thenExpr", Expr.class),
+                        get(fields, "elseExpr", Expr.class));
+            case "ListExpr":
+                return new ListExpr(null, null, list(fields, "elements", Expr.class));
+            case "Identifier":
+                return new Identifier(null, null, get(fields, "name", String.class));
+            case "BooleanLiteral":
+                return new BooleanLiteral(
+                        null, null, Boolean.TRUE.equals(get(fields, "value", Boolean.class)));
+            case "IntegerLiteral":
+                Integer value = get(fields, "value", Integer.class);
+                return new IntegerLiteral(null, null, value == null ? 0 : value);
+            case "StringLiteral":
+                return new StringLiteral(null, null, get(fields, "value", String.class));
+            case "NoneLiteral":
+                return new NoneLiteral(null, null);
+            case "ClassValueType":
+                return types.classType(get(fields, "className", String.class));
+            case "ListValueType":
+                return types.listType(get(fields, "elementType", ValueType.class));
+            case "FuncType":
+                return types.funcType(
+                        list(fields, "parameters", ValueType.class),
+                        get(fields, "returnType", ValueType.class));
+            default:
+                throw error("Unknown kind: " + kind);
+        }
+    }
+
+    /** Returns field NAME of FIELDS, which must be null or of type CLAS. */
+    private <T> T get(Map<String, Object> fields, String name, Class<T> clas)
+            throws IOException {
+        Object value = fields.get(name);
+        if (value != null && !clas.isInstance(value)) {
+            throw error("Field \"" + name + "\" must be a " + clas.getSimpleName());
+        }
+        return clas.cast(value);
+    }
+
+    /**
+     * Returns field NAME of FIELDS, which must be a list of values of type CLAS. A missing field
+     * is an empty list.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> list(Map<String, Object> fields, String name, Class<T> clas)
+            throws IOException {
+        Object value = fields.get(name);
+        if (value == null) {
+            return new ArrayList<>();
+        }
+        if (!(value instanceof List)) {
+            throw error("Field \"" + name + "\" must be a list");
+        }
+        for (Object element : (List<Object>) value) {
+            if (!clas.isInstance(element)) {
+                throw error("Elements of \"" + name + "\" must be " + clas.getSimpleName());
+            }
+        }
+        return (List<T>) value;
+    }
+
+    /** Returns an exception reporting MESSAGE at the current input position. */
+    private JsonParseException error(String message) {
+        return new JsonParseException(parser, message);
+    }
+}
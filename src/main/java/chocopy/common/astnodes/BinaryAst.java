@@ -0,0 +1,685 @@
+package chocopy.common.astnodes;
+
+import chocopy.common.analysis.types.FuncType;
+import chocopy.common.analysis.types.ListValueType;
+import chocopy.common.analysis.types.Type;
+import chocopy.common.analysis.types.TypeInterner;
+import chocopy.common.analysis.types.ValueType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary serialization of ASTs, read much faster than their JSON form.
+ *
+ * <p>A serialized AST consists of
+ *
+ * <ol>
+ *   <li>the four bytes "CPYA" and a format version byte;
+ *   <li>a string table: the number of strings, then each string as its length and UTF-8 bytes;
+ *   <li>a type table: the number of types, then each distinct type occurring in the AST, as a tag
+ *       followed by the index of a class name in the string table (class types), the index of an
+ *       earlier type (list types), or the number and indices of earlier parameter types and the
+ *       index of an earlier return type (function types);
+ *   <li>the nodes in preorder.
+ * </ol>
+ *
+ * <p>Each node is its kind code (0 for a missing node), its location as start line, start column,
+ * end line relative to the start line and end column, and its error message, followed by its
+ * fields in the order of its constructor parameters and, for expressions, its inferred type.
+ * Strings, types and error messages are given as table indices plus one, with 0 standing for null.
+ * Lists are their length followed by their elements. All integers are unsigned LEB128 varints,
+ * using zigzag encoding where they may be negative.
+ */
+public class BinaryAst {
+
+    /** The leading bytes of every serialized AST. */
+    private static final byte[] MAGIC = {'C', 'P', 'Y', 'A'};
+
+    /** The version of the format, changed whenever the format changes. */
+    private static final int VERSION = 1;
+
+    /** Extension of cached serializations. */
+    private static final String CACHE_SUFFIX = ".bin";
+
+    /** The node kinds, numbered from 1 in this order. */
+    private static final String[] KINDS = {
+        "Program", "Errors", "CompilerError", "ClassDef", "FuncDef", "VarDef", "GlobalDecl",
+        "NonLocalDecl", "TypedVar", "ClassType", "ListType", "AssignStmt", "ExprStmt", "ForStmt",
+        "IfStmt", "ReturnStmt", "WhileStmt", "BinaryExpr", "UnaryExpr", "CallExpr",
+        "MethodCallExpr", "MemberExpr", "IndexExpr", "IfExpr", "ListExpr", "Identifier",
+        "BooleanLiteral", "IntegerLiteral", "StringLiteral", "NoneLiteral"
+    };
+
+    /** The code of each node kind. */
+    private static final Map<String, Integer> KIND_CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KINDS.length; i += 1) {
+            KIND_CODES.put(KINDS[i], i + 1);
+        }
+    }
+
+    /** Tag of a class type in the type table. */
+    private static final int CLASS_TYPE = 0;
+
+    /** Tag of a list type in the type table. */
+    private static final int LIST_TYPE = 1;
+
+    /** Tag of a function type in the type table. */
+    private static final int FUNC_TYPE = 2;
+
+    private BinaryAst() {}
+
+    /** Returns the serialization of the AST rooted at NODE. */
+    public static byte[] toBytes(Node node) {
+        return new Writer().write(node);
+    }
+
+    /** Write the serialization of the AST rooted at NODE to the file at PATH. */
+    public static void write(Node node, Path path) throws IOException {
+        Files.write(path, toBytes(node));
+    }
+
+    /** Returns the AST serialized in DATA. */
+    public static Node fromBytes(byte[] data) throws IOException {
+        return new Reader(data).read();
+    }
+
+    /** Returns the AST serialized in the file at PATH. */
+    public static Node read(Path path) throws IOException {
+        return fromBytes(Files.readAllBytes(path));
+    }
+
+    /** Returns true iff DATA starts like a serialized AST. */
+    public static boolean isBinaryAst(byte[] data) {
+        if (data.length <= MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the AST in the JSON file at SOURCE, taken from its serialization in directory
+     * CACHEDIR if that is at least as recent as SOURCE. Otherwise, SOURCE is read and its
+     * serialization is stored in CACHEDIR for later runs.
+     */
+    public static Node readCached(Path source, Path cacheDir) throws IOException {
+        Path absolute = source.toAbsolutePath().normalize();
+        String name =
+                String.format(
+                        "%s.%08x%s",
+                        absolute.getFileName(), absolute.toString().hashCode(), CACHE_SUFFIX);
+        Path cached = cacheDir.resolve(name);
+        if (Files.isRegularFile(cached)
+                && Files.getLastModifiedTime(cached)
+                                .compareTo(Files.getLastModifiedTime(source))
+                        >= 0) {
+            byte[] data = Files.readAllBytes(cached);
+            if (isBinaryAst(data) && data[MAGIC.length] == VERSION) {
+                return fromBytes(data);
+            }
+        }
+        Node node = Node.fromJSON(source);
+        Files.createDirectories(cacheDir);
+        Path temp = Files.createTempFile(cacheDir, name, ".tmp");
+        try {
+            write(node, temp);
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return node;
+    }
+
+    /** Serializes one AST. */
+    private static class Writer {
+
+        /** The strings of the string table, by index. */
+        private final List<String> strings = new ArrayList<>();
+
+        /** The indices of the strings in the string table. */
+        private final Map<String, Integer> stringIndices = new HashMap<>();
+
+        /** The serialized type table entries. */
+        private final ByteArrayOutputStream typeTable = new ByteArrayOutputStream();
+
+        /** The number of types in the type table. */
+        private int typeCount = 0;
+
+        /** The indices of the types in the type table, by their descriptions. */
+        private final Map<String, Integer> typeIndices = new HashMap<>();
+
+        /** The serialized nodes. */
+        private final ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+
+        /** Returns the serialization of the AST rooted at ROOT. */
+        byte[] write(Node root) {
+            writeNode(root);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(nodes.size() + 1024);
+            out.write(MAGIC, 0, MAGIC.length);
+            out.write(VERSION);
+            writeVarint(out, strings.size());
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+            writeVarint(out, typeCount);
+            byte[] types = typeTable.toByteArray();
+            out.write(types, 0, types.length);
+            byte[] body = nodes.toByteArray();
+            out.write(body, 0, body.length);
+            return out.toByteArray();
+        }
+
+        /** Write NODE, which may be null. */
+        private void writeNode(Node node) {
+            if (node == null) {
+                writeVarint(nodes, 0);
+                return;
+            }
+            Integer code = KIND_CODES.get(node.kind);
+            if (code == null) {
+                throw new IllegalArgumentException("Unknown kind: " + node.kind);
+            }
+            writeVarint(nodes, code);
+            int[] location = node.getLocation();
+            writeVarint(nodes, location[0]);
+            writeVarint(nodes, location[1]);
+            writeVarint(nodes, zigzag(location[2] - location[0]));
+            writeVarint(nodes, location[3]);
+            writeString(node.getErrorMsg());
+            writeFields(node);
+            if (node instanceof Expr) {
+                Type type = ((Expr) node).getInferredType();
+                writeVarint(nodes, type == null ? 0 : typeIndex(type) + 1);
+            }
+        }
+
+        /** Write the fields specific to the kind of NODE. */
+        private void writeFields(Node node) {
+            switch (node.kind) {
+                case "Program":
+                    Program program = (Program) node;
+                    writeNodes(program.declarations);
+                    writeNodes(program.statements);
+                    writeNode(program.errors);
+                    break;
+                case "Errors":
+                    writeNodes(((Errors) node).errors);
+                    break;
+                case "CompilerError":
+                    CompilerError error = (CompilerError) node;
+                    writeString(error.message);
+                    nodes.write(error.isSyntax() ? 1 : 0);
+                    break;
+                case "ClassDef":
+                    ClassDef classDef = (ClassDef) node;
+                    writeNode(classDef.name);
+                    writeNode(classDef.superClass);
+                    writeNodes(classDef.declarations);
+                    break;
+                case "FuncDef":
+                    FuncDef funcDef = (FuncDef) node;
+                    writeNode(funcDef.name);
+                    writeNodes(funcDef.params);
+                    writeNode(funcDef.returnType);
+                    writeNodes(funcDef.declarations);
+                    writeNodes(funcDef.statements);
+                    break;
+                case "VarDef":
+                    writeNode(((VarDef) node).var);
+                    writeNode(((VarDef) node).value);
+                    break;
+                case "GlobalDecl":
+                    writeNode(((GlobalDecl) node).variable);
+                    break;
+                case "NonLocalDecl":
+                    writeNode(((NonLocalDecl) node).variable);
+                    break;
+                case "TypedVar":
+                    writeNode(((TypedVar) node).identifier);
+                    writeNode(((TypedVar) node).type);
+                    break;
+                case "ClassType":
+                    writeString(((ClassType) node).className);
+                    break;
+                case "ListType":
+                    writeNode(((ListType) node).elementType);
+                    break;
+                case "AssignStmt":
+                    writeNodes(((AssignStmt) node).targets);
+                    writeNode(((AssignStmt) node).value);
+                    break;
+                case "ExprStmt":
+                    writeNode(((ExprStmt) node).expr);
+                    break;
+                case "ForStmt":
+                    ForStmt forStmt = (ForStmt) node;
+                    writeNode(forStmt.identifier);
+                    writeNode(forStmt.iterable);
+                    writeNodes(forStmt.body);
+                    break;
+                case "IfStmt":
+                    IfStmt ifStmt = (IfStmt) node;
+                    writeNode(ifStmt.condition);
+                    writeNodes(ifStmt.thenBody);
+                    writeNodes(ifStmt.elseBody);
+                    break;
+                case "ReturnStmt":
+                    writeNode(((ReturnStmt) node).value);
+                    break;
+                case "WhileStmt":
+                    writeNode(((WhileStmt) node).condition);
+                    writeNodes(((WhileStmt) node).body);
+                    break;
+                case "BinaryExpr":
+                    BinaryExpr binaryExpr = (BinaryExpr) node;
+                    writeNode(binaryExpr.left);
+                    writeString(binaryExpr.operator);
+                    writeNode(binaryExpr.right);
+                    break;
+                case "UnaryExpr":
+                    writeString(((UnaryExpr) node).operator);
+                    writeNode(((UnaryExpr) node).operand);
+                    break;
+                case "CallExpr":
+                    writeNode(((CallExpr) node).function);
+                    writeNodes(((CallExpr) node).args);
+                    break;
+                case "MethodCallExpr":
+                    writeNode(((MethodCallExpr) node).method);
+                    writeNodes(((MethodCallExpr) node).args);
+                    break;
+                case "MemberExpr":
+                    writeNode(((MemberExpr) node).object);
+                    writeNode(((MemberExpr) node).member);
+                    break;
+                case "IndexExpr":
+                    writeNode(((IndexExpr) node).list);
+                    writeNode(((IndexExpr) node).index);
+                    break;
+                case "IfExpr":
+                    IfExpr ifExpr = (IfExpr) node;
+                    writeNode(ifExpr.condition);
+                    writeNode(ifExpr.thenExpr);
+                    writeNode(ifExpr.elseExpr);
+                    break;
+                case "ListExpr":
+                    writeNodes(((ListExpr) node).elements);
+                    break;
+                case "Identifier":
+                    writeString(((Identifier) node).name);
+                    break;
+                case "BooleanLiteral":
+                    nodes.write(((BooleanLiteral) node).value ? 1 : 0);
+                    break;
+                case "IntegerLiteral":
+                    writeVarint(nodes, zigzag(((IntegerLiteral) node).value));
+                    break;
+                case "StringLiteral":
+                    writeString(((StringLiteral) node).value);
+                    break;
+                case "NoneLiteral":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown kind: " + node.kind);
+            }
+        }
+
+        /** Write the length of LIST, which may be null, and its elements. */
+        private void writeNodes(List<? extends Node> list) {
+            if (list == null) {
+                writeVarint(nodes, 0);
+                return;
+            }
+            writeVarint(nodes, list.size());
+            for (Node node : list) {
+                writeNode(node);
+            }
+        }
+
+        /** Write S, which may be null, as its string table index plus one. */
+        private void writeString(String s) {
+            writeVarint(nodes, s == null ? 0 : stringIndex(s) + 1);
+        }
+
+        /** Returns the index of S in the string table, adding it if needed. */
+        private int stringIndex(String s) {
+            Integer index = stringIndices.get(s);
+            if (index == null) {
+                index = strings.size();
+                strings.add(s);
+                stringIndices.put(s, index);
+            }
+            return index;
+        }
+
+        /** Returns the index of TYPE in the type table, adding it and its parts if needed. */
+        private int typeIndex(Type type) {
+            String description = describe(type);
+            Integer index = typeIndices.get(description);
+            if (index != null) {
+                return index;
+            }
+            if (type instanceof ListValueType) {
+                int element = typeIndex(((ListValueType) type).elementType);
+                writeVarint(typeTable, LIST_TYPE);
+                writeVarint(typeTable, element);
+            } else if (type instanceof FuncType) {
+                FuncType funcType = (FuncType) type;
+                int[] parameters = new int[funcType.parameters.size()];
+                for (int i = 0; i < parameters.length; i += 1) {
+                    parameters[i] = typeIndex(funcType.parameters.get(i));
+                }
+                int returnType = typeIndex(funcType.returnType);
+                writeVarint(typeTable, FUNC_TYPE);
+                writeVarint(typeTable, parameters.length);
+                for (int parameter : parameters) {
+                    writeVarint(typeTable, parameter);
+                }
+                writeVarint(typeTable, returnType);
+            } else {
+                int name = stringIndex(type.className());
+                writeVarint(typeTable, CLASS_TYPE);
+                writeVarint(typeTable, name);
+            }
+            index = typeCount;
+            typeCount += 1;
+            typeIndices.put(description, index);
+            return index;
+        }
+
+        /** Returns a string that is the same for two types iff they are structurally equal. */
+        private static String describe(Type type) {
+            if (type instanceof ListValueType) {
+                return "[" + describe(((ListValueType) type).elementType) + "]";
+            } else if (type instanceof FuncType) {
+                FuncType funcType = (FuncType) type;
+                StringBuilder sb = new StringBuilder("(");
+                for (ValueType parameter : funcType.parameters) {
+                    sb.append(describe(parameter)).append(',');
+                }
+                return sb.append(")->").append(describe(funcType.returnType)).toString();
+            } else {
+                return type.className();
+            }
+        }
+
+        /** Write VALUE to OUT as an unsigned varint. */
+        private static void writeVarint(ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        /** Returns the zigzag encoding of VALUE. */
+        private static int zigzag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+    }
+
+    /** Deserializes one AST. */
+    private static class Reader {
+
+        /** The serialized AST. */
+        private final byte[] data;
+
+        /** The position of the next byte to read. */
+        private int pos = 0;
+
+        /** The string table. */
+        private String[] strings;
+
+        /** The type table. */
+        private Type[] types;
+
+        /** The distinct types of the AST. */
+        private final TypeInterner interner = new TypeInterner();
+
+        /** A reader of the AST serialized in DATA. */
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        /** Returns the AST. */
+        Node read() throws IOException {
+            if (!isBinaryAst(data)) {
+                throw new IOException("Not a binary AST");
+            }
+            pos = MAGIC.length;
+            int version = data[pos++];
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary AST version " + version);
+            }
+            try {
+                strings = new String[readVarint()];
+                for (int i = 0; i < strings.length; i += 1) {
+                    int length = readVarint();
+                    strings[i] = new String(data, pos, length, StandardCharsets.UTF_8);
+                    pos += length;
+                }
+                types = new Type[readVarint()];
+                for (int i = 0; i < types.length; i += 1) {
+                    types[i] = readTypeEntry();
+                }
+                Node root = readNode();
+                if (pos != data.length) {
+                    throw new IOException("Unexpected data after the AST");
+                }
+                return root;
+            } catch (IndexOutOfBoundsException | ClassCastException e) {
+                throw new IOException("Malformed binary AST at offset " + pos, e);
+            }
+        }
+
+        /** Returns the next entry of the type table. */
+        private Type readTypeEntry() throws IOException {
+            int tag = readVarint();
+            switch (tag) {
+                case CLASS_TYPE:
+                    return interner.classType(strings[readVarint()]);
+                case LIST_TYPE:
+                    return interner.listType((ValueType) types[readVarint()]);
+                case FUNC_TYPE:
+                    int count = readVarint();
+                    List<ValueType> parameters = new ArrayList<>(count);
+                    for (int i = 0; i < count; i += 1) {
+                        parameters.add((ValueType) types[readVarint()]);
+                    }
+                    return interner.funcType(parameters, (ValueType) types[readVarint()]);
+                default:
+                    throw new IOException("Unknown type tag " + tag);
+            }
+        }
+
+        /** Returns the next node, which may be null. */
+        private Node readNode() throws IOException {
+            int code = readVarint();
+            if (code == 0) {
+                return null;
+            }
+            if (code > KINDS.length) {
+                throw new IOException("Unknown kind code " + code);
+            }
+            int startLine = readVarint();
+            int startColumn = readVarint();
+            int endLine = startLine + unzigzag(readVarint());
+            int endColumn = readVarint();
+            String errorMsg = readString();
+            Node node = readFields(code);
+            try {
+                node.setPackedLocation(
+                        Node.packLocation(startLine, startColumn, endLine, endColumn));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            node.setErrorMsg(errorMsg);
+            if (node instanceof Expr) {
+                int index = readVarint();
+                ((Expr) node).setInferredType(index == 0 ? null : types[index - 1]);
+            }
+            return node;
+        }
+
+        /** Returns a node of kind KINDS[CODE - 1], whose fields come next. */
+        private Node readFields(int code) throws IOException {
+            switch (KINDS[code - 1]) {
+                case "Program":
+                    return new Program(
+                            null,
+                            null,
+                            readNodes(Declaration.class),
+                            readNodes(Stmt.class),
+                            (Errors) readNode());
+                case "Errors":
+                    return new Errors(readNodes(CompilerError.class));
+                case "CompilerError":
+                    return new CompilerError(null, null, readString(), readBoolean());
+                case "ClassDef":
+                    return new ClassDef(
+                            null,
+                            null,
+                            (Identifier) readNode(),
+                            (Identifier) readNode(),
+                            readNodes(Declaration.class));
+                case "FuncDef":
+                    return new FuncDef(
+                            null,
+                            null,
+                            (Identifier) readNode(),
+                            readNodes(TypedVar.class),
+                            (TypeAnnotation) readNode(),
+                            readNodes(Declaration.class),
+                            readNodes(Stmt.class));
+                case "VarDef":
+                    return new VarDef(null, null, (TypedVar) readNode(), (Literal) readNode());
+                case "GlobalDecl":
+                    return new GlobalDecl(null, null, (Identifier) readNode());
+                case "NonLocalDecl":
+                    return new NonLocalDecl(null, null, (Identifier) readNode());
+                case "TypedVar":
+                    return new TypedVar(
+                            null, null, (Identifier) readNode(), (TypeAnnotation) readNode());
+                case "ClassType":
+                    return new ClassType(null, null, readString());
+                case "ListType":
+                    return new ListType(null, null, (TypeAnnotation) readNode());
+                case "AssignStmt":
+                    return new AssignStmt(null, null, readNodes(Expr.class), (Expr) readNode());
+                case "ExprStmt":
+                    return new ExprStmt(null, null, (Expr) readNode());
+                case "ForStmt":
+                    return new ForStmt(
+                            null,
+                            null,
+                            (Identifier) readNode(),
+                            (Expr) readNode(),
+                            readNodes(Stmt.class));
+                case "IfStmt":
+                    return new IfStmt(
+                            null,
+                            null,
+                            (Expr) readNode(),
+                            readNodes(Stmt.class),
+                            readNodes(Stmt.class));
+                case "ReturnStmt":
+                    return new ReturnStmt(null, null, (Expr) readNode());
+                case "WhileStmt":
+                    return new WhileStmt(null, null, (Expr) readNode(), readNodes(Stmt.class));
+                case "BinaryExpr":
+                    return new BinaryExpr(
+                            null, null, (Expr) readNode(), readString(), (Expr) readNode());
+                case "UnaryExpr":
+                    return new UnaryExpr(null, null, readString(), (Expr) readNode());
+                case "CallExpr":
+                    return new CallExpr(
+                            null, null, (Identifier) readNode(), readNodes(Expr.class));
+                case "MethodCallExpr":
+                    return new MethodCallExpr(
+                            null, null, (MemberExpr) readNode(), readNodes(Expr.class));
+                case "MemberExpr":
+                    return new MemberExpr(
+                            null, null, (Expr) readNode(), (Identifier) readNode());
+                case "IndexExpr":
+                    return new IndexExpr(null, null, (Expr) readNode(), (Expr) readNode());
+                case "IfExpr":
+                    return new IfExpr(
+                            null,
+                            null,
+                            (Expr) readNode(),
+                            (Expr) readNode(),
+                            (Expr) readNode());
+                case "ListExpr":
+                    return new ListExpr(null, null, readNodes(Expr.class));
+                case "Identifier":
+                    return new Identifier(null, null, readString());
+                case "BooleanLiteral":
+                    return new BooleanLiteral(null, null, readBoolean());
+                case "IntegerLiteral":
+                    return new IntegerLiteral(null, null, unzigzag(readVarint()));
+                case "StringLiteral":
+                    return new StringLiteral(null, null, readString());
+                case "NoneLiteral":
+                    return new NoneLiteral(null, null);
+                default:
+                    throw new IOException("Unknown kind code " + code);
+            }
+        }
+
+        /** Returns the next list of nodes, whose elements must be of type CLAS. */
+        private <T extends Node> List<T> readNodes(Class<T> clas) throws IOException {
+            int count = readVarint();
+            List<T> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                list.add(clas.cast(readNode()));
+            }
+            return list;
+        }
+
+        /** Returns the next string, which may be null. */
+        private String readString() {
+            int index = readVarint();
+            return index == 0 ? null : strings[index - 1];
+        }
+
+        /** Returns the next boolean. */
+        private boolean readBoolean() {
+            return data[pos++] != 0;
+        }
+
+        /** Returns the next unsigned varint. */
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        /** Returns the integer whose zigzag encoding is VALUE. */
+        private static int unzigzag(int value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
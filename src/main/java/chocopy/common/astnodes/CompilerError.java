@@ -4,7 +4,6 @@ import chocopy.common.analysis.NodeAnalyzer;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import java_cup.runtime.ComplexSymbolFactory.Location;
 
-import java.util.Arrays;
 import java.util.Objects;
 
 /** Represents a single error. Does not correspond to any Python source construct. */
@@ -35,13 +34,13 @@ public class CompilerError extends Node {
         }
         CompilerError that = (CompilerError) o;
         return Objects.equals(message, that.message)
-                && Arrays.equals(getLocation(), that.getLocation());
+                && getPackedLocation() == that.getPackedLocation();
     }
 
     @Override
     public int hashCode() {
         int result = Objects.hash(message);
-        result = 31 * result + Arrays.hashCode(getLocation());
+        result = 31 * result + Long.hashCode(getPackedLocation());
         return result;
     }
 
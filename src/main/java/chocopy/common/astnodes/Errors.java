@@ -3,11 +3,13 @@ package chocopy.common.astnodes;
 import chocopy.common.analysis.NodeAnalyzer;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import java_cup.runtime.ComplexSymbolFactory.Location;
 
 import java.util.List;
 
 /** Collects the error messages in a Program. There is exactly one per Program node. */
+@JsonPropertyOrder({"errors", "kind", "location"})
 public class Errors extends Node {
 
     /** The accumulated error messages in the order added. */
@@ -44,7 +46,7 @@ public class Errors extends Node {
         if (allowMultipleErrors || !node.hasError()) {
             String msg = String.format(messageForm, args);
             CompilerError err = new CompilerError(null, null, msg, false);
-            err.setLocation(node.getLocation());
+            err.setPackedLocation(node.getPackedLocation());
             add(err);
             if (!node.hasError()) {
                 node.setErrorMsg(msg);
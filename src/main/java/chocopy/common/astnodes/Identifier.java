@@ -1,6 +1,8 @@
 package chocopy.common.astnodes;
 
 import chocopy.common.analysis.NodeAnalyzer;
+import chocopy.common.codegen.SymbolInfo;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import java_cup.runtime.ComplexSymbolFactory.Location;
 
 /** A simple identifier. */
@@ -9,6 +11,12 @@ public class Identifier extends Expr {
     /** Text of the identifier. */
     public final String name;
 
+    /**
+     * The descriptor of the symbol I denote in my scope. Set by code generation, before any code
+     * is emitted, for identifiers used as expressions and for the targets of for loops.
+     */
+    @JsonIgnore private SymbolInfo symbolInfo;
+
     /**
      * An AST for the variable, method, or parameter named NAME, spanning source locations
      * [LEFT..RIGHT].
@@ -18,6 +26,17 @@ public class Identifier extends Expr {
         this.name = name;
     }
 
+    /** Returns the descriptor of the symbol I denote, or null if I have not been resolved. */
+    @JsonIgnore
+    public SymbolInfo getSymbolInfo() {
+        return symbolInfo;
+    }
+
+    /** Set getSymbolInfo() to INFO. */
+    public void setSymbolInfo(SymbolInfo info) {
+        symbolInfo = info;
+    }
+
     public <T> T dispatch(NodeAnalyzer<T> analyzer) {
         return analyzer.analyze(this);
     }
@@ -1,6 +1,7 @@
 package chocopy.common.astnodes;
 
 import chocopy.common.analysis.NodeAnalyzer;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import java_cup.runtime.ComplexSymbolFactory.Location;
 
 /** Attribute accessor. */
@@ -11,6 +12,13 @@ public class MemberExpr extends Expr {
     /** Name of attribute (instance variable or method). */
     public final Identifier member;
 
+    /**
+     * The index of the member in objects of the class of OBJECT: of the attribute among their
+     * attributes, or of the method in their dispatch table. Set by code generation, before any
+     * code is emitted; -1 until then.
+     */
+    @JsonIgnore private int memberIndex = -1;
+
     /** The AST for OBJECT.MEMBER. spanning source locations [LEFT..RIGHT]. */
     public MemberExpr(Location left, Location right, Expr object, Identifier member) {
         super(left, right);
@@ -18,6 +26,17 @@ public class MemberExpr extends Expr {
         this.member = member;
     }
 
+    /** Returns the index of my member, or -1 if I have not been resolved. */
+    @JsonIgnore
+    public int getMemberIndex() {
+        return memberIndex;
+    }
+
+    /** Set getMemberIndex() to INDEX. */
+    public void setMemberIndex(int index) {
+        memberIndex = index;
+    }
+
     public <T> T dispatch(NodeAnalyzer<T> analyzer) {
         return analyzer.analyze(this);
     }
@@ -3,6 +3,7 @@ package chocopy.common.astnodes;
 import chocopy.common.analysis.NodeAnalyzer;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -13,6 +14,7 @@ import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
 import java_cup.runtime.ComplexSymbolFactory.Location;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 /**
  * Root of the AST class hierarchy. Every node has a left and right location, indicating the start
@@ -60,16 +62,33 @@ import java.io.IOException;
     @JsonSubTypes.Type(VarDef.class),
     @JsonSubTypes.Type(WhileStmt.class),
 })
+@JsonPropertyOrder({"kind", "location"})
 public abstract class Node {
 
     /** Node-type indicator for JSON form. */
     public final String kind;
 
+    /** The simple names of node classes, which are their kinds in JSON form. */
+    private static final ClassValue<String> kinds =
+            new ClassValue<String>() {
+                @Override
+                protected String computeValue(Class<?> type) {
+                    return type.getSimpleName();
+                }
+            };
+
+    /** Largest line number that can be recorded in a location. */
+    public static final int MAX_LINE = (1 << 20) - 1;
+
+    /** Largest column number that can be recorded in a location. */
+    public static final int MAX_COLUMN = (1 << 12) - 1;
+
     /**
-     * Source position information: 0: line number of start, 1: column number of start, 2: line
-     * number of end, 3: column number of end.
+     * Source position information, packed into one long by {@link #packLocation}: from the most
+     * significant bits down, 20 bits of line number of start, 12 bits of column number of start, 20
+     * bits of line number of end and 12 bits of column number of end.
      */
-    private final int[] location = new int[4];
+    private long location;
 
     /**
      * First error message "blamed" on this Node. When non-null, indicates that an error has been
@@ -80,29 +99,74 @@ public abstract class Node {
 
     /** A Node corresponding to source text between LEFT and RIGHT. */
     public Node(Location left, Location right) {
-        if (left != null) {
-            location[0] = left.getLine();
-            location[1] = left.getColumn();
-        }
-        if (right != null) {
-            location[2] = right.getLine();
-            location[3] = right.getColumn();
-        }
-        this.kind = getClass().getSimpleName();
+        this.location =
+                packLocation(
+                        left == null ? 0 : left.getLine(),
+                        left == null ? 0 : left.getColumn(),
+                        right == null ? 0 : right.getLine(),
+                        right == null ? 0 : right.getColumn());
+        this.kind = kinds.get(getClass());
         this.errorMsg = null;
     }
 
     /**
      * Return my source location as { <first line>, <first column>, <last line>, <last column> }.
-     * Result should not be modified, and contents will change after setLocation().
+     * Result is a fresh array.
      */
     public int[] getLocation() {
-        return location;
+        return new int[] {
+            (int) (location >>> 44),
+            (int) (location >>> 32) & MAX_COLUMN,
+            (int) (location >>> 12) & MAX_LINE,
+            (int) location & MAX_COLUMN
+        };
     }
 
-    /** Copy LOCATION as getLocation(). */
+    /** Set getLocation() to LOCATION. */
     public void setLocation(final int[] location) {
-        System.arraycopy(location, 0, this.location, 0, 4);
+        this.location = packLocation(location[0], location[1], location[2], location[3]);
+    }
+
+    /** Return my source location in the packed form of {@link #packLocation}. */
+    @JsonIgnore
+    public long getPackedLocation() {
+        return location;
+    }
+
+    /** Set my source location to LOCATION, in the packed form of {@link #packLocation}. */
+    public void setPackedLocation(long location) {
+        this.location = location;
+    }
+
+    /**
+     * Return the location from line STARTLINE, column STARTCOLUMN to line ENDLINE, column
+     * ENDCOLUMN in packed form. Throws IllegalArgumentException if a line number is negative or
+     * above MAX_LINE, or a column number is negative or above MAX_COLUMN.
+     */
+    public static long packLocation(int startLine, int startColumn, int endLine, int endColumn) {
+        if (startLine < 0
+                || startLine > MAX_LINE
+                || endLine < 0
+                || endLine > MAX_LINE
+                || startColumn < 0
+                || startColumn > MAX_COLUMN
+                || endColumn < 0
+                || endColumn > MAX_COLUMN) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Source location %d:%d-%d:%d out of range (at most %d lines of %d"
+                                    + " columns)",
+                            startLine,
+                            startColumn,
+                            endLine,
+                            endColumn,
+                            MAX_LINE,
+                            MAX_COLUMN));
+        }
+        return (long) startLine << 44
+                | (long) startColumn << 32
+                | (long) endLine << 12
+                | endColumn;
     }
 
     public String getErrorMsg() {
@@ -148,8 +212,14 @@ public abstract class Node {
         mapper.registerModule(new ParameterNamesModule());
     }
 
-    /** Returns a T from JSON, a JSON-serialized T value with class CLAS. */
+    /**
+     * Returns a T from JSON, a JSON-serialized T value with class CLAS. ASTs are read by an {@link
+     * AstReader}, without building a JSON tree first.
+     */
     public static <T> T fromJSON(String json, Class<T> clas) throws IOException {
+        if (Node.class.isAssignableFrom(clas)) {
+            return clas.cast(AstReader.read(json, clas.asSubclass(Node.class)));
+        }
         return mapper.readValue(json, clas);
     }
 
@@ -161,6 +231,15 @@ public abstract class Node {
         return fromJSON(json, Node.class);
     }
 
+    /**
+     * Returns the result of converting the contents of the file at PATH, a JSON-serialization of a
+     * Node value, into the value it serializes. The file is memory-mapped and read as a stream of
+     * tokens.
+     */
+    public static Node fromJSON(Path path) throws IOException {
+        return AstReader.read(path, Node.class);
+    }
+
     /**
      * Returns the result of converting TREE to the value of type T that it represents, where CLAS
      * reflects T.
@@ -0,0 +1,1358 @@
+package chocopy.common.codegen;
+
+import chocopy.common.codegen.RiscVBackend.Register;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Assembles the code emitted by {@link RiscVBackend} directly to RV32IM machine code.
+ *
+ * <p>Code is added as {@link Instruction}s, and the parts given as text, such as library routines,
+ * are parsed into instructions first. The pseudo-instructions are expanded as an assembler would:
+ * `li` to `addi` or to `lui` and `addi`, `la` to `auipc` and `addi`, `mv`, `seqz` and `snez` to
+ * their base instructions, and `j`, `jr` and the branches against zero to `jal`, `jalr` and the
+ * two-register branches. Labels and the symbols defined by .equiv are resolved here; immediates
+ * may be sums and differences of such symbols and numbers, such as `@f.size-4`. A conditional
+ * branch whose target is out of its reach becomes the inverse branch over a jump.
+ *
+ * <p>With {@link #setCompressed(boolean)}, an instruction is given its 16-bit RVC encoding
+ * whenever its operands fit one: loads and stores at small non-negative offsets from SP, or
+ * among FP, S1 and A0-A5, small `addi` and `li`, `mv`, `jr` and register arithmetic with the
+ * destination as a source. Jumps and branches start out compressed and are widened while their
+ * targets are out of reach, until none is.
+ *
+ * <p>The text section is placed at {@link #TEXT_BASE} and the data section on the next page
+ * boundary after it. The result is an {@link Image}, which can be written as an ELF32 executable.
+ */
+public final class Assembler {
+
+    /** The address of the text section. */
+    public static final int TEXT_BASE = 0x10000;
+
+    /** The ELF header flag marking code that uses the RVC extension. */
+    static final int EF_RISCV_RVC = 0x1;
+
+    /** The alignment of sections, in memory and in ELF files. */
+    private static final int PAGE_SIZE = 0x1000;
+
+    /** The size of all instructions, and of the halves of expanded pseudo-instructions. */
+    private static final int INSN_SIZE = 4;
+
+    /** The size of compressed instructions. */
+    private static final int COMPACT_SIZE = 2;
+
+    /** The compressed no-op, which pads code. */
+    private static final int C_NOP = 0x0001;
+
+    /** The forms of jumps and branches: compressed, normal, and expanded to reach further. */
+    private static final byte COMPACT = 0, FULL = 1, FAR = 2;
+
+    /** The base opcodes of RV32IM. */
+    private static final int OP = 0x33, OP_IMM = 0x13, LOAD = 0x03, STORE = 0x23, BRANCH = 0x63;
+
+    /** More base opcodes of RV32IM. */
+    private static final int LUI = 0x37, AUIPC = 0x17, JAL = 0x6f, JALR = 0x67, SYSTEM = 0x73;
+
+    /** The funct3 field of the opcodes that have one, by opcode. */
+    private static final Map<Opcode, Integer> FUNCT3 = new EnumMap<>(Opcode.class);
+
+    /** The funct7 field of the register-register opcodes, by opcode. */
+    private static final Map<Opcode, Integer> FUNCT7 = new EnumMap<>(Opcode.class);
+
+    /** The opcodes of instructions by mnemonic, where the operands do not tell them apart. */
+    private static final Map<String, Opcode> MNEMONICS = new HashMap<>();
+
+    /** The registers by name, including aliases. */
+    private static final Map<String, Register> REGISTERS = new HashMap<>();
+
+    static {
+        Object[][] fields = {
+            {Opcode.ADD, 0, 0}, {Opcode.SUB, 0, 0x20}, {Opcode.SLL, 1, 0},
+            {Opcode.SLT, 2, 0}, {Opcode.XOR, 4, 0}, {Opcode.SRL, 5, 0},
+            {Opcode.SRA, 5, 0x20}, {Opcode.OR, 6, 0}, {Opcode.AND, 7, 0},
+            {Opcode.MUL, 0, 1}, {Opcode.DIV, 4, 1}, {Opcode.REM, 6, 1},
+            {Opcode.ADDI, 0, 0}, {Opcode.XORI, 4, 0}, {Opcode.ORI, 6, 0},
+            {Opcode.ANDI, 7, 0}, {Opcode.SLLI, 1, 0}, {Opcode.SRLI, 5, 0},
+            {Opcode.SRAI, 5, 0x20}, {Opcode.LB, 0, 0}, {Opcode.LW, 2, 0},
+            {Opcode.LBU, 4, 0}, {Opcode.SB, 0, 0}, {Opcode.SW, 2, 0},
+            {Opcode.BEQ, 0, 0}, {Opcode.BNE, 1, 0}, {Opcode.BLT, 4, 0},
+            {Opcode.BGE, 5, 0}, {Opcode.BLTU, 6, 0}, {Opcode.BGEU, 7, 0}
+        };
+        for (Object[] field : fields) {
+            FUNCT3.put((Opcode) field[0], (Integer) field[1]);
+            FUNCT7.put((Opcode) field[0], (Integer) field[2]);
+        }
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode.isInstruction()) {
+                MNEMONICS.putIfAbsent(opcode.mnemonic, opcode);
+            }
+        }
+        for (Register reg : Register.values()) {
+            REGISTERS.put(reg.name, reg);
+        }
+        REGISTERS.put("s0", Register.FP);
+        REGISTERS.put("x0", Register.ZERO);
+    }
+
+    /** The code of the text section. */
+    private final List<Instruction> text = new ArrayList<>();
+
+    /** The code of the data section. */
+    private final List<Instruction> data = new ArrayList<>();
+
+    /** The section code is added to. */
+    private List<Instruction> section = text;
+
+    /** The values of the symbols defined by .equiv, as given. */
+    private final Map<String, String> equivs = new HashMap<>();
+
+    /** The addresses of the labels, once laid out. */
+    private final Map<String, Integer> addresses = new LinkedHashMap<>();
+
+    /** True iff compressed (RVC) encodings are chosen where the operands fit. */
+    private boolean compress = false;
+
+    /** The number of machine instructions assembled, and of those compressed. */
+    private int instructionCount, compressedCount;
+
+    /**
+     * Choose the 16-bit encodings of the RVC extension for the instructions whose operands fit
+     * them iff COMPRESS. Off by default.
+     */
+    public void setCompressed(boolean compress) {
+        this.compress = compress;
+    }
+
+    /** Add INSN to the code. Text entries are parsed, and comments are ignored. */
+    public void add(Instruction insn) {
+        switch (insn.opcode) {
+            case RAW:
+            case VERBATIM:
+                addText(insn.text);
+                break;
+            case EQUIV:
+                define(insn.symbol, insn.text);
+                break;
+            default:
+                section.add(insn);
+                break;
+        }
+    }
+
+    /** Add the code given as the assembly text TEXT. */
+    public void addText(String text) {
+        for (String line : text.split("\n")) {
+            String code = Linker.stripComment(line).trim();
+            Matcher label = Linker.LABEL_PATN.matcher(code);
+            while (label.lookingAt()) {
+                section.add(
+                        new Instruction(
+                                Opcode.LOCAL_LABEL, null, null, null, 0, null,
+                                new Label(label.group(1)), null, null));
+                code = code.substring(label.end());
+                label = Linker.LABEL_PATN.matcher(code);
+            }
+            if (code.isEmpty()) {
+                continue;
+            }
+            String[] parts = code.split("\\s+", 2);
+            String[] operands = parts.length > 1 ? parts[1].split(",") : new String[0];
+            for (int i = 0; i < operands.length; i += 1) {
+                operands[i] = operands[i].trim();
+            }
+            if (parts[0].startsWith(".")) {
+                addDirective(parts[0], parts.length > 1 ? parts[1].trim() : "", operands);
+            } else {
+                section.add(parse(parts[0], operands));
+            }
+        }
+    }
+
+    /** Add the directive NAME with operands OPERANDS, given as the text ARGS. */
+    private void addDirective(String name, String args, String[] operands) {
+        switch (name) {
+            case ".text":
+                section = text;
+                break;
+            case ".data":
+                section = data;
+                break;
+            case ".globl":
+            case ".extern":
+                break;
+            case ".equiv":
+                define(operands[0], operands[1]);
+                break;
+            case ".word":
+                if (isSymbol(args) && !args.startsWith("@")) {
+                    section.add(
+                            new Instruction(
+                                    Opcode.WORD, null, null, null, 0, null, new Label(args),
+                                    null, null));
+                } else {
+                    section.add(immediate(Opcode.WORD, null, null, null, args));
+                }
+                break;
+            case ".string":
+                if (!args.startsWith("\"") || !args.endsWith("\"") || args.length() < 2) {
+                    throw new IllegalArgumentException("Malformed string: " + args);
+                }
+                section.add(
+                        new Instruction(
+                                Opcode.STRING, null, null, null, 0, null, null,
+                                args.substring(1, args.length() - 1), null));
+                break;
+            case ".align":
+            case ".space":
+                section.add(
+                        new Instruction(
+                                name.equals(".align") ? Opcode.ALIGN : Opcode.SPACE, null, null,
+                                null, Integer.parseInt(args), null, null, null, null));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported directive: " + name);
+        }
+    }
+
+    /** Define the symbol NAME to have the value of the expression VALUE. */
+    private void define(String name, String value) {
+        String old = equivs.put(name, value);
+        if (old != null && !old.equals(value)) {
+            throw new IllegalStateException("Conflicting values for " + name);
+        }
+    }
+
+    /** Returns the instruction MNEMONIC with OPERANDS. */
+    private static Instruction parse(String mnemonic, String[] operands) {
+        switch (mnemonic) {
+            case "nop":
+                return immediate(Opcode.ADDI, Register.ZERO, Register.ZERO, null, "0");
+            case "ret":
+                return jump(Opcode.JR, null, Register.RA, null);
+            case "lw":
+                if (!operands[1].endsWith(")")) {
+                    return jump(Opcode.LW_LABEL, register(operands[0]), null, operands[1]);
+                }
+                break;
+            case "sw":
+                if (operands.length == 3) {
+                    return new Instruction(
+                            Opcode.SW_LABEL, null, register(operands[2]), register(operands[0]),
+                            0, null, new Label(operands[1]), null, null);
+                }
+                break;
+            case "jal":
+                if (operands.length == 2) {
+                    Register rd = register(operands[0]);
+                    return jump(Opcode.JAL, rd == Register.RA ? null : rd, null, operands[1]);
+                }
+                break;
+            case "jalr":
+                return jumpAndLinkRegister(operands);
+            default:
+                break;
+        }
+
+        Opcode opcode = MNEMONICS.get(mnemonic);
+        if (opcode == null) {
+            throw new IllegalArgumentException("Unsupported instruction: " + mnemonic);
+        }
+        switch (opcode.format) {
+            case R:
+                return new Instruction(
+                        opcode, register(operands[0]), register(operands[1]),
+                        register(operands[2]), 0, null, null, null, null);
+            case I:
+                return immediate(
+                        opcode, register(operands[0]), register(operands[1]), null, operands[2]);
+            case UNARY:
+                return new Instruction(
+                        opcode, register(operands[0]), register(operands[1]), null, 0, null,
+                        null, null, null);
+            case LI:
+                return immediate(opcode, register(operands[0]), null, null, operands[1]);
+            case LA:
+                return jump(opcode, register(operands[0]), null, operands[1]);
+            case LOAD:
+            case STORE:
+                {
+                    int open = operands[1].lastIndexOf('(');
+                    Register base = register(operands[1].substring(open + 1).replace(")", ""));
+                    String offset = operands[1].substring(0, open).trim();
+                    Register reg = register(operands[0]);
+                    return opcode.format == Opcode.Format.LOAD
+                            ? immediate(opcode, reg, base, null, offset.isEmpty() ? "0" : offset)
+                            : immediate(opcode, null, base, reg, offset.isEmpty() ? "0" : offset);
+                }
+            case BRANCH:
+                return new Instruction(
+                        opcode, null, register(operands[0]), register(operands[1]), 0, null,
+                        new Label(operands[2]), null, null);
+            case BRANCHZ:
+                return jump(opcode, null, register(operands[0]), operands[1]);
+            case JUMP:
+                return jump(opcode, null, null, operands[0]);
+            case JUMP_REG:
+                return jump(opcode, null, register(operands[0]), null);
+            default:
+                return new Instruction(opcode, null, null, null, 0, null, null, null, null);
+        }
+    }
+
+    /**
+     * Returns the jalr instruction with OPERANDS, in any of the forms rs1, rd, offset(rs1) and rd,
+     * rs1, offset. Only links to RA or ZERO with a zero offset are supported, as these are the
+     * only forms the code generators emit; a link to ZERO is a plain jump.
+     */
+    private static Instruction jumpAndLinkRegister(String[] operands) {
+        Register rd = Register.RA;
+        Register base;
+        Integer offset = 0;
+        switch (operands.length) {
+            case 1:
+                base = register(operands[0]);
+                break;
+            case 2:
+                {
+                    int[] displacement = new int[1];
+                    rd = register(operands[0]);
+                    base = address(operands[1], displacement);
+                    offset = displacement[0];
+                    break;
+                }
+            case 3:
+                rd = register(operands[0]);
+                base = register(operands[1]);
+                offset = parseNumber(operands[2]);
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported jalr: " + String.join(", ", operands));
+        }
+        if ((rd != Register.RA && rd != Register.ZERO) || offset == null || offset != 0) {
+            throw new IllegalArgumentException("Unsupported jalr: " + String.join(", ", operands));
+        }
+        return jump(rd == Register.RA ? Opcode.JALR : Opcode.JR, null, base, null);
+    }
+
+    /** Returns an instruction of OPCODE with registers RD and RS1 and label LABEL, if non-null. */
+    private static Instruction jump(Opcode opcode, Register rd, Register rs1, String label) {
+        return new Instruction(
+                opcode, rd, rs1, null, 0, null, label == null ? null : new Label(label), null,
+                null);
+    }
+
+    /** Returns an instruction of OPCODE with registers RD, RS1 and RS2 and immediate IMM. */
+    private static Instruction immediate(
+            Opcode opcode, Register rd, Register rs1, Register rs2, String imm) {
+        Integer value = parseNumber(imm);
+        return value != null
+                ? new Instruction(opcode, rd, rs1, rs2, value, null, null, null, null)
+                : new Instruction(opcode, rd, rs1, rs2, 0, imm, null, null, null);
+    }
+
+    /** Returns the register named NAME. */
+    private static Register register(String name) {
+        Register reg = REGISTERS.get(name);
+        if (reg == null) {
+            throw new IllegalArgumentException("Not a register: " + name);
+        }
+        return reg;
+    }
+
+    /** Returns the base register of the address OPERAND, storing its offset in OFFSET[0]. */
+    private static Register address(String operand, int[] offset) {
+        int open = operand.lastIndexOf('(');
+        if (open < 0) {
+            return register(operand);
+        }
+        String imm = operand.substring(0, open).trim();
+        offset[0] = imm.isEmpty() ? 0 : Integer.parseInt(imm);
+        return register(operand.substring(open + 1).replace(")", "").trim());
+    }
+
+    /** Returns the integer written TEXT, or null if TEXT is not a number. */
+    private static Integer parseNumber(String text) {
+        try {
+            if (text.startsWith("0x") || text.startsWith("-0x")) {
+                boolean negative = text.startsWith("-");
+                int value = (int) Long.parseLong(text.substring(negative ? 3 : 2), 16);
+                return negative ? -value : value;
+            }
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Returns true iff TEXT is a symbol. */
+    private static boolean isSymbol(String text) {
+        return text.matches("[A-Za-z_.$@][\\w.$@]*");
+    }
+
+    /**
+     * Returns the machine code of all the code added, laid out and with all its labels and
+     * symbols resolved.
+     */
+    public Image assemble() {
+        byte[] forms = new byte[text.size()];
+        for (int i = 0; i < forms.length; i += 1) {
+            Instruction insn = text.get(i);
+            forms[i] = compress && isRelative(insn) && hasCompactJump(insn) ? COMPACT : FULL;
+        }
+        int textEnd;
+        do {
+            addresses.clear();
+            textEnd = layout(text, TEXT_BASE, forms);
+            layout(data, alignUp(textEnd, PAGE_SIZE), null);
+        } while (relax(forms));
+
+        instructionCount = 0;
+        compressedCount = 0;
+        ByteArrayOutputStream textCode = new ByteArrayOutputStream();
+        encode(text, TEXT_BASE, forms, textCode);
+        ByteArrayOutputStream dataCode = new ByteArrayOutputStream();
+        encode(data, alignUp(textEnd, PAGE_SIZE), null, dataCode);
+        Integer entry = addresses.get("main");
+        return new Image(
+                textCode.toByteArray(),
+                alignUp(textEnd, PAGE_SIZE),
+                dataCode.toByteArray(),
+                entry != null ? entry : TEXT_BASE,
+                addresses,
+                compress,
+                instructionCount,
+                compressedCount);
+    }
+
+    /**
+     * Record the addresses of the labels of CODE placed at BASE, where the jumps and branches
+     * take the FORMS (null for none) given by position. Returns the end address.
+     */
+    private int layout(List<Instruction> code, int base, byte[] forms) {
+        int address = base;
+        for (int i = 0; i < code.size(); i += 1) {
+            Instruction insn = code.get(i);
+            if (insn.opcode.isLabel()) {
+                if (addresses.put(insn.label.labelName, address) != null) {
+                    throw new IllegalStateException(
+                            "Symbol defined twice: " + insn.label.labelName);
+                }
+            } else {
+                address += sizeOf(insn, address, forms == null ? FULL : forms[i]);
+            }
+        }
+        return address;
+    }
+
+    /**
+     * Widen the FORMS of the jumps and branches of the text section that cannot reach their
+     * target. Returns true iff any was widened.
+     */
+    private boolean relax(byte[] forms) {
+        boolean changed = false;
+        int address = TEXT_BASE;
+        for (int i = 0; i < text.size(); i += 1) {
+            Instruction insn = text.get(i);
+            if (isRelative(insn)) {
+                int offset = addressOf(insn.label) - address;
+                if (forms[i] == COMPACT
+                        && !fits(offset, insn.opcode.isBranch() ? 9 : 12)) {
+                    forms[i] = FULL;
+                    changed = true;
+                } else if (forms[i] == FULL && insn.opcode.isBranch() && !fits(offset, 13)) {
+                    forms[i] = FAR;
+                    changed = true;
+                }
+            }
+            if (!insn.opcode.isLabel()) {
+                address += sizeOf(insn, address, forms[i]);
+            }
+        }
+        return changed;
+    }
+
+    /** Returns true iff INSN is a jump or branch to a label. */
+    private static boolean isRelative(Instruction insn) {
+        return insn.opcode.isBranch() || insn.opcode.format == Opcode.Format.JUMP;
+    }
+
+    /**
+     * Returns true iff the jump or branch INSN has a compressed form, if its target is within
+     * reach.
+     */
+    private static boolean hasCompactJump(Instruction insn) {
+        switch (insn.opcode) {
+            case J:
+                return true;
+            case JAL:
+                return insn.rd == null || insn.rd == Register.RA;
+            default:
+                return compactBranchRegister(insn) != null;
+        }
+    }
+
+    /**
+     * Returns the register the branch INSN compares with zero, if it is a beqz or bnez, or the
+     * equivalent beq or bne, on a register that compressed instructions can name. Returns null
+     * otherwise.
+     */
+    private static Register compactBranchRegister(Instruction insn) {
+        Register reg;
+        switch (insn.opcode) {
+            case BEQZ:
+            case BNEZ:
+                reg = insn.rs1;
+                break;
+            case BEQ:
+            case BNE:
+                reg =
+                        insn.rs2 == Register.ZERO
+                                ? insn.rs1
+                                : insn.rs1 == Register.ZERO ? insn.rs2 : null;
+                break;
+            default:
+                reg = null;
+                break;
+        }
+        return reg != null && isCompactRegister(reg) ? reg : null;
+    }
+
+    /**
+     * Returns the number of bytes of code of INSN placed at ADDRESS, where a jump or branch takes
+     * the form FORM.
+     */
+    private int sizeOf(Instruction insn, int address, byte form) {
+        switch (insn.opcode) {
+            case LA:
+            case LW_LABEL:
+            case SW_LABEL:
+                return 2 * INSN_SIZE;
+            case LI:
+                {
+                    if (constant(insn) == null) {
+                        return 2 * INSN_SIZE;
+                    }
+                    int size = 0;
+                    for (Instruction part : expandLoadImmediate(insn)) {
+                        size += compact(part) >= 0 ? COMPACT_SIZE : INSN_SIZE;
+                    }
+                    return size;
+                }
+            case WORD:
+                return 4;
+            case STRING:
+                return unescape(insn.text).length + 1;
+            case ALIGN:
+                return alignUp(address, 1 << insn.imm) - address;
+            case SPACE:
+                return insn.imm;
+            default:
+                if (!insn.isInstruction()) {
+                    return 0;
+                }
+                if (isRelative(insn)) {
+                    return form == COMPACT
+                            ? COMPACT_SIZE
+                            : form == FAR ? 2 * INSN_SIZE : INSN_SIZE;
+                }
+                return compact(insn) >= 0 ? COMPACT_SIZE : INSN_SIZE;
+        }
+    }
+
+    /**
+     * Append the machine code of CODE, placed at BASE, to OUT, where the jumps and branches take
+     * the FORMS (null for none, in data) given by position.
+     */
+    private void encode(List<Instruction> code, int base, byte[] forms, ByteArrayOutputStream out) {
+        int address = base;
+        for (int i = 0; i < code.size(); i += 1) {
+            Instruction insn = code.get(i);
+            byte form = forms == null ? FULL : forms[i];
+            int size = sizeOf(insn, address, form);
+            switch (insn.opcode) {
+                case WORD:
+                    putWord(
+                            out,
+                            insn.label != null ? addressOf(insn.label) : immediateOf(insn));
+                    break;
+                case STRING:
+                    byte[] bytes = unescape(insn.text);
+                    out.write(bytes, 0, bytes.length);
+                    out.write(0);
+                    break;
+                case ALIGN:
+                    if (forms != null && compress) {
+                        for (int k = 0; k < size; k += COMPACT_SIZE) {
+                            putHalf(out, C_NOP);
+                        }
+                        break;
+                    }
+                    for (int k = 0; k < size; k += 1) {
+                        out.write(0);
+                    }
+                    break;
+                case SPACE:
+                    for (int k = 0; k < size; k += 1) {
+                        out.write(0);
+                    }
+                    break;
+                default:
+                    if (insn.isInstruction()) {
+                        encodeInstruction(insn, address, form, out);
+                    } else if (!insn.opcode.isLabel()) {
+                        throw new IllegalArgumentException("Cannot assemble: " + insn);
+                    }
+                    break;
+            }
+            address += size;
+        }
+    }
+
+    /**
+     * Append the machine code of INSN, placed at ADDRESS, to OUT, in its compressed form if it
+     * has one. A jump or branch takes the form FORM.
+     */
+    private void encodeInstruction(
+            Instruction insn, int address, byte form, ByteArrayOutputStream out) {
+        Opcode opcode = insn.opcode;
+        if (opcode == Opcode.LI && constant(insn) != null) {
+            for (Instruction part : expandLoadImmediate(insn)) {
+                encodeInstruction(part, address, FULL, out);
+            }
+            return;
+        }
+        if (isRelative(insn)) {
+            encodeJump(insn, address, form, out);
+            return;
+        }
+        int half = compact(insn);
+        if (half >= 0) {
+            putHalf(out, half);
+            instructionCount += 1;
+            compressedCount += 1;
+            return;
+        }
+        instructionCount += 1;
+        switch (opcode.format) {
+            case R:
+                putWord(out, rType(opcode, insn.rd, insn.rs1, insn.rs2));
+                break;
+            case I:
+                {
+                    int imm = immediateOf(insn);
+                    if (opcode == Opcode.SLLI || opcode == Opcode.SRLI || opcode == Opcode.SRAI) {
+                        if (imm < 0 || imm > 31) {
+                            throw new IllegalStateException("Shift amount out of range: " + insn);
+                        }
+                        imm |= FUNCT7.get(opcode) << 5;
+                    }
+                    putWord(out, iType(OP_IMM, FUNCT3.get(opcode), insn.rd, insn.rs1, imm));
+                    break;
+                }
+            case UNARY:
+                if (opcode == Opcode.MV) {
+                    putWord(out, iType(OP_IMM, 0, insn.rd, insn.rs1, 0));
+                } else if (opcode == Opcode.SEQZ) {
+                    putWord(out, iType(OP_IMM, 3, insn.rd, insn.rs1, 1));
+                } else {
+                    putWord(out, rType(OP, 3, 0, insn.rd, Register.ZERO, insn.rs1));
+                }
+                break;
+            case LI:
+                {
+                    int value = immediateOf(insn);
+                    if (opcode == Opcode.LUI) {
+                        putWord(out, uType(LUI, insn.rd, value));
+                    } else {
+                        int hi = (value + 0x800) >> 12;
+                        putWord(out, uType(LUI, insn.rd, hi));
+                        putWord(out, iType(OP_IMM, 0, insn.rd, insn.rd, value - (hi << 12)));
+                        instructionCount += 1;
+                    }
+                    break;
+                }
+            case LA:
+            case LOAD_LABEL:
+            case STORE_LABEL:
+                {
+                    int offset = addressOf(insn.label) - address;
+                    int hi = (offset + 0x800) >> 12;
+                    int lo = offset - (hi << 12);
+                    Register base = opcode == Opcode.SW_LABEL ? insn.rs1 : insn.rd;
+                    putWord(out, uType(AUIPC, base, hi));
+                    if (opcode == Opcode.LA) {
+                        putWord(out, iType(OP_IMM, 0, insn.rd, base, lo));
+                    } else if (opcode == Opcode.LW_LABEL) {
+                        putWord(out, iType(LOAD, 2, insn.rd, base, lo));
+                    } else {
+                        putWord(out, sType(2, base, insn.rs2, lo));
+                    }
+                    instructionCount += 1;
+                    break;
+                }
+            case LOAD:
+                putWord(out, iType(LOAD, FUNCT3.get(opcode), insn.rd, insn.rs1, immediateOf(insn)));
+                break;
+            case STORE:
+                putWord(out, sType(FUNCT3.get(opcode), insn.rs1, insn.rs2, immediateOf(insn)));
+                break;
+            case JUMP_REG:
+                putWord(
+                        out,
+                        iType(
+                                JALR,
+                                0,
+                                opcode == Opcode.JR ? Register.ZERO : Register.RA,
+                                insn.rs1,
+                                0));
+                break;
+            case NONE:
+                putWord(out, SYSTEM);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot assemble: " + insn);
+        }
+    }
+
+    /**
+     * Returns the base instructions that the li INSN, whose value is constant, expands to: an
+     * addi if the value fits its immediate, and otherwise a lui followed by an addi of the low
+     * part, unless that is zero.
+     */
+    private List<Instruction> expandLoadImmediate(Instruction insn) {
+        int value = constant(insn);
+        List<Instruction> parts = new ArrayList<>(2);
+        if (fitsImm12(value)) {
+            parts.add(
+                    new Instruction(
+                            Opcode.ADDI, insn.rd, Register.ZERO, null, value, null, null, null,
+                            null));
+            return parts;
+        }
+        int hi = (value + 0x800) >> 12;
+        int lo = value - (hi << 12);
+        parts.add(
+                new Instruction(
+                        Opcode.LUI, insn.rd, null, null, hi & 0xfffff, null, null, null, null));
+        if (lo != 0) {
+            parts.add(
+                    new Instruction(
+                            Opcode.ADDI, insn.rd, insn.rd, null, lo, null, null, null, null));
+        }
+        return parts;
+    }
+
+    /**
+     * Returns the compressed (RVC) encoding of INSN, which is neither a pseudo-instruction
+     * expanding to several instructions nor a jump or branch to a label, or -1 if compression is
+     * off or INSN has none.
+     */
+    private int compact(Instruction insn) {
+        if (!compress || !insn.isInstruction()) {
+            return -1;
+        }
+        Register rd = insn.rd;
+        Register rs1 = insn.rs1;
+        Register rs2 = insn.rs2;
+        switch (insn.opcode) {
+            case MV:
+                return rd != Register.ZERO && rs1 != Register.ZERO ? crType(8, rd, rs1) : -1;
+            case ADD:
+                if (rd == Register.ZERO) {
+                    return -1;
+                } else if (rs2 == Register.ZERO && rs1 != Register.ZERO) {
+                    return crType(8, rd, rs1);
+                } else if (rd == rs1 && rs2 != Register.ZERO) {
+                    return crType(9, rd, rs2);
+                } else if (rd == rs2 && rs1 != Register.ZERO) {
+                    return crType(9, rd, rs1);
+                }
+                return -1;
+            case SUB:
+            case XOR:
+            case OR:
+            case AND:
+                {
+                    int funct2 =
+                            insn.opcode == Opcode.SUB
+                                    ? 0
+                                    : insn.opcode == Opcode.XOR
+                                            ? 1
+                                            : insn.opcode == Opcode.OR ? 2 : 3;
+                    if (rd == rs2 && insn.opcode != Opcode.SUB) {
+                        rs2 = rs1;
+                    } else if (rd != rs1) {
+                        return -1;
+                    }
+                    return isCompactRegister(rd) && isCompactRegister(rs2)
+                            ? 0x8c01 | compactNumber(rd) << 7 | funct2 << 5
+                                    | compactNumber(rs2) << 2
+                            : -1;
+                }
+            case JR:
+            case JALR:
+                return rs1 != Register.ZERO
+                        ? crType(insn.opcode == Opcode.JR ? 8 : 9, rs1, Register.ZERO)
+                        : -1;
+            default:
+                break;
+        }
+        if (insn.opcode.format != Opcode.Format.I
+                && insn.opcode.format != Opcode.Format.LI
+                && insn.opcode.format != Opcode.Format.LOAD
+                && insn.opcode.format != Opcode.Format.STORE) {
+            return -1;
+        }
+        Integer value = constant(insn);
+        if (value == null) {
+            return -1;
+        }
+        int imm = value;
+        switch (insn.opcode) {
+            case ADDI:
+                if (rd == Register.SP && rs1 == Register.SP && imm != 0 && imm % 16 == 0
+                        && fits(imm, 10)) {
+                    return 0x6101
+                            | (imm >> 9 & 1) << 12
+                            | (imm >> 4 & 1) << 6
+                            | (imm >> 6 & 1) << 5
+                            | (imm >> 7 & 3) << 3
+                            | (imm >> 5 & 1) << 2;
+                } else if (rs1 == Register.SP && isCompactRegister(rd) && imm > 0
+                        && imm % 4 == 0 && imm < 1024) {
+                    return (imm >> 4 & 3) << 11
+                            | (imm >> 6 & 15) << 7
+                            | (imm >> 2 & 1) << 6
+                            | (imm >> 3 & 1) << 5
+                            | compactNumber(rd) << 2;
+                } else if (rd == Register.ZERO) {
+                    return -1;
+                } else if (rd == rs1 && imm != 0 && fits(imm, 6)) {
+                    return ciType(0, rd, imm, 1);
+                } else if (rs1 == Register.ZERO && fits(imm, 6)) {
+                    return ciType(2, rd, imm, 1);
+                } else if (imm == 0 && rs1 != Register.ZERO) {
+                    return crType(8, rd, rs1);
+                }
+                return -1;
+            case LUI:
+                {
+                    int upper = imm << 12 >> 12;
+                    return rd != Register.ZERO && rd != Register.SP && upper != 0
+                                    && fits(upper, 6)
+                            ? ciType(3, rd, upper, 1)
+                            : -1;
+                }
+            case ANDI:
+                return rd == rs1 && isCompactRegister(rd) && fits(imm, 6)
+                        ? 0x8801 | (imm >> 5 & 1) << 12 | compactNumber(rd) << 7
+                                | (imm & 31) << 2
+                        : -1;
+            case SRLI:
+            case SRAI:
+                return rd == rs1 && isCompactRegister(rd) && imm > 0 && imm < 32
+                        ? 0x8001 | (insn.opcode == Opcode.SRAI ? 1 : 0) << 10
+                                | compactNumber(rd) << 7 | imm << 2
+                        : -1;
+            case SLLI:
+                return rd == rs1 && rd != Register.ZERO && imm > 0 && imm < 32
+                        ? ciType(0, rd, imm, 2)
+                        : -1;
+            case LW:
+                if (imm < 0 || imm % 4 != 0) {
+                    return -1;
+                } else if (rs1 == Register.SP && rd != Register.ZERO && imm < 256) {
+                    return 0x4002 | (imm >> 5 & 1) << 12 | rd.number << 7
+                            | (imm >> 2 & 7) << 4 | (imm >> 6 & 3) << 2;
+                } else if (isCompactRegister(rd) && isCompactRegister(rs1) && imm < 128) {
+                    return 0x4000 | compactMemory(rs1, rd, imm);
+                }
+                return -1;
+            case SW:
+                if (imm < 0 || imm % 4 != 0) {
+                    return -1;
+                } else if (rs1 == Register.SP && imm < 256) {
+                    return 0xc002 | (imm >> 2 & 15) << 9 | (imm >> 6 & 3) << 7
+                            | rs2.number << 2;
+                } else if (isCompactRegister(rs2) && isCompactRegister(rs1) && imm < 128) {
+                    return 0xc000 | compactMemory(rs1, rs2, imm);
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Append the machine code of the jump or branch INSN, placed at ADDRESS, to OUT, in the form
+     * FORM. A far branch is expanded as the inverse branch over a jump.
+     */
+    private void encodeJump(Instruction insn, int address, byte form, ByteArrayOutputStream out) {
+        int offset = addressOf(insn.label) - address;
+        instructionCount += 1;
+        if (form == COMPACT) {
+            compressedCount += 1;
+            if (insn.opcode.format == Opcode.Format.JUMP) {
+                putHalf(out, (insn.opcode == Opcode.J ? 0xa001 : 0x2001) | cjOffset(offset));
+            } else {
+                boolean zero = insn.opcode == Opcode.BEQZ || insn.opcode == Opcode.BEQ;
+                putHalf(
+                        out,
+                        (zero ? 0xc001 : 0xe001)
+                                | compactNumber(compactBranchRegister(insn)) << 7
+                                | cbOffset(offset));
+            }
+            return;
+        }
+        if (insn.opcode.format == Opcode.Format.JUMP) {
+            Register rd =
+                    insn.opcode == Opcode.J
+                            ? Register.ZERO
+                            : insn.rd != null ? insn.rd : Register.RA;
+            putWord(out, jType(rd, offset));
+            return;
+        }
+
+        Opcode opcode = insn.opcode;
+        Register rs1 = insn.rs1;
+        Register rs2 = insn.rs2;
+        switch (opcode) {
+            case BEQZ:
+                opcode = Opcode.BEQ;
+                rs2 = Register.ZERO;
+                break;
+            case BNEZ:
+                opcode = Opcode.BNE;
+                rs2 = Register.ZERO;
+                break;
+            case BLTZ:
+                opcode = Opcode.BLT;
+                rs2 = Register.ZERO;
+                break;
+            case BGEZ:
+                opcode = Opcode.BGE;
+                rs2 = Register.ZERO;
+                break;
+            case BGTZ:
+                opcode = Opcode.BLT;
+                rs1 = Register.ZERO;
+                rs2 = insn.rs1;
+                break;
+            case BLEZ:
+                opcode = Opcode.BGE;
+                rs1 = Register.ZERO;
+                rs2 = insn.rs1;
+                break;
+            default:
+                break;
+        }
+        if (form == FULL) {
+            putWord(out, bType(FUNCT3.get(opcode), rs1, rs2, offset));
+        } else {
+            putWord(out, bType(FUNCT3.get(opcode) ^ 1, rs1, rs2, 2 * INSN_SIZE));
+            putWord(out, jType(Register.ZERO, offset - INSN_SIZE));
+            instructionCount += 1;
+        }
+    }
+
+    /** Returns true iff compressed instructions can name REG in their 3-bit register fields. */
+    private static boolean isCompactRegister(Register reg) {
+        return reg.number >= 8 && reg.number < 16;
+    }
+
+    /** Returns the 3-bit register field naming REG in compressed instructions. */
+    private static int compactNumber(Register reg) {
+        return reg.number - 8;
+    }
+
+    /** Returns a compressed instruction in the CR format, with the 4-bit FUNCT4. */
+    private static int crType(int funct4, Register rd, Register rs2) {
+        return funct4 << 12 | rd.number << 7 | rs2.number << 2 | 2;
+    }
+
+    /** Returns a compressed instruction in the CI format, with a 6-bit IMM, in quadrant OP. */
+    private static int ciType(int funct3, Register rd, int imm, int op) {
+        return funct3 << 13 | (imm >> 5 & 1) << 12 | rd.number << 7 | (imm & 31) << 2 | op;
+    }
+
+    /** Returns the fields of c.lw or c.sw accessing OFFSET(BASE) with register REG. */
+    private static int compactMemory(Register base, Register reg, int offset) {
+        return (offset >> 3 & 7) << 10
+                | compactNumber(base) << 7
+                | (offset >> 2 & 1) << 6
+                | (offset >> 6 & 1) << 5
+                | compactNumber(reg) << 2;
+    }
+
+    /** Returns the offset field of c.j and c.jal jumping by OFFSET. */
+    private static int cjOffset(int offset) {
+        checkRange("Jump offset", offset, -2048, 2046);
+        return (offset >> 11 & 1) << 12
+                | (offset >> 4 & 1) << 11
+                | (offset >> 8 & 3) << 9
+                | (offset >> 10 & 1) << 8
+                | (offset >> 6 & 1) << 7
+                | (offset >> 7 & 1) << 6
+                | (offset >> 1 & 7) << 3
+                | (offset >> 5 & 1) << 2;
+    }
+
+    /** Returns the offset fields of c.beqz and c.bnez branching by OFFSET. */
+    private static int cbOffset(int offset) {
+        checkRange("Branch offset", offset, -256, 254);
+        return (offset >> 8 & 1) << 12
+                | (offset >> 3 & 3) << 10
+                | (offset >> 6 & 3) << 5
+                | (offset >> 1 & 3) << 3
+                | (offset >> 5 & 1) << 2;
+    }
+
+    /** Returns the R-type instruction OPCODE with registers RD, RS1 and RS2. */
+    private static int rType(Opcode opcode, Register rd, Register rs1, Register rs2) {
+        return rType(OP, FUNCT3.get(opcode), FUNCT7.get(opcode), rd, rs1, rs2);
+    }
+
+    /** Returns an R-type instruction. */
+    private static int rType(
+            int op, int funct3, int funct7, Register rd, Register rs1, Register rs2) {
+        return funct7 << 25
+                | rs2.number << 20
+                | rs1.number << 15
+                | funct3 << 12
+                | rd.number << 7
+                | op;
+    }
+
+    /** Returns an I-type instruction. */
+    private static int iType(int op, int funct3, Register rd, Register rs1, int imm) {
+        checkRange("Immediate", imm, -2048, 2047);
+        return imm << 20 | rs1.number << 15 | funct3 << 12 | rd.number << 7 | op;
+    }
+
+    /** Returns an S-type instruction storing RS2 at IMM(RS1). */
+    private static int sType(int funct3, Register rs1, Register rs2, int imm) {
+        checkRange("Immediate", imm, -2048, 2047);
+        return (imm >> 5) << 25
+                | rs2.number << 20
+                | rs1.number << 15
+                | funct3 << 12
+                | (imm & 0x1f) << 7
+                | STORE;
+    }
+
+    /** Returns a B-type instruction branching by OFFSET. */
+    private static int bType(int funct3, Register rs1, Register rs2, int offset) {
+        checkRange("Branch offset", offset, -4096, 4094);
+        return (offset >> 12 & 1) << 31
+                | (offset >> 5 & 0x3f) << 25
+                | rs2.number << 20
+                | rs1.number << 15
+                | funct3 << 12
+                | (offset >> 1 & 0xf) << 8
+                | (offset >> 11 & 1) << 7
+                | BRANCH;
+    }
+
+    /** Returns a U-type instruction with upper immediate IMM. */
+    private static int uType(int op, Register rd, int imm) {
+        return (imm & 0xfffff) << 12 | rd.number << 7 | op;
+    }
+
+    /** Returns a jal instruction jumping by OFFSET. */
+    private static int jType(Register rd, int offset) {
+        checkRange("Jump offset", offset, -(1 << 20), (1 << 20) - 2);
+        return (offset >> 20 & 1) << 31
+                | (offset >> 1 & 0x3ff) << 21
+                | (offset >> 11 & 1) << 20
+                | (offset >> 12 & 0xff) << 12
+                | rd.number << 7
+                | JAL;
+    }
+
+    /** Throws IllegalStateException unless LOW <= VALUE <= HIGH. WHAT names VALUE. */
+    private static void checkRange(String what, int value, int low, int high) {
+        if (value < low || value > high) {
+            throw new IllegalStateException(what + " out of range: " + value);
+        }
+    }
+
+    /** Returns true iff VALUE fits a 12-bit signed immediate. */
+    private static boolean fitsImm12(int value) {
+        return fits(value, 12);
+    }
+
+    /** Returns true iff VALUE fits a signed field of BITS bits. */
+    private static boolean fits(int value, int bits) {
+        return value >= -(1 << (bits - 1)) && value < 1 << (bits - 1);
+    }
+
+    /** Returns the address of LABEL, which may be a symbol defined by .equiv. */
+    private int addressOf(Label label) {
+        Integer address = addresses.get(label.labelName);
+        if (address == null) {
+            String equiv = equivs.get(label.labelName);
+            if (equiv == null) {
+                throw new IllegalStateException("Undefined symbol: " + label.labelName);
+            }
+            return evaluate(equiv, true, 1);
+        }
+        return address;
+    }
+
+    /** Returns the value of the immediate of INSN. */
+    private int immediateOf(Instruction insn) {
+        return insn.symbol == null ? insn.imm : evaluate(insn.symbol, true, 0);
+    }
+
+    /** Returns the value of the immediate of INSN if it is a constant, and otherwise null. */
+    private Integer constant(Instruction insn) {
+        if (insn.symbol == null) {
+            return insn.imm;
+        }
+        try {
+            return evaluate(insn.symbol, false, 0);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value of EXPR, a sum or difference of numbers and symbols, at DEPTH nested
+     * .equiv definitions. Labels are only resolved if LABELS.
+     */
+    private int evaluate(String expr, boolean labels, int depth) {
+        if (depth > equivs.size()) {
+            throw new IllegalStateException("Circular definition: " + expr);
+        }
+        int value = 0;
+        int sign = 1;
+        int i = 0;
+        while (i < expr.length()) {
+            char c = expr.charAt(i);
+            if (c == '+' || c == '-') {
+                sign = c == '-' ? -sign : sign;
+                i += 1;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                i += 1;
+                continue;
+            }
+            int end = i;
+            while (end < expr.length() && "+- ".indexOf(expr.charAt(end)) < 0) {
+                end += 1;
+            }
+            String term = expr.substring(i, end);
+            Integer number = parseNumber(term);
+            if (number == null) {
+                String equiv = equivs.get(term);
+                if (equiv != null) {
+                    number = evaluate(equiv, labels, depth + 1);
+                } else if (labels && addresses.containsKey(term)) {
+                    number = addresses.get(term);
+                } else {
+                    throw new IllegalStateException("Undefined symbol: " + term);
+                }
+            }
+            value += sign * number;
+            sign = 1;
+            i = end;
+        }
+        return value;
+    }
+
+    /** Returns the bytes of the .string operand TEXT, with its escapes resolved. */
+    private static byte[] unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i += 1) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                i += 1;
+                c = text.charAt(i);
+                c = c == 'n' ? '\n' : c == 't' ? '\t' : c == '0' ? '\0' : c;
+            }
+            sb.append(c);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Append the little-endian halfword HALF to OUT. */
+    private static void putHalf(ByteArrayOutputStream out, int half) {
+        out.write(half);
+        out.write(half >> 8);
+    }
+
+    /** Append the little-endian word WORD to OUT. */
+    private static void putWord(ByteArrayOutputStream out, int word) {
+        out.write(word);
+        out.write(word >> 8);
+        out.write(word >> 16);
+        out.write(word >> 24);
+    }
+
+    /** Returns VALUE rounded up to a multiple of ALIGNMENT, a power of two. */
+    private static int alignUp(int value, int alignment) {
+        return (value + alignment - 1) & -alignment;
+    }
+
+    /** Assembled machine code: the contents of the text and data sections and the labels. */
+    public static final class Image {
+
+        /** The machine code of the text section, at TEXT_BASE. */
+        public final byte[] text;
+
+        /** The address of the data section. */
+        public final int dataBase;
+
+        /** The contents of the data section, at DATABASE. */
+        public final byte[] data;
+
+        /** The address at which execution starts: the label main, if defined. */
+        public final int entry;
+
+        /** True iff the text may contain compressed (RVC) instructions. */
+        public final boolean compressed;
+
+        /** The number of machine instructions in the text. */
+        public final int instructionCount;
+
+        /** The number of those instructions that are compressed. */
+        public final int compressedCount;
+
+        /** The addresses of the labels, by name, in order. */
+        private final Map<String, Integer> symbols;
+
+        /**
+         * An image with sections TEXT and DATA, the latter at DATABASE, starting at ENTRY, and
+         * with labels at SYMBOLS. The text holds INSTRUCTIONCOUNT instructions, COMPRESSEDCOUNT
+         * of them compressed, and may hold compressed ones iff COMPRESSED.
+         */
+        Image(
+                byte[] text,
+                int dataBase,
+                byte[] data,
+                int entry,
+                Map<String, Integer> symbols,
+                boolean compressed,
+                int instructionCount,
+                int compressedCount) {
+            this.text = text;
+            this.dataBase = dataBase;
+            this.data = data;
+            this.entry = entry;
+            this.symbols = Collections.unmodifiableMap(new LinkedHashMap<>(symbols));
+            this.compressed = compressed;
+            this.instructionCount = instructionCount;
+            this.compressedCount = compressedCount;
+        }
+
+        /** Returns the addresses of the labels, by name, in order. */
+        public Map<String, Integer> getSymbols() {
+            return symbols;
+        }
+
+        /**
+         * Returns this image as an ELF32 executable for RISC-V, with one loadable segment per
+         * section and the labels as local symbols. Its header flags compressed code.
+         */
+        public byte[] toElf() {
+            byte[] strtab = stringTable(symbols.keySet());
+            byte[] shstrtab = "\0.text\0.data\0.symtab\0.strtab\0.shstrtab\0"
+                    .getBytes(StandardCharsets.US_ASCII);
+            int textOffset = PAGE_SIZE;
+            int dataOffset = textOffset + (dataBase - TEXT_BASE);
+            int symtabOffset = alignUp(dataOffset + data.length, 4);
+            int symtabSize = 16 * (symbols.size() + 1);
+            int strtabOffset = symtabOffset + symtabSize;
+            int shstrtabOffset = strtabOffset + strtab.length;
+            int shOffset = alignUp(shstrtabOffset + shstrtab.length, 4);
+            ByteBuffer elf = ByteBuffer.allocate(shOffset + 6 * 40).order(ByteOrder.LITTLE_ENDIAN);
+
+            elf.put(new byte[] {0x7f, 'E', 'L', 'F', 1, 1, 1, 0});
+            elf.position(16);
+            elf.putShort((short) 2).putShort((short) 243).putInt(1);
+            elf.putInt(entry).putInt(52).putInt(shOffset).putInt(compressed ? EF_RISCV_RVC : 0);
+            elf.putShort((short) 52).putShort((short) 32).putShort((short) 2);
+            elf.putShort((short) 40).putShort((short) 6).putShort((short) 5);
+            putSegment(elf, textOffset, TEXT_BASE, text.length, 5);
+            putSegment(elf, dataOffset, dataBase, data.length, 6);
+
+            elf.position(textOffset);
+            elf.put(text);
+            elf.position(dataOffset);
+            elf.put(data);
+            elf.position(symtabOffset + 16);
+            int name = 1;
+            for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+                int address = symbol.getValue();
+                elf.putInt(name).putInt(address).putInt(0);
+                elf.put((byte) 0).put((byte) 0);
+                elf.putShort((short) (address >= dataBase ? 2 : 1));
+                name += symbol.getKey().getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+            elf.position(strtabOffset);
+            elf.put(strtab);
+            elf.put(shstrtab);
+
+            elf.position(shOffset + 40);
+            putSection(elf, 1, 1, 6, TEXT_BASE, textOffset, text.length, 0, 0, 4, 0);
+            putSection(elf, 7, 1, 3, dataBase, dataOffset, data.length, 0, 0, 4, 0);
+            putSection(
+                    elf, 13, 2, 0, 0, symtabOffset, symtabSize, 4, symbols.size() + 1, 4, 16);
+            putSection(elf, 21, 3, 0, 0, strtabOffset, strtab.length, 0, 0, 1, 0);
+            putSection(elf, 29, 3, 0, 0, shstrtabOffset, shstrtab.length, 0, 0, 1, 0);
+            return elf.array();
+        }
+
+        /** Returns the ELF string table of NAMES, starting with the empty string. */
+        private static byte[] stringTable(Iterable<String> names) {
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            table.write(0);
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                table.write(bytes, 0, bytes.length);
+                table.write(0);
+            }
+            return table.toByteArray();
+        }
+
+        /** Put a loadable program header into ELF. */
+        private static void putSegment(
+                ByteBuffer elf, int offset, int address, int size, int flags) {
+            elf.putInt(1).putInt(offset).putInt(address).putInt(address);
+            elf.putInt(size).putInt(size).putInt(flags).putInt(PAGE_SIZE);
+        }
+
+        /** Put a section header into ELF. */
+        private static void putSection(
+                ByteBuffer elf,
+                int name,
+                int type,
+                int flags,
+                int address,
+                int offset,
+                int size,
+                int link,
+                int info,
+                int alignment,
+                int entrySize) {
+            elf.putInt(name).putInt(type).putInt(flags).putInt(address).putInt(offset);
+            elf.putInt(size).putInt(link).putInt(info).putInt(alignment).putInt(entrySize);
+        }
+    }
+}
@@ -23,6 +23,8 @@ public class ClassInfo extends SymbolInfo {
     protected final Label prototypeLabel;
     /** Label of area containing method-dispatching table. */
     protected Label dispatchTableLabel;
+    /** Descriptor of the superclass, or null for object. */
+    protected final ClassInfo superClassInfo;
 
     /**
      * A descriptor for a class named CLASSNAME identified by runtime tag TYPETAG, and having the
@@ -32,6 +34,7 @@ public class ClassInfo extends SymbolInfo {
     public ClassInfo(String className, int typeTag, ClassInfo superClassInfo) {
         this.className = className;
         this.typeTag = typeTag;
+        this.superClassInfo = superClassInfo;
         prototypeLabel = new Label(String.format("$%s$%s", className, "prototype"));
         dispatchTableLabel = new Label(String.format("$%s$%s", className, "dispatchTable"));
         attributes = new ArrayList<>();
@@ -61,6 +64,11 @@ public class ClassInfo extends SymbolInfo {
         }
     }
 
+    /** Return the descriptor of my superclass, or null if I am object. */
+    public ClassInfo getSuperClassInfo() {
+        return superClassInfo;
+    }
+
     /** Return my type tag. */
     public int getTypeTag() {
         return typeTag;
@@ -7,11 +7,17 @@ import chocopy.common.analysis.types.ValueType;
 import chocopy.common.astnodes.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static chocopy.common.Utils.*;
 import static chocopy.common.codegen.RiscVBackend.Register.*;
@@ -43,10 +49,13 @@ public abstract class CodeGenBase {
     protected static final String LIBRARY_CODE_DIR = "chocopy/common/";
 
     /** The backend that emits assembly. */
-    protected final RiscVBackend backend;
+    protected RiscVBackend backend;
 
     /** Convenience variable: the word size for the current back end. */
-    protected final int wordSize;
+    protected int wordSize;
+
+    /** The predefined classes and functions that each compilation starts from. */
+    protected final Prelude prelude;
 
     /** A counter for generating unique class type tags. */
     protected int nextTypeTag = 0;
@@ -54,6 +63,65 @@ public abstract class CodeGenBase {
     /** A counter used to generate unique local label names. */
     protected int nextLabelSuffix = 0;
 
+    /** The pool on which function bodies are emitted, or null to emit them sequentially. */
+    protected ForkJoinPool emissionPool = ForkJoinPool.commonPool();
+
+    /** The number of function bodies below which they are emitted sequentially. */
+    protected int parallelEmissionThreshold = 16;
+
+    /** True iff the AST of the program is released piecewise as its code is emitted. */
+    protected boolean releaseEmittedCode = false;
+
+    /** True iff identical functions are merged once the program is emitted. */
+    protected boolean mergeFunctions = true;
+
+    /** True iff repeated instruction sequences are outlined once the program is emitted. */
+    protected boolean outlineCode = true;
+
+    /** True iff the classes, functions and routines the program never uses are left out. */
+    protected boolean removeUnusedCode = false;
+
+    /** True iff the methods no call can reach are left out, by rapid type analysis. */
+    protected boolean pruneMethods = false;
+
+    /** The cache of function code shared with other compilations, or null. */
+    protected FunctionCache functionCache = null;
+
+    /** The definitions of user-defined functions, recorded while a function cache is set. */
+    private final Map<FuncInfo, FuncDef> functionDefinitions = new IdentityHashMap<>();
+
+    /** Timers and counters for this run, or null. */
+    protected CompileMetrics metrics = null;
+
+    /** The prebuilt runtime module the program is compiled against, or null to emit it inline. */
+    protected Linker.Module runtime = null;
+
+    /** True iff the runtime module is being emitted, which requires every custom routine. */
+    private boolean emittingRuntime = false;
+
+    /** Runtime library routines read so far, by generator class, directory and name. */
+    private static final Map<String, LibraryRoutine> libraryRoutines = new ConcurrentHashMap<>();
+
+    /** The names of the custom routines required by the code emitted so far. */
+    private final Set<String> requiredRoutines = ConcurrentHashMap.newKeySet();
+
+    /** The classes instantiated somewhere in the program. */
+    private final Set<ClassInfo> instantiatedClasses =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** The functions called somewhere in the program. */
+    private final Set<FuncInfo> calledFunctions =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** The names of the methods called somewhere in the program, by static receiver class. */
+    private final Map<ClassInfo, Set<String>> calledMethods = new IdentityHashMap<>();
+
+    /** The methods of all classes. */
+    private final Set<FuncInfo> methods = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** The methods in the dispatch tables of used classes that some call may reach. */
+    private final Set<FuncInfo> liveMethods = Collections.newSetFromMap(new IdentityHashMap<>());
+
     /**
      * Predefined classes. The list "class" is a fake class; we use it only to emit a prototype
      * object for empty lists.
@@ -115,10 +183,10 @@ public abstract class CodeGenBase {
      * The symbol table that maps global names to information about the bound global variables,
      * global functions, or classes.
      */
-    protected final SymbolTable<SymbolInfo> globalSymbols = new SymbolTable<>();
+    protected SymbolTable<SymbolInfo> globalSymbols = new SymbolTable<>();
 
     /** A utility for caching constants and generating labels for constants. */
-    protected final Constants constants = new Constants();
+    protected Constants constants = new Constants();
 
     /** The object header size, in words (includes type tag, size, and dispatch table pointer). */
     public static final int HEADER_SIZE = 3;
@@ -127,7 +195,7 @@ public abstract class CodeGenBase {
      * Initializes a code generator for ChocoPy that uses BACKEND to emit assembly code.
      *
      * <p>The constructor creates Info objects for predefined functions, classes, methods, and
-     * built-in routines.
+     * built-in routines. They can be shared with other generators through {@link #getPrelude()}.
      */
     public CodeGenBase(RiscVBackend backend) {
         this.backend = backend;
@@ -135,6 +203,61 @@ public abstract class CodeGenBase {
 
         initClasses();
         initFunctions();
+        prelude = new Prelude(this);
+        initAsmConstants();
+    }
+
+    /**
+     * Initializes a code generator for ChocoPy that uses BACKEND to emit assembly code, starting
+     * from the predefined functions, classes and methods of PRELUDE, which must come from a
+     * generator of the same class.
+     */
+    public CodeGenBase(RiscVBackend backend, Prelude prelude) {
+        this.prelude = prelude;
+        reset(backend);
+    }
+
+    /** Returns the predefined classes and functions this generator started from. */
+    public Prelude getPrelude() {
+        return prelude;
+    }
+
+    /**
+     * Discard all state of earlier compilations, so that this generator can be used again to
+     * generate code with BACKEND. Settings such as the function cache are kept.
+     */
+    public void reset(RiscVBackend backend) {
+        this.backend = backend;
+        wordSize = backend.getWordSize();
+        backend.setMetrics(metrics);
+        nextTypeTag = prelude.nextTypeTag;
+        nextLabelSuffix = 0;
+        functionDefinitions.clear();
+        requiredRoutines.clear();
+        instantiatedClasses.clear();
+        calledFunctions.clear();
+        calledMethods.clear();
+        methods.clear();
+        liveMethods.clear();
+
+        objectClass = prelude.objectClass;
+        intClass = prelude.intClass;
+        boolClass = prelude.boolClass;
+        strClass = prelude.strClass;
+        listClass = prelude.listClass;
+        printFunc = prelude.printFunc;
+        lenFunc = prelude.lenFunc;
+        inputFunc = prelude.inputFunc;
+
+        globalVars.clear();
+        classes.clear();
+        classes.addAll(prelude.classes);
+        functions.clear();
+        functions.addAll(prelude.functions);
+        globalSymbols = new SymbolTable<>();
+        prelude.symbols.forEach(globalSymbols::put);
+        constants = new Constants();
+
         initAsmConstants();
     }
 
@@ -158,9 +281,131 @@ public abstract class CodeGenBase {
      * where the name does not matter in general.
      */
     protected Label generateLocalLabel() {
+        FunctionBuffer buffer = backend.currentBuffer();
+        if (buffer != null) {
+            return new Label("label_" + buffer.newLabelSuffix());
+        }
         return new Label(String.format("label_%d", getNextLabelSuffix()));
     }
 
+    /**
+     * Release the AST of the program piecewise as its code is emitted iff RELEASE, leaving the
+     * declarations and statements of the program passed to {@link #generate(Program)} empty. The
+     * code of each function is also written out as soon as it is complete. Keeps peak memory low
+     * when the assembly code is streamed.
+     *
+     * <p>Passes over the code of the whole program cannot run on code already written out, so
+     * functions are neither merged nor outlined, and bodies are emitted one at a time rather than
+     * on the emission pool.
+     */
+    public void setReleaseEmittedCode(boolean release) {
+        this.releaseEmittedCode = release;
+    }
+
+    /**
+     * Merge the user-defined functions and methods whose code is identical iff MERGE, redirecting
+     * calls and dispatch table entries to the copy kept. Has no effect while emitted code is
+     * released, since the dispatch tables are written out before the functions.
+     */
+    public void setMergeFunctions(boolean merge) {
+        this.mergeFunctions = merge;
+    }
+
+    /**
+     * Replace instruction sequences repeated outside of loops by calls to a shared copy iff
+     * OUTLINE, whenever that makes the code smaller. The code is run through the peephole
+     * optimizer of the backend first, if any. Has no effect while emitted code is released.
+     */
+    public void setOutlineCode(boolean outline) {
+        this.outlineCode = outline;
+    }
+
+    /**
+     * Leave out the prototypes and dispatch tables of the classes the program never instantiates,
+     * the predefined functions it never calls and the custom routines its code never requires iff
+     * REMOVE. Off by default, so that generators that do not record their requirements with
+     * {@link #requireRoutine(String)} emit everything.
+     */
+    public void setRemoveUnusedCode(boolean remove) {
+        this.removeUnusedCode = remove;
+    }
+
+    /**
+     * Leave out the methods of used classes that no call can reach iff PRUNE, zeroing their
+     * slots in dispatch tables (see {@link #resolveNames(Program)}). Off by default, since it is
+     * only sound if the generator calls methods nowhere but where the program does.
+     */
+    public void setPruneMethods(boolean prune) {
+        this.pruneMethods = prune;
+    }
+
+    /**
+     * Emit function bodies on POOL (null to emit them sequentially) whenever there are at least
+     * THRESHOLD of them.
+     */
+    public void setEmissionPool(ForkJoinPool pool, int threshold) {
+        this.emissionPool = pool;
+        this.parallelEmissionThreshold = threshold;
+    }
+
+    /**
+     * Reuse the code of unchanged functions from CACHE (null for none), and add the code of the
+     * others to it. Function bodies are then always recorded into buffers before being emitted.
+     */
+    public void setFunctionCache(FunctionCache cache) {
+        this.functionCache = cache;
+    }
+
+    /** Time the phases of generation and count the code emitted in METRICS (null for none). */
+    public void setMetrics(CompileMetrics metrics) {
+        this.metrics = metrics;
+        backend.setMetrics(metrics);
+    }
+
+    /**
+     * Compile against RUNTIME, a module emitted by {@link #generateRuntime()}, unless it is null.
+     * The program then leaves out the predefined functions and the routines of the runtime and
+     * imports them instead, so that its code must be linked with RUNTIME by {@link Linker}.
+     */
+    public void setRuntime(Linker.Module runtime) {
+        this.runtime = runtime;
+    }
+
+    /** Start timing PHASE, if there are metrics. */
+    protected void beginPhase(CompileMetrics.Phase phase) {
+        if (metrics != null) {
+            metrics.begin(phase);
+        }
+    }
+
+    /** Stop timing PHASE, if there are metrics. */
+    protected void endPhase(CompileMetrics.Phase phase) {
+        if (metrics != null) {
+            metrics.end(phase);
+        }
+    }
+
+    /**
+     * Record that the code being emitted requires the custom routine NAME, typically emitted by
+     * {@link #emitCustomCode()} only if required. The requirement is kept with cached function
+     * code, so that it holds whenever the code is reused.
+     */
+    protected void requireRoutine(String name) {
+        requiredRoutines.add(name);
+        FunctionBuffer buffer = backend.currentBuffer();
+        if (buffer != null) {
+            buffer.requireRoutine(name);
+        }
+    }
+
+    /**
+     * Returns true iff the code emitted so far requires the custom routine NAME, or unused code
+     * is kept.
+     */
+    protected boolean isRoutineRequired(String name) {
+        return emittingRuntime || !removeUnusedCode || requiredRoutines.contains(name);
+    }
+
     /**
      * Generates assembly code for PROGRAM.
      *
@@ -169,27 +414,26 @@ public abstract class CodeGenBase {
      * routines, and user-defined functions).
      */
     public void generate(Program program) {
+        beginPhase(CompileMetrics.Phase.ANALYZE_PROGRAM);
         analyzeProgram(program);
-
-        backend.startData();
-
-        for (ClassInfo classInfo : this.classes) {
-            emitPrototype(classInfo);
+        endPhase(CompileMetrics.Phase.ANALYZE_PROGRAM);
+        beginPhase(CompileMetrics.Phase.RESOLVE_NAMES);
+        resolveNames(program);
+        endPhase(CompileMetrics.Phase.RESOLVE_NAMES);
+        if (releaseEmittedCode) {
+            program.declarations.clear();
         }
 
-        for (ClassInfo classInfo : this.classes) {
-            emitDispatchTable(classInfo);
-        }
-
-        for (GlobalVarInfo global : this.globalVars) {
-            backend.emitGlobalLabel(global.getLabel());
-            emitConstant(
-                    global.getInitialValue(),
-                    global.getVarType(),
-                    String.format("Initial value of global var: %s", global.getVarName()));
-        }
+        beginPhase(CompileMetrics.Phase.EMIT_DATA);
+        emitData();
+        endPhase(CompileMetrics.Phase.EMIT_DATA);
 
         backend.startCode();
+        if (runtime != null) {
+            for (String routine : runtime.getExports()) {
+                backend.emitInsn(String.format(".extern %s", routine), null);
+            }
+        }
 
         Label mainLabel = new Label("main");
         backend.emitGlobalLabel(mainLabel);
@@ -202,21 +446,256 @@ public abstract class CodeGenBase {
         backend.emitMV(RA, ZERO, "No normal return from main program.");
         backend.emitMV(FP, ZERO, "No preceding frame.");
 
+        beginPhase(CompileMetrics.Phase.EMIT_TOP_LEVEL);
         emitTopLevel(program.statements);
+        endPhase(CompileMetrics.Phase.EMIT_TOP_LEVEL);
+        if (releaseEmittedCode) {
+            program.statements.clear();
+            backend.writePending();
+        }
 
-        for (FuncInfo funcInfo : this.functions) {
-            funcInfo.emitBody();
+        beginPhase(CompileMetrics.Phase.EMIT_FUNCTIONS);
+        emitFunctions();
+        endPhase(CompileMetrics.Phase.EMIT_FUNCTIONS);
+
+        if (runtime == null) {
+            beginPhase(CompileMetrics.Phase.EMIT_STD_FUNC);
+            emitRuntimeRoutines();
+            endPhase(CompileMetrics.Phase.EMIT_STD_FUNC);
+            beginPhase(CompileMetrics.Phase.EMIT_CUSTOM_CODE);
+            emitCustomCode();
+            endPhase(CompileMetrics.Phase.EMIT_CUSTOM_CODE);
+        }
+
+        backend.startData();
+        beginPhase(CompileMetrics.Phase.EMIT_CONSTANTS);
+        emitConstants();
+        endPhase(CompileMetrics.Phase.EMIT_CONSTANTS);
+
+        if (mergeFunctions && !releaseEmittedCode) {
+            beginPhase(CompileMetrics.Phase.MERGE_FUNCTIONS);
+            List<FuncInfo> candidates = new ArrayList<>();
+            for (FuncInfo funcInfo : functions) {
+                if (isFunctionUsed(funcInfo) && !prelude.isPredefined(funcInfo)) {
+                    candidates.add(funcInfo);
+                }
+            }
+            new FunctionMerger(candidates).merge(backend.getPending());
+            endPhase(CompileMetrics.Phase.MERGE_FUNCTIONS);
+        }
+        if (outlineCode && !releaseEmittedCode) {
+            beginPhase(CompileMetrics.Phase.OUTLINE);
+            PeepholeOptimizer peephole = backend.getPeephole();
+            if (peephole != null) {
+                peephole.optimize(backend.getPending());
+            }
+            new MachineOutliner().outline(backend.getPending());
+            endPhase(CompileMetrics.Phase.OUTLINE);
+        }
+
+        if (metrics != null) {
+            metrics.countFunctions(functions.size());
+            metrics.countLabels(nextLabelSuffix);
+            metrics.countConstants(
+                    2 + constants.intConstants.size() + constants.strConstants.size());
+        }
+    }
+
+    /**
+     * Generates the runtime module: the code of the predefined functions, of the routines emitted
+     * by {@link #generate(Program)} after the user program, including every custom routine, and
+     * the constants they use. Programs compiled against it with {@link #setRuntime} leave these
+     * out. The runtime takes the prototypes and the boolean constants from the program it is
+     * linked with. Call on a fresh generator.
+     */
+    public void generateRuntime() {
+        emittingRuntime = true;
+        backend.startCode();
+        for (FuncInfo funcInfo : prelude.functions) {
+            emitStdFunc(funcInfo);
         }
+        emitRuntimeRoutines();
+        emitCustomCode();
+        backend.startData();
+        emitPooledConstants();
+        emittingRuntime = false;
+    }
 
+    /** Emit the routines for allocation, heap initialization and aborting. */
+    protected void emitRuntimeRoutines() {
         emitStdFunc("alloc");
         emitStdFunc("alloc2");
         emitStdFunc("abort");
         emitStdFunc("heap.init");
+    }
 
-        emitCustomCode();
-
+    /** Emit the prototypes and dispatch tables of the classes used, and the global variables. */
+    protected void emitData() {
         backend.startData();
-        emitConstants();
+
+        for (ClassInfo classInfo : this.classes) {
+            if (isClassUsed(classInfo)) {
+                emitPrototype(classInfo);
+            }
+        }
+
+        for (ClassInfo classInfo : this.classes) {
+            if (isClassUsed(classInfo)) {
+                emitDispatchTable(classInfo);
+            }
+        }
+
+        for (GlobalVarInfo global : this.globalVars) {
+            backend.emitGlobalLabel(global.getLabel());
+            emitConstant(
+                    global.getInitialValue(),
+                    global.getVarType(),
+                    String.format("Initial value of global var: %s", global.getVarName()));
+        }
+    }
+
+    /**
+     * Emit the bodies of all functions used, in order.
+     *
+     * <p>When there are enough of them, bodies are recorded into one {@link FunctionBuffer} each on
+     * the emission pool, with local labels and new constants left as placeholders. Once all are
+     * recorded, the buffers are resolved and replayed in order, so the output is identical to
+     * emitting the bodies one after the other. Functions without statements (the predefined
+     * functions, whose library code is padded to the width of its constant labels) are emitted
+     * directly during the replay.
+     *
+     * <p>With a function cache, bodies are always recorded into buffers, and a body whose buffer is
+     * found in the cache is not emitted again. Without the emission pool, each body is recorded
+     * just before it is replayed, so that streamed code is written out function by function.
+     */
+    protected void emitFunctions() {
+        List<FuncInfo> used = new ArrayList<>();
+        for (FuncInfo funcInfo : this.functions) {
+            if (isFunctionUsed(funcInfo)) {
+                used.add(funcInfo);
+            }
+        }
+        int parallelCount = 0;
+        for (FuncInfo funcInfo : used) {
+            if (!funcInfo.getStatements().isEmpty()) {
+                parallelCount += 1;
+            }
+        }
+        boolean parallel =
+                !releaseEmittedCode
+                        && emissionPool != null
+                        && parallelCount >= parallelEmissionThreshold;
+        if (!parallel && functionCache == null) {
+            for (FuncInfo funcInfo : used) {
+                emitBody(funcInfo);
+                if (releaseEmittedCode) {
+                    funcInfo.releaseBody();
+                    backend.writePending();
+                }
+            }
+            return;
+        }
+
+        String layoutKey =
+                functionCache == null
+                        ? null
+                        : functionCache.layoutKey(
+                                getClass().getName(), classes, globalVars, functions);
+        List<FunctionBuffer> buffers = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<ForkJoinTask<FunctionBuffer>> tasks = new ArrayList<>();
+        for (FuncInfo funcInfo : used) {
+            FunctionBuffer buffer = null;
+            String key = null;
+            ForkJoinTask<FunctionBuffer> task = null;
+            if (!funcInfo.getStatements().isEmpty()) {
+                FuncDef definition = getOutermostDefinition(funcInfo);
+                if (layoutKey != null && definition != null) {
+                    key = functionCache.functionKey(layoutKey, funcInfo, definition);
+                    buffer = functionCache.get(key);
+                }
+                if (buffer != null) {
+                    key = null;
+                    if (metrics != null) {
+                        metrics.countCachedFunction();
+                    }
+                } else if (parallel) {
+                    task = emissionPool.submit(() -> emitBuffered(funcInfo));
+                }
+            }
+            buffers.add(buffer);
+            keys.add(key);
+            tasks.add(task);
+        }
+        for (int i = 0; i < used.size(); i += 1) {
+            if (tasks.get(i) != null) {
+                buffers.set(i, tasks.set(i, null).join());
+                if (keys.get(i) != null) {
+                    functionCache.put(keys.get(i), buffers.get(i));
+                    keys.set(i, null);
+                }
+            }
+        }
+
+        for (int i = 0; i < used.size(); i += 1) {
+            FunctionBuffer buffer = buffers.set(i, null);
+            if (buffer == null && keys.get(i) != null) {
+                buffer = emitBuffered(used.get(i));
+                functionCache.put(keys.get(i), buffer);
+            }
+            if (buffer == null) {
+                emitBody(used.get(i));
+            } else {
+                buffer.resolve(nextLabelSuffix, constants);
+                nextLabelSuffix += buffer.getLabelCount();
+                requiredRoutines.addAll(buffer.getRequiredRoutines());
+                backend.replay(buffer);
+            }
+            if (releaseEmittedCode) {
+                used.get(i).releaseBody();
+                backend.writePending();
+            }
+        }
+    }
+
+    /**
+     * Returns the definition of the outermost function enclosing FUNCINFO (FUNCINFO itself unless
+     * it is nested), or null if it was not recorded.
+     */
+    private FuncDef getOutermostDefinition(FuncInfo funcInfo) {
+        FuncInfo outermost = funcInfo;
+        while (outermost.getParentFuncInfo() != null) {
+            outermost = outermost.getParentFuncInfo();
+        }
+        return functionDefinitions.get(outermost);
+    }
+
+    /**
+     * Emit the body of FUNCINFO. Predefined functions are emitted by this generator, whichever
+     * generator created their descriptors, unless they are taken from a runtime module.
+     */
+    private void emitBody(FuncInfo funcInfo) {
+        if (prelude.isPredefined(funcInfo)) {
+            if (runtime == null) {
+                emitStdFunc(funcInfo);
+            }
+        } else {
+            funcInfo.emitBody();
+        }
+    }
+
+    /** Record the body of FUNCINFO into a fresh buffer on the current thread and return it. */
+    private FunctionBuffer emitBuffered(FuncInfo funcInfo) {
+        FunctionBuffer buffer = new FunctionBuffer();
+        backend.startBuffer(buffer);
+        constants.startDeferring(buffer);
+        try {
+            emitBody(funcInfo);
+        } finally {
+            constants.endDeferring();
+            backend.endBuffer();
+        }
+        return buffer;
     }
 
     /** Create descriptors and symbols for builtin classes and methods. */
@@ -556,6 +1035,9 @@ public abstract class CodeGenBase {
         }
 
         funcInfo.addBody(funcDef.statements);
+        if (functionCache != null) {
+            functionDefinitions.put(funcInfo, funcDef);
+        }
         return funcInfo;
     }
 
@@ -627,6 +1109,287 @@ public abstract class CodeGenBase {
         }
     }
 
+    /**
+     * Resolve the names used in PROGRAM, once analyzeProgram has built all descriptors.
+     *
+     * <p>Every parameter and local variable is given its index in its activation record, every
+     * identifier used as an expression or as the target of a for loop is annotated with the
+     * descriptor it denotes in its scope, and every member access with the index of its attribute
+     * or method. Code generation then finds variables, attributes and methods without searching
+     * symbol tables, parameter lists or class layouts. The member of a MethodCallExpr is resolved
+     * through its MemberExpr.
+     *
+     * <p>The same pass records which classes are instantiated, which functions are called and
+     * which methods are called on receivers of which static types, and passes every statement and
+     * expression to {@link #analyzeUsage(Node)}, so that the prototypes, dispatch tables,
+     * functions, methods and routines the program never uses can be left out of its code. A method
+     * is live if it is in the dispatch table of a used class C and either methods are not pruned,
+     * or it is __init__, or its name is called on a receiver whose static type is C or a
+     * superclass of C (rapid type analysis). Other methods are not emitted, and their slots in
+     * dispatch tables are zero.
+     */
+    protected void resolveNames(Program program) {
+        for (FuncInfo funcInfo : functions) {
+            if (prelude.isPredefined(funcInfo)) {
+                continue;
+            }
+            List<String> params = funcInfo.getParams();
+            for (int i = 0; i < params.size(); i += 1) {
+                SymbolInfo param = funcInfo.getSymbolTable().get(params.get(i));
+                ((StackVarInfo) param).setVarIndex(i);
+            }
+            List<StackVarInfo> locals = funcInfo.getLocals();
+            for (int i = 0; i < locals.size(); i += 1) {
+                locals.get(i).setVarIndex(i + params.size() + 2);
+            }
+        }
+
+        Map<ClassInfo, Map<String, Integer>> memberIndices = new IdentityHashMap<>();
+        NameResolver topLevel = new NameResolver(globalSymbols, memberIndices);
+        for (Stmt stmt : program.statements) {
+            topLevel.visit(stmt);
+        }
+        for (FuncInfo funcInfo : functions) {
+            NameResolver resolver = new NameResolver(funcInfo.getSymbolTable(), memberIndices);
+            for (Stmt stmt : funcInfo.getStatements()) {
+                resolver.visit(stmt);
+            }
+        }
+
+        for (ClassInfo classInfo : classes) {
+            methods.addAll(classInfo.methods);
+            if (isClassUsed(classInfo)) {
+                for (FuncInfo method : classInfo.methods) {
+                    if (!pruneMethods || isMethodCalled(classInfo, method.getBaseName())) {
+                        liveMethods.add(method);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true iff a call of the method named NAME may dispatch through the dispatch table of
+     * CLASSINFO: iff it is __init__, called on construction, or it is called on a receiver whose
+     * static type is CLASSINFO or one of its superclasses.
+     */
+    private boolean isMethodCalled(ClassInfo classInfo, String name) {
+        if (name.equals("__init__")) {
+            return true;
+        }
+        for (ClassInfo c = classInfo; c != null; c = c.getSuperClassInfo()) {
+            Set<String> names = calledMethods.get(c);
+            if (names != null && names.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the custom routines required by NODE, a statement or expression of the program, with
+     * {@link #requireRoutine(String)}. Called by {@link #resolveNames(Program)} before any code is
+     * emitted, for routines whose use must be known in advance. Does nothing by default.
+     */
+    protected void analyzeUsage(Node node) {}
+
+    /**
+     * Returns true iff the prototype and dispatch table of CLASSINFO are needed: iff unused code
+     * is kept, it is instantiated by the program, or it is a predefined class other than object,
+     * whose prototypes and dispatch tables are used by the runtime routines and the constants.
+     */
+    protected boolean isClassUsed(ClassInfo classInfo) {
+        return !removeUnusedCode
+                || instantiatedClasses.contains(classInfo)
+                || classInfo != objectClass && prelude.isPredefined(classInfo);
+    }
+
+    /**
+     * Returns true iff the code of FUNCINFO is needed: iff it is a live method, a user-defined
+     * function outside of methods that are not live, or a predefined function called by the
+     * program or kept with the rest of the unused code.
+     */
+    protected boolean isFunctionUsed(FuncInfo funcInfo) {
+        FuncInfo outermost = funcInfo;
+        while (outermost.getParentFuncInfo() != null) {
+            outermost = outermost.getParentFuncInfo();
+        }
+        if (methods.contains(outermost)) {
+            return liveMethods.contains(outermost);
+        }
+        return !prelude.isPredefined(funcInfo)
+                || !removeUnusedCode
+                || calledFunctions.contains(funcInfo);
+    }
+
+    /** Analyzer annotating the names used in the statements of one scope. See resolveNames. */
+    protected class NameResolver extends AbstractNodeAnalyzer<Void> {
+        /** Symbol table of the scope. */
+        private final SymbolTable<SymbolInfo> sym;
+
+        /**
+         * The indices of the attributes and methods of each class seen so far, by name. Methods
+         * are keyed by their name followed by "()".
+         */
+        private final Map<ClassInfo, Map<String, Integer>> memberIndices;
+
+        /** A resolver for the scope whose symbol table is SYM0, sharing MEMBERINDICES0. */
+        protected NameResolver(
+                SymbolTable<SymbolInfo> sym0, Map<ClassInfo, Map<String, Integer>> memberIndices0) {
+            sym = sym0;
+            memberIndices = memberIndices0;
+        }
+
+        /** Resolve NODE, after recording what it requires with analyzeUsage. */
+        protected void visit(Node node) {
+            analyzeUsage(node);
+            node.dispatch(this);
+        }
+
+        /** Resolve all of NODES. */
+        private void resolveAll(List<? extends Node> nodes) {
+            for (Node node : nodes) {
+                visit(node);
+            }
+        }
+
+        @Override
+        public Void analyze(ExprStmt node) {
+            visit(node.expr);
+            return null;
+        }
+
+        @Override
+        public Void analyze(AssignStmt node) {
+            resolveAll(node.targets);
+            visit(node.value);
+            return null;
+        }
+
+        @Override
+        public Void analyze(ReturnStmt node) {
+            if (node.value != null) {
+                visit(node.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void analyze(IfStmt node) {
+            visit(node.condition);
+            resolveAll(node.thenBody);
+            resolveAll(node.elseBody);
+            return null;
+        }
+
+        @Override
+        public Void analyze(WhileStmt node) {
+            visit(node.condition);
+            resolveAll(node.body);
+            return null;
+        }
+
+        @Override
+        public Void analyze(ForStmt node) {
+            visit(node.identifier);
+            visit(node.iterable);
+            resolveAll(node.body);
+            return null;
+        }
+
+        @Override
+        public Void analyze(Identifier node) {
+            node.setSymbolInfo(sym.get(node.name));
+            return null;
+        }
+
+        @Override
+        public Void analyze(UnaryExpr node) {
+            visit(node.operand);
+            return null;
+        }
+
+        @Override
+        public Void analyze(BinaryExpr node) {
+            visit(node.left);
+            visit(node.right);
+            return null;
+        }
+
+        @Override
+        public Void analyze(IfExpr node) {
+            visit(node.condition);
+            visit(node.thenExpr);
+            visit(node.elseExpr);
+            return null;
+        }
+
+        @Override
+        public Void analyze(ListExpr node) {
+            resolveAll(node.elements);
+            return null;
+        }
+
+        @Override
+        public Void analyze(IndexExpr node) {
+            visit(node.list);
+            visit(node.index);
+            return null;
+        }
+
+        @Override
+        public Void analyze(CallExpr node) {
+            visit(node.function);
+            SymbolInfo callee = node.function.getSymbolInfo();
+            if (callee instanceof ClassInfo) {
+                instantiatedClasses.add((ClassInfo) callee);
+            } else if (callee instanceof FuncInfo) {
+                calledFunctions.add((FuncInfo) callee);
+            }
+            resolveAll(node.args);
+            return null;
+        }
+
+        @Override
+        public Void analyze(MethodCallExpr node) {
+            visit(node.method);
+            SymbolInfo receiver =
+                    globalSymbols.get(node.method.object.getInferredType().className());
+            calledMethods
+                    .computeIfAbsent((ClassInfo) receiver, c -> new HashSet<>())
+                    .add(node.method.member.name);
+            resolveAll(node.args);
+            return null;
+        }
+
+        @Override
+        public Void analyze(MemberExpr node) {
+            visit(node.object);
+            SymbolInfo info = globalSymbols.get(node.object.getInferredType().className());
+            assert info instanceof ClassInfo : "Member object is not a valid class";
+            boolean method = node.getInferredType() != null && node.getInferredType().isFuncType();
+            Map<String, Integer> indices =
+                    memberIndices.computeIfAbsent((ClassInfo) info, this::indexMembers);
+            Integer index = indices.get(method ? node.member.name + "()" : node.member.name);
+            node.setMemberIndex(index == null ? -1 : index);
+            return null;
+        }
+
+        /** Returns the indices of the attributes and methods of CLASSINFO, as in memberIndices. */
+        private Map<String, Integer> indexMembers(ClassInfo classInfo) {
+            Map<String, Integer> indices = new HashMap<>();
+            List<AttrInfo> attributes = classInfo.getAttributes();
+            for (int i = attributes.size() - 1; i >= 0; i -= 1) {
+                indices.put(attributes.get(i).getVarName(), i);
+            }
+            List<FuncInfo> methods = classInfo.getMethods();
+            for (int i = methods.size() - 1; i >= 0; i -= 1) {
+                indices.put(methods.get(i).getBaseName() + "()", i);
+            }
+            return indices;
+        }
+    }
+
     /*------------------------------------------------------------*
      *                                                            *
      *  EMITING DATA SECTION FOR GLOBALS+PROTOTYPES+CONSTANTS     *
@@ -697,6 +1460,11 @@ public abstract class CodeGenBase {
         backend.emitWordLiteral(1, "Constant value of attribute: __bool__");
         alignObject();
 
+        emitPooledConstants();
+    }
+
+    /** Emit code for the int and str constants. */
+    protected void emitPooledConstants() {
         for (Map.Entry<String, Label> e : constants.strConstants.entrySet()) {
             String value = e.getKey();
             Label label = e.getValue();
@@ -730,11 +1498,19 @@ public abstract class CodeGenBase {
         }
         backend.emitGlobalLabel(dispatchTableLabel);
         for (FuncInfo method : classInfo.methods) {
-            String cmnt =
-                    String.format(
-                            "Implementation for method: %s.%s",
-                            classInfo.getClassName(), method.getBaseName());
-            backend.emitWordAddress(method.getCodeLabel(), cmnt);
+            if (liveMethods.contains(method)) {
+                String cmnt =
+                        String.format(
+                                "Implementation for method: %s.%s",
+                                classInfo.getClassName(), method.getBaseName());
+                backend.emitWordAddress(method.getCodeLabel(), cmnt);
+            } else {
+                String cmnt =
+                        String.format(
+                                "Method never called: %s.%s",
+                                classInfo.getClassName(), method.getBaseName());
+                backend.emitWordLiteral(0, cmnt);
+            }
         }
     }
 
@@ -828,12 +1604,26 @@ public abstract class CodeGenBase {
      * LIB (must end in '/').
      */
     protected void emitStdFunc(Label label, String sourceFile, String lib) {
-        String source = getStandardLibraryCode(sourceFile, lib);
-        if (source == null) {
-            throw fatal("Code for %s is missing.", sourceFile);
-        }
         backend.emitGlobalLabel(label);
-        backend.emit(convertLiterals(source));
+        backend.emit(getLibraryRoutine(sourceFile, lib).render(constants));
+    }
+
+    /**
+     * Returns routine NAME from directory LIB, as given by getStandardLibraryCode. Routines are
+     * read and split once per JVM and generator class.
+     */
+    private LibraryRoutine getLibraryRoutine(String name, String lib) {
+        String key = getClass().getName() + ":" + lib + name;
+        LibraryRoutine routine = libraryRoutines.get(key);
+        if (routine == null) {
+            String source = getStandardLibraryCode(name, lib);
+            if (source == null) {
+                throw fatal("Code for %s is missing.", name);
+            }
+            routine = new LibraryRoutine(source);
+            libraryRoutines.putIfAbsent(key, routine);
+        }
+        return routine;
     }
 
     /**
@@ -859,22 +1649,4 @@ public abstract class CodeGenBase {
     protected void emitStdFunc(FuncInfo funcInfo) {
         emitStdFunc(funcInfo.getCodeLabel());
     }
-
-    /** Pattern matching STRING["..."]. */
-    private static final Pattern STRING_LITERAL_PATN = Pattern.compile("STRING\\[\"(.*?)\"\\]");
-
-    /**
-     * Return result of converting STRING["..."] notations in SOURCE to labels of string constants,
-     * adding those constants to the pool.
-     */
-    private String convertLiterals(String source) {
-        Matcher matcher = STRING_LITERAL_PATN.matcher(source);
-        StringBuffer result = new StringBuffer();
-        while (matcher.find()) {
-            String r = constants.getStrConstant(matcher.group(1)).toString();
-            matcher.appendReplacement(
-                    result, pad(r, ' ', matcher.end(0) - matcher.start(0), false));
-        }
-        return matcher.appendTail(result).toString();
-    }
 }
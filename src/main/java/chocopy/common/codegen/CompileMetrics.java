@@ -0,0 +1,210 @@
+package chocopy.common.codegen;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Timers and counters for one run of the code generator.
+ *
+ * <p>Each phase of {@link CodeGenBase#generate} is timed, including the merging of identical
+ * functions and the outlining of repeated code, as are writing out the generated code
+ * and linking it with a runtime module.
+ * While a phase runs, it is also recorded as a JFR event named chocopy.CompilePhase, and the
+ * counters of a finished run are recorded as a chocopy.Compile event, whenever the JVM supports
+ * JFR. The counters are the number of functions emitted (and of those taken from a function
+ * cache), of instructions emitted per opcode, of local labels generated and of constants pooled.
+ */
+public class CompileMetrics {
+
+    /** The timed phases, in the order they run. */
+    public enum Phase {
+        ANALYZE_PROGRAM("analyzeProgram"),
+        RESOLVE_NAMES("resolveNames"),
+        EMIT_DATA("emitData"),
+        EMIT_TOP_LEVEL("emitTopLevel"),
+        EMIT_FUNCTIONS("emitFunctions"),
+        EMIT_STD_FUNC("emitStdFunc"),
+        EMIT_CUSTOM_CODE("emitCustomCode"),
+        EMIT_CONSTANTS("emitConstants"),
+        MERGE_FUNCTIONS("mergeFunctions"),
+        OUTLINE("outline"),
+        WRITE_OUT("writeOut"),
+        LINK("link"),
+        ASSEMBLE("assemble");
+
+        /** The name of the phase in reports and events. */
+        public final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    /** True iff JFR events can be recorded in this JVM. */
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    /** Mapper used to write reports. */
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /** The time spent in each phase, in nanoseconds, by ordinal. */
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    /** The number of instructions emitted with each opcode, by ordinal. */
+    private final long[] emitted = new long[Opcode.values().length];
+
+    /** The number of function bodies emitted, including predefined functions. */
+    private int functionsEmitted = 0;
+
+    /** The number of function bodies taken from a function cache. */
+    private int functionsFromCache = 0;
+
+    /** The number of local labels generated. */
+    private int labelsGenerated = 0;
+
+    /** The number of constants pooled, including the two booleans. */
+    private int constantsPooled = 0;
+
+    /** The number of instructions written out, after optimization. */
+    private int instructionsWritten = 0;
+
+    /** The number of peephole rule applications. */
+    private int peepholeHits = 0;
+
+    /** The size of the machine code assembled, in bytes, or 0 if none was. */
+    private int textBytes = 0;
+
+    /** The number of machine instructions assembled, and of those compressed. */
+    private int machineInstructions = 0, compressedInstructions = 0;
+
+    /** The value of System.nanoTime() when each phase last began, by ordinal. */
+    private final long[] phaseStarts = new long[Phase.values().length];
+
+    /** The JFR event of each phase running, by ordinal, or null. */
+    private final Object[] phaseEvents = new Object[Phase.values().length];
+
+    /** Start timing PHASE, until {@link #end} is called with it. */
+    public void begin(Phase phase) {
+        phaseEvents[phase.ordinal()] = JFR_AVAILABLE ? JfrEvents.beginPhase(phase.name) : null;
+        phaseStarts[phase.ordinal()] = System.nanoTime();
+    }
+
+    /** Stop timing PHASE, adding the time since it began to its total. */
+    public void end(Phase phase) {
+        int i = phase.ordinal();
+        phaseNanos[i] += System.nanoTime() - phaseStarts[i];
+        if (phaseEvents[i] != null) {
+            JfrEvents.commitPhase(phaseEvents[i]);
+            phaseEvents[i] = null;
+        }
+    }
+
+    /** Count the emission of an instruction with OPCODE. Not thread-safe. */
+    void countEmitted(Opcode opcode) {
+        emitted[opcode.ordinal()] += 1;
+    }
+
+    /** Count FUNCTIONS emitted function bodies. */
+    void countFunctions(int functions) {
+        functionsEmitted += functions;
+    }
+
+    /** Count one function body taken from a function cache. */
+    void countCachedFunction() {
+        functionsFromCache += 1;
+    }
+
+    /** Count LABELS generated local labels. */
+    void countLabels(int labels) {
+        labelsGenerated += labels;
+    }
+
+    /** Count CONSTANTS pooled constants. */
+    void countConstants(int constants) {
+        constantsPooled += constants;
+    }
+
+    /**
+     * Record the outcome of a run whose code has been written out by BACKEND, and end the run.
+     */
+    public void finish(RiscVBackend backend) {
+        instructionsWritten = backend.getInstructionCount();
+        PeepholeOptimizer peephole = backend.getPeephole();
+        peepholeHits = peephole == null ? 0 : peephole.getTotalHits();
+        if (JFR_AVAILABLE) {
+            JfrEvents.commitCompile(
+                    functionsEmitted,
+                    functionsFromCache,
+                    getInstructionsEmitted(),
+                    instructionsWritten,
+                    labelsGenerated,
+                    constantsPooled);
+        }
+    }
+
+    /** Record the size of IMAGE, the machine code of the run. */
+    public void recordImage(Assembler.Image image) {
+        textBytes = image.text.length;
+        machineInstructions = image.instructionCount;
+        compressedInstructions = image.compressedCount;
+    }
+
+    /** Returns the time spent in PHASE so far, in nanoseconds. */
+    public long getNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /** Returns the number of instructions emitted so far. */
+    public long getInstructionsEmitted() {
+        long total = 0;
+        for (long count : emitted) {
+            total += count;
+        }
+        return total;
+    }
+
+    /** Returns a JSON report of all timers and counters, on one line. */
+    public String toJSON() {
+        ObjectNode report = mapper.createObjectNode();
+        ObjectNode phases = report.putObject("phaseMillis");
+        long total = 0;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase.name, phaseNanos[phase.ordinal()] / 1e6);
+            total += phaseNanos[phase.ordinal()];
+        }
+        report.put("totalMillis", total / 1e6);
+        report.put("functionsEmitted", functionsEmitted);
+        report.put("functionsFromCache", functionsFromCache);
+        report.put("labelsGenerated", labelsGenerated);
+        report.put("constantsPooled", constantsPooled);
+        report.put("instructionsEmitted", getInstructionsEmitted());
+        ObjectNode byOpcode = report.putObject("instructionsByOpcode");
+        for (Opcode opcode : Opcode.values()) {
+            if (emitted[opcode.ordinal()] != 0) {
+                byOpcode.put(opcode.mnemonic, emitted[opcode.ordinal()]);
+            }
+        }
+        report.put("instructionsWritten", instructionsWritten);
+        report.put("peepholeHits", peepholeHits);
+        if (textBytes != 0) {
+            report.put("textBytes", textBytes);
+            report.put("machineInstructions", machineInstructions);
+            report.put("compressedInstructions", compressedInstructions);
+        }
+        try {
+            return mapper.writeValueAsString(report);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns true iff the JFR event API is present. */
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
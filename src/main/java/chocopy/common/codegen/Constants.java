@@ -31,6 +31,28 @@ public class Constants {
     /** A cache for string-valued constants. */
     final Map<String, Label> strConstants = new HashMap<>();
 
+    /**
+     * The buffer to which the current thread defers all constants, or null if it adds them
+     * directly. Constants already in the caches are deferred too, so that the recorded code does
+     * not depend on what was emitted before it. While any thread defers, no thread may add to the
+     * caches.
+     */
+    private final ThreadLocal<FunctionBuffer> deferTo = new ThreadLocal<>();
+
+    /**
+     * Make the current thread defer constants to BUFFER, until {@link
+     * #endDeferring()}. Their labels are placeholders resolved by {@link
+     * FunctionBuffer#resolve(int, Constants)}.
+     */
+    public void startDeferring(FunctionBuffer buffer) {
+        deferTo.set(buffer);
+    }
+
+    /** Stop deferring constants in the current thread. */
+    public void endDeferring() {
+        deferTo.remove();
+    }
+
     /**
      * Returns the next unique label suffix for constants.
      *
@@ -69,7 +91,10 @@ public class Constants {
      * @return the label for the integer value
      */
     public Label getIntConstant(int value) {
-        if (intConstants.containsKey(value)) {
+        FunctionBuffer buffer = deferTo.get();
+        if (buffer != null) {
+            return buffer.deferConstant(value);
+        } else if (intConstants.containsKey(value)) {
             return intConstants.get(value);
         } else {
             Label newLabel = generateConstantLabel();
@@ -85,7 +110,10 @@ public class Constants {
      * @return the label for the string value
      */
     public Label getStrConstant(String value) {
-        if (strConstants.containsKey(value)) {
+        FunctionBuffer buffer = deferTo.get();
+        if (buffer != null) {
+            return buffer.deferConstant(value);
+        } else if (strConstants.containsKey(value)) {
             return strConstants.get(value);
         } else {
             Label newLabel = generateConstantLabel();
@@ -105,6 +105,13 @@ public class FuncInfo extends SymbolInfo {
         statements.addAll(stmts);
     }
 
+    /** Drops the function's body once it has been emitted, so that its AST can be reclaimed. */
+    public void releaseBody() {
+        if (!statements.isEmpty()) {
+            statements.clear();
+        }
+    }
+
     /**
      * Returns the index of parameter or local variable NAME in the function's activation record.
      *
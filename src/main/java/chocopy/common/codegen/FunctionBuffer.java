@@ -0,0 +1,149 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The code emitted for one function body on a worker thread, recorded so that it can be replayed
+ * into the backend in program order.
+ *
+ * <p>Local labels and constants that are first requested while recording cannot be numbered yet,
+ * since their numbers depend on the functions that precede this one. They are given placeholder
+ * names, which {@link #resolve(int, Constants)} maps to the names that emitting the functions one
+ * after the other would have produced. Since the recorded code does not depend on the functions
+ * around it, it can be kept in a {@link FunctionCache} and spliced into later compilations.
+ */
+public class FunctionBuffer {
+
+    /** Delimits the placeholder for a local label suffix. */
+    private static final char LABEL_MARK = '\uE000';
+
+    /** Delimits the placeholder for a constant label. */
+    private static final char CONSTANT_MARK = '\uE001';
+
+    /** The recorded code, in order. */
+    final List<Instruction> instructions;
+
+    /** The number of local labels generated while recording. */
+    private int labelCount = 0;
+
+    /** Constant values requested while recording, mapped to their placeholder labels. */
+    private final Map<Object, Label> deferredConstants;
+
+    /** The names of the custom routines the recorded code requires. */
+    private final Set<String> requiredRoutines;
+
+    /** The suffix of the first local label, once resolved. */
+    private int labelBase = -1;
+
+    /** The names of the deferred constants, in order, once resolved. */
+    private String[] constantNames;
+
+    /** An empty buffer. */
+    public FunctionBuffer() {
+        instructions = new ArrayList<>();
+        deferredConstants = new LinkedHashMap<>();
+        requiredRoutines = new HashSet<>();
+    }
+
+    /**
+     * A buffer sharing the code recorded in RECORDED, which must no longer be recorded into, but
+     * whose placeholders are resolved independently of it.
+     */
+    FunctionBuffer(FunctionBuffer recorded) {
+        instructions = recorded.instructions;
+        labelCount = recorded.labelCount;
+        deferredConstants = recorded.deferredConstants;
+        requiredRoutines = recorded.requiredRoutines;
+    }
+
+    /** Record INSN. */
+    void add(Instruction insn) {
+        instructions.add(insn);
+    }
+
+    /** Return a placeholder for the suffix of a fresh local label. */
+    String newLabelSuffix() {
+        return LABEL_MARK + Integer.toString(labelCount++) + LABEL_MARK;
+    }
+
+    /** Return the number of local labels generated while recording. */
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /** Record that the code requires the custom routine NAME. */
+    void requireRoutine(String name) {
+        requiredRoutines.add(name);
+    }
+
+    /** Return the names of the custom routines the recorded code requires. */
+    public Set<String> getRequiredRoutines() {
+        return Collections.unmodifiableSet(requiredRoutines);
+    }
+
+    /** Return the placeholder label for the constant VALUE, an Integer or String. */
+    Label deferConstant(Object value) {
+        Label label = deferredConstants.get(value);
+        if (label == null) {
+            int index = deferredConstants.size();
+            label = new Label(CONSTANT_MARK + Integer.toString(index) + CONSTANT_MARK);
+            deferredConstants.put(value, label);
+        }
+        return label;
+    }
+
+    /**
+     * Assign final names to placeholders: local label suffixes are numbered from LABELBASE and
+     * deferred constants are looked up, in order of first use, in CONSTANTS.
+     */
+    public void resolve(int labelBase, Constants constants) {
+        this.labelBase = labelBase;
+        constantNames = new String[deferredConstants.size()];
+        int i = 0;
+        for (Object value : deferredConstants.keySet()) {
+            Label label =
+                    value instanceof Integer
+                            ? constants.getIntConstant((Integer) value)
+                            : constants.getStrConstant((String) value);
+            constantNames[i++] = label.toString();
+        }
+    }
+
+    /** Return INSN with all placeholders replaced by their resolved names. */
+    Instruction rename(Instruction insn) {
+        return insn.rename(this::rename);
+    }
+
+    /** Return TEXT with all placeholders replaced by their resolved names. */
+    private String rename(String text) {
+        if (text == null
+                || (text.indexOf(LABEL_MARK) < 0 && text.indexOf(CONSTANT_MARK) < 0)) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c != LABEL_MARK && c != CONSTANT_MARK) {
+                result.append(c);
+                i += 1;
+                continue;
+            }
+            int end = text.indexOf(c, i + 1);
+            int index = Integer.parseInt(text.substring(i + 1, end));
+            if (c == LABEL_MARK) {
+                result.append(labelBase + index);
+            } else {
+                result.append(constantNames[index]);
+            }
+            i = end + 1;
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package chocopy.common.codegen;
+
+import chocopy.common.astnodes.FuncDef;
+import chocopy.common.astnodes.Node;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the code emitted for function bodies, shared across compilations so that recompiling
+ * an edited program only regenerates the functions that changed.
+ *
+ * <p>Entries are keyed on a hash of the definition of a function (of its outermost enclosing
+ * function, if it is nested) together with the layouts of all classes and the signatures of all
+ * global variables and functions, which the code of any function may refer to. Source locations
+ * are not part of the key, so edits elsewhere in a file do not invalidate a function. An entry
+ * holds the code as recorded in a {@link FunctionBuffer}, in which local labels and constants are
+ * placeholders renumbered whenever the code is spliced into a program.
+ *
+ * <p>The cache is safe to share between concurrent compilations. It holds at most a fixed number
+ * of entries, evicting the least recently used.
+ */
+public class FunctionCache {
+
+    /** The default maximum number of entries. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** Mapper serializing function definitions without their source locations. */
+    private static final ObjectMapper mapper =
+            new ObjectMapper().addMixIn(Node.class, WithoutLocation.class);
+
+    /** Mix-in leaving the source location out of the serialization of a node. */
+    @JsonIgnoreProperties({"location"})
+    private abstract static class WithoutLocation {}
+
+    /** The recorded function code, by key, in order of last use. */
+    private final Map<String, FunctionBuffer> entries;
+
+    /** The number of lookups that found an entry. */
+    private final LongAdder hits = new LongAdder();
+
+    /** The number of lookups that found none. */
+    private final LongAdder misses = new LongAdder();
+
+    /** An empty cache of at most DEFAULT_CAPACITY entries. */
+    public FunctionCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** An empty cache of at most CAPACITY entries. */
+    public FunctionCache(int capacity) {
+        entries =
+                Collections.synchronizedMap(
+                        new LinkedHashMap<String, FunctionBuffer>(16, 0.75f, true) {
+                            @Override
+                            protected boolean removeEldestEntry(
+                                    Map.Entry<String, FunctionBuffer> eldest) {
+                                return size() > capacity;
+                            }
+                        });
+    }
+
+    /**
+     * Returns the code cached under KEY, ready to be resolved and replayed, or null if there is
+     * none.
+     */
+    public FunctionBuffer get(String key) {
+        FunctionBuffer recorded = entries.get(key);
+        if (recorded == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new FunctionBuffer(recorded);
+    }
+
+    /** Cache the code recorded in BUFFER under KEY. BUFFER must not be recorded into again. */
+    public void put(String key, FunctionBuffer buffer) {
+        entries.put(key, new FunctionBuffer(buffer));
+    }
+
+    /** Returns the number of entries. */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Returns the number of lookups that found an entry. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Returns the number of lookups that found no entry. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns a hash of everything outside a function's own definition that its code may depend
+     * on: the code generator GENERATOR (a class name), the layouts of CLASSES, and the names and
+     * types of GLOBALVARS and the signatures of FUNCTIONS.
+     */
+    public String layoutKey(
+            String generator,
+            List<ClassInfo> classes,
+            List<GlobalVarInfo> globalVars,
+            List<FuncInfo> functions) {
+        StringBuilder sb = new StringBuilder(generator).append('\n');
+        for (ClassInfo classInfo : classes) {
+            sb.append("class ").append(classInfo.getClassName());
+            sb.append(' ').append(classInfo.getTypeTag());
+            for (AttrInfo attr : classInfo.getAttributes()) {
+                sb.append(' ').append(attr.getVarName()).append(':').append(attr.getVarType());
+            }
+            for (FuncInfo method : classInfo.getMethods()) {
+                sb.append(' ').append(method.getFuncName());
+            }
+            sb.append('\n');
+        }
+        for (GlobalVarInfo global : globalVars) {
+            sb.append("global ").append(global.getVarName());
+            sb.append(':').append(global.getVarType()).append('\n');
+        }
+        for (FuncInfo funcInfo : functions) {
+            sb.append("def ").append(funcInfo.getFuncName()).append(' ');
+            sb.append(funcInfo.getDepth());
+            for (String param : funcInfo.getParams()) {
+                SymbolInfo paramInfo = funcInfo.getSymbolTable().get(param);
+                sb.append(' ').append(param).append(':');
+                sb.append(((StackVarInfo) paramInfo).getVarType());
+            }
+            sb.append(" -> ").append(funcInfo.getReturnType()).append('\n');
+        }
+        return hash(sb.toString());
+    }
+
+    /**
+     * Returns the key of the code of FUNCINFO, whose outermost enclosing function is defined by
+     * DEFINITION, in a program whose layout has key LAYOUTKEY.
+     */
+    public String functionKey(String layoutKey, FuncInfo funcInfo, FuncDef definition) {
+        try {
+            return hash(
+                    layoutKey
+                            + '\n'
+                            + funcInfo.getFuncName()
+                            + '\n'
+                            + mapper.writeValueAsString(definition));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the SHA-256 hash of TEXT, in hexadecimal. */
+    private static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(2 * bytes.length);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
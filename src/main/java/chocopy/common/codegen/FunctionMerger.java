@@ -0,0 +1,182 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges functions whose code is identical, keeping the first copy of each.
+ *
+ * <p>The code of a function runs from its global label to the next global label or section
+ * directive. Two functions are identical if their instructions are, disregarding comments, the
+ * names of their local labels, and their own names in calls to themselves and in the symbols named
+ * after them (such as the frame size `@F.size`). Every later copy is removed, and all references
+ * to its label, in dispatch tables as well as in calls, are redirected to the first copy.
+ *
+ * <p>A copy is only removed if it cannot be entered or left by falling through: the code before it
+ * and its own code must end in an unconditional jump or return. Copies whose local labels are
+ * referenced from elsewhere are kept.
+ */
+public class FunctionMerger {
+
+    /** The functions that may be merged, by the name of their code label. */
+    private final Map<String, FuncInfo> candidates = new HashMap<>();
+
+    /** The number of copies removed so far. */
+    private int merged = 0;
+
+    /** A merger of the functions FUNCTIONS. */
+    public FunctionMerger(List<FuncInfo> functions) {
+        for (FuncInfo funcInfo : functions) {
+            candidates.put(funcInfo.getCodeLabel().labelName, funcInfo);
+        }
+    }
+
+    /** Returns the number of copies removed so far. */
+    public int getMergedCount() {
+        return merged;
+    }
+
+    /** Merge the identical functions in CODE, in place. */
+    public void merge(List<Instruction> code) {
+        List<int[]> regions = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= code.size(); i += 1) {
+            Instruction insn = i < code.size() ? code.get(i) : null;
+            boolean boundary =
+                    insn == null
+                            || insn.opcode == Opcode.GLOBAL_LABEL
+                            || insn.opcode == Opcode.VERBATIM;
+            if (!boundary) {
+                continue;
+            }
+            if (start >= 0) {
+                regions.add(new int[] {start, i});
+                start = -1;
+            }
+            if (insn != null
+                    && insn.opcode == Opcode.GLOBAL_LABEL
+                    && candidates.containsKey(insn.label.labelName)) {
+                start = i;
+            }
+        }
+        if (regions.size() < 2) {
+            return;
+        }
+
+        Map<String, Integer> localLabels = new HashMap<>();
+        for (int r = 0; r < regions.size(); r += 1) {
+            for (int i = regions.get(r)[0] + 1; i < regions.get(r)[1]; i += 1) {
+                if (code.get(i).opcode == Opcode.LOCAL_LABEL) {
+                    localLabels.put(code.get(i).label.labelName, r);
+                }
+            }
+        }
+        Set<Integer> pinned = new HashSet<>();
+        int region = -1;
+        for (int i = 0; i < code.size(); i += 1) {
+            while (region + 1 < regions.size() && regions.get(region + 1)[0] <= i) {
+                region += 1;
+            }
+            boolean inside = region >= 0 && i < regions.get(region)[1];
+            Label target = code.get(i).opcode.isLabel() ? null : code.get(i).label;
+            Integer owner = target == null ? null : localLabels.get(target.labelName);
+            if (owner != null && !(inside && owner == region)) {
+                pinned.add(owner);
+            }
+        }
+
+        Map<String, String> firstByKey = new HashMap<>();
+        Map<String, Label> redirect = new HashMap<>();
+        boolean[] removed = new boolean[code.size()];
+        for (int r = 0; r < regions.size(); r += 1) {
+            int[] bounds = regions.get(r);
+            String name = code.get(bounds[0]).label.labelName;
+            String key = canonicalKey(code, bounds[0], bounds[1], candidates.get(name));
+            String first = firstByKey.get(key);
+            if (first == null) {
+                firstByKey.put(key, name);
+            } else if (!pinned.contains(r)
+                    && endsInTransfer(code, 0, bounds[0])
+                    && endsInTransfer(code, bounds[0], bounds[1])) {
+                redirect.put(name, new Label(first));
+                for (int i = bounds[0]; i < bounds[1]; i += 1) {
+                    removed[i] = true;
+                }
+                merged += 1;
+            }
+        }
+        if (redirect.isEmpty()) {
+            return;
+        }
+
+        List<Instruction> result = new ArrayList<>(code.size());
+        for (int i = 0; i < code.size(); i += 1) {
+            if (removed[i]) {
+                continue;
+            }
+            Instruction insn = code.get(i);
+            Label target = insn.label == null ? null : redirect.get(insn.label.labelName);
+            result.add(target == null || insn.opcode.isLabel() ? insn : insn.withLabel(target));
+        }
+        code.clear();
+        code.addAll(result);
+    }
+
+    /**
+     * Returns a string identifying the code of FUNCINFO in CODE[START:END] up to comments, local
+     * label names and its own name.
+     */
+    private static String canonicalKey(
+            List<Instruction> code, int start, int end, FuncInfo funcInfo) {
+        String self = code.get(start).label.labelName;
+        String selfSymbol = "@" + funcInfo.getFuncName() + ".";
+        Map<String, Integer> locals = new HashMap<>();
+        for (int i = start + 1; i < end; i += 1) {
+            if (code.get(i).opcode == Opcode.LOCAL_LABEL) {
+                locals.put(code.get(i).label.labelName, locals.size());
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = start + 1; i < end; i += 1) {
+            Instruction insn = code.get(i);
+            if (insn.isComment()) {
+                continue;
+            }
+            key.append(insn.opcode.ordinal()).append(' ');
+            key.append(insn.rd).append(' ').append(insn.rs1).append(' ').append(insn.rs2);
+            key.append(' ').append(insn.imm).append(' ');
+            if (insn.symbol != null) {
+                key.append(insn.symbol.replace(selfSymbol, "@."));
+            }
+            key.append(' ');
+            if (insn.label != null) {
+                String name = insn.label.labelName;
+                Integer local = locals.get(name);
+                key.append(local != null ? "#" + local : name.equals(self) ? "#self" : name);
+            }
+            key.append(' ').append(insn.text).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns true iff CODE[START:END] ends in an unconditional jump or return, with no label
+     * after it, so that execution cannot fall through past END.
+     */
+    private static boolean endsInTransfer(List<Instruction> code, int start, int end) {
+        for (int i = end - 1; i >= start; i -= 1) {
+            Instruction insn = code.get(i);
+            if (insn.isInstruction()) {
+                return insn.opcode == Opcode.J || insn.opcode == Opcode.JR;
+            }
+            if (insn.opcode != Opcode.EQUIV && !insn.isComment()) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
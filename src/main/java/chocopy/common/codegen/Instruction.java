@@ -0,0 +1,313 @@
+package chocopy.common.codegen;
+
+import chocopy.common.codegen.RiscVBackend.Register;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * One entry of the code emitted by {@link RiscVBackend}: an instruction, directive, label or piece
+ * of verbatim text, with its operands kept in structured form until the code is written out.
+ *
+ * <p>Which operands are meaningful depends on the {@link Opcode.Format} of the opcode. An immediate
+ * operand is either the integer IMM or, if SYMBOL is non-null, the assembler expression SYMBOL
+ * (such as `@f.size-4`).
+ */
+public final class Instruction {
+
+    /** The kind of this entry. */
+    public final Opcode opcode;
+
+    /** The destination register, or null. */
+    public final Register rd;
+
+    /** The first source (or base) register, or null. */
+    public final Register rs1;
+
+    /** The second source register, or null. */
+    public final Register rs2;
+
+    /** The integer immediate, used if SYMBOL is null. */
+    public final int imm;
+
+    /** A symbolic immediate, or the name defined by EQUIV; null if absent. */
+    public final String symbol;
+
+    /** The label operand, or the label defined by LOCAL_LABEL and GLOBAL_LABEL; null if absent. */
+    public final Label label;
+
+    /** The text of STRING, EQUIV, RAW and VERBATIM entries; null otherwise. */
+    public final String text;
+
+    /** The one-line comment, or null if missing. */
+    public final String comment;
+
+    /** An entry with the given fields. See the field descriptions. */
+    public Instruction(
+            Opcode opcode,
+            Register rd,
+            Register rs1,
+            Register rs2,
+            int imm,
+            String symbol,
+            Label label,
+            String text,
+            String comment) {
+        this.opcode = opcode;
+        this.rd = rd;
+        this.rs1 = rs1;
+        this.rs2 = rs2;
+        this.imm = imm;
+        this.symbol = symbol;
+        this.label = label;
+        this.text = text;
+        this.comment = comment;
+    }
+
+    /** Returns true iff this entry is a machine instruction or pseudo-instruction. */
+    public boolean isInstruction() {
+        return opcode.isInstruction();
+    }
+
+    /**
+     * Returns the register written by this instruction, or null if none. Calls write RA, or the
+     * link register RD of a jal that has one; the temporary of a store to a label is written as
+     * well.
+     */
+    public Register definedRegister() {
+        switch (opcode.format) {
+            case R:
+            case I:
+            case UNARY:
+            case LI:
+            case LA:
+            case LOAD:
+            case LOAD_LABEL:
+                return rd;
+            case STORE_LABEL:
+                return rs1;
+            case JUMP:
+            case JUMP_REG:
+                if (opcode == Opcode.JAL || opcode == Opcode.JALR) {
+                    return rd != null ? rd : Register.RA;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /** Returns true iff this entry may read REG. Entries given as text may read any register. */
+    public boolean reads(Register reg) {
+        switch (opcode.format) {
+            case R:
+            case STORE:
+            case BRANCH:
+                return rs1 == reg || rs2 == reg;
+            case I:
+            case UNARY:
+            case LOAD:
+            case BRANCHZ:
+            case JUMP_REG:
+                return rs1 == reg;
+            case STORE_LABEL:
+                return rs2 == reg;
+            case RAW:
+                return !text.isEmpty();
+            case VERBATIM:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Returns true iff this entry is a comment alone, which emits no code. */
+    public boolean isComment() {
+        return opcode == Opcode.RAW && text.isEmpty();
+    }
+
+    /** Returns true iff this instruction has the same immediate operand as OTHER. */
+    public boolean sameImm(Instruction other) {
+        if (symbol == null) {
+            return other.symbol == null && imm == other.imm;
+        }
+        return symbol.equals(other.symbol);
+    }
+
+    /** Returns true iff the immediate operand of this instruction is the integer IMM. */
+    public boolean hasIntImm() {
+        return symbol == null;
+    }
+
+    /** Returns a copy of this entry with comment COMMENT. */
+    public Instruction withComment(String comment) {
+        return new Instruction(opcode, rd, rs1, rs2, imm, symbol, label, text, comment);
+    }
+
+    /** Returns a copy of this entry with label operand LABEL. */
+    public Instruction withLabel(Label label) {
+        return new Instruction(opcode, rd, rs1, rs2, imm, symbol, label, text, comment);
+    }
+
+    /** Returns a copy of this instruction with destination register RD. */
+    public Instruction withDestination(Register rd) {
+        return new Instruction(opcode, rd, rs1, rs2, imm, symbol, label, text, comment);
+    }
+
+    /** Returns a copy of this instruction that reads register TO wherever it reads FROM. */
+    public Instruction withSourceReplaced(Register from, Register to) {
+        Register newRs1 = rs1;
+        Register newRs2 = rs2;
+        switch (opcode.format) {
+            case R:
+            case STORE:
+            case BRANCH:
+                newRs1 = rs1 == from ? to : rs1;
+                newRs2 = rs2 == from ? to : rs2;
+                break;
+            case I:
+            case UNARY:
+            case LOAD:
+            case BRANCHZ:
+            case JUMP_REG:
+                newRs1 = rs1 == from ? to : rs1;
+                break;
+            case STORE_LABEL:
+                newRs2 = rs2 == from ? to : rs2;
+                break;
+            default:
+                break;
+        }
+        return new Instruction(opcode, rd, newRs1, newRs2, imm, symbol, label, text, comment);
+    }
+
+    /**
+     * Returns this entry with RENAME applied to its label name, symbol, text and comment, or this
+     * entry itself if RENAME changes none of them.
+     */
+    public Instruction rename(UnaryOperator<String> rename) {
+        String labelName = label == null ? null : label.labelName;
+        String newLabelName = labelName == null ? null : rename.apply(labelName);
+        String newSymbol = symbol == null ? null : rename.apply(symbol);
+        String newText = text == null ? null : rename.apply(text);
+        String newComment = comment == null ? null : rename.apply(comment);
+        if (newLabelName == labelName
+                && newSymbol == symbol
+                && newText == text
+                && newComment == comment) {
+            return this;
+        }
+        Label newLabel = newLabelName == labelName ? label : new Label(newLabelName);
+        return new Instruction(
+                opcode, rd, rs1, rs2, imm, newSymbol, newLabel, newText, newComment);
+    }
+
+    /**
+     * Appends the assembly text of this instruction or directive, without indentation or comment,
+     * to SB. Not applicable to labels and verbatim text.
+     */
+    public void appendTo(StringBuilder sb) {
+        Opcode.Format format = opcode.format;
+        if (format == Opcode.Format.RAW) {
+            sb.append(text);
+            return;
+        }
+        sb.append(opcode.mnemonic);
+        switch (format) {
+            case R:
+                sb.append(' ').append(rd.name).append(", ").append(rs1.name);
+                sb.append(", ").append(rs2.name);
+                break;
+            case I:
+                sb.append(' ').append(rd.name).append(", ").append(rs1.name).append(", ");
+                appendImm(sb);
+                break;
+            case UNARY:
+                sb.append(' ').append(rd.name).append(", ").append(rs1.name);
+                break;
+            case LI:
+                sb.append(' ').append(rd.name).append(", ");
+                appendImm(sb);
+                break;
+            case LA:
+            case LOAD_LABEL:
+                sb.append(' ').append(rd.name).append(", ").append(label.labelName);
+                break;
+            case LOAD:
+                sb.append(' ').append(rd.name).append(", ");
+                appendImm(sb);
+                sb.append('(').append(rs1.name).append(')');
+                break;
+            case STORE:
+                sb.append(' ').append(rs2.name).append(", ");
+                appendImm(sb);
+                sb.append('(').append(rs1.name).append(')');
+                break;
+            case STORE_LABEL:
+                sb.append(' ').append(rs2.name).append(", ").append(label.labelName);
+                sb.append(", ").append(rs1.name);
+                break;
+            case BRANCH:
+                sb.append(' ').append(rs1.name).append(", ").append(rs2.name);
+                sb.append(", ").append(label.labelName);
+                break;
+            case BRANCHZ:
+                sb.append(' ').append(rs1.name).append(", ").append(label.labelName);
+                break;
+            case JUMP:
+                sb.append(' ');
+                if (rd != null) {
+                    sb.append(rd.name).append(", ");
+                }
+                sb.append(label.labelName);
+                break;
+            case JUMP_REG:
+                sb.append(' ').append(rs1.name);
+                break;
+            case NONE:
+                break;
+            case WORD:
+                sb.append(' ');
+                if (label != null) {
+                    sb.append(label.labelName);
+                } else {
+                    appendImm(sb);
+                }
+                break;
+            case STRING:
+                sb.append(" \"").append(text).append('"');
+                break;
+            case ALIGN:
+                sb.append(' ').append(imm);
+                break;
+            case EQUIV:
+                sb.append(' ').append(symbol).append(", ").append(text);
+                break;
+            default:
+                throw new IllegalStateException("Not an instruction: " + opcode);
+        }
+    }
+
+    /** Appends the immediate operand to SB. */
+    private void appendImm(StringBuilder sb) {
+        if (symbol != null) {
+            sb.append(symbol);
+        } else {
+            sb.append(imm);
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (opcode.format) {
+            case LOCAL_LABEL:
+            case GLOBAL_LABEL:
+                return label + ":";
+            case VERBATIM:
+                return text;
+            default:
+                StringBuilder sb = new StringBuilder();
+                appendTo(sb);
+                return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package chocopy.common.codegen;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR events recorded by {@link CompileMetrics}. All uses of the JFR API are confined to this
+ * class, which must only be loaded once the API is known to be present.
+ */
+final class JfrEvents {
+
+    private JfrEvents() {}
+
+    /** A phase of code generation. */
+    @Name("chocopy.CompilePhase")
+    @Label("Compile Phase")
+    @Category("ChocoPy")
+    @Description("A phase of ChocoPy code generation")
+    static class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+    }
+
+    /** A finished run of the code generator. */
+    @Name("chocopy.Compile")
+    @Label("Compile")
+    @Category("ChocoPy")
+    @Description("Counters of a run of the ChocoPy code generator")
+    static class CompileEvent extends Event {
+
+        @Label("Functions Emitted")
+        int functionsEmitted;
+
+        @Label("Functions From Cache")
+        int functionsFromCache;
+
+        @Label("Instructions Emitted")
+        long instructionsEmitted;
+
+        @Label("Instructions Written")
+        int instructionsWritten;
+
+        @Label("Labels Generated")
+        int labelsGenerated;
+
+        @Label("Constants Pooled")
+        int constantsPooled;
+    }
+
+    /** Returns the event of the phase named PHASE, which has begun. */
+    static Object beginPhase(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    /** End and record EVENT, as returned by {@link #beginPhase(String)}. */
+    static void commitPhase(Object event) {
+        ((PhaseEvent) event).commit();
+    }
+
+    /** Record an event with the counters of a finished run. See CompileEvent. */
+    static void commitCompile(
+            int functionsEmitted,
+            int functionsFromCache,
+            long instructionsEmitted,
+            int instructionsWritten,
+            int labelsGenerated,
+            int constantsPooled) {
+        CompileEvent event = new CompileEvent();
+        if (event.shouldCommit()) {
+            event.functionsEmitted = functionsEmitted;
+            event.functionsFromCache = functionsFromCache;
+            event.instructionsEmitted = instructionsEmitted;
+            event.instructionsWritten = instructionsWritten;
+            event.labelsGenerated = labelsGenerated;
+            event.constantsPooled = constantsPooled;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static chocopy.common.Utils.pad;
+
+/**
+ * The assembly source of a runtime library routine, split around its STRING["..."] notations.
+ *
+ * <p>A routine is read and split once per JVM. Each compilation then only looks up the labels of
+ * the string constants the routine refers to, and pastes the source back together around them.
+ */
+final class LibraryRoutine {
+
+    /** Pattern matching STRING["..."]. */
+    private static final Pattern STRING_LITERAL_PATN = Pattern.compile("STRING\\[\"(.*?)\"\\]");
+
+    /** The text around the notations: before the first, between each two, after the last. */
+    private final String[] text;
+
+    /** The strings of the notations, in order. */
+    private final String[] literals;
+
+    /** The width of each notation, to which the label replacing it is padded. */
+    private final int[] widths;
+
+    /** The length of the source. */
+    private final int length;
+
+    /** The routine whose assembly source is SOURCE. */
+    LibraryRoutine(String source) {
+        List<String> text = new ArrayList<>();
+        List<String> literals = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+        Matcher matcher = STRING_LITERAL_PATN.matcher(source);
+        int start = 0;
+        while (matcher.find()) {
+            text.add(source.substring(start, matcher.start()));
+            literals.add(matcher.group(1));
+            widths.add(matcher.end() - matcher.start());
+            start = matcher.end();
+        }
+        text.add(source.substring(start));
+        this.text = text.toArray(new String[0]);
+        this.literals = literals.toArray(new String[0]);
+        this.widths = new int[widths.size()];
+        for (int i = 0; i < this.widths.length; i += 1) {
+            this.widths[i] = widths.get(i);
+        }
+        this.length = source.length();
+    }
+
+    /**
+     * Returns the source with each STRING["..."] notation replaced by the label of that string
+     * constant in CONSTANTS, padded to the width of the notation. The constants are added to
+     * CONSTANTS as needed.
+     */
+    String render(Constants constants) {
+        if (literals.length == 0) {
+            return text[0];
+        }
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < literals.length; i += 1) {
+            result.append(text[i]);
+            String label = constants.getStrConstant(literals[i]).toString();
+            result.append(pad(label, ' ', widths[i], false));
+        }
+        return result.append(text[literals.length]).toString();
+    }
+}
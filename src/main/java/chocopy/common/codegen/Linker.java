@@ -0,0 +1,295 @@
+package chocopy.common.codegen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Combines a user program compiled against a prebuilt runtime module with that module, into one
+ * assembly image.
+ *
+ * <p>A program compiled by {@link CodeGenBase} with {@link CodeGenBase#setRuntime} lists the
+ * routines it takes from the runtime in .extern directives. The runtime module, produced by {@link
+ * CodeGenBase#generateRuntime()}, exports the routines it defines with .globl in its text
+ * section. Everything else it defines, such as its string constants and local labels, is private
+ * to it. The linker checks that every import is exported, that no export is defined again by the
+ * program and that every symbol referenced by either module is defined by one of them. It then
+ * renames the private symbols of the runtime that clash with symbols of the program, drops the
+ * .extern directives and the .equiv definitions the program already makes, and appends the
+ * runtime to the program.
+ */
+public final class Linker {
+
+    /** Pattern matching a label definition at the start of a line. */
+    static final Pattern LABEL_PATN = Pattern.compile("([A-Za-z_.$][\\w.$]*):+\\s*");
+
+    /** Pattern matching a symbol. */
+    private static final Pattern SYMBOL_PATN = Pattern.compile("[A-Za-z_.$@][\\w.$@]*");
+
+    /** The names of the registers, which are never symbols. */
+    private static final Set<String> REGISTERS =
+            new HashSet<>(
+                    Arrays.asList(
+                            "zero", "ra", "sp", "gp", "tp", "fp", "t0", "t1", "t2", "t3", "t4",
+                            "t5", "t6", "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7", "s8",
+                            "s9", "s10", "s11", "a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7"));
+
+    /** An assembly module, as written by {@link RiscVBackend}, and the symbols it involves. */
+    public static final class Module {
+
+        /** The assembly text of the module. */
+        private final String text;
+
+        /** The lines of the module. */
+        private final List<String> lines;
+
+        /** The symbols defined by labels. */
+        private final Set<String> defined = new LinkedHashSet<>();
+
+        /** The symbols declared .globl and defined in a text section, in order. */
+        private final Set<String> exports = new LinkedHashSet<>();
+
+        /** The symbols declared .extern, in order. */
+        private final Set<String> imports = new LinkedHashSet<>();
+
+        /** The symbols used as operands. */
+        private final Set<String> referenced = new HashSet<>();
+
+        /** The values of the symbols defined with .equiv, by symbol. */
+        private final Map<String, String> equivs = new LinkedHashMap<>();
+
+        /** The module whose assembly text is TEXT. */
+        public Module(String text) {
+            this.text = text;
+            lines = Arrays.asList(text.split("\n", -1));
+            Set<String> globals = new HashSet<>();
+            Set<String> textSymbols = new HashSet<>();
+            boolean inText = false;
+            for (String line : lines) {
+                String code = stripComment(line).trim();
+                Matcher label = LABEL_PATN.matcher(code);
+                while (label.lookingAt()) {
+                    defined.add(label.group(1));
+                    if (inText) {
+                        textSymbols.add(label.group(1));
+                    }
+                    code = code.substring(label.end());
+                    label = LABEL_PATN.matcher(code);
+                }
+                if (code.isEmpty()) {
+                    continue;
+                }
+                String[] parts = code.split("\\s+", 2);
+                String op = parts[0];
+                String operands = parts.length > 1 ? parts[1] : "";
+                switch (op) {
+                    case ".text":
+                        inText = true;
+                        break;
+                    case ".data":
+                        inText = false;
+                        break;
+                    case ".globl":
+                        globals.add(operands.trim());
+                        break;
+                    case ".extern":
+                        imports.add(operands.trim());
+                        break;
+                    case ".equiv":
+                        String[] equiv = operands.split(",", 2);
+                        equivs.put(equiv[0].trim(), equiv.length > 1 ? equiv[1].trim() : "");
+                        break;
+                    case ".string":
+                        break;
+                    default:
+                        for (String operand : operands.split(",")) {
+                            operand = operand.trim();
+                            if (SYMBOL_PATN.matcher(operand).matches()
+                                    && !operand.startsWith("@")
+                                    && !REGISTERS.contains(operand)) {
+                                referenced.add(operand);
+                            }
+                        }
+                        break;
+                }
+            }
+            for (String symbol : defined) {
+                if (globals.contains(symbol) && textSymbols.contains(symbol)) {
+                    exports.add(symbol);
+                }
+            }
+        }
+
+        /** Returns the routines this module defines for other modules, in order. */
+        public Set<String> getExports() {
+            return Collections.unmodifiableSet(exports);
+        }
+
+        /** Returns the symbols this module declares it takes from other modules, in order. */
+        public Set<String> getImports() {
+            return Collections.unmodifiableSet(imports);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /** Not instantiable. */
+    private Linker() {}
+
+    /**
+     * Returns the image combining PROGRAM with RUNTIME, the runtime module it was compiled
+     * against. Throws IllegalStateException if the modules do not fit together.
+     */
+    public static String link(Module program, Module runtime) {
+        for (String symbol : program.imports) {
+            if (!runtime.exports.contains(symbol)) {
+                throw new IllegalStateException("Imported symbol is not in the runtime: " + symbol);
+            }
+        }
+        for (String symbol : runtime.exports) {
+            if (program.defined.contains(symbol)) {
+                throw new IllegalStateException("Symbol defined twice: " + symbol);
+            }
+        }
+        for (Map.Entry<String, String> equiv : runtime.equivs.entrySet()) {
+            String value = program.equivs.get(equiv.getKey());
+            if (value != null && !value.equals(equiv.getValue())) {
+                throw new IllegalStateException("Conflicting values for " + equiv.getKey());
+            }
+        }
+
+        Map<String, String> renaming = new HashMap<>();
+        for (String symbol : runtime.defined) {
+            if (!runtime.exports.contains(symbol) && program.defined.contains(symbol)) {
+                String name = "rt." + symbol;
+                while (program.defined.contains(name) || runtime.defined.contains(name)) {
+                    name = "rt." + name;
+                }
+                renaming.put(symbol, name);
+            }
+        }
+
+        Set<String> undefined = new LinkedHashSet<>();
+        for (Module module : Arrays.asList(program, runtime)) {
+            for (String symbol : module.referenced) {
+                if (!program.defined.contains(symbol) && !runtime.defined.contains(symbol)) {
+                    undefined.add(symbol);
+                }
+            }
+        }
+        if (!undefined.isEmpty()) {
+            throw new IllegalStateException("Undefined symbols: " + String.join(", ", undefined));
+        }
+
+        StringBuilder image = new StringBuilder();
+        for (String line : program.lines) {
+            if (!isDirective(line, ".extern")) {
+                image.append(line).append('\n');
+            }
+        }
+        for (String line : runtime.lines) {
+            if (isDirective(line, ".equiv")) {
+                String symbol = stripComment(line).trim().substring(6).split(",", 2)[0].trim();
+                if (program.equivs.containsKey(symbol)) {
+                    continue;
+                }
+            }
+            image.append(renaming.isEmpty() ? line : rename(line, renaming)).append('\n');
+        }
+        image.setLength(image.length() - 1);
+        return image.toString();
+    }
+
+    /** Returns true iff LINE is the directive DIRECTIVE. */
+    private static boolean isDirective(String line, String directive) {
+        String code = line.trim();
+        return code.startsWith(directive)
+                && (code.length() == directive.length()
+                        || Character.isWhitespace(code.charAt(directive.length())));
+    }
+
+    /** Returns LINE without its comment, if any. */
+    static String stripComment(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quoted && c == '\\') {
+                i += 1;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '#' && !quoted) {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Returns LINE with each symbol outside its strings and comment renamed as given by RENAMING.
+     */
+    private static String rename(String line, Map<String, String> renaming) {
+        String code = stripComment(line);
+        StringBuilder result = new StringBuilder(line.length() + 8);
+        Matcher symbol = SYMBOL_PATN.matcher(code);
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < code.length(); i += 1) {
+            char c = code.charAt(i);
+            if (quoted) {
+                if (c == '\\') {
+                    i += 1;
+                } else if (c == '"') {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (symbol.find(i) && symbol.start() == i) {
+                String name = renaming.get(symbol.group());
+                if (name != null) {
+                    result.append(code, start, i).append(name);
+                    start = symbol.end();
+                }
+                i = symbol.end() - 1;
+            }
+        }
+        return result.append(line, start, line.length()).toString();
+    }
+
+    /** Link the program module in the file ARGS[0] with the runtime module in ARGS[1]. */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Usage: Linker PROGRAM.s RUNTIME.s [OUTPUT.s]");
+            System.exit(1);
+        }
+        List<Module> modules = new ArrayList<>();
+        for (int i = 0; i < 2; i += 1) {
+            modules.add(
+                    new Module(
+                            new String(
+                                    Files.readAllBytes(Paths.get(args[i])),
+                                    StandardCharsets.UTF_8)));
+        }
+        String image = link(modules.get(0), modules.get(1));
+        if (args.length == 3) {
+            Files.write(Paths.get(args[2]), image.getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.print(image);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package chocopy.common.codegen;
+
+/**
+ * A backend that assembles the code emitted directly to RV32IM machine code, rather than writing
+ * it out as assembly text. The result is retrieved with {@link #toImage()}.
+ */
+public class MachineCodeBackend extends RiscVBackend {
+
+    /** The assembler the code written out goes to. */
+    private final Assembler assembler = new Assembler();
+
+    /** Returns the assembler the code written out goes to. */
+    public Assembler getAssembler() {
+        return assembler;
+    }
+
+    /** Returns the machine code of all the code emitted. Pending code is written out first. */
+    public Assembler.Image toImage() {
+        writePending();
+        return assembler.assemble();
+    }
+
+    /** Pass INSN on to the assembler. */
+    @Override
+    protected void write(Instruction insn) {
+        assembler.add(insn);
+    }
+}
@@ -0,0 +1,488 @@
+package chocopy.common.codegen;
+
+import chocopy.common.codegen.RiscVBackend.Register;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static chocopy.common.codegen.RiscVBackend.WORD_SIZE;
+
+/**
+ * Replaces sequences of instructions that recur across the program with calls to a single shared
+ * copy, when that makes the code smaller.
+ *
+ * <p>The instructions are numbered so that equal instructions get equal numbers, and the repeated
+ * sequences are found with the {@link SuffixTree} of the numbers. Labels that are jump targets,
+ * directives and code given as text get numbers of their own, so no sequence spans them. Neither
+ * do sequences reach into hot code, since the call and return added to every pass through a loop
+ * would cost more than the space saved. Hot code is the code between a label and a later jump or
+ * branch back to it, and the code of functions that may call themselves, since recursion loops as
+ * well.
+ *
+ * <p>A sequence is outlined in one of three ways, depending on how it ends.
+ *
+ * <ul>
+ *   <li>A sequence ending in a jump or return is jumped to, and runs to its own end.
+ *   <li>A sequence ending in a call is called, and ends in a jump to the callee, which returns
+ *       directly to the call site. The rest of the sequence must not use RA.
+ *   <li>Any other sequence is called with its return address in TP, which generated code never
+ *       uses otherwise, and ends in a jump back through TP. It must not use RA or make calls,
+ *       since the callee might overwrite TP.
+ * </ul>
+ *
+ * <p>The candidates are taken greedily, largest saving first, and the shared copies are placed at
+ * the end of the code section.
+ */
+public class MachineOutliner {
+
+    /** The ways a sequence is outlined. */
+    private enum Kind {
+        /** Jumped to; ends in its own jump or return. */
+        JUMP,
+        /** Called through RA; ends in a jump to the callee of its last instruction. */
+        CALL,
+        /** Called through TP; ends in a return through TP. */
+        LINK
+    }
+
+    /** A sequence chosen for outlining. */
+    private static final class Candidate {
+
+        /** How the sequence is outlined. */
+        final Kind kind;
+
+        /** The number of instructions in the sequence. */
+        final int length;
+
+        /** The start positions of the occurrences, in the instruction string. */
+        final int[] starts;
+
+        /** The number of bytes saved by outlining all the occurrences. */
+        final int benefit;
+
+        /** The sequence of LENGTH instructions outlined as KIND at STARTS, saving BENEFIT. */
+        Candidate(Kind kind, int length, int[] starts, int benefit) {
+            this.kind = kind;
+            this.length = length;
+            this.starts = starts;
+            this.benefit = benefit;
+        }
+    }
+
+    /** The register holding the return address of sequences outlined as Kind.LINK. */
+    public static final Register LINK = Register.TP;
+
+    /** The prefix of the labels of the outlined sequences. */
+    private static final String LABEL_PREFIX = "outlined.";
+
+    /** The shortest sequence considered. */
+    private static final int MIN_LENGTH = 2;
+
+    /** The number of sequences outlined so far. */
+    private int outlined = 0;
+
+    /** The number of bytes saved so far. */
+    private int bytesSaved = 0;
+
+    /** The code, as it was when outlining began. */
+    private Instruction[] code;
+
+    /** The position in CODE of each entry of the instruction string. */
+    private int[] positions;
+
+    /** Returns the number of sequences outlined so far. */
+    public int getOutlinedCount() {
+        return outlined;
+    }
+
+    /** Returns the number of bytes of code saved by outlining so far. */
+    public int getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /** Outline the repeated sequences of CODE, in place. */
+    public void outline(List<Instruction> code) {
+        this.code = code.toArray(new Instruction[0]);
+        int[] str = numberInstructions();
+        List<Candidate> candidates = new ArrayList<>();
+        for (SuffixTree.Repeat repeat : new SuffixTree(str).repeats(MIN_LENGTH)) {
+            Candidate candidate = candidate(repeat.length, repeat.starts);
+            if (candidate != null) {
+                candidates.add(candidate);
+            }
+        }
+        candidates.sort(
+                (a, b) ->
+                        a.benefit != b.benefit
+                                ? Integer.compare(b.benefit, a.benefit)
+                                : a.length != b.length
+                                        ? Integer.compare(b.length, a.length)
+                                        : Integer.compare(min(a.starts), min(b.starts)));
+
+        boolean[] taken = new boolean[str.length];
+        List<Candidate> chosen = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            int[] starts = candidate.starts.clone();
+            Arrays.sort(starts);
+            int count = 0;
+            int end = -1;
+            for (int start : starts) {
+                if (start >= end && !anyTaken(taken, start, start + candidate.length)) {
+                    starts[count] = start;
+                    count += 1;
+                    end = start + candidate.length;
+                }
+            }
+            int benefit = benefit(candidate.kind, candidate.starts[0], candidate.length, count);
+            if (count < 2 || benefit <= 0) {
+                continue;
+            }
+            for (int i = 0; i < count; i += 1) {
+                Arrays.fill(taken, starts[i], starts[i] + candidate.length, true);
+            }
+            chosen.add(
+                    new Candidate(
+                            candidate.kind,
+                            candidate.length,
+                            Arrays.copyOf(starts, count),
+                            benefit));
+        }
+        if (!chosen.isEmpty()) {
+            rewrite(code, chosen);
+        }
+        this.code = null;
+        this.positions = null;
+    }
+
+    /**
+     * Returns the instruction string of the code: a number for each instruction, label and
+     * directive, equal for equal instructions that may be outlined and distinct otherwise, ending
+     * in a number of its own. Comments and labels never jumped to are left out. Sets POSITIONS.
+     */
+    private int[] numberInstructions() {
+        Set<String> referenced = new HashSet<>();
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < code.length; i += 1) {
+            Instruction insn = code[i];
+            if (insn.opcode.isLabel()) {
+                labels.put(insn.label.labelName, i);
+            } else if (insn.label != null) {
+                referenced.add(insn.label.labelName);
+            } else if (insn.text != null
+                    && (insn.opcode == Opcode.RAW || insn.opcode == Opcode.VERBATIM)) {
+                referenced.addAll(Arrays.asList(insn.text.split("[^\\w.$@]+")));
+            }
+        }
+
+        boolean[] hot = findHotCode(labels);
+
+        Map<String, Integer> numbers = new HashMap<>();
+        int[] str = new int[code.length + 1];
+        positions = new int[code.length + 1];
+        int length = 0;
+        int separator = 0;
+        for (int i = 0; i < code.length; i += 1) {
+            Instruction insn = code[i];
+            if (insn.isComment()
+                    || insn.opcode == Opcode.LOCAL_LABEL
+                            && !referenced.contains(insn.label.labelName)) {
+                continue;
+            }
+            if (insn.isInstruction() && !hot[i] && !usesLink(insn)) {
+                Integer number = numbers.get(key(insn));
+                if (number == null) {
+                    number = numbers.size();
+                    numbers.put(key(insn), number);
+                }
+                str[length] = number;
+            } else {
+                separator -= 1;
+                str[length] = separator;
+            }
+            positions[length] = i;
+            length += 1;
+        }
+        str[length] = separator - 1;
+        positions[length] = code.length;
+        return Arrays.copyOf(str, length + 1);
+    }
+
+    /**
+     * Returns which entries of the code are hot: those between a label and a later jump or branch
+     * back to it, and those of the functions that may call themselves, directly or through other
+     * functions. A call or jump through a register may reach any method of a dispatch table.
+     * LABELS are the positions of the labels in the code.
+     */
+    private boolean[] findHotCode(Map<String, Integer> labels) {
+        int[] loops = new int[code.length + 1];
+        int[] functions = new int[code.length];
+        int count = 0;
+        for (int i = 0; i < code.length; i += 1) {
+            Instruction insn = code[i];
+            if (insn.opcode == Opcode.GLOBAL_LABEL) {
+                count += 1;
+            }
+            functions[i] = count - 1;
+            if (insn.opcode.isBranch() || insn.opcode == Opcode.J) {
+                Integer target = labels.get(insn.label.labelName);
+                if (target != null && target < i) {
+                    loops[target] += 1;
+                    loops[i + 1] -= 1;
+                }
+            }
+        }
+
+        Set<Integer> methods = new HashSet<>();
+        List<Set<Integer>> callees = new ArrayList<>();
+        for (int f = 0; f < count; f += 1) {
+            callees.add(new HashSet<>());
+        }
+        for (int i = 0; i < code.length; i += 1) {
+            Instruction insn = code[i];
+            Integer target = insn.label == null ? null : labels.get(insn.label.labelName);
+            if (target != null && code[target].opcode == Opcode.GLOBAL_LABEL) {
+                if (insn.opcode == Opcode.WORD) {
+                    methods.add(functions[target]);
+                } else if (functions[i] >= 0
+                        && (insn.opcode == Opcode.JAL || insn.opcode == Opcode.J)) {
+                    callees.get(functions[i]).add(functions[target]);
+                }
+            }
+        }
+        for (int i = 0; i < code.length; i += 1) {
+            Instruction insn = code[i];
+            if (functions[i] >= 0
+                    && (insn.opcode == Opcode.JALR
+                            || insn.opcode == Opcode.JR && insn.rs1 != Register.RA)) {
+                callees.get(functions[i]).addAll(methods);
+            }
+        }
+
+        boolean[] recursive = new boolean[count];
+        for (int f = 0; f < count; f += 1) {
+            boolean[] reached = new boolean[count];
+            List<Integer> work = new ArrayList<>(callees.get(f));
+            while (!work.isEmpty() && !reached[f]) {
+                int g = work.remove(work.size() - 1);
+                if (!reached[g]) {
+                    reached[g] = true;
+                    work.addAll(callees.get(g));
+                }
+            }
+            recursive[f] = reached[f];
+        }
+
+        boolean[] hot = new boolean[code.length];
+        int depth = 0;
+        for (int i = 0; i < code.length; i += 1) {
+            depth += loops[i];
+            hot[i] = depth > 0 || functions[i] >= 0 && recursive[functions[i]];
+        }
+        return hot;
+    }
+
+    /**
+     * Returns the candidate for outlining the longest prefix of the sequence of LENGTH
+     * instructions occurring at STARTS that can be outlined, or null if there is none worth it.
+     */
+    private Candidate candidate(int length, int[] starts) {
+        int first = starts[0];
+        Kind kind = Kind.LINK;
+        int outlinable = length;
+        for (int j = 0; j < length; j += 1) {
+            Opcode opcode = code[positions[first + j]].opcode;
+            if (opcode == Opcode.J || opcode == Opcode.JR) {
+                kind = Kind.JUMP;
+                outlinable = j + 1;
+                break;
+            }
+        }
+        if (kind == Kind.LINK) {
+            for (int j = 0; j < length; j += 1) {
+                Instruction insn = code[positions[first + j]];
+                if (insn.definedRegister() == Register.RA || insn.reads(Register.RA)) {
+                    boolean call =
+                            insn.opcode == Opcode.JAL
+                                    || insn.opcode == Opcode.JALR && insn.rs1 != Register.RA;
+                    kind = call ? Kind.CALL : Kind.LINK;
+                    outlinable = call ? j + 1 : j;
+                    break;
+                }
+            }
+        }
+        if (outlinable < MIN_LENGTH) {
+            return null;
+        }
+        int benefit = benefit(kind, first, outlinable, starts.length);
+        return benefit > 0 ? new Candidate(kind, outlinable, starts, benefit) : null;
+    }
+
+    /**
+     * Returns the bytes saved by outlining as KIND the COUNT occurrences of the sequence of LENGTH
+     * instructions starting at START in the instruction string.
+     */
+    private int benefit(Kind kind, int start, int length, int count) {
+        int size = 0;
+        for (int j = 0; j < length; j += 1) {
+            size += sizeOf(code[positions[start + j]]);
+        }
+        int overhead = kind == Kind.LINK ? WORD_SIZE : 0;
+        return count * size - (count * WORD_SIZE + size + overhead);
+    }
+
+    /** Replace the occurrences of the CHOSEN sequences in CODE by calls to shared copies. */
+    private void rewrite(List<Instruction> code, List<Candidate> chosen) {
+        Instruction[] result = this.code.clone();
+        List<Instruction> bodies = new ArrayList<>();
+        for (Candidate candidate : chosen) {
+            Label label = new Label(LABEL_PREFIX + outlined);
+            outlined += 1;
+            bytesSaved += candidate.benefit;
+
+            int first = positions[candidate.starts[0]];
+            int last = positions[candidate.starts[0] + candidate.length - 1];
+            bodies.add(
+                    new Instruction(
+                            Opcode.LOCAL_LABEL, null, null, null, 0, null, label, null,
+                            String.format(
+                                    "Outlined from %d sites", candidate.starts.length)));
+            for (int i = first; i < last; i += 1) {
+                if (!this.code[i].opcode.isLabel()) {
+                    bodies.add(this.code[i]);
+                }
+            }
+            endBody(bodies, candidate.kind, this.code[last]);
+
+            Instruction call = callTo(candidate.kind, label);
+            for (int start : candidate.starts) {
+                int from = positions[start];
+                int to = positions[start + candidate.length - 1];
+                result[from] = call;
+                Arrays.fill(result, from + 1, to + 1, null);
+            }
+        }
+
+        int end = result.length;
+        for (int i = result.length - 1; i >= 0; i -= 1) {
+            if (result[i] != null
+                    && result[i].opcode == Opcode.VERBATIM
+                    && result[i].text.trim().equals(".data")) {
+                end = i;
+                break;
+            }
+        }
+        code.clear();
+        for (int i = 0; i < result.length; i += 1) {
+            if (i == end) {
+                code.addAll(bodies);
+            }
+            if (result[i] != null) {
+                code.add(result[i]);
+            }
+        }
+        if (end == result.length) {
+            code.addAll(bodies);
+        }
+    }
+
+    /**
+     * Append to BODY the end of the shared copy of a sequence outlined as KIND, whose last
+     * instruction is LAST.
+     */
+    private static void endBody(List<Instruction> body, Kind kind, Instruction last) {
+        switch (kind) {
+            case JUMP:
+                body.add(last);
+                break;
+            case CALL:
+                body.add(
+                        last.opcode == Opcode.JAL
+                                ? new Instruction(
+                                        Opcode.J, null, null, null, 0, null, last.label, null,
+                                        last.comment)
+                                : new Instruction(
+                                        Opcode.JR, null, last.rs1, null, 0, null, null, null,
+                                        last.comment));
+                break;
+            default:
+                body.add(last);
+                body.add(
+                        new Instruction(
+                                Opcode.JR, null, LINK, null, 0, null, null, null,
+                                "Return from outlined code"));
+                break;
+        }
+    }
+
+    /** Returns the call of the shared copy at LABEL of a sequence outlined as KIND. */
+    private static Instruction callTo(Kind kind, Label label) {
+        switch (kind) {
+            case JUMP:
+                return new Instruction(
+                        Opcode.J, null, null, null, 0, null, label, null, "Outlined code");
+            case CALL:
+                return new Instruction(
+                        Opcode.JAL, null, null, null, 0, null, label, null, "Outlined code");
+            default:
+                return new Instruction(
+                        Opcode.JAL, LINK, null, null, 0, null, label, null, "Outlined code");
+        }
+    }
+
+    /** Returns a string equal for instructions that do the same. */
+    private static String key(Instruction insn) {
+        StringBuilder key = new StringBuilder();
+        key.append(insn.opcode.ordinal()).append(' ');
+        key.append(insn.rd).append(' ').append(insn.rs1).append(' ').append(insn.rs2);
+        key.append(' ').append(insn.symbol != null ? insn.symbol : insn.imm).append(' ');
+        if (insn.label != null) {
+            key.append(insn.label.labelName);
+        }
+        return key.toString();
+    }
+
+    /** Returns true iff INSN uses the register LINK. */
+    private static boolean usesLink(Instruction insn) {
+        return insn.rd == LINK || insn.rs1 == LINK || insn.rs2 == LINK;
+    }
+
+    /** Returns the number of bytes of machine code of INSN. */
+    private static int sizeOf(Instruction insn) {
+        switch (insn.opcode) {
+            case LA:
+            case LW_LABEL:
+            case SW_LABEL:
+                return 2 * WORD_SIZE;
+            case LI:
+                return insn.hasIntImm() && (insn.imm < -2048 || insn.imm >= 2048)
+                        ? 2 * WORD_SIZE
+                        : WORD_SIZE;
+            default:
+                return WORD_SIZE;
+        }
+    }
+
+    /** Returns true iff any of TAKEN[FROM:TO] is true. */
+    private static boolean anyTaken(boolean[] taken, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            if (taken[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the least of VALUES. */
+    private static int min(int[] values) {
+        int result = Integer.MAX_VALUE;
+        for (int value : values) {
+            result = Math.min(result, value);
+        }
+        return result;
+    }
+}
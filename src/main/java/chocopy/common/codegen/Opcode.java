@@ -0,0 +1,142 @@
+package chocopy.common.codegen;
+
+/**
+ * The kinds of {@link Instruction} emitted by {@link RiscVBackend}: RISC-V instructions and
+ * pseudo-instructions, assembler directives, and markers for labels, comments and verbatim text.
+ */
+public enum Opcode {
+    ADD("add", Format.R),
+    SUB("sub", Format.R),
+    MUL("mul", Format.R),
+    DIV("div", Format.R),
+    REM("rem", Format.R),
+    XOR("xor", Format.R),
+    AND("and", Format.R),
+    OR("or", Format.R),
+    SLL("sll", Format.R),
+    SRL("srl", Format.R),
+    SRA("sra", Format.R),
+    SLT("slt", Format.R),
+    ADDI("addi", Format.I),
+    XORI("xori", Format.I),
+    ANDI("andi", Format.I),
+    ORI("ori", Format.I),
+    SLLI("slli", Format.I),
+    SRLI("srli", Format.I),
+    SRAI("srai", Format.I),
+    MV("mv", Format.UNARY),
+    SEQZ("seqz", Format.UNARY),
+    SNEZ("snez", Format.UNARY),
+    LI("li", Format.LI),
+    LUI("lui", Format.LI),
+    LA("la", Format.LA),
+    LW("lw", Format.LOAD),
+    LB("lb", Format.LOAD),
+    LBU("lbu", Format.LOAD),
+    SW("sw", Format.STORE),
+    SB("sb", Format.STORE),
+    /** Load of a word at a label. */
+    LW_LABEL("lw", Format.LOAD_LABEL),
+    /** Store of a word at a label, using a temporary register. */
+    SW_LABEL("sw", Format.STORE_LABEL),
+    BEQ("beq", Format.BRANCH),
+    BNE("bne", Format.BRANCH),
+    BGE("bge", Format.BRANCH),
+    BGEU("bgeu", Format.BRANCH),
+    BLT("blt", Format.BRANCH),
+    BLTU("bltu", Format.BRANCH),
+    BEQZ("beqz", Format.BRANCHZ),
+    BNEZ("bnez", Format.BRANCHZ),
+    BLTZ("bltz", Format.BRANCHZ),
+    BGTZ("bgtz", Format.BRANCHZ),
+    BLEZ("blez", Format.BRANCHZ),
+    BGEZ("bgez", Format.BRANCHZ),
+    J("j", Format.JUMP),
+    JAL("jal", Format.JUMP),
+    JR("jr", Format.JUMP_REG),
+    JALR("jalr", Format.JUMP_REG),
+    ECALL("ecall", Format.NONE),
+    WORD(".word", Format.WORD),
+    STRING(".string", Format.STRING),
+    ALIGN(".align", Format.ALIGN),
+    /** Reservation of zeroed bytes. */
+    SPACE(".space", Format.ALIGN),
+    EQUIV(".equiv", Format.EQUIV),
+    LOCAL_LABEL(null, Format.LOCAL_LABEL),
+    GLOBAL_LABEL(null, Format.GLOBAL_LABEL),
+    /** An instruction or directive given as text, or a comment alone if the text is empty. */
+    RAW(null, Format.RAW),
+    /** Text output as is, such as library code and section markers. */
+    VERBATIM(null, Format.VERBATIM);
+
+    /** The operand layouts of opcodes. */
+    public enum Format {
+        /** rd, rs1, rs2 */
+        R,
+        /** rd, rs1, imm */
+        I,
+        /** rd, rs1 */
+        UNARY,
+        /** rd, imm */
+        LI,
+        /** rd, label */
+        LA,
+        /** rd, imm(rs1) */
+        LOAD,
+        /** rs2, imm(rs1) */
+        STORE,
+        /** rd, label */
+        LOAD_LABEL,
+        /** rs2, label, rs1 */
+        STORE_LABEL,
+        /** rs1, rs2, label */
+        BRANCH,
+        /** rs1, label */
+        BRANCHZ,
+        /** label */
+        JUMP,
+        /** rs1 */
+        JUMP_REG,
+        /** No operands. */
+        NONE,
+        /** imm or label */
+        WORD,
+        /** text */
+        STRING,
+        /** imm */
+        ALIGN,
+        /** symbol, text */
+        EQUIV,
+        LOCAL_LABEL,
+        GLOBAL_LABEL,
+        RAW,
+        VERBATIM
+    }
+
+    /** The assembler mnemonic, or null for markers. */
+    public final String mnemonic;
+
+    /** The operand layout. */
+    public final Format format;
+
+    /** An opcode written MNEMONIC with operands laid out as FORMAT. */
+    Opcode(String mnemonic, Format format) {
+        this.mnemonic = mnemonic;
+        this.format = format;
+    }
+
+    /** Returns true iff this opcode is a machine instruction or pseudo-instruction. */
+    public boolean isInstruction() {
+        return ordinal() <= ECALL.ordinal();
+    }
+
+    /** Returns true iff this opcode marks a local or global label. */
+    public boolean isLabel() {
+        return this == LOCAL_LABEL || this == GLOBAL_LABEL;
+    }
+
+    /** Returns true iff this opcode is a conditional branch. */
+    public boolean isBranch() {
+        return format == Format.BRANCH || format == Format.BRANCHZ;
+    }
+}
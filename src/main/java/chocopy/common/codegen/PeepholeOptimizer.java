@@ -0,0 +1,349 @@
+package chocopy.common.codegen;
+
+import chocopy.common.codegen.RiscVBackend.Register;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A peephole optimizer over emitted {@link Instruction}s.
+ *
+ * <p>Each rule looks at a short window of instructions and removes or rewrites redundant ones. Only
+ * structured instructions are rewritten: labels, directives and code given as text end every
+ * window, so library code and custom routines emitted as text are left untouched. The rules are
+ * applied repeatedly until none of them applies.
+ */
+public class PeepholeOptimizer {
+
+    /** The rewriting rules. */
+    public enum Rule {
+        /** A load from a stack slot just stored to becomes a move from the stored register. */
+        FORWARD_STORE_TO_LOAD,
+        /** A store of a register to the slot it was just loaded from is removed. */
+        REDUNDANT_STORE,
+        /** A move of a register to itself is removed. */
+        SELF_MOVE,
+        /** An addition of 0 to a register in place (e.g. `addi sp, sp, 0`) is removed. */
+        ZERO_ADDI,
+        /** A jump or branch to the label that immediately follows it is removed. */
+        JUMP_TO_NEXT,
+        /** A jump or branch to an unconditional jump is redirected to that jump's target. */
+        JUMP_THREADING,
+        /** A branch over an unconditional jump becomes the inverse branch to the jump's target. */
+        BRANCH_OVER_JUMP,
+        /** Instructions following an unconditional jump and preceding any label are removed. */
+        UNREACHABLE
+    }
+
+    /** How many instructions a load may follow the store it is forwarded from. */
+    private static final int FORWARD_WINDOW = 8;
+
+    /** How many jumps a jump is threaded through at most. */
+    private static final int MAX_THREADING = 8;
+
+    /** The maximum number of rounds of rule applications. */
+    private static final int MAX_ROUNDS = 8;
+
+    /** The inverse of each conditional branch. */
+    private static final Map<Opcode, Opcode> INVERSE = new EnumMap<>(Opcode.class);
+
+    static {
+        Opcode[][] pairs = {
+            {Opcode.BEQ, Opcode.BNE},
+            {Opcode.BLT, Opcode.BGE},
+            {Opcode.BLTU, Opcode.BGEU},
+            {Opcode.BEQZ, Opcode.BNEZ},
+            {Opcode.BLTZ, Opcode.BGEZ},
+            {Opcode.BGTZ, Opcode.BLEZ}
+        };
+        for (Opcode[] pair : pairs) {
+            INVERSE.put(pair[0], pair[1]);
+            INVERSE.put(pair[1], pair[0]);
+        }
+    }
+
+    /** The number of times each rule has been applied. */
+    private final Map<Rule, Integer> hits = new EnumMap<>(Rule.class);
+
+    /** The code being optimized; removed entries are null. */
+    private Instruction[] code;
+
+    /** True iff the current round changed the code. */
+    private boolean changed;
+
+    /** An optimizer with all hit counts zero. */
+    public PeepholeOptimizer() {
+        for (Rule rule : Rule.values()) {
+            hits.put(rule, 0);
+        }
+    }
+
+    /** Returns the number of times each rule has been applied so far. */
+    public Map<Rule, Integer> getHits() {
+        return hits;
+    }
+
+    /** Returns the total number of rule applications so far. */
+    public int getTotalHits() {
+        int total = 0;
+        for (int count : hits.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /** Returns a one-line-per-rule report of the hit counts. */
+    public String report() {
+        StringBuilder sb = new StringBuilder("Peephole rule hits:\n");
+        for (Map.Entry<Rule, Integer> entry : hits.entrySet()) {
+            sb.append(String.format("  %-24s %d%n", entry.getKey(), entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    /** Optimize CODE in place. */
+    public void optimize(List<Instruction> code) {
+        this.code = code.toArray(new Instruction[0]);
+        for (int round = 0; round < MAX_ROUNDS; round += 1) {
+            changed = false;
+            Map<String, Integer> labels = indexLabels();
+            for (int i = 0; i < this.code.length; i += 1) {
+                Instruction insn = this.code[i];
+                if (insn == null || !insn.isInstruction()) {
+                    continue;
+                }
+                switch (insn.opcode.format) {
+                    case STORE:
+                        forwardStore(i);
+                        break;
+                    case LOAD:
+                        removeRedundantStore(i);
+                        break;
+                    case UNARY:
+                        if (insn.opcode == Opcode.MV && insn.rd == insn.rs1) {
+                            remove(i, Rule.SELF_MOVE);
+                        }
+                        break;
+                    case I:
+                        if (insn.opcode == Opcode.ADDI
+                                && insn.rd == insn.rs1
+                                && insn.hasIntImm()
+                                && insn.imm == 0) {
+                            remove(i, Rule.ZERO_ADDI);
+                        }
+                        break;
+                    case JUMP:
+                    case BRANCH:
+                    case BRANCHZ:
+                        if (insn.opcode != Opcode.JAL) {
+                            optimizeJump(i, labels);
+                        }
+                        break;
+                    case JUMP_REG:
+                        if (insn.opcode == Opcode.JR) {
+                            removeUnreachable(i);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+        }
+        code.clear();
+        for (Instruction insn : this.code) {
+            if (insn != null) {
+                code.add(insn);
+            }
+        }
+        this.code = null;
+    }
+
+    /** Returns the positions of all labels in the code, by name. */
+    private Map<String, Integer> indexLabels() {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < code.length; i += 1) {
+            Instruction insn = code[i];
+            if (insn != null
+                    && (insn.opcode == Opcode.LOCAL_LABEL || insn.opcode == Opcode.GLOBAL_LABEL)) {
+                labels.put(insn.label.labelName, i);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Forward the store at I to loads from the same slot that follow it within a few
+     * instructions, as long as neither the stored register, the base register nor the slot may
+     * have changed in between.
+     */
+    private void forwardStore(int i) {
+        Instruction store = code[i];
+        if (store.opcode != Opcode.SW || store.rs1 == store.rs2) {
+            return;
+        }
+        int seen = 0;
+        for (int j = next(i); j < code.length && seen < FORWARD_WINDOW; j = next(j)) {
+            Instruction insn = code[j];
+            if (!insn.isInstruction()) {
+                return;
+            }
+            seen += 1;
+            if (insn.opcode == Opcode.LW && insn.rs1 == store.rs1 && insn.sameImm(store)) {
+                if (insn.rd == store.rs2) {
+                    remove(j, Rule.FORWARD_STORE_TO_LOAD);
+                    continue;
+                }
+                code[j] =
+                        new Instruction(
+                                Opcode.MV, insn.rd, store.rs2, null, 0, null, null, null,
+                                insn.comment);
+                count(Rule.FORWARD_STORE_TO_LOAD);
+                insn = code[j];
+            } else if (insn.opcode.format == Opcode.Format.STORE) {
+                if (!(insn.opcode == Opcode.SW
+                        && insn.rs1 == store.rs1
+                        && insn.hasIntImm()
+                        && store.hasIntImm()
+                        && Math.abs(insn.imm - store.imm) >= RiscVBackend.WORD_SIZE)) {
+                    return;
+                }
+            } else if (insn.opcode.format != Opcode.Format.R
+                    && insn.opcode.format != Opcode.Format.I
+                    && insn.opcode.format != Opcode.Format.UNARY
+                    && insn.opcode.format != Opcode.Format.LI
+                    && insn.opcode.format != Opcode.Format.LA
+                    && insn.opcode.format != Opcode.Format.LOAD
+                    && insn.opcode.format != Opcode.Format.LOAD_LABEL) {
+                return;
+            }
+            Register def = insn.definedRegister();
+            if (def == store.rs2 || def == store.rs1) {
+                return;
+            }
+        }
+    }
+
+    /** Remove a store right after the load at I that writes the loaded value back. */
+    private void removeRedundantStore(int i) {
+        Instruction load = code[i];
+        int j = next(i);
+        if (j >= code.length || load.opcode != Opcode.LW || load.rd == load.rs1) {
+            return;
+        }
+        Instruction store = code[j];
+        if (store.opcode == Opcode.SW
+                && store.rs2 == load.rd
+                && store.rs1 == load.rs1
+                && store.sameImm(load)) {
+            remove(j, Rule.REDUNDANT_STORE);
+        }
+    }
+
+    /** Apply the jump rules to the jump or branch at I, given the positions of LABELS. */
+    private void optimizeJump(int i, Map<String, Integer> labels) {
+        Instruction jump = code[i];
+
+        Label target = jump.label;
+        for (int n = 0; n < MAX_THREADING; n += 1) {
+            Instruction targetInsn = instructionAt(labels.get(target.labelName));
+            if (targetInsn == null
+                    || targetInsn.opcode != Opcode.J
+                    || targetInsn.label.equals(target)
+                    || targetInsn.label.equals(jump.label)) {
+                break;
+            }
+            target = targetInsn.label;
+        }
+        if (!target.equals(jump.label)) {
+            jump = jump.withLabel(target);
+            code[i] = jump;
+            count(Rule.JUMP_THREADING);
+        }
+
+        int j = next(i);
+        if (labelsBefore(j, jump.label)) {
+            remove(i, Rule.JUMP_TO_NEXT);
+            return;
+        }
+
+        if (jump.opcode == Opcode.J) {
+            removeUnreachable(i);
+        } else if (j < code.length
+                && code[j].opcode == Opcode.J
+                && labelsBefore(next(j), jump.label)) {
+            code[i] =
+                    new Instruction(
+                            INVERSE.get(jump.opcode), null, jump.rs1, jump.rs2, 0, null,
+                            code[j].label, null, jump.comment);
+            remove(j, Rule.BRANCH_OVER_JUMP);
+        }
+    }
+
+    /**
+     * Returns true iff TARGET is among the consecutive labels that start at position FROM,
+     * ignoring comments.
+     */
+    private boolean labelsBefore(int from, Label target) {
+        for (int k = from; k < code.length; k = next(k)) {
+            Instruction insn = code[k];
+            if (insn.opcode != Opcode.LOCAL_LABEL && insn.opcode != Opcode.GLOBAL_LABEL) {
+                return false;
+            }
+            if (insn.label.equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Remove the instructions following the unconditional jump at I up to the next label. */
+    private void removeUnreachable(int i) {
+        for (int j = next(i); j < code.length && code[j].isInstruction(); j = next(j)) {
+            remove(j, Rule.UNREACHABLE);
+        }
+    }
+
+    /** Returns the first instruction at or after position POS, skipping labels and comments. */
+    private Instruction instructionAt(Integer pos) {
+        if (pos == null) {
+            return null;
+        }
+        for (int k = pos; k < code.length; k += 1) {
+            Instruction insn = code[k];
+            if (insn == null
+                    || insn.isComment()
+                    || insn.opcode == Opcode.LOCAL_LABEL
+                    || insn.opcode == Opcode.GLOBAL_LABEL) {
+                continue;
+            }
+            return insn.isInstruction() ? insn : null;
+        }
+        return null;
+    }
+
+    /** Returns the position of the first entry after I that is neither removed nor a comment. */
+    private int next(int i) {
+        int j = i + 1;
+        while (j < code.length && (code[j] == null || code[j].isComment())) {
+            j += 1;
+        }
+        return j;
+    }
+
+    /** Remove the instruction at I by RULE. */
+    private void remove(int i, Rule rule) {
+        code[i] = null;
+        count(rule);
+    }
+
+    /** Count one application of RULE. */
+    private void count(Rule rule) {
+        hits.put(rule, hits.get(rule) + 1);
+        changed = true;
+    }
+}
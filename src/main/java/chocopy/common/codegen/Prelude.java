@@ -0,0 +1,86 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A snapshot of the predefined classes and functions of a code generator, as built by {@link
+ * CodeGenBase#initClasses} and {@link CodeGenBase#initFunctions}.
+ *
+ * <p>A generator started from a prelude copies its lists and global symbols, but shares the
+ * descriptors in them, so that building the predefined descriptors is paid once rather than once
+ * per compilation. The descriptors are never modified once captured, which makes a prelude safe to
+ * share between generators running concurrently. Predefined functions are always emitted by the
+ * generator using the prelude, with {@link CodeGenBase#emitStdFunc(FuncInfo)}.
+ */
+public final class Prelude {
+
+    /** The predefined classes, in the order of CodeGenBase.classes. */
+    final List<ClassInfo> classes;
+
+    /** The predefined functions and methods, in the order of CodeGenBase.functions. */
+    final List<FuncInfo> functions;
+
+    /** The predefined global symbols. */
+    final Map<String, SymbolInfo> symbols;
+
+    /** The first type tag available to user-defined classes. */
+    final int nextTypeTag;
+
+    /** The predefined classes named by CodeGenBase. */
+    final ClassInfo objectClass, intClass, boolClass, strClass, listClass;
+
+    /** The predefined functions named by CodeGenBase. */
+    final FuncInfo printFunc, lenFunc, inputFunc;
+
+    /** The predefined functions and methods, for identity tests. */
+    private final Set<FuncInfo> predefined =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** A snapshot of the predefined classes and functions of GENERATOR, before any analysis. */
+    Prelude(CodeGenBase generator) {
+        classes = Collections.unmodifiableList(new ArrayList<>(generator.classes));
+        functions = Collections.unmodifiableList(new ArrayList<>(generator.functions));
+        Map<String, SymbolInfo> symbols = new HashMap<>();
+        for (String name : generator.globalSymbols.getDeclaredSymbols()) {
+            symbols.put(name, generator.globalSymbols.get(name));
+        }
+        this.symbols = Collections.unmodifiableMap(symbols);
+        nextTypeTag = generator.nextTypeTag;
+        objectClass = generator.objectClass;
+        intClass = generator.intClass;
+        boolClass = generator.boolClass;
+        strClass = generator.strClass;
+        listClass = generator.listClass;
+        printFunc = generator.printFunc;
+        lenFunc = generator.lenFunc;
+        inputFunc = generator.inputFunc;
+        predefined.addAll(functions);
+        for (FuncInfo funcInfo : functions) {
+            List<String> params = funcInfo.getParams();
+            for (int i = 0; i < params.size(); i += 1) {
+                ((StackVarInfo) funcInfo.getSymbolTable().get(params.get(i))).setVarIndex(i);
+            }
+        }
+    }
+
+    /** Returns true iff FUNCINFO is one of my functions or methods. */
+    public boolean isPredefined(FuncInfo funcInfo) {
+        return predefined.contains(funcInfo);
+    }
+
+    /** Returns true iff CLASSINFO is one of my classes. */
+    public boolean isPredefined(ClassInfo classInfo) {
+        for (ClassInfo predefinedClass : classes) {
+            if (predefinedClass == classInfo) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
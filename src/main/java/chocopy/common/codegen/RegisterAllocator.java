@@ -0,0 +1,593 @@
+package chocopy.common.codegen;
+
+import chocopy.common.codegen.RiscVBackend.Register;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static chocopy.common.codegen.RiscVBackend.Register.*;
+
+/**
+ * A linear-scan register allocator for the stack slots of one function.
+ *
+ * <p>The code generator keeps locals, parameters and temporaries in FP-relative stack slots. This
+ * allocator works on the complete {@link Instruction}s of one function (or of the top level): it
+ * computes the live interval of every slot that is only accessed by `lw` and `sw` relative to FP,
+ * assigns registers to as many intervals as it can, and rewrites the loads and stores of those
+ * slots into register moves.
+ *
+ * <p>Intervals that contain a call are given callee-saved registers S1-S9, which the function
+ * saves in its prologue and restores in its epilogue, in a save area added below its slots.
+ * Other intervals are given caller-saved T and A registers that the function does not otherwise
+ * use, or S registers if those run out. Parameters that are promoted are loaded into their
+ * registers in the prologue. A slot is only promoted if its accesses, weighted by loop depth,
+ * outnumber the saves, restores and loads that promoting it adds. Moves between promoted
+ * registers and the temporaries they are loaded into or stored from are coalesced where liveness
+ * allows.
+ *
+ * <p>Functions containing code given as text, or accessing their frame in ways the allocator
+ * cannot follow, are left untouched.
+ */
+public class RegisterAllocator {
+
+    /** Callee-saved registers available for allocation (S10, S11 hold the heap bounds). */
+    private static final List<Register> CALLEE_SAVED =
+            Arrays.asList(S1, S2, S3, S4, S5, S6, S7, S8, S9);
+
+    /** Caller-saved registers available for allocation if a function does not use them. */
+    private static final List<Register> CALLER_SAVED =
+            Arrays.asList(T6, T5, T4, T3, T2, A7, A6, A5, A4, A3, A2);
+
+    /** How many instructions a move from a promoted register is propagated over at most. */
+    private static final int PROPAGATION_WINDOW = 16;
+
+    /** The maximum number of rounds of coalescing. */
+    private static final int MAX_ROUNDS = 4;
+
+    /** Accesses in a loop are weighted 2 to the power of this times the loop depth. */
+    private static final int LOOP_WEIGHT_SHIFT = 3;
+
+    /** The loop depth beyond which accesses are not weighted more. */
+    private static final int MAX_LOOP_DEPTH = 3;
+
+    /** The liveness mask of all registers. */
+    private static final int ALL_REGISTERS = -1;
+
+    /** The word size in bytes. */
+    private static final int WORD_SIZE = RiscVBackend.WORD_SIZE;
+
+    /** The live interval of one stack slot. */
+    private static class Interval {
+        /** The FP-relative offset of the slot. */
+        final int offset;
+        /** Position of the first and last access. */
+        int start;
+        int end;
+        /** True iff the slot is stored to. */
+        boolean stored;
+        /** True iff all accesses are word loads and stores relative to FP. */
+        boolean promotable = true;
+        /** The positions of all accesses. */
+        final List<Integer> accesses = new ArrayList<>();
+        /** The estimated number of accesses executed per call, weighting loops. */
+        int weight;
+        /** True iff a call lies strictly inside the interval. */
+        boolean crossesCall;
+        /** The assigned register, or null if the slot stays in memory. */
+        Register reg;
+
+        /** The interval of the slot at OFFSET, first accessed at POS. */
+        Interval(int offset, int pos) {
+            this.offset = offset;
+            this.start = pos;
+            this.end = pos;
+        }
+    }
+
+    /** The code of the function. */
+    private final List<Instruction> code;
+
+    /** The symbol holding the function's frame size. */
+    private final String frameSizeSymbol;
+
+    /** Slots at this offset or above may be accessed by other functions. */
+    private int exposedFrom;
+
+    /** True iff callee-saved registers must be preserved (false for the top level). */
+    private final boolean calleeSaves;
+
+    /**
+     * An allocator for CODE, the complete code of one function whose frame size is the value of
+     * FRAMESIZESYMBOL. Slots at offset EXPOSEDFROM or above are accessed by nested functions, and
+     * are never promoted. CALLEESAVES is false for the top level, which need not preserve any
+     * registers.
+     */
+    public RegisterAllocator(
+            List<Instruction> code, String frameSizeSymbol, int exposedFrom, boolean calleeSaves) {
+        this.code = code;
+        this.frameSizeSymbol = frameSizeSymbol;
+        this.exposedFrom = exposedFrom;
+        this.calleeSaves = calleeSaves;
+    }
+
+    /** Allocate registers and rewrite the code. Returns the number of promoted slots. */
+    public int allocate() {
+        Map<Integer, Interval> slots = new TreeMap<>();
+        Map<String, Integer> labels = new HashMap<>();
+        List<Integer> calls = new ArrayList<>();
+        Set<Register> used = EnumSet.noneOf(Register.class);
+        int prologueEnd = -1;
+        int epilogue = -1;
+        int equiv = -1;
+        int argWords = 0;
+
+        for (int i = 0; i < code.size(); i += 1) {
+            Instruction insn = code.get(i);
+            switch (insn.opcode.format) {
+                case RAW:
+                    if (!insn.isComment()) {
+                        return 0;
+                    }
+                    continue;
+                case VERBATIM:
+                    return 0;
+                case LOCAL_LABEL:
+                case GLOBAL_LABEL:
+                    labels.put(insn.label.labelName, i);
+                    continue;
+                case EQUIV:
+                    if (insn.symbol.equals(frameSizeSymbol)) {
+                        equiv = i;
+                    }
+                    continue;
+                default:
+                    break;
+            }
+            for (Register reg : new Register[] {insn.rd, insn.rs1, insn.rs2}) {
+                if (reg != null) {
+                    used.add(reg);
+                }
+            }
+            if (insn.opcode == Opcode.JAL
+                    || insn.opcode == Opcode.JALR
+                    || insn.opcode == Opcode.ECALL) {
+                calls.add(i);
+            }
+            if (insn.opcode == Opcode.ADDI && insn.rd == FP && prologueEnd < 0) {
+                prologueEnd = i + 1;
+            }
+            if (insn.opcode == Opcode.LW && insn.rd == FP && insn.rs1 == FP) {
+                if (epilogue >= 0) {
+                    return 0;
+                }
+                epilogue = i;
+            }
+
+            boolean memory =
+                    insn.opcode.format == Opcode.Format.LOAD
+                            || insn.opcode.format == Opcode.Format.STORE;
+            if (memory && insn.rs1 == SP && insn.hasIntImm()) {
+                argWords = Math.max(argWords, insn.imm / WORD_SIZE + 1);
+            }
+            if (memory && insn.rs1 == FP) {
+                if (!insn.hasIntImm()) {
+                    return 0;
+                }
+                Interval slot = slots.get(insn.imm);
+                if (slot == null) {
+                    slot = new Interval(insn.imm, i);
+                    slots.put(insn.imm, slot);
+                }
+                slot.end = i;
+                slot.accesses.add(i);
+                if (insn.opcode == Opcode.SW) {
+                    slot.stored = true;
+                } else if (insn.opcode != Opcode.LW) {
+                    slot.promotable = false;
+                }
+                if (insn.opcode.format == Opcode.Format.STORE && insn.rs2 == FP) {
+                    exposedFrom = Math.min(exposedFrom, 0);
+                }
+            } else if (insn.reads(FP) && prologueEnd >= 0) {
+                // Passing FP as a static link exposes the parameters; saving it as the control
+                // link in the prologue does not
+                exposedFrom = Math.min(exposedFrom, 0);
+            }
+        }
+        if (prologueEnd < 0 || equiv < 0 || (calleeSaves && epilogue < 0)) {
+            return 0;
+        }
+
+        List<Interval> candidates = new ArrayList<>();
+        for (Interval slot : slots.values()) {
+            boolean param = slot.offset >= 0;
+            if (slot.promotable
+                    && slot.offset < exposedFrom
+                    && slot.offset != -WORD_SIZE
+                    && slot.offset != -2 * WORD_SIZE
+                    && (param ? calleeSaves : slot.stored)) {
+                if (param) {
+                    slot.start = prologueEnd;
+                }
+                candidates.add(slot);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        List<int[]> loops = findLoops(labels);
+        extendOverLoops(candidates, loops);
+        for (Interval slot : candidates) {
+            for (int pos : slot.accesses) {
+                int depth = 0;
+                for (int[] loop : loops) {
+                    if (loop[0] <= pos && pos <= loop[1]) {
+                        depth += 1;
+                    }
+                }
+                slot.weight += 1 << (LOOP_WEIGHT_SHIFT * Math.min(depth, MAX_LOOP_DEPTH));
+            }
+        }
+        for (Interval slot : candidates) {
+            for (int call : calls) {
+                if (slot.start < call && call < slot.end) {
+                    slot.crossesCall = true;
+                    break;
+                }
+            }
+        }
+
+        List<Register> usedSaved = linearScan(candidates, used);
+        int promoted = 0;
+        for (Interval slot : candidates) {
+            if (slot.reg != null) {
+                promoted += 1;
+            }
+        }
+        if (promoted == 0) {
+            return 0;
+        }
+
+        rewrite(slots);
+
+        List<Instruction> prologue = new ArrayList<>();
+        List<Instruction> restores = new ArrayList<>();
+        if (calleeSaves && !usedSaved.isEmpty()) {
+            int frameSize = Integer.parseInt(code.get(equiv).text);
+            for (int i = 0; i < usedSaved.size(); i += 1) {
+                Register reg = usedSaved.get(i);
+                int offset = -(frameSize + (i + 1) * WORD_SIZE);
+                prologue.add(
+                        new Instruction(
+                                Opcode.SW, null, FP, reg, offset, null, null, null,
+                                "Save callee-saved register"));
+                restores.add(
+                        new Instruction(
+                                Opcode.LW, reg, FP, null, offset, null, null, null,
+                                "Restore callee-saved register"));
+            }
+            int newSize = frameSize + (usedSaved.size() + argWords) * WORD_SIZE;
+            newSize = (newSize + 15) / 16 * 16;
+            Instruction old = code.get(equiv);
+            code.set(
+                    equiv,
+                    new Instruction(
+                            Opcode.EQUIV, null, null, null, 0, old.symbol, null,
+                            Integer.toString(newSize), old.comment));
+        }
+        for (Interval slot : candidates) {
+            if (slot.reg != null && slot.offset >= 0) {
+                prologue.add(
+                        new Instruction(
+                                Opcode.LW, slot.reg, FP, null, slot.offset, null, null, null,
+                                "Load parameter into register"));
+            }
+        }
+        if (!restores.isEmpty()) {
+            code.addAll(epilogue, restores);
+        }
+        code.addAll(prologueEnd, prologue);
+
+        Set<Register> promotedRegs = EnumSet.noneOf(Register.class);
+        for (Interval slot : candidates) {
+            if (slot.reg != null) {
+                promotedRegs.add(slot.reg);
+            }
+        }
+        coalesce(promotedRegs);
+        return promoted;
+    }
+
+    /**
+     * Returns the loops of the code as pairs of start and end positions. A loop is the code
+     * between a label, whose position is given by LABELS, and a later jump or branch back to it.
+     */
+    private List<int[]> findLoops(Map<String, Integer> labels) {
+        List<int[]> loops = new ArrayList<>();
+        for (int i = 0; i < code.size(); i += 1) {
+            Instruction insn = code.get(i);
+            if ((insn.opcode == Opcode.J || insn.opcode.isBranch()) && insn.label != null) {
+                Integer target = labels.get(insn.label.labelName);
+                if (target != null && target < i) {
+                    loops.add(new int[] {target, i});
+                }
+            }
+        }
+        return loops;
+    }
+
+    /** Extend the intervals of SLOTS so that each interval overlapping one of LOOPS covers it. */
+    private void extendOverLoops(List<Interval> slots, List<int[]> loops) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Interval slot : slots) {
+                for (int[] loop : loops) {
+                    if (slot.start <= loop[1]
+                            && loop[0] <= slot.end
+                            && (loop[0] < slot.start || slot.end < loop[1])) {
+                        slot.start = Math.min(slot.start, loop[0]);
+                        slot.end = Math.max(slot.end, loop[1]);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Assign registers to SLOTS by linear scan, avoiding the registers in USED. Returns the
+     * callee-saved registers assigned, in order.
+     */
+    private List<Register> linearScan(List<Interval> slots, Set<Register> used) {
+        slots.sort((a, b) -> Integer.compare(a.start, b.start));
+        List<Register> freeSaved = new ArrayList<>();
+        for (Register reg : CALLEE_SAVED) {
+            if (!used.contains(reg)) {
+                freeSaved.add(reg);
+            }
+        }
+        List<Register> freeTemp = new ArrayList<>();
+        for (Register reg : CALLER_SAVED) {
+            if (!used.contains(reg)) {
+                freeTemp.add(reg);
+            }
+        }
+        List<Register> usedSaved = new ArrayList<>();
+        List<Interval> active = new ArrayList<>();
+        for (Interval slot : slots) {
+            for (int k = active.size() - 1; k >= 0; k -= 1) {
+                Interval other = active.get(k);
+                if (other.end < slot.start) {
+                    active.remove(k);
+                    (CALLEE_SAVED.contains(other.reg) ? freeSaved : freeTemp).add(0, other.reg);
+                }
+            }
+            // Promotion turns WEIGHT memory accesses into moves, but adds a load for a parameter
+            // and a save and restore for a fresh callee-saved register; each added access costs
+            // an instruction as well as a memory access
+            int cost = slot.offset >= 0 ? 1 : 0;
+            if (!slot.crossesCall && !freeTemp.isEmpty()) {
+                if (slot.weight > 2 * cost) {
+                    slot.reg = freeTemp.remove(0);
+                }
+            } else if (!freeSaved.isEmpty()) {
+                Register reg = freeSaved.get(0);
+                if (calleeSaves && !usedSaved.contains(reg)) {
+                    cost += 2;
+                }
+                if (slot.weight > 2 * cost) {
+                    slot.reg = freeSaved.remove(0);
+                    if (!usedSaved.contains(reg)) {
+                        usedSaved.add(reg);
+                    }
+                }
+            }
+            if (slot.reg != null) {
+                active.add(slot);
+            }
+        }
+        return usedSaved;
+    }
+
+    /** Rewrite the loads and stores of the promoted SLOTS into register moves. */
+    private void rewrite(Map<Integer, Interval> slots) {
+        for (int i = 0; i < code.size(); i += 1) {
+            Instruction insn = code.get(i);
+            if ((insn.opcode != Opcode.LW && insn.opcode != Opcode.SW) || insn.rs1 != FP) {
+                continue;
+            }
+            Interval slot = slots.get(insn.imm);
+            if (slot == null || slot.reg == null) {
+                continue;
+            }
+            if (insn.opcode == Opcode.LW) {
+                code.set(
+                        i,
+                        new Instruction(
+                                Opcode.MV, insn.rd, slot.reg, null, 0, null, null, null,
+                                insn.comment));
+            } else {
+                code.set(
+                        i,
+                        new Instruction(
+                                Opcode.MV, slot.reg, insn.rs2, null, 0, null, null, null,
+                                insn.comment));
+            }
+        }
+    }
+
+    /**
+     * Remove moves between the registers in PROMOTED and other registers, where the instruction
+     * defining the moved value can write the promoted register directly, or the instructions using
+     * the moved value can read the promoted register directly.
+     */
+    private void coalesce(Set<Register> promoted) {
+        for (int round = 0; round < MAX_ROUNDS; round += 1) {
+            int[] liveOut = liveness();
+            boolean[] touched = new boolean[code.size()];
+            boolean changed = false;
+            for (int i = 0; i < code.size(); i += 1) {
+                Instruction insn = code.get(i);
+                if (insn == null || insn.opcode != Opcode.MV || touched[i]) {
+                    continue;
+                }
+                if (promoted.contains(insn.rd) && !promoted.contains(insn.rs1)) {
+                    changed |= coalesceDefinition(i, liveOut, touched);
+                } else if (promoted.contains(insn.rs1) && !promoted.contains(insn.rd)) {
+                    changed |= coalesceUses(i, liveOut, touched);
+                }
+            }
+            code.removeIf(insn -> insn == null);
+            if (!changed) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Make the instruction defining the source of the move at I write the move's destination
+     * directly, if the source is dead after the move. Returns true iff the code changed.
+     */
+    private boolean coalesceDefinition(int i, int[] liveOut, boolean[] touched) {
+        Instruction move = code.get(i);
+        int p = i - 1;
+        while (p >= 0 && code.get(p) != null && code.get(p).isComment()) {
+            p -= 1;
+        }
+        if (p < 0 || code.get(p) == null || touched[p] || (liveOut[i] & bit(move.rs1)) != 0) {
+            return false;
+        }
+        Instruction def = code.get(p);
+        switch (def.opcode.format) {
+            case R:
+            case I:
+            case UNARY:
+            case LI:
+            case LA:
+            case LOAD:
+            case LOAD_LABEL:
+                break;
+            default:
+                return false;
+        }
+        if (def.rd != move.rs1) {
+            return false;
+        }
+        code.set(p, def.withDestination(move.rd));
+        code.set(i, null);
+        touched[p] = true;
+        touched[i] = true;
+        return true;
+    }
+
+    /**
+     * Make the instructions following the move at I read the move's source instead of its
+     * destination, up to where the destination is dead. Returns true iff the code changed.
+     */
+    private boolean coalesceUses(int i, int[] liveOut, boolean[] touched) {
+        Instruction move = code.get(i);
+        Register dest = move.rd;
+        Register source = move.rs1;
+        int seen = 0;
+        for (int j = i + 1; j < code.size() && seen < PROPAGATION_WINDOW; j += 1) {
+            Instruction insn = code.get(j);
+            if (insn == null || insn.isComment()) {
+                continue;
+            }
+            seen += 1;
+            if (!insn.isInstruction()
+                    || touched[j]
+                    || insn.opcode == Opcode.JAL
+                    || insn.opcode == Opcode.JALR
+                    || insn.opcode == Opcode.JR
+                    || insn.opcode == Opcode.ECALL) {
+                return false;
+            }
+            Register def = insn.definedRegister();
+            if (def == dest || (liveOut[j] & bit(dest)) == 0) {
+                for (int k = i + 1; k <= j; k += 1) {
+                    Instruction use = code.get(k);
+                    if (use != null && use.isInstruction() && use.reads(dest)) {
+                        code.set(k, use.withSourceReplaced(dest, source));
+                    }
+                    touched[k] = true;
+                }
+                code.set(i, null);
+                touched[i] = true;
+                return true;
+            }
+            if (def == source || insn.opcode == Opcode.J || insn.opcode.isBranch()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the registers live after each instruction of the code, as bit masks. Calls,
+     * returns and jumps out of the function are assumed to read all registers.
+     */
+    private int[] liveness() {
+        int n = code.size();
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < n; i += 1) {
+            Instruction insn = code.get(i);
+            if (insn.opcode == Opcode.LOCAL_LABEL || insn.opcode == Opcode.GLOBAL_LABEL) {
+                labels.put(insn.label.labelName, i);
+            }
+        }
+        int[] liveIn = new int[n + 1];
+        int[] liveOut = new int[n];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = n - 1; i >= 0; i -= 1) {
+                Instruction insn = code.get(i);
+                Opcode opcode = insn.opcode;
+                int out = 0;
+                if (opcode != Opcode.J && opcode != Opcode.JR) {
+                    out = liveIn[i + 1];
+                }
+                if (opcode == Opcode.J || opcode.isBranch()) {
+                    Integer target = labels.get(insn.label.labelName);
+                    out |= target == null ? ALL_REGISTERS : liveIn[target];
+                }
+                int in;
+                if (!insn.isInstruction()) {
+                    in = out;
+                } else if (opcode == Opcode.JAL
+                        || opcode == Opcode.JALR
+                        || opcode == Opcode.JR
+                        || opcode == Opcode.ECALL) {
+                    in = ALL_REGISTERS;
+                } else {
+                    in = out & ~bit(insn.definedRegister());
+                    if (insn.rs1 != null && insn.reads(insn.rs1)) {
+                        in |= bit(insn.rs1);
+                    }
+                    if (insn.rs2 != null && insn.reads(insn.rs2)) {
+                        in |= bit(insn.rs2);
+                    }
+                }
+                if (in != liveIn[i] || out != liveOut[i]) {
+                    liveIn[i] = in;
+                    liveOut[i] = out;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    /** Returns the liveness mask of REG, or 0 if REG is null. */
+    private static int bit(Register reg) {
+        return reg == null ? 0 : 1 << reg.ordinal();
+    }
+}
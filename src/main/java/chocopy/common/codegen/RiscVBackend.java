@@ -1,60 +1,108 @@
 package chocopy.common.codegen;
 
+import java.io.BufferedWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-
-/** RISC V assembly-language generation utilities. */
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RISC V assembly-language generation utilities.
+ *
+ * <p>Emitted code is kept as a list of {@link Instruction}s, which passes over the generated code
+ * may inspect and rewrite, and is only turned into assembly text when written out by {@link
+ * #writePending()}, {@link #flush()} or {@link #toString()}.
+ */
 public class RiscVBackend {
 
-    /** Accumulator for assembly code output. */
-    protected final StringWriter asmText = new StringWriter();
+    /** Accumulator for assembly code output, or null if it is streamed to a writer. */
+    protected final StringWriter asmText;
 
     /** Allows print, println, and printf of assembly code. */
-    private final PrintWriter out = new PrintWriter(asmText);
+    private final PrintWriter out;
+
+    /** The code emitted but not yet written out as assembly text. */
+    private final List<Instruction> pending = new ArrayList<>();
+
+    /** The number of machine instructions written out so far. */
+    private int writtenInstructions = 0;
+
+    /** The optimizer run over pending code before it is written out, or null. */
+    private PeepholeOptimizer peephole = null;
+
+    /** Counters for the code emitted, or null. */
+    private CompileMetrics metrics = null;
+
+    /** Reused to build the text of one instruction. */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * The buffer into which the current thread records a function body, or null if it emits
+     * directly to the pending code.
+     */
+    private final ThreadLocal<FunctionBuffer> functionBuffer = new ThreadLocal<>();
+
+    /** The column width of instructions followed by a comment. */
+    private static final int INSN_WIDTH = 40;
+
+    /** The column width of local labels followed by a comment. */
+    private static final int LABEL_WIDTH = 42;
+
+    /** The size of the buffer used when streaming to a writer. */
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /** Spaces used to pad columns. */
+    private static final char[] SPACES = "                                        ".toCharArray();
 
     /** The word size in bytes for RISC-V 32-bit. */
     protected static final int WORD_SIZE = 4;
 
     /** The RISC-V registers. */
     public enum Register {
-        A0("a0"),
-        A1("a1"),
-        A2("a2"),
-        A3("a3"),
-        A4("a4"),
-        A5("a5"),
-        A6("a6"),
-        A7("a7"),
-        T0("t0"),
-        T1("t1"),
-        T2("t2"),
-        T3("t3"),
-        T4("t4"),
-        T5("t5"),
-        T6("t6"),
-        S1("s1"),
-        S2("s2"),
-        S3("s3"),
-        S4("s4"),
-        S5("s5"),
-        S6("s6"),
-        S7("s7"),
-        S8("s8"),
-        S9("s9"),
-        S10("s10"),
-        S11("s11"),
-        FP("fp"),
-        SP("sp"),
-        GP("gp"),
-        RA("ra"),
-        ZERO("zero");
+        A0("a0", 10),
+        A1("a1", 11),
+        A2("a2", 12),
+        A3("a3", 13),
+        A4("a4", 14),
+        A5("a5", 15),
+        A6("a6", 16),
+        A7("a7", 17),
+        T0("t0", 5),
+        T1("t1", 6),
+        T2("t2", 7),
+        T3("t3", 28),
+        T4("t4", 29),
+        T5("t5", 30),
+        T6("t6", 31),
+        S1("s1", 9),
+        S2("s2", 18),
+        S3("s3", 19),
+        S4("s4", 20),
+        S5("s5", 21),
+        S6("s6", 22),
+        S7("s7", 23),
+        S8("s8", 24),
+        S9("s9", 25),
+        S10("s10", 26),
+        S11("s11", 27),
+        FP("fp", 8),
+        SP("sp", 2),
+        GP("gp", 3),
+        TP("tp", 4),
+        RA("ra", 1),
+        ZERO("zero", 0);
 
         /** The name of the register used in assembly. */
         protected final String name;
 
-        /** This register's code representation is NAME. */
-        Register(String name) {
+        /** The number of the register in machine code. */
+        public final int number;
+
+        /** This register's code representation is NAME, and its number is NUMBER. */
+        Register(String name, int number) {
             this.name = name;
+            this.number = number;
         }
 
         @Override
@@ -63,9 +111,92 @@ public class RiscVBackend {
         }
     }
 
+    /** A backend that accumulates the assembly code, to be retrieved with {@link #toString()}. */
+    public RiscVBackend() {
+        asmText = new StringWriter();
+        out = new PrintWriter(asmText);
+    }
+
+    /**
+     * A backend that streams the assembly code to WRITER as it is emitted, so that it is never held
+     * in memory as a whole. Call {@link #flush()} once generation is complete.
+     */
+    public RiscVBackend(Writer writer) {
+        asmText = null;
+        out = new PrintWriter(new BufferedWriter(writer, STREAM_BUFFER_SIZE));
+    }
+
+    /**
+     * Write out all pending code and any buffered assembly text. Throws IllegalStateException on an
+     * I/O error.
+     */
+    public void flush() {
+        writePending();
+        out.flush();
+        if (out.checkError()) {
+            throw new IllegalStateException("Error writing assembly code");
+        }
+    }
+
+    /**
+     * Returns the assembly code emitted so far, or an empty string if it is streamed. Pending code
+     * is written out first.
+     */
     @Override
     public String toString() {
-        return asmText.toString();
+        writePending();
+        return asmText == null ? "" : asmText.toString();
+    }
+
+    /**
+     * Returns the code emitted but not yet written out, in order. Passes over the generated code
+     * may rewrite this list in place before it is written.
+     */
+    public List<Instruction> getPending() {
+        return pending;
+    }
+
+    /** Returns the number of machine instructions emitted so far, including pending ones. */
+    public int getInstructionCount() {
+        int count = writtenInstructions;
+        for (Instruction insn : pending) {
+            if (insn.isInstruction()) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /** Run PEEPHOLE (null for none) over pending code before writing it out. */
+    public void setPeephole(PeepholeOptimizer peephole) {
+        this.peephole = peephole;
+    }
+
+    /** Returns the optimizer run over pending code before writing it out, or null. */
+    public PeepholeOptimizer getPeephole() {
+        return peephole;
+    }
+
+    /** Count the instructions emitted in METRICS (null for none). */
+    public void setMetrics(CompileMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Write out all pending code as assembly text, after optimizing it if an optimizer is set, and
+     * clear it.
+     */
+    public void writePending() {
+        if (peephole != null && !pending.isEmpty()) {
+            peephole.optimize(pending);
+        }
+        for (Instruction insn : pending) {
+            write(insn);
+            if (insn.isInstruction()) {
+                writtenInstructions += 1;
+            }
+        }
+        pending.clear();
     }
 
     /**
@@ -74,11 +205,8 @@ public class RiscVBackend {
      * with a digit. Value may be a numeral or another symbol.
      */
     public void defineSym(String name, String value) {
-        if (name.startsWith("@")) {
-            emitInsn(String.format(".equiv %s, %s", name, value), null);
-        } else {
-            emitInsn(String.format(".equiv @%s, %s", name, value), null);
-        }
+        String symbol = name.startsWith("@") ? name : "@" + name;
+        add(new Instruction(Opcode.EQUIV, null, null, null, 0, symbol, null, value, null));
     }
 
     /**
@@ -99,23 +227,80 @@ public class RiscVBackend {
         return WORD_SIZE;
     }
 
+    /**
+     * Record all further emissions of the current thread into BUFFER, until {@link #endBuffer()}.
+     * The recorded code is added by {@link #replay(FunctionBuffer)}.
+     */
+    public void startBuffer(FunctionBuffer buffer) {
+        functionBuffer.set(buffer);
+    }
+
+    /** Stop recording the emissions of the current thread. */
+    public void endBuffer() {
+        functionBuffer.remove();
+    }
+
+    /** Return the buffer the current thread records into, or null if it emits directly. */
+    public FunctionBuffer currentBuffer() {
+        return functionBuffer.get();
+    }
+
+    /**
+     * Returns a mark for the current end of the code the current thread emits into, for use with
+     * {@link #codeSince(int)}.
+     */
+    public int mark() {
+        FunctionBuffer buffer = functionBuffer.get();
+        return buffer != null ? buffer.instructions.size() : pending.size();
+    }
+
+    /**
+     * Returns the code the current thread has emitted since MARK, which must have been taken since
+     * pending code was last written out. Passes over the generated code may rewrite the returned
+     * list in place.
+     */
+    public List<Instruction> codeSince(int mark) {
+        FunctionBuffer buffer = functionBuffer.get();
+        List<Instruction> code = buffer != null ? buffer.instructions : pending;
+        return code.subList(mark, code.size());
+    }
+
+    /** Emit the contents of BUFFER, which must have been resolved. */
+    public void replay(FunctionBuffer buffer) {
+        for (Instruction insn : buffer.instructions) {
+            add(buffer.rename(insn));
+        }
+    }
+
+    /**
+     * Emit INSN: record it in the function buffer of the current thread, if any, or else add it to
+     * the pending code. Recorded code is counted once it is replayed.
+     */
+    protected void add(Instruction insn) {
+        FunctionBuffer buffer = functionBuffer.get();
+        if (buffer != null) {
+            buffer.add(insn);
+        } else {
+            pending.add(insn);
+            if (metrics != null && insn.isInstruction()) {
+                metrics.countEmitted(insn.opcode);
+            }
+        }
+    }
+
     /** Emit the text STR to the output stream verbatim. STR should have no trailing newline. */
     protected void emit(String str) {
-        out.println(str);
+        add(new Instruction(Opcode.VERBATIM, null, null, null, 0, null, null, str, null));
     }
 
     /** Emit instruction or directive INSN along with COMMENT as a one-line comment, if non-null. */
     public void emitInsn(String insn, String comment) {
-        if (comment != null) {
-            emit(String.format("  %-40s # %s", insn, comment));
-        } else {
-            emitInsn(insn);
-        }
+        add(new Instruction(Opcode.RAW, null, null, null, 0, null, null, insn, comment));
     }
 
     /** Emit instruction or directive INSN without a comment. */
     protected void emitInsn(String insn) {
-        emit(String.format("  %s", insn));
+        emitInsn(insn, null);
     }
 
     /**
@@ -123,17 +308,62 @@ public class RiscVBackend {
      * only once per unique label.
      */
     public void emitLocalLabel(Label label, String comment) {
-        if (comment != null) {
-            emit(String.format("%-42s # %s", label + ":", comment));
-        } else {
-            emit(String.format("%s:", label + ":"));
-        }
+        add(new Instruction(Opcode.LOCAL_LABEL, null, null, null, 0, null, label, null, comment));
     }
 
     /** Emit a global label marker for LABEL. Invoke only once per unique label. */
     public void emitGlobalLabel(Label label) {
-        emit(String.format("\n.globl %s", label));
-        emit(String.format("%s:", label));
+        add(new Instruction(Opcode.GLOBAL_LABEL, null, null, null, 0, null, label, null, null));
+    }
+
+    /** Write INSN to the output as assembly text. */
+    protected void write(Instruction insn) {
+        switch (insn.opcode) {
+            case VERBATIM:
+                out.println(insn.text);
+                break;
+            case LOCAL_LABEL:
+                if (insn.comment != null) {
+                    writeCommented(insn.label.labelName, 1, LABEL_WIDTH, insn.comment);
+                } else {
+                    out.print(insn.label.labelName);
+                    out.println("::");
+                }
+                break;
+            case GLOBAL_LABEL:
+                out.println();
+                out.print(".globl ");
+                out.println(insn.label.labelName);
+                out.print(insn.label.labelName);
+                out.println(':');
+                break;
+            default:
+                line.setLength(0);
+                insn.appendTo(line);
+                out.print("  ");
+                if (insn.comment != null) {
+                    writeCommented(line, 0, INSN_WIDTH, insn.comment);
+                } else {
+                    out.println(line);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Write TEXT, followed by a colon if COLONS is 1, padded with spaces to WIDTH columns and
+     * followed by one-line comment COMMENT.
+     */
+    private void writeCommented(CharSequence text, int colons, int width, String comment) {
+        out.append(text);
+        if (colons > 0) {
+            out.print(':');
+        }
+        for (int pad = width - text.length() - colons; pad > 0; pad -= SPACES.length) {
+            out.write(SPACES, 0, Math.min(pad, SPACES.length));
+        }
+        out.print(" # ");
+        out.println(comment);
     }
 
     /**
@@ -141,7 +371,7 @@ public class RiscVBackend {
      * comment, if non-null.
      */
     public void emitWordLiteral(Integer value, String comment) {
-        emitInsn(String.format(".word %s", value), comment);
+        add(new Instruction(Opcode.WORD, null, null, null, value, null, null, null, comment));
     }
 
     /**
@@ -152,7 +382,7 @@ public class RiscVBackend {
         if (addr == null) {
             emitWordLiteral(0, comment);
         } else {
-            emitInsn(String.format(".word %s", addr), comment);
+            add(new Instruction(Opcode.WORD, null, null, null, 0, null, addr, null, comment));
         }
     }
 
@@ -166,7 +396,7 @@ public class RiscVBackend {
                         .replace("\n", "\\n")
                         .replace("\t", "\\t")
                         .replace("\"", "\\\"");
-        emitInsn(String.format(".string \"%s\"", quoted), comment);
+        add(new Instruction(Opcode.STRING, null, null, null, 0, null, null, quoted, comment));
     }
 
     /** Mark the start of a data section. */
@@ -181,12 +411,12 @@ public class RiscVBackend {
 
     /** Align the next instruction/word in memory to a multiple of 2**POW bytes. */
     public void alignNext(int pow) {
-        emitInsn(String.format(".align %d", pow));
+        add(new Instruction(Opcode.ALIGN, null, null, null, pow, null, null, null, null));
     }
 
     /** Emit an ecall instruction, with one-line comment COMMENT, if non-null. */
     public void emitEcall(String comment) {
-        emitInsn("ecall", comment);
+        add(new Instruction(Opcode.ECALL, null, null, null, 0, null, null, null, comment));
     }
 
     /**
@@ -194,7 +424,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitLA(Register rd, Label label, String comment) {
-        emitInsn(String.format("la %s, %s", rd, label), comment);
+        add(new Instruction(Opcode.LA, rd, null, null, 0, null, label, null, comment));
     }
 
     /**
@@ -202,7 +432,7 @@ public class RiscVBackend {
      * (null if missing).
      */
     public void emitLI(Register rd, Integer imm, String comment) {
-        emitInsn(String.format("li %s, %d", rd, imm), comment);
+        add(new Instruction(Opcode.LI, rd, null, null, imm, null, null, null, comment));
     }
 
     /**
@@ -210,7 +440,7 @@ public class RiscVBackend {
      * < 2**20. COMMENT is an optional one-line comment (null if missing).
      */
     public void emitLUI(Register rd, Integer imm, String comment) {
-        emitInsn(String.format("lui %s, %d", rd, imm), comment);
+        add(new Instruction(Opcode.LUI, rd, null, null, imm, null, null, null, comment));
     }
 
     /**
@@ -218,7 +448,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitMV(Register rd, Register rs, String comment) {
-        emitInsn(String.format("mv %s, %s", rd, rs), comment);
+        add(new Instruction(Opcode.MV, rd, rs, null, 0, null, null, null, comment));
     }
 
     /**
@@ -226,7 +456,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitJR(Register rs, String comment) {
-        emitInsn(String.format("jr %s", rs), comment);
+        add(new Instruction(Opcode.JR, null, rs, null, 0, null, null, null, comment));
     }
 
     /**
@@ -234,7 +464,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitJ(Label label, String comment) {
-        emitInsn(String.format("j %s", label), comment);
+        add(new Instruction(Opcode.J, null, null, null, 0, null, label, null, comment));
     }
 
     /**
@@ -242,7 +472,7 @@ public class RiscVBackend {
      * missing).
      */
     public void emitJAL(Label label, String comment) {
-        emitInsn(String.format("jal %s", label), comment);
+        add(new Instruction(Opcode.JAL, null, null, null, 0, null, label, null, comment));
     }
 
     /**
@@ -250,7 +480,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitJALR(Register rs, String comment) {
-        emitInsn(String.format("jalr %s", rs), comment);
+        add(new Instruction(Opcode.JALR, null, rs, null, 0, null, null, null, comment));
     }
 
     /**
@@ -258,7 +488,7 @@ public class RiscVBackend {
      * COMMENT is an optional one-line comment (null if missing).
      */
     public void emitADDI(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("addi %s, %s, %d", rd, rs, imm), comment);
+        add(new Instruction(Opcode.ADDI, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -268,7 +498,7 @@ public class RiscVBackend {
      * if missing).
      */
     public void emitADDI(Register rd, Register rs, String imm, String comment) {
-        emitInsn(String.format("addi %s, %s, %s", rd, rs, imm), comment);
+        add(new Instruction(Opcode.ADDI, rd, rs, null, 0, imm, null, null, comment));
     }
 
     /**
@@ -276,7 +506,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitADD(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("add %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.ADD, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -284,7 +514,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitSUB(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("sub %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.SUB, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -292,7 +522,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitMUL(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("mul %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.MUL, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -301,7 +531,7 @@ public class RiscVBackend {
      * -2**31. COMMENT is an optional one-line comment (null if missing).
      */
     public void emitDIV(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("div %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.DIV, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -310,7 +540,7 @@ public class RiscVBackend {
      * missing).
      */
     public void emitREM(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("rem %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.REM, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -318,7 +548,7 @@ public class RiscVBackend {
      * missing).
      */
     public void emitXOR(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("xor %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.XOR, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -326,7 +556,7 @@ public class RiscVBackend {
      * optional one-line comment (null if missing).
      */
     public void emitXORI(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("xori %s, %s, %d", rd, rs, imm), comment);
+        add(new Instruction(Opcode.XORI, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -334,7 +564,7 @@ public class RiscVBackend {
      * if missing).
      */
     public void emitAND(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("and %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.AND, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -342,7 +572,7 @@ public class RiscVBackend {
      * is an optional one-line comment (null if missing).
      */
     public void emitANDI(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("andi %s, %s, %d", rd, rs, imm), comment);
+        add(new Instruction(Opcode.ANDI, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -350,7 +580,7 @@ public class RiscVBackend {
      * if missing).
      */
     public void emitOR(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("or %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.OR, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -358,7 +588,7 @@ public class RiscVBackend {
      * an optional one-line comment (null if missing).
      */
     public void emitORI(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("ori %s, %s, %d", rd, rs, imm), comment);
+        add(new Instruction(Opcode.ORI, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -366,7 +596,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitSLL(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("sll %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.SLL, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -374,7 +604,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitSLLI(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("slli %s, %s, %d", rd, rs, imm), comment);
+        add(new Instruction(Opcode.SLLI, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -382,7 +612,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitSRL(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("srl %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.SRL, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -390,7 +620,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitSRLI(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("srli %s, %s, %d", rd, rs, imm), comment);
+        add(new Instruction(Opcode.SRLI, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -398,7 +628,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitSRA(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("sra %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.SRA, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -406,7 +636,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitSRAI(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("srai %s, %s, %d", rd, rs, imm), comment);
+        add(new Instruction(Opcode.SRAI, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -414,7 +644,7 @@ public class RiscVBackend {
      * an optional one-line comment (null if missing).
      */
     public void emitLW(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("lw %s, %d(%s)", rd, imm, rs), comment);
+        add(new Instruction(Opcode.LW, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -423,7 +653,7 @@ public class RiscVBackend {
      * if missing).
      */
     public void emitLW(Register rd, Register rs, String imm, String comment) {
-        emitInsn(String.format("lw %s, %s(%s)", rd, imm, rs), comment);
+        add(new Instruction(Opcode.LW, rd, rs, null, 0, imm, null, null, comment));
     }
 
     /**
@@ -431,7 +661,7 @@ public class RiscVBackend {
      * is an optional one-line comment (null if missing).
      */
     public void emitSW(Register rs2, Register rs1, Integer imm, String comment) {
-        emitInsn(String.format("sw %s, %d(%s)", rs2, imm, rs1), comment);
+        add(new Instruction(Opcode.SW, null, rs1, rs2, imm, null, null, null, comment));
     }
 
     /**
@@ -440,7 +670,7 @@ public class RiscVBackend {
      * (null if missing).
      */
     public void emitSW(Register rs2, Register rs1, String imm, String comment) {
-        emitInsn(String.format("sw %s, %s(%s)", rs2, imm, rs1), comment);
+        add(new Instruction(Opcode.SW, null, rs1, rs2, 0, imm, null, null, comment));
     }
 
     /**
@@ -448,7 +678,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitLW(Register rd, Label label, String comment) {
-        emitInsn(String.format("lw %s, %s", rd, label), comment);
+        add(new Instruction(Opcode.LW_LABEL, rd, null, null, 0, null, label, null, comment));
     }
 
     /**
@@ -456,7 +686,7 @@ public class RiscVBackend {
      * register. COMMENT is an optional one-line comment (null if missing).
      */
     public void emitSW(Register rs, Label label, Register tmp, String comment) {
-        emitInsn(String.format("sw %s, %s, %s", rs, label, tmp), comment);
+        add(new Instruction(Opcode.SW_LABEL, null, tmp, rs, 0, null, label, null, comment));
     }
 
     /**
@@ -464,7 +694,7 @@ public class RiscVBackend {
      * extends the byte loaded. COMMENT is an optional one-line comment (null if missing).
      */
     public void emitLB(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("lb %s, %d(%s)", rd, imm, rs), comment);
+        add(new Instruction(Opcode.LB, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -472,7 +702,7 @@ public class RiscVBackend {
      * Zero-extends the byte loaded. COMMENT is an optional one-line comment (null if missing).
      */
     public void emitLBU(Register rd, Register rs, Integer imm, String comment) {
-        emitInsn(String.format("lbu %s, %d(%s)", rd, imm, rs), comment);
+        add(new Instruction(Opcode.LBU, rd, rs, null, imm, null, null, null, comment));
     }
 
     /**
@@ -481,7 +711,7 @@ public class RiscVBackend {
      * missing).
      */
     public void emitSB(Register rs2, Register rs1, Integer imm, String comment) {
-        emitInsn(String.format("sb %s, %d(%s)", rs2, imm, rs1), comment);
+        add(new Instruction(Opcode.SB, null, rs1, rs2, imm, null, null, null, comment));
     }
 
     /**
@@ -489,7 +719,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitBEQ(Register rs1, Register rs2, Label label, String comment) {
-        emitInsn(String.format("beq %s, %s, %s", rs1, rs2, label), comment);
+        add(new Instruction(Opcode.BEQ, null, rs1, rs2, 0, null, label, null, comment));
     }
 
     /**
@@ -497,7 +727,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitBNE(Register rs1, Register rs2, Label label, String comment) {
-        emitInsn(String.format("bne %s, %s, %s", rs1, rs2, label), comment);
+        add(new Instruction(Opcode.BNE, null, rs1, rs2, 0, null, label, null, comment));
     }
 
     /**
@@ -505,7 +735,7 @@ public class RiscVBackend {
      * an optional one-line comment (null if missing).
      */
     public void emitBGE(Register rs1, Register rs2, Label label, String comment) {
-        emitInsn(String.format("bge %s, %s, %s", rs1, rs2, label), comment);
+        add(new Instruction(Opcode.BGE, null, rs1, rs2, 0, null, label, null, comment));
     }
 
     /**
@@ -513,7 +743,7 @@ public class RiscVBackend {
      * is an optional one-line comment (null if missing).
      */
     public void emitBGEU(Register rs1, Register rs2, Label label, String comment) {
-        emitInsn(String.format("bgeu %s, %s, %s", rs1, rs2, label), comment);
+        add(new Instruction(Opcode.BGEU, null, rs1, rs2, 0, null, label, null, comment));
     }
 
     /**
@@ -521,7 +751,7 @@ public class RiscVBackend {
      * optional one-line comment (null if missing).
      */
     public void emitBLT(Register rs1, Register rs2, Label label, String comment) {
-        emitInsn(String.format("blt %s, %s, %s", rs1, rs2, label), comment);
+        add(new Instruction(Opcode.BLT, null, rs1, rs2, 0, null, label, null, comment));
     }
 
     /**
@@ -529,7 +759,7 @@ public class RiscVBackend {
      * optional one-line comment (null if missing).
      */
     public void emitBLTU(Register rs1, Register rs2, Label label, String comment) {
-        emitInsn(String.format("bltu %s, %s, %s", rs1, rs2, label), comment);
+        add(new Instruction(Opcode.BLTU, null, rs1, rs2, 0, null, label, null, comment));
     }
 
     /**
@@ -537,7 +767,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitBEQZ(Register rs, Label label, String comment) {
-        emitInsn(String.format("beqz %s, %s", rs, label), comment);
+        add(new Instruction(Opcode.BEQZ, null, rs, null, 0, null, label, null, comment));
     }
 
     /**
@@ -545,7 +775,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitBNEZ(Register rs, Label label, String comment) {
-        emitInsn(String.format("bnez %s, %s", rs, label), comment);
+        add(new Instruction(Opcode.BNEZ, null, rs, null, 0, null, label, null, comment));
     }
 
     /**
@@ -553,7 +783,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitBLTZ(Register rs, Label label, String comment) {
-        emitInsn(String.format("bltz %s, %s", rs, label), comment);
+        add(new Instruction(Opcode.BLTZ, null, rs, null, 0, null, label, null, comment));
     }
 
     /**
@@ -561,7 +791,7 @@ public class RiscVBackend {
      * one-line comment (null if missing).
      */
     public void emitBGTZ(Register rs, Label label, String comment) {
-        emitInsn(String.format("bgtz %s, %s", rs, label), comment);
+        add(new Instruction(Opcode.BGTZ, null, rs, null, 0, null, label, null, comment));
     }
 
     /**
@@ -569,7 +799,7 @@ public class RiscVBackend {
      * optional one-line comment (null if missing).
      */
     public void emitBLEZ(Register rs, Label label, String comment) {
-        emitInsn(String.format("blez %s, %s", rs, label), comment);
+        add(new Instruction(Opcode.BLEZ, null, rs, null, 0, null, label, null, comment));
     }
 
     /**
@@ -577,7 +807,7 @@ public class RiscVBackend {
      * optional one-line comment (null if missing).
      */
     public void emitBGEZ(Register rs, Label label, String comment) {
-        emitInsn(String.format("bgez %s, %s", rs, label), comment);
+        add(new Instruction(Opcode.BGEZ, null, rs, null, 0, null, label, null, comment));
     }
 
     /**
@@ -585,7 +815,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitSLT(Register rd, Register rs1, Register rs2, String comment) {
-        emitInsn(String.format("slt %s, %s, %s", rd, rs1, rs2), comment);
+        add(new Instruction(Opcode.SLT, rd, rs1, rs2, 0, null, null, null, comment));
     }
 
     /**
@@ -593,7 +823,7 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitSEQZ(Register rd, Register rs, String comment) {
-        emitInsn(String.format("seqz %s, %s", rd, rs), comment);
+        add(new Instruction(Opcode.SEQZ, rd, rs, null, 0, null, null, null, comment));
     }
 
     /**
@@ -601,6 +831,6 @@ public class RiscVBackend {
      * comment (null if missing).
      */
     public void emitSNEZ(Register rd, Register rs, String comment) {
-        emitInsn(String.format("snez %s, %s", rd, rs), comment);
+        add(new Instruction(Opcode.SNEZ, rd, rs, null, 0, null, null, null, comment));
     }
 }
@@ -0,0 +1,929 @@
+package chocopy.common.codegen;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Runs RV32IMC programs, such as the code emitted by {@link RiscVBackend}, in process.
+ *
+ * <p>The program is assembled by {@link Assembler}, and its machine code is decoded once, before
+ * it runs, into two int arrays indexed by halfword: one packing the operation, register numbers
+ * and instruction length, and one holding the immediate operand, with the targets of jumps and
+ * branches resolved to indices and `auipc` folded into a constant. A compressed instruction is
+ * decoded to the operation of the instruction it expands to, so the 16-bit RVC encodings the
+ * assembler chooses by default cost nothing at run time. Execution is then a single switch over
+ * the packed operations. Writes to the zero register go to a scratch register, so that it never
+ * needs resetting.
+ *
+ * <p>The environment is that of venus: the stack pointer starts at {@link #STACK_TOP}, the heap
+ * grows with `sbrk` from the end of the data section, rounded up to a multiple of 8, and ecalls
+ * select their service by A0: print_int (1), print_string (4), sbrk (9), exit (10), print_char
+ * (11), exit2 (17), which exits with the code in A1, fill_line_buffer (18), which reads a line of
+ * input and returns its length without the newline, or -1 at the end of input, and read_string
+ * (8), which copies up to A2 bytes of that line to A1 and returns their number.
+ *
+ * <p>The simulator counts the instructions retired, the loads and stores executed, and the
+ * conditional branches executed and taken.
+ */
+public final class Simulator {
+
+    /** The initial value of the stack pointer. */
+    public static final int STACK_TOP = 0x7ffffff0;
+
+    /** The size of the stack, in bytes. */
+    private static final int STACK_SIZE = 1 << 23;
+
+    /** The operations of decoded instructions. */
+    private static final int ADD = 0, SUB = 1, SLL = 2, SLT = 3, SLTU = 4, XOR = 5, SRL = 6,
+            SRA = 7, OR = 8, AND = 9, MUL = 10, MULH = 11, MULHSU = 12, MULHU = 13, DIV = 14,
+            DIVU = 15, REM = 16, REMU = 17;
+
+    /** The operations of decoded instructions with an immediate operand. */
+    private static final int ADDI = 20, SLTI = 21, SLTIU = 22, XORI = 23, ORI = 24, ANDI = 25,
+            SLLI = 26, SRLI = 27, SRAI = 28, CONST = 29;
+
+    /** The operations of decoded loads and stores. */
+    private static final int LB = 30, LH = 31, LW = 32, LBU = 33, LHU = 34, SB = 35, SH = 36,
+            SW = 37;
+
+    /** The operations of decoded jumps, branches and system calls. */
+    private static final int BEQ = 40, BNE = 41, BLT = 42, BGE = 43, BLTU = 44, BGEU = 45,
+            JAL = 46, JALR = 47, ECALL = 48;
+
+    /** The operation at the second halfword of a 32-bit instruction, which is not one. */
+    private static final int INSIDE = 49;
+
+    /** The register-register operations, by funct3, with funct7 zero. */
+    private static final int[] REG_OPS = {ADD, SLL, SLT, SLTU, XOR, SRL, OR, AND};
+
+    /** The register-immediate operations, by funct3, with funct7 zero. */
+    private static final int[] IMM_OPS = {ADDI, SLLI, SLTI, SLTIU, XORI, SRLI, ORI, ANDI};
+
+    /** The compressed register-register operations, by bits 6:5. */
+    private static final int[] COMPRESSED_REG_OPS = {SUB, XOR, OR, AND};
+
+    /** The register receiving the writes to the zero register. */
+    private static final int SCRATCH = 32;
+
+    /** The ecall services, by the number in A0. */
+    private static final int PRINT_INT = 1, PRINT_STRING = 4, READ_STRING = 8, SBRK = 9,
+            EXIT = 10, PRINT_CHAR = 11, EXIT2 = 17, FILL_LINE_BUFFER = 18;
+
+    /**
+     * The operation, registers and length in halfwords of the instruction at each halfword: OP |
+     * RD << 8 | RS1 << 14 | RS2 << 19 | LENGTH << 24.
+     */
+    private final int[] code;
+
+    /** The immediate operand of each instruction, or the index of its jump or branch target. */
+    private final int[] imms;
+
+    /** The address of the first halfword of code. */
+    private final int textBase;
+
+    /** The index of the first instruction to run. */
+    private final int entry;
+
+    /** The address of the data section. */
+    private final int dataBase;
+
+    /** The initial contents of the data section. */
+    private final byte[] initialData;
+
+    /** The registers, followed by the scratch register. */
+    private final int[] regs = new int[SCRATCH + 1];
+
+    /** The data section and the heap after it, up to the break. */
+    private byte[] data;
+
+    /** The address of the end of the heap. */
+    private int brk;
+
+    /** The stack, ending at STACK_TOP. */
+    private byte[] stack;
+
+    /** The line read by the last fill_line_buffer ecall. */
+    private byte[] line = new byte[0];
+
+    /** The counters of the last run. */
+    private long retired, loads, stores, branches, taken;
+
+    /** The maximum number of instructions to retire in a run. */
+    private long instructionLimit = Long.MAX_VALUE;
+
+    /**
+     * A simulator of the machine code of IMAGE, in which compressed instructions are only
+     * accepted if the image is marked compressed.
+     */
+    public Simulator(Assembler.Image image) {
+        textBase = Assembler.TEXT_BASE;
+        dataBase = image.dataBase;
+        initialData = image.data;
+        int count = image.text.length / 2;
+        code = new int[count];
+        imms = new int[count];
+        int i = 0;
+        while (i < count) {
+            int half = image.text[2 * i] & 0xff | (image.text[2 * i + 1] & 0xff) << 8;
+            if ((half & 3) == 3 && i + 1 < count) {
+                decode(i, readWord(image.text, 2 * i));
+                code[i + 1] = INSIDE | 1 << 24;
+                i += 2;
+            } else if (image.compressed && (half & 3) != 3) {
+                decodeCompressed(i, half);
+                i += 1;
+            } else {
+                throw illegal(i, half);
+            }
+        }
+        entry = (image.entry - textBase) / 2;
+    }
+
+    /** Returns a simulator of the program whose assembly code is ASM. */
+    public static Simulator load(String asm) {
+        Assembler assembler = new Assembler();
+        assembler.addText(asm);
+        return new Simulator(assembler.assemble());
+    }
+
+    /**
+     * Returns a simulator of ELF, an ELF32 executable for RISC-V as written by {@link
+     * Assembler.Image#toElf()}: an executable segment at {@link Assembler#TEXT_BASE} and a
+     * writable one.
+     */
+    public static Simulator loadElf(byte[] elf) {
+        ByteBuffer header = ByteBuffer.wrap(elf).order(ByteOrder.LITTLE_ENDIAN);
+        if (elf.length < 52 || header.getInt(0) != 0x464c457f || header.getShort(18) != 243) {
+            throw new IllegalArgumentException("Not an ELF32 executable for RISC-V");
+        }
+        byte[] text = null;
+        byte[] data = null;
+        int dataBase = 0;
+        for (int i = 0; i < header.getShort(44); i += 1) {
+            int segment = header.getInt(28) + i * header.getShort(42);
+            if (header.getInt(segment) != 1) {
+                continue;
+            }
+            int offset = header.getInt(segment + 4);
+            int address = header.getInt(segment + 8);
+            byte[] contents =
+                    Arrays.copyOfRange(elf, offset, offset + header.getInt(segment + 16));
+            if ((header.getInt(segment + 24) & 1) != 0 && address == Assembler.TEXT_BASE) {
+                text = contents;
+            } else {
+                dataBase = address;
+                data = contents;
+            }
+        }
+        if (text == null || data == null) {
+            throw new IllegalArgumentException("Expected a text and a data segment");
+        }
+        return new Simulator(
+                new Assembler.Image(
+                        text,
+                        dataBase,
+                        data,
+                        header.getInt(24),
+                        Collections.emptyMap(),
+                        (header.getInt(36) & Assembler.EF_RISCV_RVC) != 0,
+                        0,
+                        0));
+    }
+
+    /** Stop runs after LIMIT instructions, with an IllegalStateException. */
+    public void setInstructionLimit(long limit) {
+        this.instructionLimit = limit;
+    }
+
+    /** Returns the number of instructions retired by the last run. */
+    public long getRetired() {
+        return retired;
+    }
+
+    /** Returns the number of loads executed by the last run. */
+    public long getLoads() {
+        return loads;
+    }
+
+    /** Returns the number of stores executed by the last run. */
+    public long getStores() {
+        return stores;
+    }
+
+    /** Returns the number of conditional branches executed by the last run. */
+    public long getBranches() {
+        return branches;
+    }
+
+    /** Returns the number of conditional branches taken in the last run. */
+    public long getBranchesTaken() {
+        return taken;
+    }
+
+    /** Returns a one-line report of the counters of the last run. */
+    public String report() {
+        return String.format(
+                "retired %d, loads %d, stores %d, branches %d (%d taken)",
+                retired, loads, stores, branches, taken);
+    }
+
+    /** Decode WORD, the instruction at index I. */
+    private void decode(int i, int word) {
+        int rd = word >>> 7 & 31;
+        int funct3 = word >>> 12 & 7;
+        int rs1 = word >>> 15 & 31;
+        int rs2 = word >>> 20 & 31;
+        int funct7 = word >>> 25;
+        int immI = word >> 20;
+        int op;
+        int imm = 0;
+        switch (word & 0x7f) {
+            case 0x33:
+                if (funct7 == 1) {
+                    op = MUL + funct3;
+                } else if (funct7 == 0x20 && (funct3 == 0 || funct3 == 5)) {
+                    op = funct3 == 0 ? SUB : SRA;
+                } else if (funct7 == 0) {
+                    op = REG_OPS[funct3];
+                } else {
+                    throw illegal(i, word);
+                }
+                break;
+            case 0x13:
+                op = IMM_OPS[funct3];
+                imm = immI;
+                if (funct3 == 1 || funct3 == 5) {
+                    imm = rs2;
+                    if (funct3 == 5 && funct7 == 0x20) {
+                        op = SRAI;
+                    } else if (funct7 != 0) {
+                        throw illegal(i, word);
+                    }
+                }
+                break;
+            case 0x03:
+                if (funct3 == 3 || funct3 > 5) {
+                    throw illegal(i, word);
+                }
+                op = LB + (funct3 < 3 ? funct3 : funct3 - 1);
+                imm = immI;
+                break;
+            case 0x23:
+                if (funct3 > 2) {
+                    throw illegal(i, word);
+                }
+                op = SB + funct3;
+                imm = funct7 << 25 >> 20 | rd;
+                rd = 0;
+                break;
+            case 0x63:
+                if (funct3 == 2 || funct3 == 3) {
+                    throw illegal(i, word);
+                }
+                op = BEQ + (funct3 < 2 ? funct3 : funct3 - 2);
+                imm = target(
+                        i,
+                        word >> 31 << 12
+                                | (word >>> 7 & 1) << 11
+                                | (word >>> 25 & 0x3f) << 5
+                                | (word >>> 8 & 0xf) << 1);
+                rd = 0;
+                break;
+            case 0x6f:
+                op = JAL;
+                imm = target(
+                        i,
+                        word >> 31 << 20
+                                | (word >>> 12 & 0xff) << 12
+                                | (word >>> 20 & 1) << 11
+                                | (word >>> 21 & 0x3ff) << 1);
+                break;
+            case 0x67:
+                op = JALR;
+                imm = immI;
+                break;
+            case 0x37:
+                op = CONST;
+                imm = word & 0xfffff000;
+                break;
+            case 0x17:
+                op = CONST;
+                imm = textBase + 2 * i + (word & 0xfffff000);
+                break;
+            case 0x73:
+                if (word != 0x73) {
+                    throw illegal(i, word);
+                }
+                op = ECALL;
+                break;
+            default:
+                throw illegal(i, word);
+        }
+        put(i, 2, op, rd, rs1, rs2, imm);
+    }
+
+    /** Decode HALF, the compressed instruction at index I, as the instruction it expands to. */
+    private void decodeCompressed(int i, int half) {
+        int funct3 = half >>> 13;
+        int rd = half >>> 7 & 31;
+        int rs2 = half >>> 2 & 31;
+        int rdc = 8 + (half >>> 2 & 7);
+        int rs1c = 8 + (half >>> 7 & 7);
+        int imm6 = (half << 19 >> 26 & ~31) | (half >>> 2 & 31);
+        int memory = (half >>> 7 & 0x38) | (half >>> 4 & 4) | (half << 1 & 0x40);
+        switch ((half & 3) << 3 | funct3) {
+            case 0:
+                {
+                    // c.addi4spn
+                    int imm =
+                            (half >>> 7 & 0x30) | (half >>> 1 & 0x3c0) | (half >>> 4 & 4)
+                                    | (half >>> 2 & 8);
+                    if (imm == 0) {
+                        throw illegal(i, half);
+                    }
+                    put(i, 1, ADDI, rdc, 2, 0, imm);
+                    break;
+                }
+            case 2:
+                put(i, 1, LW, rdc, rs1c, 0, memory);
+                break;
+            case 6:
+                put(i, 1, SW, 0, rs1c, rdc, memory);
+                break;
+            case 8:
+                // c.addi and c.nop
+                put(i, 1, ADDI, rd, rd, 0, imm6);
+                break;
+            case 9:
+            case 13:
+                // c.jal and c.j
+                put(i, 1, JAL, funct3 == 1 ? 1 : 0, 0, 0, target(i, jumpOffset(half)));
+                break;
+            case 10:
+                put(i, 1, ADDI, rd, 0, 0, imm6);
+                break;
+            case 11:
+                if (rd == 2) {
+                    int imm =
+                            half << 19 >> 22 & ~0x1ff
+                                    | (half >>> 2 & 0x10)
+                                    | (half << 1 & 0x40)
+                                    | (half << 4 & 0x180)
+                                    | (half << 3 & 0x20);
+                    if (imm == 0) {
+                        throw illegal(i, half);
+                    }
+                    put(i, 1, ADDI, 2, 2, 0, imm);
+                } else if (imm6 != 0 && rd != 0) {
+                    put(i, 1, CONST, rd, 0, 0, imm6 << 12);
+                } else {
+                    throw illegal(i, half);
+                }
+                break;
+            case 12:
+                decodeCompressedArithmetic(i, half, rs1c, rdc, imm6);
+                break;
+            case 14:
+            case 15:
+                {
+                    int offset =
+                            half << 19 >> 23 & ~0xff
+                                    | (half >>> 7 & 0x18)
+                                    | (half << 1 & 0xc0)
+                                    | (half >>> 2 & 6)
+                                    | (half << 3 & 0x20);
+                    put(i, 1, funct3 == 6 ? BEQ : BNE, 0, rs1c, 0, target(i, offset));
+                    break;
+                }
+            case 16:
+                if ((half & 0x1000) != 0) {
+                    throw illegal(i, half);
+                }
+                put(i, 1, SLLI, rd, rd, 0, rs2);
+                break;
+            case 18:
+                {
+                    if (rd == 0) {
+                        throw illegal(i, half);
+                    }
+                    int offset = (half >>> 7 & 0x20) | (half >>> 2 & 0x1c) | (half << 4 & 0xc0);
+                    put(i, 1, LW, rd, 2, 0, offset);
+                    break;
+                }
+            case 20:
+                if ((half & 0x1000) == 0) {
+                    if (rd == 0) {
+                        throw illegal(i, half);
+                    }
+                    if (rs2 == 0) {
+                        // c.jr
+                        put(i, 1, JALR, 0, rd, 0, 0);
+                    } else {
+                        // c.mv
+                        put(i, 1, ADD, rd, 0, rs2, 0);
+                    }
+                } else if (rs2 == 0) {
+                    if (rd == 0) {
+                        throw illegal(i, half);
+                    }
+                    put(i, 1, JALR, 1, rd, 0, 0);
+                } else {
+                    put(i, 1, ADD, rd, rd, rs2, 0);
+                }
+                break;
+            case 22:
+                put(i, 1, SW, 0, 2, rs2, (half >>> 7 & 0x3c) | (half >>> 1 & 0xc0));
+                break;
+            default:
+                throw illegal(i, half);
+        }
+    }
+
+    /**
+     * Decode HALF, the compressed shift, logical or subtraction at index I on the register RD and
+     * operand RS2 or immediate IMM6.
+     */
+    private void decodeCompressedArithmetic(int i, int half, int rd, int rs2, int imm6) {
+        switch (half >>> 10 & 3) {
+            case 0:
+            case 1:
+                if ((half & 0x1000) != 0) {
+                    throw illegal(i, half);
+                }
+                put(i, 1, (half & 0x400) == 0 ? SRLI : SRAI, rd, rd, 0, imm6);
+                break;
+            case 2:
+                put(i, 1, ANDI, rd, rd, 0, imm6);
+                break;
+            default:
+                if ((half & 0x1000) != 0) {
+                    throw illegal(i, half);
+                }
+                put(i, 1, COMPRESSED_REG_OPS[half >>> 5 & 3], rd, rd, rs2, 0);
+                break;
+        }
+    }
+
+    /** Returns the offset of the compressed jump HALF. */
+    private static int jumpOffset(int half) {
+        return half << 19 >> 20 & ~0x7ff
+                | (half >>> 7 & 0x10)
+                | (half >>> 1 & 0x300)
+                | (half << 2 & 0x400)
+                | (half >>> 1 & 0x40)
+                | (half << 1 & 0x80)
+                | (half >>> 2 & 0xe)
+                | (half << 3 & 0x20);
+    }
+
+    /**
+     * Record the instruction at index I, LENGTH halfwords long, of operation OP on registers RD,
+     * RS1 and RS2 and immediate IMM.
+     */
+    private void put(int i, int length, int op, int rd, int rs1, int rs2, int imm) {
+        code[i] = op | (rd == 0 ? SCRATCH : rd) << 8 | rs1 << 14 | rs2 << 19 | length << 24;
+        imms[i] = imm;
+    }
+
+    /**
+     * Returns the index of the halfword at OFFSET bytes from that at index I, or -1 if it is
+     * outside the code.
+     */
+    private int target(int i, int offset) {
+        int index = i + offset / 2;
+        return index >= 0 && index < code.length ? index : -1;
+    }
+
+    /** Returns the exception for the illegal instruction WORD at index I. */
+    private IllegalArgumentException illegal(int i, int word) {
+        return new IllegalArgumentException(
+                String.format(
+                        "Illegal instruction %08x at %08x", word, textBase + 2 * i));
+    }
+
+    /**
+     * Run the program from the start, reading input from IN and writing output to OUT. Returns
+     * its exit code. Throws IllegalStateException if the program faults or exceeds the
+     * instruction limit.
+     */
+    public int run(InputStream in, Appendable out) throws IOException {
+        int[] code = this.code;
+        int[] imms = this.imms;
+        int[] regs = this.regs;
+        Arrays.fill(regs, 0);
+        regs[2] = STACK_TOP;
+        data = Arrays.copyOf(initialData, (initialData.length + 7) & -8);
+        brk = dataBase + data.length;
+        stack = new byte[STACK_SIZE];
+        line = new byte[0];
+        long retired = 0;
+        long loads = 0;
+        long stores = 0;
+        long branches = 0;
+        long taken = 0;
+        long limit = instructionLimit;
+        int pc = entry;
+        try {
+            while (true) {
+                if (pc < 0 || pc >= code.length) {
+                    throw new IllegalStateException(
+                            String.format("Jump outside the code to %08x", textBase + 2 * pc));
+                }
+                if (retired == limit) {
+                    throw new IllegalStateException("Instruction limit reached");
+                }
+                retired += 1;
+                int insn = code[pc];
+                int imm = imms[pc];
+                int rd = insn >>> 8 & 63;
+                int a = regs[insn >>> 14 & 31];
+                int b = regs[insn >>> 19 & 31];
+                pc += insn >>> 24;
+                switch (insn & 0xff) {
+                    case ADD:
+                        regs[rd] = a + b;
+                        break;
+                    case SUB:
+                        regs[rd] = a - b;
+                        break;
+                    case SLL:
+                        regs[rd] = a << b;
+                        break;
+                    case SLT:
+                        regs[rd] = a < b ? 1 : 0;
+                        break;
+                    case SLTU:
+                        regs[rd] = Integer.compareUnsigned(a, b) < 0 ? 1 : 0;
+                        break;
+                    case XOR:
+                        regs[rd] = a ^ b;
+                        break;
+                    case SRL:
+                        regs[rd] = a >>> b;
+                        break;
+                    case SRA:
+                        regs[rd] = a >> b;
+                        break;
+                    case OR:
+                        regs[rd] = a | b;
+                        break;
+                    case AND:
+                        regs[rd] = a & b;
+                        break;
+                    case MUL:
+                        regs[rd] = a * b;
+                        break;
+                    case MULH:
+                        regs[rd] = (int) ((long) a * b >> 32);
+                        break;
+                    case MULHSU:
+                        regs[rd] = (int) ((long) a * Integer.toUnsignedLong(b) >> 32);
+                        break;
+                    case MULHU:
+                        regs[rd] =
+                                (int) (Integer.toUnsignedLong(a) * Integer.toUnsignedLong(b)
+                                        >>> 32);
+                        break;
+                    case DIV:
+                        regs[rd] = b == 0 ? -1 : a / b;
+                        break;
+                    case DIVU:
+                        regs[rd] = b == 0 ? -1 : Integer.divideUnsigned(a, b);
+                        break;
+                    case REM:
+                        regs[rd] = b == 0 ? a : a % b;
+                        break;
+                    case REMU:
+                        regs[rd] = b == 0 ? a : Integer.remainderUnsigned(a, b);
+                        break;
+                    case ADDI:
+                        regs[rd] = a + imm;
+                        break;
+                    case SLTI:
+                        regs[rd] = a < imm ? 1 : 0;
+                        break;
+                    case SLTIU:
+                        regs[rd] = Integer.compareUnsigned(a, imm) < 0 ? 1 : 0;
+                        break;
+                    case XORI:
+                        regs[rd] = a ^ imm;
+                        break;
+                    case ORI:
+                        regs[rd] = a | imm;
+                        break;
+                    case ANDI:
+                        regs[rd] = a & imm;
+                        break;
+                    case SLLI:
+                        regs[rd] = a << imm;
+                        break;
+                    case SRLI:
+                        regs[rd] = a >>> imm;
+                        break;
+                    case SRAI:
+                        regs[rd] = a >> imm;
+                        break;
+                    case CONST:
+                        regs[rd] = imm;
+                        break;
+                    case LB:
+                        loads += 1;
+                        regs[rd] = loadByte(a + imm);
+                        break;
+                    case LH:
+                        loads += 1;
+                        regs[rd] = (short) (loadByte(a + imm) & 0xff | loadByte(a + imm + 1) << 8);
+                        break;
+                    case LW:
+                        loads += 1;
+                        regs[rd] = loadWord(a + imm);
+                        break;
+                    case LBU:
+                        loads += 1;
+                        regs[rd] = loadByte(a + imm) & 0xff;
+                        break;
+                    case LHU:
+                        loads += 1;
+                        regs[rd] = loadByte(a + imm) & 0xff | (loadByte(a + imm + 1) & 0xff) << 8;
+                        break;
+                    case SB:
+                        stores += 1;
+                        storeByte(a + imm, b);
+                        break;
+                    case SH:
+                        stores += 1;
+                        storeByte(a + imm, b);
+                        storeByte(a + imm + 1, b >> 8);
+                        break;
+                    case SW:
+                        stores += 1;
+                        storeWord(a + imm, b);
+                        break;
+                    case BEQ:
+                        branches += 1;
+                        if (a == b) {
+                            taken += 1;
+                            pc = imm;
+                        }
+                        break;
+                    case BNE:
+                        branches += 1;
+                        if (a != b) {
+                            taken += 1;
+                            pc = imm;
+                        }
+                        break;
+                    case BLT:
+                        branches += 1;
+                        if (a < b) {
+                            taken += 1;
+                            pc = imm;
+                        }
+                        break;
+                    case BGE:
+                        branches += 1;
+                        if (a >= b) {
+                            taken += 1;
+                            pc = imm;
+                        }
+                        break;
+                    case BLTU:
+                        branches += 1;
+                        if (Integer.compareUnsigned(a, b) < 0) {
+                            taken += 1;
+                            pc = imm;
+                        }
+                        break;
+                    case BGEU:
+                        branches += 1;
+                        if (Integer.compareUnsigned(a, b) >= 0) {
+                            taken += 1;
+                            pc = imm;
+                        }
+                        break;
+                    case JAL:
+                        regs[rd] = textBase + 2 * pc;
+                        pc = imm;
+                        break;
+                    case JALR:
+                        {
+                            int address = (a + imm) & ~1;
+                            regs[rd] = textBase + 2 * pc;
+                            pc = (address - textBase) / 2;
+                            break;
+                        }
+                    case ECALL:
+                        switch (regs[10]) {
+                            case EXIT:
+                                return 0;
+                            case EXIT2:
+                                out.append("Exited with error code ");
+                                out.append(Integer.toString(regs[11])).append('\n');
+                                return regs[11];
+                            default:
+                                ecall(in, out);
+                                break;
+                        }
+                        break;
+                    case INSIDE:
+                        throw new IllegalStateException(
+                                String.format(
+                                        "Jump into an instruction at %08x",
+                                        textBase + 2 * (pc - 1)));
+                    default:
+                        throw new IllegalStateException("Unknown operation " + (insn & 0xff));
+                }
+            }
+        } finally {
+            this.retired = retired;
+            this.loads = loads;
+            this.stores = stores;
+            this.branches = branches;
+            this.taken = taken;
+        }
+    }
+
+    /** Perform the ecall selected by A0, other than the exits, on IN and OUT. */
+    private void ecall(InputStream in, Appendable out) throws IOException {
+        int arg = regs[11];
+        switch (regs[10]) {
+            case PRINT_INT:
+                out.append(Integer.toString(arg));
+                break;
+            case PRINT_CHAR:
+                out.append((char) (arg & 0xff));
+                break;
+            case PRINT_STRING:
+                for (int address = arg; ; address += 1) {
+                    int c = loadByte(address) & 0xff;
+                    if (c == 0) {
+                        break;
+                    }
+                    out.append((char) c);
+                }
+                break;
+            case SBRK:
+                {
+                    int old = brk;
+                    int size = brk - dataBase + arg;
+                    if (arg < 0 || size < 0 || dataBase + size > STACK_TOP - STACK_SIZE) {
+                        throw new IllegalStateException("Out of memory: sbrk " + arg);
+                    }
+                    if (size > data.length) {
+                        data = Arrays.copyOf(data, Math.max(size, 2 * data.length));
+                    }
+                    brk += arg;
+                    regs[10] = old;
+                    break;
+                }
+            case FILL_LINE_BUFFER:
+                {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    int c = in.read();
+                    if (c < 0) {
+                        line = new byte[0];
+                        regs[10] = -1;
+                        break;
+                    }
+                    while (c >= 0 && c != '\n') {
+                        bytes.write(c);
+                        c = in.read();
+                    }
+                    line = bytes.toByteArray();
+                    regs[10] = line.length;
+                    break;
+                }
+            case READ_STRING:
+                {
+                    int count = Math.max(0, Math.min(regs[12], line.length));
+                    for (int i = 0; i < count; i += 1) {
+                        storeByte(arg + i, line[i]);
+                    }
+                    regs[10] = count;
+                    break;
+                }
+            default:
+                throw new IllegalStateException("Unknown ecall " + regs[10]);
+        }
+    }
+
+    /** Returns the byte at ADDRESS, sign-extended. */
+    private int loadByte(int address) {
+        long offset = Integer.toUnsignedLong(address) - dataBase;
+        if (offset >= 0 && offset < brk - dataBase) {
+            return data[(int) offset];
+        }
+        offset = Integer.toUnsignedLong(address) - (STACK_TOP - STACK_SIZE);
+        if (offset >= 0 && offset < STACK_SIZE) {
+            return stack[(int) offset];
+        }
+        throw fault("load from", address);
+    }
+
+    /** Returns the word at ADDRESS. */
+    private int loadWord(int address) {
+        long offset = Integer.toUnsignedLong(address) - dataBase;
+        if (offset >= 0 && offset <= brk - dataBase - 4) {
+            return readWord(data, (int) offset);
+        }
+        offset = Integer.toUnsignedLong(address) - (STACK_TOP - STACK_SIZE);
+        if (offset >= 0 && offset <= STACK_SIZE - 4) {
+            return readWord(stack, (int) offset);
+        }
+        throw fault("load from", address);
+    }
+
+    /** Store the low byte of VALUE at ADDRESS. */
+    private void storeByte(int address, int value) {
+        long offset = Integer.toUnsignedLong(address) - dataBase;
+        if (offset >= 0 && offset < brk - dataBase) {
+            data[(int) offset] = (byte) value;
+            return;
+        }
+        offset = Integer.toUnsignedLong(address) - (STACK_TOP - STACK_SIZE);
+        if (offset >= 0 && offset < STACK_SIZE) {
+            stack[(int) offset] = (byte) value;
+            return;
+        }
+        throw fault("store to", address);
+    }
+
+    /** Store the word VALUE at ADDRESS. */
+    private void storeWord(int address, int value) {
+        long offset = Integer.toUnsignedLong(address) - dataBase;
+        if (offset >= 0 && offset <= brk - dataBase - 4) {
+            writeWord(data, (int) offset, value);
+            return;
+        }
+        offset = Integer.toUnsignedLong(address) - (STACK_TOP - STACK_SIZE);
+        if (offset >= 0 && offset <= STACK_SIZE - 4) {
+            writeWord(stack, (int) offset, value);
+            return;
+        }
+        throw fault("store to", address);
+    }
+
+    /** Returns the exception for an ACCESS of the unmapped ADDRESS. */
+    private static IllegalStateException fault(String access, int address) {
+        return new IllegalStateException(
+                String.format("Bad %s address %08x", access, address));
+    }
+
+    /** Returns the little-endian word at OFFSET in BYTES. */
+    private static int readWord(byte[] bytes, int offset) {
+        return bytes[offset] & 0xff
+                | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16
+                | bytes[offset + 3] << 24;
+    }
+
+    /** Write VALUE as a little-endian word at OFFSET in BYTES. */
+    private static void writeWord(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Run the program in the file ARGS[0], an ELF executable or assembly code, with input from
+     * the file ARGS[1], if given, or else from stdin. The output goes to stdout and the counters
+     * to stderr, and the exit code is that of the program.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("Usage: Simulator PROGRAM [INPUT]");
+            System.exit(1);
+        }
+        byte[] program = Files.readAllBytes(Paths.get(args[0]));
+        Simulator simulator =
+                program.length >= 4 && program[0] == 0x7f && program[1] == 'E'
+                        ? loadElf(program)
+                        : load(new String(program, StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(System.out, false, "ISO-8859-1");
+        int exitCode;
+        try (InputStream in =
+                new BufferedInputStream(
+                        args.length == 2 ? new FileInputStream(args[1]) : System.in)) {
+            exitCode = simulator.run(in, out);
+        } catch (IllegalStateException e) {
+            out.flush();
+            System.err.println("Error: " + e.getMessage());
+            exitCode = 1;
+        }
+        out.flush();
+        System.err.println(simulator.report());
+        System.exit(exitCode);
+    }
+}
@@ -9,6 +9,9 @@ public class StackVarInfo extends VarInfo {
     /** Information about the enclosing function. */
     protected final FuncInfo funcInfo;
 
+    /** My index in the activation record, as for FuncInfo.getVarIndex. -1 until resolved. */
+    protected int varIndex = -1;
+
     /**
      * A descriptor for a local variable or parameter VARNAME of type VARTYPE, whose initial value
      * is given by INITIALVALUE (null if no initial value), and which is nested immediately within
@@ -24,4 +27,17 @@ public class StackVarInfo extends VarInfo {
     public FuncInfo getFuncInfo() {
         return funcInfo;
     }
+
+    /**
+     * Returns my index in the activation record of my function, as given by {@link
+     * FuncInfo#getVarIndex}. Only valid once names have been resolved.
+     */
+    public int getVarIndex() {
+        return varIndex;
+    }
+
+    /** Set getVarIndex() to INDEX. */
+    public void setVarIndex(int index) {
+        varIndex = index;
+    }
 }
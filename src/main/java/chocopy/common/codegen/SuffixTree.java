@@ -0,0 +1,202 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The suffix tree of a string of integers, built with Ukkonen's algorithm, for finding the
+ * substrings that occur repeatedly.
+ *
+ * <p>The last integer of the string must occur nowhere else in it, so that every suffix ends at a
+ * leaf. Each internal node then stands for a substring (the path from the root to it) that occurs
+ * at the start positions of the suffixes of all the leaves below it.
+ */
+final class SuffixTree {
+
+    /** A node of the tree, with the edge leading to it. */
+    private static final class Node {
+
+        /** The start of the label of the edge leading to me, in the string. */
+        int start;
+
+        /** The end (exclusive) of the label of the edge leading to me, or LEAF for leaves. */
+        final int end;
+
+        /** The node for my path without its first integer, if I am an internal node. */
+        Node link;
+
+        /** My children, by the first integer of the edge to them. */
+        final Map<Integer, Node> children = new HashMap<>();
+
+        /** The length of my path from the root. */
+        int depth;
+
+        /** The range of leaves below me in LEAVES: [FIRSTLEAF, LASTLEAF). */
+        int firstLeaf, lastLeaf;
+
+        /** A node whose edge label starts at START and ends at END. */
+        Node(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /** A repeated substring: its length and the start positions of its occurrences. */
+    static final class Repeat {
+
+        /** The length of the substring. */
+        final int length;
+
+        /** The start positions of the occurrences, in no particular order. */
+        final int[] starts;
+
+        /** A substring of length LENGTH occurring at STARTS. */
+        Repeat(int length, int[] starts) {
+            this.length = length;
+            this.starts = starts;
+        }
+    }
+
+    /** Marks the end of the edge leading to a leaf, which is always the end of the string. */
+    private static final int LEAF = -1;
+
+    /** The string. */
+    private final int[] str;
+
+    /** The root. */
+    private final Node root = new Node(-1, 0);
+
+    /** The internal nodes other than the root. */
+    private final List<Node> internal = new ArrayList<>();
+
+    /** The start positions of the suffixes of the leaves, in depth-first order. */
+    private final int[] leaves;
+
+    /** The suffix tree of STR, whose last integer occurs nowhere else in it. */
+    SuffixTree(int[] str) {
+        this.str = str;
+        this.leaves = new int[str.length];
+        build();
+        index();
+    }
+
+    /**
+     * Returns the substrings of length at least MINLENGTH that occur at least twice, each with
+     * all of its occurrences, which may overlap. Only the longest of the substrings occurring at
+     * the same positions is returned.
+     */
+    List<Repeat> repeats(int minLength) {
+        List<Repeat> result = new ArrayList<>();
+        for (Node node : internal) {
+            if (node.depth >= minLength && node.lastLeaf - node.firstLeaf >= 2) {
+                int[] starts = new int[node.lastLeaf - node.firstLeaf];
+                System.arraycopy(leaves, node.firstLeaf, starts, 0, starts.length);
+                result.add(new Repeat(node.depth, starts));
+            }
+        }
+        return result;
+    }
+
+    /** Returns the end (exclusive) of the label of the edge leading to NODE. */
+    private int edgeEnd(Node node) {
+        return node.end == LEAF ? str.length : node.end;
+    }
+
+    /** Build the tree by Ukkonen's algorithm. */
+    private void build() {
+        Node activeNode = root;
+        int activeEdge = 0;
+        int activeLength = 0;
+        int remaining = 0;
+        for (int i = 0; i < str.length; i += 1) {
+            remaining += 1;
+            Node lastInternal = null;
+            while (remaining > 0) {
+                if (activeLength == 0) {
+                    activeEdge = i;
+                }
+                Node next = activeNode.children.get(str[activeEdge]);
+                if (next == null) {
+                    activeNode.children.put(str[activeEdge], new Node(i, LEAF));
+                    if (lastInternal != null) {
+                        lastInternal.link = activeNode;
+                        lastInternal = null;
+                    }
+                } else {
+                    int edgeLength = Math.min(edgeEnd(next), i + 1) - next.start;
+                    if (activeLength >= edgeLength) {
+                        activeEdge += edgeLength;
+                        activeLength -= edgeLength;
+                        activeNode = next;
+                        continue;
+                    }
+                    if (str[next.start + activeLength] == str[i]) {
+                        if (lastInternal != null && activeNode != root) {
+                            lastInternal.link = activeNode;
+                        }
+                        activeLength += 1;
+                        break;
+                    }
+                    Node split = new Node(next.start, next.start + activeLength);
+                    split.link = root;
+                    internal.add(split);
+                    activeNode.children.put(str[activeEdge], split);
+                    split.children.put(str[i], new Node(i, LEAF));
+                    next.start += activeLength;
+                    split.children.put(str[next.start], next);
+                    if (lastInternal != null) {
+                        lastInternal.link = split;
+                    }
+                    lastInternal = split;
+                }
+                remaining -= 1;
+                if (activeNode == root && activeLength > 0) {
+                    activeLength -= 1;
+                    activeEdge = i - remaining + 1;
+                } else if (activeNode != root) {
+                    activeNode = activeNode.link != null ? activeNode.link : root;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the depth and the range of leaves of every node, without recursion, since the tree
+     * may be as deep as the string is long.
+     */
+    private void index() {
+        List<Node> stack = new ArrayList<>();
+        List<Node> order = new ArrayList<>();
+        root.depth = 0;
+        stack.add(root);
+        int leafCount = 0;
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            order.add(node);
+            if (node.children.isEmpty()) {
+                node.firstLeaf = leafCount;
+                leaves[leafCount] = str.length - node.depth;
+                leafCount += 1;
+                node.lastLeaf = leafCount;
+                continue;
+            }
+            node.firstLeaf = leafCount;
+            for (Node child : node.children.values()) {
+                child.depth = node.depth + edgeEnd(child) - child.start;
+                stack.add(child);
+            }
+        }
+        for (int i = order.size() - 1; i >= 0; i -= 1) {
+            Node node = order.get(i);
+            if (!node.children.isEmpty()) {
+                int last = node.firstLeaf;
+                for (Node child : node.children.values()) {
+                    last = Math.max(last, child.lastLeaf);
+                }
+                node.lastLeaf = last;
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package chocopy.pa3;
+
+import chocopy.common.astnodes.Node;
+import chocopy.common.astnodes.Program;
+import chocopy.common.codegen.Assembler;
+import chocopy.common.codegen.CompileMetrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compiles many typed ASTs at once, such as all of those in src/test/data/pa3/sample.
+ *
+ * <p>The inputs are the *.ast.typed files of a directory, or the files listed in a manifest, one
+ * path per line, relative to the directory of the manifest. The code for INPUT is written to
+ * INPUT.s, next to it or in an output directory, or assembled and written to INPUT.elf as an
+ * ELF32 executable.
+ *
+ * <p>Each file passes through four stages: reading, JSON binding, code generation and writing
+ * out. The stages of one file run in order, but those of different files overlap on a
+ * work-stealing pool, so that one file is read while another is compiled. Only a bounded number
+ * of files are in flight at a time: the inputs are submitted one by one and submission blocks
+ * until an earlier file has been written out, so memory use does not grow with the size of the
+ * batch.
+ *
+ * <p>When the batch is done, the number of files per second, the time spent in each stage and in
+ * each phase of code generation, and the slowest inputs are reported on stderr, along with the
+ * size of the machine code if assembled.
+ */
+public class BatchCompiler {
+
+    /** The stages each input goes through, in order. */
+    private static final String[] STAGES = {"read", "bind", "generate", "write"};
+
+    /** The pool running the stages. */
+    private final ForkJoinPool pool;
+
+    /** Limits the number of files in flight. */
+    private final Semaphore inFlight;
+
+    /** The directory receiving output files, or null to write them next to the inputs. */
+    private final Path outputDir;
+
+    /** True iff ELF executables are written rather than assembly code. */
+    private final boolean elf;
+
+    /**
+     * A compiler running on THREADS threads with at most MAXINFLIGHT files in flight, writing
+     * assembly code to OUTPUTDIR, or next to the inputs if it is null.
+     */
+    public BatchCompiler(int threads, int maxInFlight, Path outputDir) {
+        this(threads, maxInFlight, outputDir, false);
+    }
+
+    /**
+     * A compiler running on THREADS threads with at most MAXINFLIGHT files in flight, writing
+     * to OUTPUTDIR, or next to the inputs if it is null. It writes ELF executables iff ELF, and
+     * assembly code otherwise.
+     */
+    public BatchCompiler(int threads, int maxInFlight, Path outputDir, boolean elf) {
+        this.pool = new ForkJoinPool(threads);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.outputDir = outputDir;
+        this.elf = elf;
+    }
+
+    /** The outcome of compiling one input. */
+    public static class Result {
+        /** The input file. */
+        public final Path input;
+        /** The time spent in each of the STAGES, in nanoseconds. */
+        public final long[] stageNanos = new long[STAGES.length];
+        /** The error that stopped compilation, or null if the input was compiled. */
+        public Throwable error;
+        /** The size of the machine code, in bytes, if assembled. */
+        public int textBytes;
+        /** The number of machine instructions, and of those compressed, if assembled. */
+        public int instructions, compressed;
+        /** The timers and counters of the code generator for the input. */
+        public final CompileMetrics metrics = new CompileMetrics();
+
+        /** The outcome of compiling INPUT. */
+        Result(Path input) {
+            this.input = input;
+        }
+
+        /** Returns the total time spent on the input, in nanoseconds. */
+        public long totalNanos() {
+            long total = 0;
+            for (long nanos : stageNanos) {
+                total += nanos;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Compile all of INPUTS, returning their results in the same order. Blocks until all
+     * outputs have been written.
+     */
+    public List<Result> compile(List<Path> inputs) throws InterruptedException {
+        List<CompletableFuture<Result>> futures = new ArrayList<>(inputs.size());
+        for (Path input : inputs) {
+            inFlight.acquire();
+            Result result = new Result(input);
+            CompletableFuture<Result> future =
+                    CompletableFuture.supplyAsync(() -> read(result), pool)
+                            .thenApplyAsync(json -> bind(result, json), pool)
+                            .thenApplyAsync(program -> generate(result, program), pool)
+                            .thenApplyAsync(code -> write(result, code), pool)
+                            .handle(
+                                    (r, e) -> {
+                                        inFlight.release();
+                                        if (e != null) {
+                                            result.error = e.getCause() != null ? e.getCause() : e;
+                                        }
+                                        return result;
+                                    });
+            futures.add(future);
+        }
+        List<Result> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<Result> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /** Stop the threads of this compiler. */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /** Returns the text of the input of RESULT. */
+    private String read(Result result) {
+        long start = System.nanoTime();
+        try {
+            return new String(Files.readAllBytes(result.input), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + result.input + ": " + e, e);
+        } finally {
+            result.stageNanos[0] = System.nanoTime() - start;
+        }
+    }
+
+    /** Returns the program whose typed AST is JSON, the input of RESULT. */
+    private Program bind(Result result, String json) {
+        long start = System.nanoTime();
+        try {
+            return Node.fromJSON(json, Program.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not bind " + result.input + ": " + e, e);
+        } finally {
+            result.stageNanos[1] = System.nanoTime() - start;
+        }
+    }
+
+    /** Returns the assembly code or ELF executable of PROGRAM, the input of RESULT. */
+    private byte[] generate(Result result, Program program) {
+        long start = System.nanoTime();
+        try {
+            byte[] code;
+            if (elf) {
+                Assembler.Image image = StudentCodeGen.assemble(program, false, result.metrics);
+                code = image == null ? null : image.toElf();
+                if (image != null) {
+                    result.textBytes = image.text.length;
+                    result.instructions = image.instructionCount;
+                    result.compressed = image.compressedCount;
+                }
+            } else {
+                String asm = StudentCodeGen.process(program, false, null, result.metrics);
+                code = asm == null ? null : asm.getBytes(StandardCharsets.UTF_8);
+            }
+            if (code == null) {
+                throw new IllegalStateException("Code generation failed for " + result.input);
+            }
+            return code;
+        } finally {
+            result.stageNanos[2] = System.nanoTime() - start;
+        }
+    }
+
+    /** Write CODE, the code of the input of RESULT, out. Returns RESULT. */
+    private Result write(Result result, byte[] code) {
+        long start = System.nanoTime();
+        Path input = result.input;
+        String name = input.getFileName() + (elf ? ".elf" : ".s");
+        Path output = outputDir == null ? input.resolveSibling(name) : outputDir.resolve(name);
+        try {
+            Files.write(output, code);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write " + output + ": " + e, e);
+        } finally {
+            result.stageNanos[3] = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the inputs named by PATH: the *.ast.typed files of PATH, sorted by name, if it is
+     * a directory, and otherwise the files listed in the manifest PATH.
+     */
+    public static List<Path> inputs(Path path) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*.ast.typed")) {
+                files.forEach(inputs::add);
+            }
+            Collections.sort(inputs);
+        } else {
+            Path dir = path.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    inputs.add(dir.resolve(line));
+                }
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Returns a report of RESULTS, which took ELAPSEDNANOS of wall-clock time, listing the
+     * SLOWEST inputs that took longest.
+     */
+    public static String report(List<Result> results, long elapsedNanos, int slowest) {
+        StringBuilder report = new StringBuilder();
+        long[] stageTotals = new long[STAGES.length];
+        int failed = 0;
+        for (Result result : results) {
+            for (int i = 0; i < STAGES.length; i += 1) {
+                stageTotals[i] += result.stageNanos[i];
+            }
+            if (result.error != null) {
+                failed += 1;
+            }
+        }
+        double seconds = elapsedNanos / 1e9;
+        report.append(
+                String.format(
+                        "Compiled %d files (%d failed) in %.3f s: %.1f files/s%n",
+                        results.size(), failed, seconds, results.size() / seconds));
+        for (int i = 0; i < STAGES.length; i += 1) {
+            report.append(String.format("  %-8s %10.3f ms%n", STAGES[i], stageTotals[i] / 1e6));
+        }
+        report.append("Code generation phases:\n");
+        for (CompileMetrics.Phase phase : CompileMetrics.Phase.values()) {
+            long nanos = 0;
+            for (Result result : results) {
+                nanos += result.metrics.getNanos(phase);
+            }
+            if (nanos != 0) {
+                report.append(String.format("  %-16s %10.3f ms%n", phase.name, nanos / 1e6));
+            }
+        }
+        long textBytes = 0;
+        long instructions = 0;
+        long compressed = 0;
+        for (Result result : results) {
+            textBytes += result.textBytes;
+            instructions += result.instructions;
+            compressed += result.compressed;
+        }
+        if (textBytes != 0) {
+            report.append(
+                    String.format(
+                            "Machine code: %d bytes, %d instructions, %d compressed "
+                                    + "(saving %d bytes, %.1f%%)%n",
+                            textBytes,
+                            instructions,
+                            compressed,
+                            2 * compressed,
+                            200.0 * compressed / (textBytes + 2 * compressed)));
+        }
+        List<Result> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingLong(Result::totalNanos).reversed());
+        report.append("Slowest inputs:\n");
+        for (Result result : sorted.subList(0, Math.min(slowest, sorted.size()))) {
+            report.append(
+                    String.format(
+                            "  %10.3f ms  %s%n", result.totalNanos() / 1e6, result.input));
+        }
+        for (Result result : results) {
+            if (result.error != null) {
+                report.append(String.format("FAILED %s: %s%n", result.input, result.error));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Compile the inputs named by the arguments, each a directory or a manifest. Options:
+     * --threads N (default: the number of processors), --in-flight N (default: four per thread),
+     * --out DIR (default: next to the inputs), --slowest N (default 10), --elf, which writes ELF
+     * executables instead of assembly code, and --runtime FILE, which writes the runtime module
+     * that programs compiled with a separate runtime are linked with to FILE.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxInFlight = -1;
+        int slowest = 10;
+        Path outputDir = null;
+        boolean elf = false;
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i += 1) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--in-flight":
+                    maxInFlight = Integer.parseInt(args[++i]);
+                    break;
+                case "--out":
+                    outputDir = Paths.get(args[++i]);
+                    Files.createDirectories(outputDir);
+                    break;
+                case "--slowest":
+                    slowest = Integer.parseInt(args[++i]);
+                    break;
+                case "--elf":
+                    elf = true;
+                    break;
+                case "--runtime":
+                    Files.write(
+                            Paths.get(args[++i]),
+                            StudentCodeGen.getRuntime().getBytes(StandardCharsets.UTF_8));
+                    break;
+                default:
+                    inputs.addAll(inputs(Paths.get(args[i])));
+                    break;
+            }
+        }
+        if (maxInFlight <= 0) {
+            maxInFlight = 4 * threads;
+        }
+
+        BatchCompiler compiler = new BatchCompiler(threads, maxInFlight, outputDir, elf);
+        long start = System.nanoTime();
+        List<Result> results;
+        try {
+            results = compiler.compile(inputs);
+        } finally {
+            compiler.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.err.print(report(results, elapsed, slowest));
+        for (Result result : results) {
+            if (result.error != null) {
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -29,10 +29,24 @@ import static chocopy.common.codegen.RiscVBackend.Register.*;
 public class CodeGenImpl extends CodeGenBase {
 
 	/**
-	 * A code generator emitting instructions to BACKEND.
+	 * A code generator emitting instructions to BACKEND. It leaves out the
+	 * code and the methods the program never uses.
 	 */
 	public CodeGenImpl(RiscVBackend backend) {
 		super(backend);
+		setRemoveUnusedCode(true);
+		setPruneMethods(true);
+	}
+
+	/**
+	 * A code generator emitting instructions to BACKEND, starting from the
+	 * predefined classes and functions of PRELUDE. It leaves out the code and
+	 * the methods the program never uses.
+	 */
+	public CodeGenImpl(RiscVBackend backend, Prelude prelude) {
+		super(backend, prelude);
+		setRemoveUnusedCode(true);
+		setPruneMethods(true);
 	}
 
 	/**
@@ -69,7 +83,11 @@ public class CodeGenImpl extends CodeGenBase {
 
 	private final String SYM_NAME_OFFSET_STR = "@.__str__";
 
-	private boolean emitListConcatFlag = false;
+	/**
+	 * Registers in which int and bool expression trees are evaluated, in order of
+	 * use. An expression tree with register need N uses the first N of them.
+	 */
+	private static final Register[] EXPR_REGISTERS = { A0, T0, T1, T2, T3, T4, T5, T6 };
 
 	/**
 	 * Emits the top level of the program.
@@ -88,6 +106,7 @@ public class CodeGenImpl extends CodeGenBase {
 	protected void emitTopLevel(List<Stmt> statements) {
 		String mainFrameSizeVarName = "@main.size";
 		SlotCounter slotCounter = new SlotCounter();
+		int codeStart = backend.mark();
 		backend.emitADDI(SP, SP, "-" + mainFrameSizeVarName, "Insert a stack frame for main");
 		backend.emitADDI(FP, SP, mainFrameSizeVarName, "Set FP to previous SP.");
 		int slotOffset = slotCounter.allocAndClaimSlotFromBottom();
@@ -96,8 +115,10 @@ public class CodeGenImpl extends CodeGenBase {
 		backend.emitSW(ZERO, FP, slotOffset, "Top saved FP is 0.");
 		StmtAnalyzer stmtAnalyzer = new StmtAnalyzer(null, slotCounter);
 
-		// Initialize all characters
-		backend.emitJAL(initChars, "");
+		// Initialize all characters, if strings are indexed
+		if (isRoutineRequired(allChars.labelName)) {
+			backend.emitJAL(initChars, "");
+		}
 		for (Stmt stmt : statements) {
 			stmt.dispatch(stmtAnalyzer);
 		}
@@ -106,6 +127,10 @@ public class CodeGenImpl extends CodeGenBase {
 
 		backend.emitLI(A0, EXIT_ECALL, "Code for ecall: exit");
 		backend.emitEcall(null);
+
+		// main never returns, so it need not preserve any registers
+		new RegisterAllocator(backend.codeSince(codeStart), mainFrameSizeVarName, Integer.MAX_VALUE, false)
+				.allocate();
 	}
 
 	/**
@@ -123,6 +148,7 @@ public class CodeGenImpl extends CodeGenBase {
 
 		String funcName = funcInfo.getFuncName();
 		String funcFrameSizeVarName = "@" + funcName + ".size";
+		int codeStart = backend.mark();
 		backend.emitGlobalLabel(funcInfo.getCodeLabel());
 		backend.emitADDI(SP, SP, "-" + funcFrameSizeVarName, "Reserve space for stack frame");
 		slotCounter.allocAndClaimSlotFromBottom();
@@ -153,6 +179,23 @@ public class CodeGenImpl extends CodeGenBase {
 		backend.emitLW(FP, FP, -2 * wordSize, "Use control link to restore caller's fp");
 		backend.emitADDI(SP, SP, funcFrameSizeVarName, "Restore stack pointer");
 		backend.emitJR(RA, "Return to caller");
+
+		// Locals and parameters read by nested functions through the static link stay
+		// in memory
+		int exposedFrom = hasNestedFunctions(funcInfo) ? -(locals.size() + 2) * wordSize : Integer.MAX_VALUE;
+		new RegisterAllocator(backend.codeSince(codeStart), funcFrameSizeVarName, exposedFrom, true).allocate();
+	}
+
+	/**
+	 * Returns true iff some function is nested directly within FUNCINFO.
+	 */
+	private boolean hasNestedFunctions(FuncInfo funcInfo) {
+		for (FuncInfo other : functions) {
+			if (other.getParentFuncInfo() == funcInfo) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -184,6 +227,11 @@ public class CodeGenImpl extends CodeGenBase {
 		 * The symbol table also maps nonlocal and global vars, so you only need to
 		 * lookup one symbol table and it will fetch the appropriate info for the var
 		 * that is currently in scope.
+		 *
+		 * Before any code is emitted, CodeGenBase.resolveNames looks up every
+		 * identifier and member access once, so the code below reads the result with
+		 * Identifier.getSymbolInfo(), StackVarInfo.getVarIndex() and
+		 * MemberExpr.getMemberIndex() instead of querying the symbol table.
 		 */
 
 		/**
@@ -236,7 +284,7 @@ public class CodeGenImpl extends CodeGenBase {
 		@Override
 		public Void analyze(CallExpr node) {
 			// object instantiation part
-			SymbolInfo classSymInfo = this.sym.get(node.function.name);
+			SymbolInfo classSymInfo = node.function.getSymbolInfo();
 			if (classSymInfo instanceof ClassInfo) { // create instance
 				ClassInfo classInfo = (ClassInfo) classSymInfo;
 				// special object
@@ -283,7 +331,7 @@ public class CodeGenImpl extends CodeGenBase {
 			}
 
 			String funcName = funcId.name;
-			SymbolInfo funcSymInfo = this.sym.get(funcName);
+			SymbolInfo funcSymInfo = funcId.getSymbolInfo();
 			FuncInfo funcInfo = null;
 			if (!(funcSymInfo instanceof FuncInfo)) {
 				// It should not reach here since Object Instantiation check before
@@ -402,11 +450,13 @@ public class CodeGenImpl extends CodeGenBase {
 		@Override
 		public Void analyze(BinaryExpr node) {
 
+			if (isRegisterOperation(node)) {
+				generateRegisterOperation(node);
+				return null;
+			}
+
 			switch (node.operator) {
-			case "<":
-			case "<=":
-			case ">":
-			case ">=":
+			// str comparisons, and `is` on objects
 			case "==":
 			case "!=":
 			case "is":
@@ -443,27 +493,8 @@ public class CodeGenImpl extends CodeGenBase {
 				// multi-comparison expression,
 				// but for now the reference parser cannot cope with it, so skip for now
 				switch (node.operator) {
-				// operator in {"<", "<=", ">", ">="}, T_i = T_{i+1} = int
-				case "<":
-					backend.emitBLT(leftOperandReg, rightOperandReg, trueResultLabel, "Result is true");
-					backend.emitJ(falseResultLabel, "Jump to label `falseResult` to update the result to be `false`");
-					break;
-				case "<=":
-					backend.emitBGE(rightOperandReg, leftOperandReg, trueResultLabel,
-							"Check whether rightOperand >= leftOperand. If true, then the result is true");
-					backend.emitJ(falseResultLabel, "Jump to label `falseResult` to update the result to be `false`");
-					break;
-				case ">":
-					backend.emitBLT(rightOperandReg, leftOperandReg, trueResultLabel,
-							"Check whether rightOperand < leftOperand. If true, then the result is true");
-					backend.emitJ(falseResultLabel, "Jump to label `falseResult` to update the result to be `false`");
-					break;
-				case ">=":
-					backend.emitBGE(leftOperandReg, rightOperandReg, trueResultLabel,
-							"Check whether leftOperand >= rightOperand. If true, then the result is true");
-					backend.emitJ(falseResultLabel, "Jump to label `falseResult` to update the result to be `false`");
-					break;
-				// operator in {"==", "!="}, T_i = T_{i+1} in {int, str, bool}
+				// operator in {"==", "!="}, T_i = T_{i+1} = str
+				// (int and bool operands are compared in registers)
 				case "==":
 					if (Type.STR_TYPE.equals(node.left.getInferredType())) {
 
@@ -477,18 +508,13 @@ public class CodeGenImpl extends CodeGenBase {
 						backend.emitSW(rightOperandReg, SP, 0,
 								String.format("Push func(%s) argument %d", functionLabel.labelName, 1));
 
+						requireRoutine(functionLabel.labelName);
 						backend.emitJAL(functionLabel, String.format("Invoke func(%s)", functionLabel.labelName));
 						slotCounter.freeSlotFromFrameTop(2);
 
 						// Already save the result in A0, so jump to the end directly
 						backend.emitJ(nextLabel, "Jump to label `next` to process the next node");
 
-					} else {
-						// {int, bool}
-						backend.emitBEQ(leftOperandReg, rightOperandReg, trueResultLabel,
-								"Check whether leftOperand == rightOperand. If true, then the result is true");
-						backend.emitJ(falseResultLabel,
-								"Jump to label `falseResult` to update the result to be `false`");
 					}
 					break;
 				case "!=":
@@ -504,17 +530,13 @@ public class CodeGenImpl extends CodeGenBase {
 						backend.emitSW(rightOperandReg, SP, 0,
 								String.format("Push func(%s) argument %d", functionLabel.labelName, 1));
 
+						requireRoutine(functionLabel.labelName);
 						backend.emitJAL(functionLabel, String.format("Invoke func(%s)", functionLabel.labelName));
 						slotCounter.freeSlotFromFrameTop(2);
 
 						// Already save the result in A0, so jump to the end directly
 						backend.emitJ(nextLabel, "Jump to label `next` to process the next node");
 
-					} else {
-						backend.emitBNE(leftOperandReg, rightOperandReg, trueResultLabel,
-								"Check whether leftOperand != rightOperand. If true, then the result is true");
-						backend.emitJ(falseResultLabel,
-								"Jump to label `falseResult` to update the result to be `false`");
 					}
 					break;
 				case "is":
@@ -554,75 +576,10 @@ public class CodeGenImpl extends CodeGenBase {
 				// the result is already stored in A0
 				backend.emitLocalLabel(leftTrueLabel, "Done evaluating operator: or");
 				break;
-			// arithmetic
+			// list and str concatenation (arithmetic on ints is done in registers)
 			case "+":
 				if (node.left.getInferredType().isListType() && node.right.getInferredType().isListType()) {
 					generateListConcat(node);
-				}
-			case "-":
-			case "*":
-			case "//":
-			case "%":
-				if (node.left.getInferredType().equals(Type.INT_TYPE)
-						&& node.right.getInferredType().equals(Type.INT_TYPE)) {
-					node.left.dispatch(this);
-					// store left result in the top of stack
-					int leftResultOffsetFromFp = slotCounter.allocAndClaimSlotFromBottom();
-					backend.emitSW(A0, FP, leftResultOffsetFromFp, String.format(
-							"Push on stack slot %d (BinaryExpr left result)", slotCounter.getFreeSlotFromBottom()));
-					node.right.dispatch(this);
-					backend.emitLW(T0, FP, leftResultOffsetFromFp, String.format(
-							"Pop stack slot %d ((BinaryExpr left result)", slotCounter.getFreeSlotFromBottom()));
-					slotCounter.freeSlot(1);
-					// left in T0, right in A0
-					switch (node.operator) {
-					case "+":
-						backend.emitADD(A0, T0, A0, "Arithmetic operations +");
-						break;
-					case "-":
-						backend.emitSUB(A0, T0, A0, "Arithmetic operations -");
-						break;
-					case "*":
-						backend.emitMUL(A0, T0, A0, "Arithmetic operations *");
-						break;
-					case "//":
-					case "%":
-						// divisor can not be 0
-						Label nonZero = generateLocalLabel();
-						backend.emitBNEZ(A0, nonZero, "Ensure non-zero divisor");
-						backend.emitJ(errorDiv, "Go to error handler");
-						backend.emitLocalLabel(nonZero, "Divisor is non-zero");
-						switch (node.operator) {
-						case "//":
-							backend.emitXOR(T2, T0, A0, "Check for same sign");
-							Label diffSign = generateLocalLabel();
-							backend.emitBLTZ(T2, diffSign, "Different sign -> need to adjust left operand");
-							backend.emitDIV(A0, T0, A0, "Arithmetic operations //");
-							Label divEnd = generateLocalLabel();
-							backend.emitJ(divEnd, "Goto end of operations //");
-							backend.emitLocalLabel(diffSign, "Operands // have differing signs");
-							backend.emitSLT(T2, ZERO, A0, "tmp = 1 if right > 0 else 0");
-							backend.emitADD(T2, T2, T2, "tmp *= 2");
-							backend.emitADDI(T2, T2, -1, "tmp = 1 if right>=0 else -1");
-							backend.emitADD(T2, T0, T2, "Adjust left operand");
-							backend.emitDIV(T2, T2, A0, "Adjusted division, toward 0");
-							backend.emitADDI(A0, T2, -1, "Complete division with diff signs ");
-							backend.emitLocalLabel(divEnd, "End of operations//");
-							break;
-						case "%":
-							backend.emitREM(T2, T0, A0, "Arithmetic operations %");
-							Label modResult = generateLocalLabel();
-							backend.emitBEQZ(T2, modResult, "Remainder = 0, goto return");
-							backend.emitXOR(T3, T2, A0, "Check for differing signs");
-							backend.emitBGEZ(T3, modResult, "Don't adjust if signs equal.");
-							backend.emitADD(T2, T2, A0, "Different sign -> adjust remainder");
-							backend.emitLocalLabel(modResult, "Store result");
-							backend.emitMV(A0, T2, "Move result to A0");
-							break;
-						}
-						break;
-					}
-					// str concatenation
 				} else if (node.left.getInferredType().equals(Type.STR_TYPE)
 						&& node.right.getInferredType().equals(Type.STR_TYPE)) {
 
@@ -655,6 +612,7 @@ public class CodeGenImpl extends CodeGenBase {
 					backend.emitSW(A0, SP, 0, String.format("Push func(%s) argument %d", strcat.labelName, 1));
 
 					// invoke function
+					requireRoutine(strcat.labelName);
 					backend.emitJAL(strcat, String.format("Invoke function: %s", strcat.labelName));
 
 					// On return, the caller pops the arguments off the stack
@@ -669,6 +627,282 @@ public class CodeGenImpl extends CodeGenBase {
 
 		}
 
+		/**
+		 * Returns true iff NODE is an int operation, or a comparison of ints or bools,
+		 * whose operands can be combined in registers.
+		 */
+		private boolean isRegisterOperation(BinaryExpr node) {
+			Type leftType = node.left.getInferredType();
+			Type rightType = node.right.getInferredType();
+			switch (node.operator) {
+			case "+":
+			case "-":
+			case "*":
+			case "//":
+			case "%":
+			case "<":
+			case "<=":
+			case ">":
+			case ">=":
+				return Type.INT_TYPE.equals(leftType) && Type.INT_TYPE.equals(rightType);
+			case "==":
+			case "!=":
+				return Type.INT_TYPE.equals(leftType) || Type.BOOL_TYPE.equals(leftType);
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Returns the number of scratch registers needed by OPERATOR besides its
+		 * operands.
+		 */
+		private int scratchRegisters(String operator) {
+			switch (operator) {
+			case "//":
+				return 1;
+			case "%":
+				return 2;
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * Returns the Sethi-Ullman register need of EXPR: the number of registers
+		 * needed to evaluate it without spilling, when the operand that needs more
+		 * registers is evaluated first. Returns Integer.MAX_VALUE if EXPR cannot be
+		 * evaluated in registers alone, e.g. because it contains a call.
+		 */
+		private int registerNeed(Expr expr) {
+			if (expr instanceof IntegerLiteral || expr instanceof BooleanLiteral) {
+				return 1;
+			} else if (expr instanceof Identifier) {
+				return isRegisterOperand((Identifier) expr) ? 1 : Integer.MAX_VALUE;
+			} else if (expr instanceof UnaryExpr) {
+				return registerNeed(((UnaryExpr) expr).operand);
+			} else if (expr instanceof BinaryExpr && isRegisterOperation((BinaryExpr) expr)) {
+				BinaryExpr node = (BinaryExpr) expr;
+				int leftNeed = registerNeed(node.left);
+				int rightNeed = registerNeed(node.right);
+				if (leftNeed == Integer.MAX_VALUE || rightNeed == Integer.MAX_VALUE) {
+					return Integer.MAX_VALUE;
+				}
+				int need = leftNeed == rightNeed ? leftNeed + 1 : Math.max(leftNeed, rightNeed);
+				return Math.max(need, 2 + scratchRegisters(node.operator));
+			}
+			return Integer.MAX_VALUE;
+		}
+
+		/**
+		 * Returns true iff IDENTIFIER is a local of the current function or a global,
+		 * which can be loaded with one instruction.
+		 */
+		private boolean isRegisterOperand(Identifier identifier) {
+			SymbolInfo info = identifier.getSymbolInfo();
+			return info instanceof GlobalVarInfo
+					|| (info instanceof StackVarInfo && ((StackVarInfo) info).getFuncInfo() == funcInfo);
+		}
+
+		/**
+		 * Returns true iff EXPR consists of literals only and cannot fail, so that it
+		 * may be evaluated after expressions to its right. Divisions and remainders are
+		 * excluded, as a division by zero must abort before the right operand is
+		 * evaluated.
+		 */
+		private boolean isConstant(Expr expr) {
+			if (expr instanceof IntegerLiteral || expr instanceof BooleanLiteral) {
+				return true;
+			} else if (expr instanceof UnaryExpr) {
+				return isConstant(((UnaryExpr) expr).operand);
+			} else if (expr instanceof BinaryExpr && isRegisterOperation((BinaryExpr) expr)) {
+				BinaryExpr node = (BinaryExpr) expr;
+				return !node.operator.equals("//") && !node.operator.equals("%")
+						&& isConstant(node.left) && isConstant(node.right);
+			}
+			return false;
+		}
+
+		/**
+		 * Generates code for NODE, for which isRegisterOperation holds, leaving the
+		 * result in A0.
+		 *
+		 * <p>
+		 * If the whole tree fits in EXPR_REGISTERS, it is evaluated there, in the order
+		 * that needs the fewest registers. Otherwise an operand that fits is evaluated
+		 * in registers next to the other operand's value in A0, and the left operand
+		 * is spilled to the stack only if neither fits.
+		 */
+		private void generateRegisterOperation(BinaryExpr node) {
+			int available = EXPR_REGISTERS.length;
+			if (registerNeed(node) <= available) {
+				evaluateInRegisters(node, 0);
+				return;
+			}
+
+			Register operandReg = EXPR_REGISTERS[1];
+			Register scratch1 = EXPR_REGISTERS[2];
+			Register scratch2 = EXPR_REGISTERS[3];
+			if (registerNeed(node.right) < available) {
+				node.left.dispatch(this);
+				evaluateInRegisters(node.right, 1);
+				generateOperator(node.operator, A0, A0, operandReg, scratch1, scratch2);
+			} else if (isConstant(node.left) && registerNeed(node.left) < available) {
+				node.right.dispatch(this);
+				evaluateInRegisters(node.left, 1);
+				generateOperator(node.operator, A0, operandReg, A0, scratch1, scratch2);
+			} else {
+				node.left.dispatch(this);
+				int leftResultOffsetFromFp = slotCounter.allocAndClaimSlotFromBottom();
+				backend.emitSW(A0, FP, leftResultOffsetFromFp, String.format(
+						"Push on stack slot %d (BinaryExpr left result)", slotCounter.getFreeSlotFromBottom()));
+				node.right.dispatch(this);
+				backend.emitLW(operandReg, FP, leftResultOffsetFromFp, String.format(
+						"Pop stack slot %d ((BinaryExpr left result)", slotCounter.getFreeSlotFromBottom()));
+				slotCounter.freeSlot(1);
+				generateOperator(node.operator, A0, operandReg, A0, scratch1, scratch2);
+			}
+		}
+
+		/**
+		 * Generates code for EXPR, whose register need is at most the number of
+		 * EXPR_REGISTERS from BASE on, leaving the result in EXPR_REGISTERS[BASE].
+		 */
+		private void evaluateInRegisters(Expr expr, int base) {
+			Register target = EXPR_REGISTERS[base];
+			if (expr instanceof IntegerLiteral) {
+				int value = ((IntegerLiteral) expr).value;
+				backend.emitLI(target, value, String.format("Load integer literal %d", value));
+			} else if (expr instanceof BooleanLiteral) {
+				boolean value = ((BooleanLiteral) expr).value;
+				backend.emitLI(target, value ? 1 : 0, "Load " + (value ? "True" : "False"));
+			} else if (expr instanceof Identifier) {
+				generateOperandLoad((Identifier) expr, target);
+			} else if (expr instanceof UnaryExpr) {
+				UnaryExpr node = (UnaryExpr) expr;
+				evaluateInRegisters(node.operand, base);
+				if (node.operator.equals("-")) {
+					backend.emitSUB(target, ZERO, target, "Unary negation");
+				} else {
+					backend.emitSEQZ(target, target, "Logical not");
+				}
+			} else {
+				BinaryExpr node = (BinaryExpr) expr;
+				Register leftReg;
+				Register rightReg;
+				// Evaluate the operand with the larger need first, so that the other one
+				// can use all registers but the one holding the first result
+				if (registerNeed(node.left) >= registerNeed(node.right)) {
+					evaluateInRegisters(node.left, base);
+					evaluateInRegisters(node.right, base + 1);
+					leftReg = target;
+					rightReg = EXPR_REGISTERS[base + 1];
+				} else {
+					evaluateInRegisters(node.right, base);
+					evaluateInRegisters(node.left, base + 1);
+					leftReg = EXPR_REGISTERS[base + 1];
+					rightReg = target;
+				}
+				int scratch = scratchRegisters(node.operator);
+				generateOperator(node.operator, target, leftReg, rightReg,
+						scratch > 0 ? EXPR_REGISTERS[base + 2] : null, scratch > 1 ? EXPR_REGISTERS[base + 3] : null);
+			}
+		}
+
+		/**
+		 * Generates code loading the value of IDENTIFIER, for which isRegisterOperand
+		 * holds, into TARGET.
+		 */
+		private void generateOperandLoad(Identifier identifier, Register target) {
+			SymbolInfo info = identifier.getSymbolInfo();
+			if (info instanceof StackVarInfo) {
+				String varName = ((StackVarInfo) info).getVarName();
+				final int offset = ((StackVarInfo) info).getVarIndex() - funcInfo.getParams().size() + 1;
+				backend.emitLW(target, FP, -offset * wordSize, "Load local: " + varName);
+			} else {
+				GlobalVarInfo globalVarInfo = (GlobalVarInfo) info;
+				backend.emitLW(target, globalVarInfo.getLabel(), "Load global: " + globalVarInfo.getVarName());
+			}
+		}
+
+		/**
+		 * Generates code applying the int or bool OPERATOR to LEFT and RIGHT, leaving
+		 * the result in RESULT, which may be LEFT or RIGHT. SCRATCH1 and SCRATCH2
+		 * are distinct from the operands; `//` uses SCRATCH1 and `%` uses both, the
+		 * other operators neither.
+		 */
+		private void generateOperator(String operator, Register result, Register left, Register right,
+				Register scratch1, Register scratch2) {
+			switch (operator) {
+			case "+":
+				backend.emitADD(result, left, right, "Arithmetic operations +");
+				break;
+			case "-":
+				backend.emitSUB(result, left, right, "Arithmetic operations -");
+				break;
+			case "*":
+				backend.emitMUL(result, left, right, "Arithmetic operations *");
+				break;
+			case "//":
+			case "%":
+				// divisor can not be 0
+				Label nonZero = generateLocalLabel();
+				backend.emitBNEZ(right, nonZero, "Ensure non-zero divisor");
+				requireRoutine(errorDiv.labelName);
+				backend.emitJ(errorDiv, "Go to error handler");
+				backend.emitLocalLabel(nonZero, "Divisor is non-zero");
+				if (operator.equals("//")) {
+					backend.emitXOR(scratch1, left, right, "Check for same sign");
+					Label diffSign = generateLocalLabel();
+					backend.emitBLTZ(scratch1, diffSign, "Different sign -> need to adjust left operand");
+					backend.emitDIV(result, left, right, "Arithmetic operations //");
+					Label divEnd = generateLocalLabel();
+					backend.emitJ(divEnd, "Goto end of operations //");
+					backend.emitLocalLabel(diffSign, "Operands // have differing signs");
+					backend.emitSLT(scratch1, ZERO, right, "tmp = 1 if right > 0 else 0");
+					backend.emitADD(scratch1, scratch1, scratch1, "tmp *= 2");
+					backend.emitADDI(scratch1, scratch1, -1, "tmp = 1 if right>=0 else -1");
+					backend.emitADD(scratch1, left, scratch1, "Adjust left operand");
+					backend.emitDIV(scratch1, scratch1, right, "Adjusted division, toward 0");
+					backend.emitADDI(result, scratch1, -1, "Complete division with diff signs ");
+					backend.emitLocalLabel(divEnd, "End of operations//");
+				} else {
+					backend.emitREM(scratch1, left, right, "Arithmetic operations %");
+					Label modResult = generateLocalLabel();
+					backend.emitBEQZ(scratch1, modResult, "Remainder = 0, goto return");
+					backend.emitXOR(scratch2, scratch1, right, "Check for differing signs");
+					backend.emitBGEZ(scratch2, modResult, "Don't adjust if signs equal.");
+					backend.emitADD(scratch1, scratch1, right, "Different sign -> adjust remainder");
+					backend.emitLocalLabel(modResult, "Store result");
+					backend.emitMV(result, scratch1, "Move result");
+				}
+				break;
+			case "<":
+				backend.emitSLT(result, left, right, "Compare operands: <");
+				break;
+			case ">":
+				backend.emitSLT(result, right, left, "Compare operands: >");
+				break;
+			case "<=":
+				backend.emitSLT(result, right, left, "Compare operands: right < left");
+				backend.emitXORI(result, result, 1, "Negate to get <=");
+				break;
+			case ">=":
+				backend.emitSLT(result, left, right, "Compare operands: left < right");
+				backend.emitXORI(result, result, 1, "Negate to get >=");
+				break;
+			case "==":
+				backend.emitXOR(result, left, right, "Compare operands: ==");
+				backend.emitSEQZ(result, result, "Result is true iff they are equal");
+				break;
+			case "!=":
+				backend.emitXOR(result, left, right, "Compare operands: !=");
+				backend.emitSNEZ(result, result, "Result is true iff they differ");
+				break;
+			default:
+			}
+		}
+
 		@Override
 		public Void analyze(AssignStmt node) {
 			// generate code to store the value
@@ -706,16 +940,16 @@ public class CodeGenImpl extends CodeGenBase {
 					Label notNoneLabel = generateLocalLabel();
 					backend.emitBNEZ(A0, notNoneLabel, "Check if the object is none otherwise jump");
 					// unconditionally jump to error.None (never go back)
+					requireRoutine(errorNone.labelName);
 					backend.emitJ(errorNone, "Jump to none access error");
 
 					// the object is not none, proceed
 					backend.emitLocalLabel(notNoneLabel, "The object is not none");
 
 					// our semantic analyzer does great job to guarantee this is a class.
-					ClassInfo classInfo = (ClassInfo) sym.get(memberExpr.object.getInferredType().className());
-					// retrieve the position index of this member in the object
-					// our semantic analyzer guarantees this attribute must already be defined.
-					final int attrIndex = classInfo.getAttributeIndex(memberExpr.member.name);
+					// the position index of this member in the object was resolved before
+					// emission; our semantic analyzer guarantees this attribute is defined.
+					final int attrIndex = memberExpr.getMemberIndex();
 					backend.emitLW(A1, FP, valueToBeAssignedOffset, "Load the value to be assigned to A1");
 					// first 3 fields are type, size and ptr to dispatch table according to object
 					// layout
@@ -855,25 +1089,23 @@ public class CodeGenImpl extends CodeGenBase {
 			// check object is not None
 			Label nonNone = generateLocalLabel();
 			backend.emitBNEZ(A0, nonNone, "Ensure object not None");
+			requireRoutine(errorNone.labelName);
 			backend.emitJ(errorNone, "Goto error handler");
 			backend.emitLocalLabel(nonNone, "Object not None");
 			// analyze member
 			Identifier member = node.member;
 			String objName = node.object.getInferredType().className();
-			SymbolInfo classInfo = this.sym.get(objName);
-			assert classInfo instanceof ClassInfo : "Member object is not a valid class";
-			ClassInfo objectClassInfo = (ClassInfo) classInfo;
 
 			if (node.getInferredType().isFuncType()) {
 				// load method, A0 is object, A1 is the address of method
 				backend.emitLW(A1, A0, 2 * wordSize, String.format("Load address of %s's dispatch table", objName));
-				int methodIndex = objectClassInfo.getMethodIndex(member.name);
+				int methodIndex = node.getMemberIndex();
 				backend.emitLW(A1, A1, methodIndex * wordSize,
 						String.format("Load address of method: %s.%s(...) in A1", objName, member.name));
 
 			} else {
 				// load var
-				int attributeIndex = objectClassInfo.getAttributeIndex(member.name);
+				int attributeIndex = node.getMemberIndex();
 				backend.emitLW(A0, A0, (attributeIndex + 3) * wordSize,
 						String.format("Get attribute: %s.%s", objName, member.name));
 			}
@@ -1105,6 +1337,7 @@ public class CodeGenImpl extends CodeGenBase {
 				backend.emitInsn("", "Start to box int");
 				slotCounter.allocateSlot();
 				backend.emitSW(A0, SP, 0, String.format("Push argument %d", 0));
+				requireRoutine(boxInt.labelName);
 				backend.emitJAL(boxInt, String.format("Invoke function: %s", boxInt.labelName));
 				slotCounter.freeSlotFromFrameTop(1);
 
@@ -1114,6 +1347,7 @@ public class CodeGenImpl extends CodeGenBase {
 				backend.emitInsn("", "Start to box bool");
 				slotCounter.allocateSlot();
 				backend.emitSW(A0, SP, 0, String.format("Push argument %d", 0));
+				requireRoutine(boxBool.labelName);
 				backend.emitJAL(boxBool, String.format("Invoke function: %s", boxBool.labelName));
 				slotCounter.freeSlotFromFrameTop(1);
 
@@ -1132,6 +1366,7 @@ public class CodeGenImpl extends CodeGenBase {
 		 *            "errorOob" with comment "Go to out-of-bounds error and abort".
 		 */
 		private void generateListAccessCode(IndexExpr expr) {
+			requireRoutine(errorOob.labelName);
 			generateListAccessCode(expr.list, expr.index, -1, -1, errorOob, "Go to out-of-bounds error and abort");
 		}
 
@@ -1168,6 +1403,7 @@ public class CodeGenImpl extends CodeGenBase {
 			Label notNoneLabel = generateLocalLabel();
 			backend.emitBNEZ(A0, notNoneLabel, "Check if the list is none otherwise jump");
 			// unconditionally jump to error.None (never go back)
+			requireRoutine(errorNone.labelName);
 			backend.emitJ(errorNone, "Jump to none access error");
 
 			// the list is not none, proceed
@@ -1210,6 +1446,7 @@ public class CodeGenImpl extends CodeGenBase {
 		 *            "errorOob" with comment "Go to out-of-bounds error and abort"
 		 */
 		private void generateStringAccessCode(IndexExpr expr) {
+			requireRoutine(errorOob.labelName);
 			generateStringAccessCode(expr.list, expr.index, -1, -1, errorOob, "Go to out-of-bounds error and abort");
 		}
 
@@ -1274,7 +1511,7 @@ public class CodeGenImpl extends CodeGenBase {
 		private void generateListConcat(BinaryExpr expr) {
 			// !!!: I will inline this method back in "analyze(BinaryExpr)" once we finish
 			// bug fixing.
-			emitListConcatFlag = true;
+			requireRoutine(listConcatLabel.labelName);
 			expr.left.dispatch(this);
 			slotCounter.allocateSlot();
 			final int leftListOffset = slotCounter.allocAndClaimSlotFromBottom();
@@ -1307,7 +1544,7 @@ public class CodeGenImpl extends CodeGenBase {
 		 *            for storing value in A0 to identifier
 		 */
 		private void generateVarAccess(Identifier node, boolean loadOperation) {
-			SymbolInfo info = sym.get(node.name);
+			SymbolInfo info = node.getSymbolInfo();
 			if (info instanceof StackVarInfo) {
 				StackVarInfo stackVarInfo = (StackVarInfo) info;
 				FuncInfo varInfuncInfo = stackVarInfo.getFuncInfo();
@@ -1316,8 +1553,7 @@ public class CodeGenImpl extends CodeGenBase {
 				// adding one after getVarIndex is necessary because 0(fp) points to the last
 				// passed argument of caller (implementation guide)
 				if (funcInfo == varInfuncInfo) {
-					final int offset = funcInfo.getVarIndex(stackVarInfo.getVarName()) - funcInfo.getParams().size()
-							+ 1;
+					final int offset = stackVarInfo.getVarIndex() - funcInfo.getParams().size() + 1;
 					if (loadOperation) {
 						backend.emitLW(A0, FP, -offset * wordSize,
 								"Load local: " + stackVarInfo.getVarName() + " to A0");
@@ -1342,8 +1578,7 @@ public class CodeGenImpl extends CodeGenBase {
 						parentFuncInfo = parentFuncInfo.getParentFuncInfo();
 					}
 
-					final int offset = parentFuncInfo.getVarIndex(stackVarInfo.getVarName())
-							- parentFuncInfo.getParams().size() + 1;
+					final int offset = stackVarInfo.getVarIndex() - parentFuncInfo.getParams().size() + 1;
 					if (loadOperation) {
 						backend.emitLW(A0, T0, -offset * wordSize, String.format("Load value from %s.s to A0",
 								parentFuncInfo.getFuncName(), stackVarInfo.getVarName()));
@@ -1386,24 +1621,60 @@ public class CodeGenImpl extends CodeGenBase {
 	 * and division by zero. They never return to their caller. Just jump to one of
 	 * these routines to throw an error and exit the program. For example, to throw
 	 * an OOB error: backend.emitJ(errorOob, "Go to out-of-bounds error and abort");
+	 *
+	 * <p>
+	 * Each routine is emitted only if the code emitted before requires it (see
+	 * requireRoutine), or if strings are indexed in the case of the table of
+	 * single-character strings (see analyzeUsage).
 	 */
 	protected void emitCustomCode() {
 
-		emitStdFunc("initChars");
-		emitStdFunc("allChars");
-		emitFuncBoxInt();
-		emitFuncBoxBool();
-		emitFuncStrCat();
-		emitFunStrEql();
-		emitFunStrNeql();
-		if (emitListConcatFlag) {
+		if (isRoutineRequired(allChars.labelName)) {
+			emitStdFunc("initChars");
+			emitStdFunc("allChars");
+		}
+		if (isRoutineRequired(boxInt.labelName)) {
+			emitFuncBoxInt();
+		}
+		if (isRoutineRequired(boxBool.labelName)) {
+			emitFuncBoxBool();
+		}
+		if (isRoutineRequired(strcat.labelName)) {
+			emitFuncStrCat();
+		}
+		if (isRoutineRequired(streql.labelName)) {
+			emitFunStrEql();
+		}
+		if (isRoutineRequired(strneql.labelName)) {
+			emitFunStrNeql();
+		}
+		if (isRoutineRequired(listConcatLabel.labelName)) {
 			emitListConcatFunc();
 		}
 
-		emitErrorFunc(errorNone, ERROR_NONE, "Operation on None");
-		emitErrorFunc(errorDiv, ERROR_DIV_ZERO, "Division by zero");
-		emitErrorFunc(errorOob, ERROR_OOB, "Index out of bounds");
+		if (isRoutineRequired(errorNone.labelName)) {
+			emitErrorFunc(errorNone, ERROR_NONE, "Operation on None");
+		}
+		if (isRoutineRequired(errorDiv.labelName)) {
+			emitErrorFunc(errorDiv, ERROR_DIV_ZERO, "Division by zero");
+		}
+		if (isRoutineRequired(errorOob.labelName)) {
+			emitErrorFunc(errorOob, ERROR_OOB, "Index out of bounds");
+		}
+
+	}
 
+	/**
+	 * Require the table of single-character strings if NODE indexes or iterates
+	 * over a string. The table is initialized by the main program, before any of
+	 * the code using it is emitted.
+	 */
+	@Override
+	protected void analyzeUsage(Node node) {
+		if (node instanceof IndexExpr && Type.STR_TYPE.equals(((IndexExpr) node).list.getInferredType())
+				|| node instanceof ForStmt && Type.STR_TYPE.equals(((ForStmt) node).iterable.getInferredType())) {
+			requireRoutine(allChars.labelName);
+		}
 	}
 
 	private void emitFuncBoxInt() {
@@ -1817,6 +2088,7 @@ public class CodeGenImpl extends CodeGenBase {
 
 		// if either is none then jump to none error
 		backend.emitLocalLabel(noneLabel, "either list is none");
+		requireRoutine(errorNone.labelName);
 		backend.emitJ(errorNone, "Jump to none access error");
 
 		backend.emitLocalLabel(leftEmptyLabel, "The left list is empty");
@@ -0,0 +1,371 @@
+package chocopy.pa3;
+
+import chocopy.common.astnodes.Program;
+import chocopy.common.codegen.CompileMetrics;
+import chocopy.common.codegen.FunctionCache;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A resident compile service for the web editor.
+ *
+ * <p>The service speaks the same protocol as web/WebCompiler.py: a POST to /compile whose body is
+ * {"input": SOURCE, "passes": PASSES} answers with the JSON of the program if a pass reported
+ * errors or no code generation pass was requested, and with {"asm": ASSEMBLY} otherwise, to which
+ * the timers and counters of the student code generator are added as "metrics". Unlike
+ * WebCompiler.py, which starts a new JVM for every request, all passes run inside this JVM, so the
+ * parser, the analysis and the code generator stay loaded and warm between requests. A request
+ * without "passes" runs {@link #DEFAULT_PASSES}.
+ *
+ * <p>The code of functions is cached across requests, so that recompiling an edited program only
+ * regenerates the functions that changed.
+ *
+ * <p>A GET of /stats returns request and cache counters, and the total time spent in each phase of
+ * code generation, as JSON. Any other GET is served from the static web directory, so the service
+ * replaces WebCompiler.py entirely.
+ */
+public class CompileServer {
+
+    /** Mapper to-and-from serialized JSON. */
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /** Code of functions compiled by earlier requests. */
+    private static final FunctionCache functionCache = new FunctionCache();
+
+    /** The passes run when a request names none: the reference front end and this generator. */
+    public static final String DEFAULT_PASSES = "rrs";
+
+    /** The parser of assignment 1. */
+    private static final String STUDENT_PARSER = "chocopy.pa1.StudentParser";
+
+    /** The semantic analysis of assignment 2. */
+    private static final String STUDENT_ANALYSIS = "chocopy.pa2.StudentAnalysis";
+
+    /** The reference parser, from chocopy-ref.jar. */
+    private static final String REF_PARSER = "chocopy.reference.RefParser";
+
+    /** The reference semantic analysis, from chocopy-ref.jar. */
+    private static final String REF_ANALYSIS = "chocopy.reference.RefAnalysis";
+
+    /** The reference code generator, from chocopy-ref.jar. */
+    private static final String REF_CODE_GEN = "chocopy.reference.RefCodeGen";
+
+    /**
+     * Pass implementations found on the class path, keyed by class name and parameter types, as
+     * in "chocopy.reference.RefParser(java.lang.String,boolean)".
+     */
+    private static final Map<String, Method> passMethods = new ConcurrentHashMap<>();
+
+    /** Whether each class looked up by name is on the class path. */
+    private static final Map<String, Boolean> availableClasses = new ConcurrentHashMap<>();
+
+    /** Directory from which static files are served. */
+    private final Path webRoot;
+
+    /** Counters for requests to /compile. */
+    private static final Stats stats = new Stats();
+
+    /** A service serving static files from WEBROOT. */
+    public CompileServer(Path webRoot) {
+        this.webRoot = webRoot.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Start serving on PORT, handling requests on a pool of THREADS threads. Returns the running
+     * server.
+     */
+    public HttpServer start(int port, int threads) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/compile", this::handleCompile);
+        server.createContext("/stats", this::handleStats);
+        server.createContext("/", this::handleStatic);
+        server.start();
+        return server;
+    }
+
+    /** Answer a /compile request in EXCHANGE. */
+    private void handleCompile(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, "text/plain", "Use POST for /compile");
+            return;
+        }
+        long start = System.nanoTime();
+        String source;
+        String passes;
+        try (InputStream in = exchange.getRequestBody()) {
+            JsonNode request = mapper.readTree(in);
+            source = request.get("input").asText();
+            passes = request.path("passes").asText(DEFAULT_PASSES);
+        } catch (RuntimeException | IOException e) {
+            answer(exchange, start, 400, "text/plain", String.valueOf(e));
+            return;
+        }
+        String result;
+        try {
+            result = compile(source, passes);
+        } catch (RuntimeException
+                | IOException
+                | ReflectiveOperationException
+                | LinkageError e) {
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+            answer(exchange, start, 500, "text/plain", String.valueOf(cause));
+            return;
+        }
+        answer(exchange, start, 200, "application/json", result);
+    }
+
+    /**
+     * Count the /compile request in EXCHANGE, received at START, then send BODY with HTTP status
+     * STATUS and content type TYPE in response. Counting first means that a client sees its
+     * request in the next /stats.
+     */
+    private void answer(HttpExchange exchange, long start, int status, String type, String body)
+            throws IOException {
+        stats.record(System.nanoTime() - start, status == 200);
+        send(exchange, status, type, body);
+    }
+
+    /** Answer a /stats request in EXCHANGE. */
+    private void handleStats(HttpExchange exchange) throws IOException {
+        send(exchange, 200, "application/json", mapper.writeValueAsString(stats.toJSON()));
+    }
+
+    /** Answer a request for a static file in EXCHANGE. */
+    private void handleStatic(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.endsWith("/")) {
+            path += "index.html";
+        }
+        Path file = webRoot.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(webRoot) || !Files.isRegularFile(file)) {
+            send(exchange, 404, "text/plain", "Not found: " + path);
+            return;
+        }
+        byte[] body = Files.readAllBytes(file);
+        exchange.getResponseHeaders().set("Content-type", contentType(file));
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Return the JSON response to a request to compile SOURCE with PASSES, a string of one to three
+     * characters from ., r, or s selecting parsing, semantic analysis and code generation. As this
+     * assignment has no parser or semantic analysis of its own, s selects the reference pass for
+     * those unless the pass of assignment 1 or 2 has been merged onto the class path.
+     */
+    public static String compile(String source, String passes)
+            throws IOException, ReflectiveOperationException {
+        String p = (passes + "...").substring(0, 3);
+        Program program;
+        switch (p.charAt(0)) {
+            case 'r':
+                program = (Program) invoke(REF_PARSER, source, false);
+                break;
+            case 's':
+                program =
+                        (Program)
+                                invoke(
+                                        isAvailable(STUDENT_PARSER) ? STUDENT_PARSER : REF_PARSER,
+                                        source,
+                                        false);
+                break;
+            default:
+                throw new IllegalArgumentException("A parsing pass is required: " + passes);
+        }
+        if (!program.hasErrors()) {
+            switch (p.charAt(1)) {
+                case 'r':
+                    program = (Program) invoke(REF_ANALYSIS, program);
+                    break;
+                case 's':
+                    program =
+                            isAvailable(STUDENT_ANALYSIS)
+                                    ? (Program) invoke(STUDENT_ANALYSIS, program, false)
+                                    : (Program) invoke(REF_ANALYSIS, program);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (program.hasErrors() || p.charAt(2) == '.') {
+            return program.toJSON();
+        }
+        String asm;
+        CompileMetrics metrics = null;
+        switch (p.charAt(2)) {
+            case 'r':
+                asm = (String) invoke(REF_CODE_GEN, program);
+                break;
+            case 's':
+                metrics = new CompileMetrics();
+                asm = StudentCodeGen.process(program, false, functionCache, metrics);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown code generation pass: " + passes);
+        }
+        if (asm == null) {
+            throw new IllegalStateException("Code generation failed");
+        }
+        ObjectNode result = mapper.createObjectNode();
+        result.put("asm", asm);
+        if (metrics != null) {
+            stats.recordPhases(metrics);
+            result.set("metrics", mapper.readTree(metrics.toJSON()));
+        }
+        return mapper.writeValueAsString(result);
+    }
+
+    /**
+     * Invoke the static `process` method of CLASSNAME on ARGS and return its result. The pass
+     * classes are looked up reflectively, as the reference passes are only available from
+     * chocopy-ref.jar at run time.
+     */
+    private static Object invoke(String className, Object... args)
+            throws ReflectiveOperationException {
+        Class<?>[] types = new Class<?>[args.length];
+        StringJoiner key = new StringJoiner(",", className + "(", ")");
+        for (int i = 0; i < args.length; i += 1) {
+            types[i] = args[i] instanceof Boolean ? boolean.class : args[i].getClass();
+            key.add(types[i].getName());
+        }
+        Method method = passMethods.get(key.toString());
+        if (method == null) {
+            method = Class.forName(className).getMethod("process", types);
+            passMethods.put(key.toString(), method);
+        }
+        return method.invoke(null, args);
+    }
+
+    /** Return true iff the class named CLASSNAME is on the class path. */
+    private static boolean isAvailable(String className) {
+        return availableClasses.computeIfAbsent(
+                className,
+                name -> {
+                    try {
+                        Class.forName(name, false, CompileServer.class.getClassLoader());
+                        return true;
+                    } catch (ClassNotFoundException | LinkageError e) {
+                        return false;
+                    }
+                });
+    }
+
+    /** Send BODY with HTTP status STATUS and content type TYPE in response to EXCHANGE. */
+    private static void send(HttpExchange exchange, int status, String type, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-type", type);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /** Return the content type under which to serve FILE. */
+    private static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(".html")) {
+            return "text/html";
+        } else if (name.endsWith(".js")) {
+            return "application/javascript";
+        } else if (name.endsWith(".css")) {
+            return "text/css";
+        } else {
+            return "application/octet-stream";
+        }
+    }
+
+    /** Latency and throughput counters, safe to update from concurrent requests. */
+    private static class Stats {
+        /** Time at which counting started. */
+        private final long startNanos = System.nanoTime();
+        /** Number of requests answered successfully. */
+        private final LongAdder succeeded = new LongAdder();
+        /** Number of requests that failed. */
+        private final LongAdder failed = new LongAdder();
+        /** Sum of all request latencies. */
+        private final LongAdder totalNanos = new LongAdder();
+        /** Largest request latency seen. */
+        private final AtomicLong maxNanos = new AtomicLong();
+        /** Time spent in each phase of code generation, by ordinal. */
+        private final LongAdder[] phaseNanos = new LongAdder[CompileMetrics.Phase.values().length];
+
+        Stats() {
+            for (int i = 0; i < phaseNanos.length; i += 1) {
+                phaseNanos[i] = new LongAdder();
+            }
+        }
+
+        /** Record a request that took ELAPSEDNANOS and succeeded iff OK. */
+        void record(long elapsedNanos, boolean ok) {
+            (ok ? succeeded : failed).increment();
+            totalNanos.add(elapsedNanos);
+            maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+        }
+
+        /** Add the time spent in each phase of code generation by METRICS. */
+        void recordPhases(CompileMetrics metrics) {
+            for (CompileMetrics.Phase phase : CompileMetrics.Phase.values()) {
+                phaseNanos[phase.ordinal()].add(metrics.getNanos(phase));
+            }
+        }
+
+        /** Return the counters as a JSON object. */
+        ObjectNode toJSON() {
+            long requests = succeeded.sum() + failed.sum();
+            double uptime = (System.nanoTime() - startNanos) / 1e9;
+            ObjectNode result = mapper.createObjectNode();
+            result.put("requests", requests);
+            result.put("failed", failed.sum());
+            result.put("meanLatencyMs", requests == 0 ? 0 : totalNanos.sum() / 1e6 / requests);
+            result.put("maxLatencyMs", maxNanos.get() / 1e6);
+            result.put("requestsPerSecond", requests / uptime);
+            result.put("uptimeSeconds", uptime);
+            result.put("functionCacheEntries", functionCache.size());
+            result.put("functionCacheHits", functionCache.getHits());
+            result.put("functionCacheMisses", functionCache.getMisses());
+            ObjectNode phases = result.putObject("phaseMillis");
+            for (CompileMetrics.Phase phase : CompileMetrics.Phase.values()) {
+                phases.put(phase.name, phaseNanos[phase.ordinal()].sum() / 1e6);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Serve on the port given by the first argument (default 8000), from the static web directory
+     * given by the second (default web).
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        Path webRoot = Paths.get(args.length > 1 ? args[1] : "web");
+        int threads = Runtime.getRuntime().availableProcessors();
+        new CompileServer(webRoot).start(port, threads);
+        System.out.println("serving at port " + port);
+    }
+}
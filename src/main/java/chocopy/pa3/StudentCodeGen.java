@@ -1,26 +1,134 @@
 package chocopy.pa3;
 
 import chocopy.common.astnodes.Program;
+import chocopy.common.codegen.Assembler;
 import chocopy.common.codegen.CodeGenBase;
+import chocopy.common.codegen.CompileMetrics;
+import chocopy.common.codegen.FunctionCache;
+import chocopy.common.codegen.Linker;
+import chocopy.common.codegen.MachineCodeBackend;
+import chocopy.common.codegen.PeepholeOptimizer;
+import chocopy.common.codegen.Prelude;
 import chocopy.common.codegen.RiscVBackend;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
 /** Interface to code generator. */
 public class StudentCodeGen {
 
+    /**
+     * The system property that turns on compile metrics. When it is set, a one-line JSON report
+     * of the timers and counters of each compilation is appended to the file it names, or
+     * printed on stderr if it is empty or "-".
+     */
+    public static final String METRICS_PROPERTY = "chocopy.metrics";
+
+    /**
+     * The system property choosing how the runtime library is compiled. With "inline" (the
+     * default), its routines are emitted with every program. With "separate", only the user
+     * program is emitted, importing the routines from the runtime module returned by {@link
+     * #getRuntime()}. With "link", the program is compiled separately and then linked with that
+     * module into one image.
+     */
+    public static final String RUNTIME_PROPERTY = "chocopy.runtime";
+
+    /**
+     * The system property choosing whether machine code uses the compressed instructions of the
+     * RVC extension where their operands fit. On unless it is "false".
+     */
+    public static final String COMPRESS_PROPERTY = "chocopy.rvc";
+
+    /** The predefined classes and functions, built once and shared by all compilations. */
+    private static final Prelude PRELUDE = new CodeGenImpl(new RiscVBackend()).getPrelude();
+
+    /** Holds the runtime module, built on first use. */
+    private static final class RuntimeHolder {
+        static final Linker.Module RUNTIME = buildRuntime();
+    }
+
+    /** Returns the prebuilt runtime module that separately compiled programs are linked with. */
+    public static String getRuntime() {
+        return RuntimeHolder.RUNTIME.toString();
+    }
+
+    /** Returns a new runtime module. */
+    private static Linker.Module buildRuntime() {
+        RiscVBackend backend = new RiscVBackend();
+        backend.setPeephole(new PeepholeOptimizer());
+        new CodeGenImpl(backend, PRELUDE).generateRuntime();
+        return new Linker.Module(backend.toString());
+    }
+
     /**
      * Perform code generation from PROGRAM, assumed to be well-typed, to RISC-V, returning the
      * assembly code. DEBUG iff --debug was on the command line.
      */
     public static String process(Program program, boolean debug) {
+        return process(program, debug, (FunctionCache) null);
+    }
+
+    /**
+     * Perform code generation from PROGRAM, assumed to be well-typed, to RISC-V, returning the
+     * assembly code. The code of functions unchanged since an earlier compilation is taken from
+     * CACHE, unless it is null, and the code of the others is added to it. DEBUG iff --debug was
+     * on the command line.
+     */
+    public static String process(Program program, boolean debug, FunctionCache cache) {
+        CompileMetrics metrics = newMetrics();
+        String asm = process(program, debug, cache, metrics);
+        if (asm != null) {
+            reportMetrics(metrics);
+        }
+        return asm;
+    }
+
+    /**
+     * Perform code generation from PROGRAM as for {@link #process(Program, boolean,
+     * FunctionCache)}, recording its timers and counters in METRICS, unless it is null. METRICS is
+     * left to the caller and not reported, whatever METRICS_PROPERTY says.
+     */
+    public static String process(
+            Program program, boolean debug, FunctionCache cache, CompileMetrics metrics) {
         /* Emit code into a ByteOutputStream, and convert to a string.
          * If you need instructions not provided by RiscVBackend, simply
          * use an extension of it. */
         try {
             RiscVBackend backend = new RiscVBackend();
-            CodeGenBase cgen = new CodeGenImpl(backend);
+            backend.setPeephole(new PeepholeOptimizer());
+            CodeGenBase cgen = new CodeGenImpl(backend, PRELUDE);
+            cgen.setFunctionCache(cache);
+            cgen.setMetrics(metrics);
+            String mode = System.getProperty(RUNTIME_PROPERTY, "inline");
+            if (!mode.equals("inline")) {
+                cgen.setRuntime(RuntimeHolder.RUNTIME);
+            }
             cgen.generate(program);
 
-            return backend.toString();
+            beginPhase(metrics, CompileMetrics.Phase.WRITE_OUT);
+            String asm = backend.toString();
+            endPhase(metrics, CompileMetrics.Phase.WRITE_OUT);
+            if (mode.equals("link")) {
+                beginPhase(metrics, CompileMetrics.Phase.LINK);
+                asm = Linker.link(new Linker.Module(asm), RuntimeHolder.RUNTIME);
+                endPhase(metrics, CompileMetrics.Phase.LINK);
+            }
+            if (metrics != null) {
+                metrics.finish(backend);
+            }
+            if (debug) {
+                System.err.print(backend.getPeephole().report());
+            }
+            return asm;
         } catch (IllegalStateException | IllegalArgumentException e) {
             System.err.println(
                     "Error performing code generation. "
@@ -31,4 +139,201 @@ public class StudentCodeGen {
             return null;
         }
     }
+
+    /**
+     * Perform code generation from PROGRAM, assumed to be well-typed, to RV32IM machine code,
+     * returning it as an ELF32 executable, or null on failure. DEBUG iff --debug was on the
+     * command line.
+     */
+    public static byte[] processToElf(Program program, boolean debug) {
+        Assembler.Image image = assemble(program, debug);
+        return image == null ? null : image.toElf();
+    }
+
+    /**
+     * Perform code generation from PROGRAM, assumed to be well-typed, to RV32IM machine code,
+     * returning the assembled image, or null on failure. The code is compressed as
+     * COMPRESS_PROPERTY says. DEBUG iff --debug was on the command line.
+     *
+     * <p>With the runtime library inline, the code is assembled as it is emitted. Otherwise the
+     * program is linked with the runtime module, whose assembly text is then assembled.
+     */
+    public static Assembler.Image assemble(Program program, boolean debug) {
+        CompileMetrics metrics = newMetrics();
+        Assembler.Image image = assemble(program, debug, metrics);
+        if (image != null) {
+            reportMetrics(metrics);
+        }
+        return image;
+    }
+
+    /**
+     * Perform code generation from PROGRAM to machine code as for {@link #assemble(Program,
+     * boolean)}, recording its timers and counters, and the size of the image, in METRICS, unless
+     * it is null. METRICS is left to the caller and not reported.
+     */
+    public static Assembler.Image assemble(
+            Program program, boolean debug, CompileMetrics metrics) {
+        boolean compress = !System.getProperty(COMPRESS_PROPERTY, "true").equals("false");
+        try {
+            Assembler.Image image;
+            if (System.getProperty(RUNTIME_PROPERTY, "inline").equals("inline")) {
+                MachineCodeBackend backend = new MachineCodeBackend();
+                backend.setPeephole(new PeepholeOptimizer());
+                backend.getAssembler().setCompressed(compress);
+                CodeGenBase cgen = new CodeGenImpl(backend, PRELUDE);
+                cgen.setMetrics(metrics);
+                cgen.generate(program);
+                beginPhase(metrics, CompileMetrics.Phase.ASSEMBLE);
+                image = backend.toImage();
+                endPhase(metrics, CompileMetrics.Phase.ASSEMBLE);
+                if (metrics != null) {
+                    metrics.finish(backend);
+                }
+                if (debug) {
+                    System.err.print(backend.getPeephole().report());
+                }
+            } else {
+                String asm = process(program, debug, null, metrics);
+                if (asm == null) {
+                    return null;
+                }
+                if (!System.getProperty(RUNTIME_PROPERTY).equals("link")) {
+                    asm = Linker.link(new Linker.Module(asm), RuntimeHolder.RUNTIME);
+                }
+                beginPhase(metrics, CompileMetrics.Phase.ASSEMBLE);
+                Assembler assembler = new Assembler();
+                assembler.setCompressed(compress);
+                assembler.addText(asm);
+                image = assembler.assemble();
+                endPhase(metrics, CompileMetrics.Phase.ASSEMBLE);
+            }
+            if (metrics != null) {
+                metrics.recordImage(image);
+            }
+            return image;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            System.err.println(
+                    "Error performing code generation. "
+                            + "Re-run with --debug to see stack trace.");
+            if (debug) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Perform code generation from PROGRAM, assumed to be well-typed, to RISC-V, streaming the
+     * assembly code to OUT as it is generated. The AST of PROGRAM is released as its code is
+     * emitted, so PROGRAM is left empty. Returns true iff successful. DEBUG iff --debug was on the
+     * command line.
+     *
+     * <p>The code of each function is written out as soon as it is emitted, so functions are
+     * neither merged nor outlined, and bodies are not emitted in parallel. Code linked with the
+     * runtime module is written out only once it is complete.
+     */
+    public static boolean process(Program program, boolean debug, Writer out) {
+        if (System.getProperty(RUNTIME_PROPERTY, "inline").equals("link")) {
+            String asm = process(program, debug);
+            if (asm == null) {
+                return false;
+            }
+            try {
+                out.write(asm);
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        try {
+            CompileMetrics metrics = newMetrics();
+            RiscVBackend backend = new RiscVBackend(out);
+            backend.setPeephole(new PeepholeOptimizer());
+            CodeGenBase cgen = new CodeGenImpl(backend, PRELUDE);
+            cgen.setReleaseEmittedCode(true);
+            cgen.setMetrics(metrics);
+            if (System.getProperty(RUNTIME_PROPERTY, "inline").equals("separate")) {
+                cgen.setRuntime(RuntimeHolder.RUNTIME);
+            }
+            cgen.generate(program);
+            beginPhase(metrics, CompileMetrics.Phase.WRITE_OUT);
+            backend.flush();
+            endPhase(metrics, CompileMetrics.Phase.WRITE_OUT);
+            if (metrics != null) {
+                metrics.finish(backend);
+                reportMetrics(metrics);
+            }
+            if (debug) {
+                System.err.print(backend.getPeephole().report());
+            }
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            System.err.println(
+                    "Error performing code generation. "
+                            + "Re-run with --debug to see stack trace.");
+            if (debug) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Perform code generation from PROGRAM as for {@link #process(Program, boolean, Writer)},
+     * streaming the assembly code to the file at PATH.
+     */
+    public static boolean process(Program program, boolean debug, Path path) throws IOException {
+        try (FileChannel channel =
+                        FileChannel.open(
+                                path,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING,
+                                StandardOpenOption.WRITE);
+                Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1)) {
+            return process(program, debug, out);
+        }
+    }
+
+    /** Returns new metrics if METRICS_PROPERTY is set, and otherwise null. */
+    private static CompileMetrics newMetrics() {
+        return System.getProperty(METRICS_PROPERTY) == null ? null : new CompileMetrics();
+    }
+
+    /** Start timing PHASE in METRICS, unless it is null. */
+    private static void beginPhase(CompileMetrics metrics, CompileMetrics.Phase phase) {
+        if (metrics != null) {
+            metrics.begin(phase);
+        }
+    }
+
+    /** Stop timing PHASE in METRICS, unless it is null. */
+    private static void endPhase(CompileMetrics metrics, CompileMetrics.Phase phase) {
+        if (metrics != null) {
+            metrics.end(phase);
+        }
+    }
+
+    /** Write the report of METRICS, unless it is null, where METRICS_PROPERTY says. */
+    private static void reportMetrics(CompileMetrics metrics) {
+        if (metrics == null) {
+            return;
+        }
+        String dest = System.getProperty(METRICS_PROPERTY, "");
+        if (dest.isEmpty() || dest.equals("-")) {
+            System.err.println(metrics.toJSON());
+            return;
+        }
+        try {
+            Files.write(
+                    Paths.get(dest),
+                    Collections.singletonList(metrics.toJSON()),
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Could not write compile metrics to " + dest + ": " + e);
+        }
+    }
 }
@@ -0,0 +1,23 @@
+class Shape(object):
+    sides:int = 0
+
+    def describe(self:"Shape") -> str:
+        return "shape"
+
+class Square(Shape):
+    def __init__(self:"Square"):
+        self.sides = 4
+
+class Counter(object):
+    count:int = 0
+
+    def increment(self:"Counter") -> int:
+        self.count = self.count + 1
+        return self.count
+
+def unused(n:int) -> int:
+    return len("abc") + n
+
+s:Square = None
+s = Square()
+print(s.sides)
@@ -0,0 +1,7 @@
+def f() -> int:
+    print("side")
+    return 1
+
+x:int = 0
+x = (1 % 0) + f()
+print(x)
@@ -0,0 +1,11 @@
+def f() -> int:
+    return 7
+
+a:int = 1
+b:int = 2
+c:int = 3
+d:int = 4
+print(a - (b - (c - (d - (a - (b - (c - (d - (a - (b - c))))))))))
+print((a + b) * (c - d) - (a * d + b * c) // (d - a) + (c * d - a) % (b + c))
+print(3 * f() - 1)
+print(a < b + c * d)
@@ -0,0 +1,45 @@
+class Animal(object):
+    def sound(self:"Animal") -> str:
+        return "..."
+
+    def speak(self:"Animal") -> str:
+        return self.sound()
+
+    def legs(self:"Animal") -> int:
+        return 0
+
+class Dog(Animal):
+    def sound(self:"Dog") -> str:
+        return "woof"
+
+class Puppy(Dog):
+    pass
+
+class Cat(Animal):
+    def sound(self:"Cat") -> str:
+        return "meow"
+
+    def legs(self:"Cat") -> int:
+        return 4
+
+class Factory(object):
+    def make(self:"Factory") -> Animal:
+        return Puppy()
+
+class CatFactory(Factory):
+    def make(self:"CatFactory") -> Animal:
+        return Cat()
+
+def adopt() -> Animal:
+    def create() -> Animal:
+        return Cat()
+    return create()
+
+a:Animal = None
+f:Factory = None
+a = Puppy()
+print(a.speak())
+a = adopt()
+print(a.speak())
+f = CatFactory()
+print(f.make().speak())
@@ -0,0 +1,86 @@
+package chocopy.common.astnodes;
+
+import chocopy.common.analysis.types.Type;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static chocopy.pa3.SamplePrograms.programs;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/** Tests of reading ASTs from their JSON form with {@link AstReader}. */
+public class AstReaderTest {
+
+    /** A list of two literals of type int, with its fields in an unusual order. */
+    private static final String LIST =
+            "{\"elements\": ["
+                    + "{\"value\": 1, \"inferredType\": {\"className\": \"int\","
+                    + " \"kind\": \"ClassValueType\"}, \"kind\": \"IntegerLiteral\","
+                    + " \"location\": [1, 2, 1, 2]},"
+                    + "{\"kind\": \"IntegerLiteral\", \"location\": [1, 5, 1, 5], \"value\": 2,"
+                    + " \"inferredType\": {\"kind\": \"ClassValueType\", \"className\": \"int\"}}"
+                    + "], \"location\": [1, 1, 1, 6], \"kind\": \"ListExpr\"}";
+
+    @Test
+    public void readsEveryProgramAsDataBindingDoes() throws IOException {
+        for (Path program : programs()) {
+            String json = new String(Files.readAllBytes(program), StandardCharsets.UTF_8);
+            Program bound = Node.fromJSON(Node.readTree(json), Program.class);
+            Program read = AstReader.read(program, Program.class);
+            assertEquals(program.toString(), bound.toJSON(), read.toJSON());
+            assertEquals(program.toString(), Node.readTree(json), Node.readTree(read.toJSON()));
+        }
+    }
+
+    @Test
+    public void readsWhatItWrites() throws IOException {
+        for (Path program : programs()) {
+            String json = AstReader.read(program, Program.class).toJSON();
+            assertEquals(program.toString(), json, AstReader.read(json, Program.class).toJSON());
+        }
+    }
+
+    @Test
+    public void readsFieldsInAnyOrderAndSharesTypes() throws IOException {
+        ListExpr list = AstReader.read(LIST, ListExpr.class);
+        assertEquals(2, list.elements.size());
+        assertEquals(2, ((IntegerLiteral) list.elements.get(1)).value);
+        assertArrayEquals(new int[] {1, 2, 1, 2}, list.elements.get(0).getLocation());
+        assertArrayEquals(new int[] {1, 1, 1, 6}, list.getLocation());
+        assertSame(Type.INT_TYPE, list.elements.get(0).getInferredType());
+        assertSame(Type.INT_TYPE, list.elements.get(1).getInferredType());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownKind() throws IOException {
+        AstReader.read("{\"kind\": \"GotoStmt\", \"location\": [1, 1, 1, 1]}", Node.class);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingKind() throws IOException {
+        AstReader.read("{\"location\": [1, 1, 1, 1], \"value\": 1}", Node.class);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsValueOfWrongClass() throws IOException {
+        AstReader.read(LIST, Program.class);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFieldOfWrongType() throws IOException {
+        AstReader.read(
+                "{\"kind\": \"ListExpr\", \"location\": [1, 1, 1, 1], \"elements\": 3}",
+                ListExpr.class);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTextAfterAst() throws IOException {
+        AstReader.read(LIST + " {}", ListExpr.class);
+    }
+}
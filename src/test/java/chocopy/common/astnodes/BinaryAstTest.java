@@ -0,0 +1,110 @@
+package chocopy.common.astnodes;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static chocopy.pa3.SamplePrograms.programs;
+import static chocopy.pa3.SamplePrograms.read;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests of the binary serialization of ASTs by {@link BinaryAst}. */
+public class BinaryAstTest {
+
+    /** Returns the files in DIRECTORY. */
+    private static List<Path> files(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            entries.forEach(files::add);
+        }
+        return files;
+    }
+
+    @Test
+    public void roundTripsEveryProgram() throws IOException {
+        for (Path program : programs()) {
+            Program ast = read(program);
+            byte[] data = BinaryAst.toBytes(ast);
+            assertTrue(program.toString(), BinaryAst.isBinaryAst(data));
+            assertTrue(program.toString(), data.length < Files.size(program) / 4);
+            assertEquals(program.toString(), ast.toJSON(), BinaryAst.fromBytes(data).toJSON());
+        }
+    }
+
+    @Test
+    public void keepsErrorMessages() throws IOException {
+        Program ast = read(sample("call"));
+        ast.setErrorMsg("Blamed on the program");
+        ast.statements.get(0).setErrorMsg("Blamed on a statement");
+        Program copy = (Program) BinaryAst.fromBytes(BinaryAst.toBytes(ast));
+        assertEquals("Blamed on the program", copy.getErrorMsg());
+        assertEquals("Blamed on a statement", copy.statements.get(0).getErrorMsg());
+        assertEquals(ast.toJSON(), copy.toJSON());
+    }
+
+    @Test
+    public void recognizesOnlyItsOwnFormat() throws IOException {
+        Path program = sample("call");
+        assertFalse(BinaryAst.isBinaryAst(Files.readAllBytes(program)));
+        assertFalse(BinaryAst.isBinaryAst("CPYA".getBytes(StandardCharsets.US_ASCII)));
+        try {
+            BinaryAst.fromBytes(Files.readAllBytes(program));
+            fail("Read JSON as a binary AST");
+        } catch (IOException e) {
+            assertEquals("Not a binary AST", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        byte[] data = BinaryAst.toBytes(read(sample("call")));
+        for (int length : new int[] {6, data.length / 2, data.length - 1}) {
+            try {
+                BinaryAst.fromBytes(Arrays.copyOf(data, length));
+                fail("Read " + length + " of " + data.length + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void cachesSerializationUntilSourceChanges() throws IOException {
+        Path dir = Files.createTempDirectory("binary-ast");
+        try {
+            Path source = dir.resolve("call.py.ast.typed");
+            Files.copy(sample("call"), source);
+            Path cacheDir = dir.resolve("cache");
+            String json = BinaryAst.readCached(source, cacheDir).toJSON();
+            List<Path> cached = files(cacheDir);
+            assertEquals(1, cached.size());
+            assertTrue(BinaryAst.isBinaryAst(Files.readAllBytes(cached.get(0))));
+            assertEquals(json, BinaryAst.readCached(source, cacheDir).toJSON());
+
+            // A serialization older than its source is replaced
+            Files.setLastModifiedTime(cached.get(0), FileTime.fromMillis(0));
+            assertEquals(json, BinaryAst.readCached(source, cacheDir).toJSON());
+            assertTrue(Files.getLastModifiedTime(cached.get(0)).toMillis() > 0);
+            assertEquals(cached, files(cacheDir));
+        } finally {
+            for (Path file : files(dir.resolve("cache"))) {
+                Files.delete(file);
+            }
+            Files.delete(dir.resolve("cache"));
+            Files.delete(dir.resolve("call.py.ast.typed"));
+            Files.delete(dir);
+        }
+    }
+}
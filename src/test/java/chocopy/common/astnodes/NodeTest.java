@@ -0,0 +1,62 @@
+package chocopy.common.astnodes;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the locations and kinds {@link Node} records. */
+public class NodeTest {
+
+    /** Returns an integer literal at LOCATION. */
+    private static Node literalAt(int... location) {
+        Node node = new IntegerLiteral(null, null, 1);
+        node.setLocation(location);
+        return node;
+    }
+
+    @Test
+    public void keepsLocationsUpToTheLimits() {
+        int[] location = {Node.MAX_LINE - 1, 1, Node.MAX_LINE, Node.MAX_COLUMN};
+        Node node = literalAt(location);
+        assertArrayEquals(location, node.getLocation());
+        assertEquals(
+                Node.packLocation(Node.MAX_LINE - 1, 1, Node.MAX_LINE, Node.MAX_COLUMN),
+                node.getPackedLocation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsColumnBeyondLimit() {
+        literalAt(1, Node.MAX_COLUMN + 1, 1, Node.MAX_COLUMN + 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLineBeyondLimit() {
+        literalAt(1, 1, Node.MAX_LINE + 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeLocation() {
+        literalAt(1, -1, 1, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsToReadLocationBeyondLimit() throws IOException {
+        AstReader.read(
+                "{\"kind\": \"IntegerLiteral\", \"location\": [1, 5000, 1, 5001], \"value\": 1}",
+                IntegerLiteral.class);
+    }
+
+    @Test
+    public void recordsKindOfNode() throws IOException {
+        Node node = literalAt(1, 1, 1, 2);
+        assertEquals("IntegerLiteral", node.kind);
+        assertTrue(node.toJSON().contains("\"kind\" : \"IntegerLiteral\""));
+        Node read = AstReader.read(node.toJSON(), IntegerLiteral.class);
+        assertEquals("IntegerLiteral", read.kind);
+        assertArrayEquals(node.getLocation(), read.getLocation());
+    }
+}
@@ -0,0 +1,195 @@
+package chocopy.common.codegen;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Tests of the machine code of {@link Assembler}, against encodings of the RISC-V spec. */
+public class AssemblerTest {
+
+    /** Returns the image of the assembly text ASM, with compressed encodings iff COMPRESS. */
+    private static Assembler.Image assemble(String asm, boolean compress) {
+        Assembler assembler = new Assembler();
+        assembler.setCompressed(compress);
+        assembler.addText(asm);
+        return assembler.assemble();
+    }
+
+    /** Returns the words of the text section of the RV32IM code of the assembly text ASM. */
+    private static int[] words(String asm) {
+        ByteBuffer text = ByteBuffer.wrap(assemble(asm, false).text);
+        text.order(ByteOrder.LITTLE_ENDIAN);
+        int[] words = new int[text.remaining() / 4];
+        for (int i = 0; i < words.length; i += 1) {
+            words[i] = text.getInt();
+        }
+        return words;
+    }
+
+    /** Returns the halfwords of the text section of the RVC code of the assembly text ASM. */
+    private static short[] halfwords(String asm) {
+        ByteBuffer text = ByteBuffer.wrap(assemble(asm, true).text);
+        text.order(ByteOrder.LITTLE_ENDIAN);
+        short[] halfwords = new short[text.remaining() / 2];
+        for (int i = 0; i < halfwords.length; i += 1) {
+            halfwords[i] = text.getShort();
+        }
+        return halfwords;
+    }
+
+    @Test
+    public void encodesRegisterAndImmediateInstructions() {
+        assertArrayEquals(new int[] {0x00150513}, words("addi a0, a0, 1"));
+        assertArrayEquals(new int[] {0x00c58533}, words("add a0, a1, a2"));
+        assertArrayEquals(new int[] {0x40b50533}, words("sub a0, a0, a1"));
+        assertArrayEquals(new int[] {0x02b50533}, words("mul a0, a0, a1"));
+        assertArrayEquals(new int[] {0x02b54533}, words("div a0, a0, a1"));
+        assertArrayEquals(new int[] {0x02b56533}, words("rem a0, a0, a1"));
+        assertArrayEquals(new int[] {0x12345537}, words("lui a0, 0x12345"));
+        assertArrayEquals(new int[] {0x00000073}, words("ecall"));
+    }
+
+    @Test
+    public void encodesLoadsAndStores() {
+        assertArrayEquals(new int[] {0x00412503}, words("lw a0, 4(sp)"));
+        assertArrayEquals(new int[] {0x00112623}, words("sw ra, 12(sp)"));
+        assertArrayEquals(new int[] {0xffc42503}, words("lw a0, -4(fp)"));
+    }
+
+    @Test
+    public void encodesJumpsAndBranches() {
+        assertArrayEquals(
+                new int[] {0x00b50463, 0x00000013, 0x00008067},
+                words("beq a0, a1, next\nnop\nnext:\njr ra"));
+        assertArrayEquals(
+                new int[] {0x008000ef, 0x00000013, 0x00008067},
+                words("jal f\nnop\nf:\nret"));
+        assertArrayEquals(new int[] {0x0000006f}, words("spin:\nj spin"));
+    }
+
+    @Test
+    public void encodesJumpsThroughRegisters() {
+        assertArrayEquals(new int[] {0x000580e7}, words("jalr a1"));
+        assertArrayEquals(new int[] {0x000580e7}, words("jalr ra, 0(a1)"));
+        assertArrayEquals(new int[] {0x000580e7}, words("jalr ra, a1, 0"));
+        assertArrayEquals(new int[] {0x00058067}, words("jalr zero, a1, 0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedJumpThroughRegister() {
+        words("jalr t0, a1, 4");
+    }
+
+    @Test
+    public void expandsPseudoInstructions() {
+        assertArrayEquals(new int[] {0x00500513}, words("li a0, 5"));
+        assertArrayEquals(new int[] {0x12345537, 0x67850513}, words("li a0, 0x12345678"));
+        // The low part is negative, so the high part is rounded up
+        assertArrayEquals(new int[] {0x12346537, 0xfff50513}, words("li a0, 0x12345fff"));
+        assertArrayEquals(new int[] {0x00058513}, words("mv a0, a1"));
+    }
+
+    @Test
+    public void addressesDataRelativeToPc() {
+        Assembler.Image image = assemble(".text\nla a0, x\n.data\nx:\n.word x", false);
+        assertEquals(Assembler.TEXT_BASE + 0x1000, image.dataBase);
+        assertEquals(image.dataBase, (int) image.getSymbols().get("x"));
+        ByteBuffer text = ByteBuffer.wrap(image.text).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x00001517, text.getInt());
+        assertEquals(0x00050513, text.getInt());
+        ByteBuffer data = ByteBuffer.wrap(image.data).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(image.dataBase, data.getInt());
+    }
+
+    @Test
+    public void resolvesEquivsOfLabels() {
+        Assembler.Image image =
+                assemble(
+                        ".equiv @first, x\n.equiv @second, @first+4\n.text\nla a0, @first\n"
+                                + ".data\nx:\n.word 7\n.word @second",
+                        false);
+        ByteBuffer text = ByteBuffer.wrap(image.text).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x00001517, text.getInt());
+        assertEquals(0x00050513, text.getInt());
+        ByteBuffer data = ByteBuffer.wrap(image.data).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(7, data.getInt());
+        assertEquals(image.dataBase + 4, data.getInt());
+    }
+
+    @Test
+    public void relaxesBranchesOutOfReach() {
+        StringBuilder asm = new StringBuilder("beq a0, a1, far\n");
+        for (int i = 0; i < 1100; i += 1) {
+            asm.append("nop\n");
+        }
+        asm.append("far:\nret\n");
+        int[] code = words(asm.toString());
+        assertEquals(1103, code.length);
+        // The inverted branch skips a jump to the target, 4 + 1100 * 4 bytes further on
+        assertEquals(0x00b51463, code[0]);
+        int offset = 4 + 1100 * 4;
+        int jump = ((offset >> 20) & 1) << 31
+                | ((offset >> 1) & 0x3ff) << 21
+                | ((offset >> 11) & 1) << 20
+                | ((offset >> 12) & 0xff) << 12
+                | 0x6f;
+        assertEquals(jump, code[1]);
+    }
+
+    @Test
+    public void writesElfHeader() {
+        Assembler.Image image = assemble(".text\nli a0, 1\n.globl main\nmain:\nret", true);
+        ByteBuffer elf = ByteBuffer.wrap(image.toElf()).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] ident = new byte[6];
+        elf.get(ident);
+        assertArrayEquals(new byte[] {0x7f, 'E', 'L', 'F', 1, 1}, ident);
+        // An executable for RISC-V, starting at main, after the compressed li
+        assertEquals(2, elf.getShort(16));
+        assertEquals(0xf3, elf.getShort(18));
+        assertEquals(Assembler.TEXT_BASE + 2, elf.getInt(24));
+        assertEquals(image.entry, elf.getInt(24));
+        // EF_RISCV_RVC
+        assertEquals(1, elf.getInt(36));
+        // The first program header loads the text at TEXT_BASE
+        assertEquals(1, elf.getInt(52));
+        assertEquals(Assembler.TEXT_BASE, elf.getInt(52 + 8));
+    }
+
+    @Test
+    public void encodesCompressedInstructions() {
+        assertArrayEquals(new short[] {0x0505}, halfwords("addi a0, a0, 1"));
+        assertArrayEquals(new short[] {0x4505}, halfwords("li a0, 1"));
+        assertArrayEquals(new short[] {(short) 0x852e}, halfwords("mv a0, a1"));
+        assertArrayEquals(new short[] {(short) 0x952e}, halfwords("add a0, a0, a1"));
+        assertArrayEquals(new short[] {(short) 0x8082}, halfwords("jr ra"));
+        assertArrayEquals(new short[] {0x40b2}, halfwords("lw ra, 12(sp)"));
+        assertArrayEquals(new short[] {(short) 0xc606}, halfwords("sw ra, 12(sp)"));
+        // c.addi16sp rather than c.addi, as GNU as does
+        assertArrayEquals(new short[] {0x717d}, halfwords("addi sp, sp, -16"));
+        assertArrayEquals(new short[] {0x41c8}, halfwords("lw a0, 4(a1)"));
+        assertArrayEquals(new short[] {(short) 0xc1c8}, halfwords("sw a0, 4(a1)"));
+        assertArrayEquals(new short[] {(short) 0xa001}, halfwords("spin:\nj spin"));
+        assertArrayEquals(
+                new short[] {(short) 0xc501, 0x0505, 0x0505, 0x0505, (short) 0x8082},
+                halfwords("beqz a0, done\naddi a0, a0, 1\naddi a0, a0, 1\n"
+                        + "addi a0, a0, 1\ndone:\njr ra"));
+    }
+
+    @Test
+    public void widensCompressedBranchesOutOfReach() {
+        StringBuilder asm = new StringBuilder("beqz a0, far\n");
+        for (int i = 0; i < 200; i += 1) {
+            asm.append("addi a0, a0, 1\n");
+        }
+        asm.append("far:\njr ra\n");
+        short[] code = halfwords(asm.toString());
+        // c.beqz reaches 256 bytes, so the branch over 400 bytes takes the full beq
+        assertEquals(2 + 200 + 1, code.length);
+        assertEquals(0x63, code[0] & 0x7f);
+        assertEquals(0x0505, code[2]);
+    }
+}
@@ -0,0 +1,358 @@
+package chocopy.common.codegen;
+
+import chocopy.common.astnodes.Identifier;
+import chocopy.common.astnodes.MemberExpr;
+import chocopy.common.astnodes.Node;
+import chocopy.common.astnodes.Program;
+import chocopy.pa3.CodeGenImpl;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static chocopy.pa3.SamplePrograms.compileWithReference;
+import static chocopy.pa3.SamplePrograms.expectedOutput;
+import static chocopy.pa3.SamplePrograms.failures;
+import static chocopy.pa3.SamplePrograms.programs;
+import static chocopy.pa3.SamplePrograms.read;
+import static chocopy.pa3.SamplePrograms.run;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the names {@link CodeGenBase} resolves, of the code and methods it leaves out, and of
+ * the parallel emission and streaming of the code it generates, through the generator of
+ * CodeGenImpl.
+ */
+public class CodeGenBaseTest {
+
+    /** A program with a class it never instantiates and routines it never needs. */
+    private static final Path UNUSED = sample("class_unused");
+
+    /**
+     * A program dispatching to inherited and overridden methods of classes instantiated only as
+     * subclasses, in nested functions or in methods of subclasses, with a method never called.
+     */
+    private static final Path DISPATCH = sample("object_method_dispatch");
+
+    /** A program with nested functions using variables of enclosing functions and globals. */
+    private static final Path NESTED = sample("nested2");
+
+    /** Add the nodes of class KIND in the tree rooted at NODE to FOUND, in preorder. */
+    private static <T extends Node> void collect(Object node, Class<T> kind, List<T> found) {
+        if (node instanceof List) {
+            for (Object element : (List<?>) node) {
+                collect(element, kind, found);
+            }
+        } else if (node instanceof Node) {
+            if (kind.isInstance(node)) {
+                found.add(kind.cast(node));
+            }
+            for (Field field : node.getClass().getFields()) {
+                try {
+                    collect(field.get(node), kind, found);
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+    }
+
+    /** Returns the nodes of class KIND in PROGRAM. */
+    private static <T extends Node> List<T> collect(Program program, Class<T> kind) {
+        List<T> found = new ArrayList<>();
+        collect(program, kind, found);
+        return found;
+    }
+
+    /** Returns the identifiers named NAME in PROGRAM that were resolved to a descriptor. */
+    private static List<Identifier> uses(Program program, String name) {
+        List<Identifier> uses = new ArrayList<>();
+        for (Identifier id : collect(program, Identifier.class)) {
+            if (id.name.equals(name) && id.getSymbolInfo() != null) {
+                uses.add(id);
+            }
+        }
+        return uses;
+    }
+
+    /**
+     * Returns the code generated for the typed AST at PATH, leaving out unused code iff
+     * REMOVEUNUSED and methods never called iff PRUNEMETHODS.
+     */
+    private static String compile(Path path, boolean removeUnused, boolean pruneMethods)
+            throws IOException {
+        RiscVBackend backend = new RiscVBackend();
+        CodeGenImpl cgen = new CodeGenImpl(backend);
+        cgen.setRemoveUnusedCode(removeUnused);
+        cgen.setPruneMethods(pruneMethods);
+        cgen.generate(read(path));
+        return backend.toString();
+    }
+
+    /**
+     * A backend streaming to a writer, which records the most function bodies recorded but not yet
+     * replayed, and the number of times pending code is written out.
+     */
+    private static final class StreamingBackend extends RiscVBackend {
+
+        /** The number of function bodies recorded but not yet replayed. */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /** The most function bodies outstanding at once. */
+        private final AtomicInteger maxOutstanding = new AtomicInteger();
+
+        /** The number of times code was pending when written out. */
+        private int writes = 0;
+
+        StreamingBackend(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        public void startBuffer(FunctionBuffer buffer) {
+            maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+            super.startBuffer(buffer);
+        }
+
+        @Override
+        public void replay(FunctionBuffer buffer) {
+            outstanding.decrementAndGet();
+            super.replay(buffer);
+        }
+
+        @Override
+        public void writePending() {
+            if (!getPending().isEmpty()) {
+                writes += 1;
+            }
+            super.writePending();
+        }
+    }
+
+    /**
+     * Returns the code streamed for the typed AST at PATH to BACKEND's writer OUT, with bodies
+     * emitted on the common pool whenever there is more than one and with functions cached iff
+     * CACHE.
+     */
+    private static String stream(
+            Path path, StreamingBackend backend, StringWriter out, boolean cache)
+            throws IOException {
+        CodeGenImpl cgen = new CodeGenImpl(backend);
+        cgen.setReleaseEmittedCode(true);
+        cgen.setEmissionPool(ForkJoinPool.commonPool(), 2);
+        cgen.setFunctionCache(cache ? new FunctionCache() : null);
+        cgen.generate(read(path));
+        backend.flush();
+        return out.toString();
+    }
+
+    /**
+     * Returns the code generated for the typed AST at PATH without streaming it, and without the
+     * passes over the whole program that streaming leaves out.
+     */
+    private static String compileWhole(Path path) throws IOException {
+        RiscVBackend backend = new RiscVBackend();
+        CodeGenImpl cgen = new CodeGenImpl(backend);
+        cgen.setMergeFunctions(false);
+        cgen.setOutlineCode(false);
+        cgen.generate(read(path));
+        return backend.toString();
+    }
+
+    /**
+     * Returns the code generated for the typed AST at PATH, emitting function bodies on POOL
+     * whenever there is one, or sequentially if POOL is null.
+     */
+    private static String compile(Path path, ForkJoinPool pool) throws IOException {
+        RiscVBackend backend = new RiscVBackend();
+        CodeGenImpl cgen = new CodeGenImpl(backend);
+        cgen.setEmissionPool(pool, 1);
+        cgen.generate(read(path));
+        return backend.toString();
+    }
+
+    @Test
+    public void resolvesVariablesToTheirScopes() throws IOException {
+        Program program = read(NESTED);
+        CodeGenImpl cgen = new CodeGenImpl(new RiscVBackend());
+        cgen.generate(program);
+        FuncInfo foo = (FuncInfo) cgen.globalSymbols.get("foo");
+        FuncInfo qux = (FuncInfo) foo.getSymbolTable().get("qux");
+
+        List<Identifier> g = uses(program, "g");
+        assertEquals(1, g.size());
+        assertSame(cgen.globalSymbols.get("g"), g.get(0).getSymbolInfo());
+        // baz uses the local y of foo, two functions up
+        List<Identifier> y = uses(program, "y");
+        assertEquals(1, y.size());
+        assertSame(foo.getSymbolTable().get("y"), y.get(0).getSymbolInfo());
+        assertEquals(3, ((StackVarInfo) y.get(0).getSymbolInfo()).getVarIndex());
+        List<Identifier> p = uses(program, "p");
+        assertEquals(1, p.size());
+        assertSame(qux.getSymbolTable().get("p"), p.get(0).getSymbolInfo());
+        assertEquals(0, ((StackVarInfo) p.get(0).getSymbolInfo()).getVarIndex());
+        assertSame(qux, uses(program, "qux").get(0).getSymbolInfo());
+    }
+
+    @Test
+    public void resolvesVariablesToTheirSlots() throws IOException {
+        for (Path path : programs()) {
+            Program program = read(path);
+            new CodeGenImpl(new RiscVBackend()).generate(program);
+            for (Identifier id : collect(program, Identifier.class)) {
+                if (id.getSymbolInfo() instanceof StackVarInfo) {
+                    StackVarInfo var = (StackVarInfo) id.getSymbolInfo();
+                    assertEquals(
+                            path + ": " + id.name,
+                            var.getFuncInfo().getVarIndex(var.getVarName()),
+                            var.getVarIndex());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void resolvesMembersToTheirSlots() throws IOException {
+        int members = 0;
+        for (Path path : programs()) {
+            Program program = read(path);
+            CodeGenImpl cgen = new CodeGenImpl(new RiscVBackend());
+            cgen.generate(program);
+            for (MemberExpr member : collect(program, MemberExpr.class)) {
+                String className = member.object.getInferredType().className();
+                ClassInfo classInfo = (ClassInfo) cgen.globalSymbols.get(className);
+                String name = member.member.name;
+                int expected =
+                        member.getInferredType().isFuncType()
+                                ? classInfo.getMethodIndex(name)
+                                : classInfo.getAttributeIndex(name);
+                assertTrue(path + ": " + name, expected >= 0);
+                assertEquals(path + ": " + name, expected, member.getMemberIndex());
+                members += 1;
+            }
+        }
+        assertTrue(members > 0);
+    }
+
+    @Test
+    public void emitsSameCodeInParallelAsSequentially() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (Path program : programs()) {
+                String sequential = compile(program, null);
+                assertEquals(program.toString(), sequential, compile(program, pool));
+                assertEquals(program.toString(), sequential, compile(program, pool));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void streamsCodeFunctionByFunction() throws IOException {
+        for (boolean cache : new boolean[] {false, true}) {
+            StringWriter out = new StringWriter();
+            StreamingBackend backend = new StreamingBackend(out);
+            String asm = stream(DISPATCH, backend, out, cache);
+            // At most one body is held outside the pending code, which is written out after each
+            assertTrue(backend.maxOutstanding.get() <= 1);
+            // The data and top level, each of the eight functions used, then routines and constants
+            assertEquals(10, backend.writes);
+            assertEquals(compileWhole(DISPATCH), asm);
+            assertEquals(expectedOutput(DISPATCH), run(asm, DISPATCH));
+        }
+    }
+
+    @Test
+    public void leavesOutUnusedClassesAndRoutines() throws IOException {
+        String asm = compile(UNUSED, true, true);
+        assertFalse(asm.contains("$Counter$prototype:"));
+        assertFalse(asm.contains("$Counter$dispatchTable:"));
+        assertFalse(asm.contains("$object$prototype:"));
+        assertFalse(asm.contains("$input:"));
+        assertFalse(asm.contains("initChars:"));
+        assertFalse(asm.contains("strcat:"));
+        // Square is instantiated, and unused() calls len
+        assertTrue(asm.contains("$Square$prototype:"));
+        assertTrue(asm.contains("$len:"));
+        assertEquals(expectedOutput(UNUSED), run(asm, UNUSED));
+    }
+
+    @Test
+    public void keepsUnusedCodeWhenAsked() throws IOException {
+        String asm = compile(UNUSED, false, false);
+        assertTrue(asm.contains("$Counter$prototype:"));
+        assertTrue(asm.contains("$Counter$dispatchTable:"));
+        assertTrue(asm.contains("$input:"));
+        assertTrue(asm.contains("initChars:"));
+        assertTrue(asm.contains("strcat:"));
+        assertEquals(expectedOutput(UNUSED), run(asm, UNUSED));
+    }
+
+    @Test
+    public void runsProgramsWithUnusedCodeKept() throws IOException {
+        assertEquals(
+                new ArrayList<String>(),
+                failures(program -> Simulator.load(compile(program, false, false))));
+    }
+
+    @Test
+    public void prunesMethodsNeverCalled() throws IOException {
+        String asm = compile(DISPATCH, true, true);
+        assertFalse(asm.contains("$Animal.legs:"));
+        assertFalse(asm.contains("$Cat.legs:"));
+        assertTrue(asm.contains("# Method never called: Cat.legs"));
+        // Puppy inherits sound from Dog and speak from Animal, neither of which is instantiated
+        assertTrue(asm.contains("# Implementation for method: Puppy.sound"));
+        assertTrue(asm.contains("$Dog.sound:"));
+        assertTrue(asm.contains("$Animal.speak:"));
+        // Cat is only instantiated in a nested function and a method of a subclass
+        assertTrue(asm.contains("$Cat.sound:"));
+        assertTrue(asm.contains("$CatFactory.make:"));
+        assertEquals(expectedOutput(DISPATCH), run(asm, DISPATCH));
+    }
+
+    @Test
+    public void keepsMethodsWhenAsked() throws IOException {
+        String asm = compile(DISPATCH, true, false);
+        assertTrue(asm.contains("$Animal.legs:"));
+        assertTrue(asm.contains("$Cat.legs:"));
+        assertFalse(asm.contains("# Method never called"));
+        assertEquals(expectedOutput(DISPATCH), run(asm, DISPATCH));
+    }
+
+    @Test
+    public void runsProgramsWithMethodsKept() throws IOException {
+        assertEquals(
+                new ArrayList<String>(),
+                failures(program -> Simulator.load(compile(program, true, false))));
+    }
+
+    @Test
+    public void keepsUnusedCodeInReferenceOutput() throws IOException {
+        String asm = compileWithReference(UNUSED);
+        assertTrue(asm.contains("$Counter$prototype:"));
+        assertTrue(asm.contains("$input:"));
+        assertEquals(expectedOutput(UNUSED), run(asm, UNUSED));
+    }
+
+    @Test
+    public void keepsMethodsInReferenceOutput() throws IOException {
+        String asm = compileWithReference(DISPATCH);
+        assertTrue(asm.contains("$Cat.legs:"));
+        assertFalse(asm.contains("# Method never called"));
+        assertEquals(expectedOutput(DISPATCH), run(asm, DISPATCH));
+    }
+}
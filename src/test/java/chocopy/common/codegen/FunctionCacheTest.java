@@ -0,0 +1,126 @@
+package chocopy.common.codegen;
+
+import chocopy.common.astnodes.Node;
+import chocopy.common.astnodes.Program;
+import chocopy.pa3.StudentCodeGen;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static chocopy.pa3.SamplePrograms.programs;
+import static chocopy.pa3.SamplePrograms.read;
+import static chocopy.pa3.SamplePrograms.run;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of {@link FunctionCache}, through the code generator of StudentCodeGen. */
+public class FunctionCacheTest {
+
+    /** A program whose functions and methods each return a different value. */
+    private static final Path DISPATCH = sample("object_method_dispatch");
+
+    /** Matches the start line of a source location in the JSON form of an AST. */
+    private static final Pattern START_LINE = Pattern.compile("(\"location\" : \\[ )(\\d+)");
+
+    /**
+     * Returns the program whose JSON form is that of DISPATCH with Dog.sound returning "bark",
+     * and every node starting LINES further down.
+     */
+    private static Program editedDispatch(int lines) throws IOException {
+        String json = new String(Files.readAllBytes(DISPATCH), StandardCharsets.UTF_8);
+        Matcher m = START_LINE.matcher(json.replace("\"woof\"", "\"bark\""));
+        StringBuffer edited = new StringBuffer();
+        while (m.find()) {
+            m.appendReplacement(edited, m.group(1) + (Integer.parseInt(m.group(2)) + lines));
+        }
+        m.appendTail(edited);
+        return (Program) Node.fromJSON(edited.toString());
+    }
+
+    @Test
+    public void generatesSameCodeWithCacheAsWithout() throws IOException {
+        FunctionCache cache = new FunctionCache();
+        for (int round = 0; round < 2; round += 1) {
+            for (Path program : programs()) {
+                String uncached = StudentCodeGen.process(read(program), false);
+                assertEquals(
+                        program.toString(),
+                        uncached,
+                        StudentCodeGen.process(read(program), false, cache));
+            }
+        }
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    public void regeneratesOnlyChangedFunctions() throws IOException {
+        FunctionCache cache = new FunctionCache();
+        StudentCodeGen.process(read(DISPATCH), false, cache);
+        long functions = cache.getMisses();
+        assertEquals(0, cache.getHits());
+        assertEquals(functions, cache.size());
+
+        // Only Dog.sound changed
+        StudentCodeGen.process(editedDispatch(0), false, cache);
+        assertEquals(functions - 1, cache.getHits());
+        assertEquals(functions + 1, cache.getMisses());
+
+        // Moving the whole program down does not change the code of any function
+        String asm = StudentCodeGen.process(editedDispatch(10), false, cache);
+        assertEquals(2 * functions - 1, cache.getHits());
+        assertEquals(functions + 1, cache.getMisses());
+        assertEquals(StudentCodeGen.process(editedDispatch(10), false), asm);
+        assertEquals("bark\nmeow\nmeow\n", run(asm, DISPATCH));
+    }
+
+    @Test
+    public void keysDependOnGeneratorAndFunction() {
+        FunctionCache cache = new FunctionCache();
+        String layout =
+                cache.layoutKey(
+                        "A",
+                        Collections.<ClassInfo>emptyList(),
+                        Collections.<GlobalVarInfo>emptyList(),
+                        Collections.<FuncInfo>emptyList());
+        assertEquals(
+                layout,
+                cache.layoutKey(
+                        "A",
+                        Collections.<ClassInfo>emptyList(),
+                        Collections.<GlobalVarInfo>emptyList(),
+                        Collections.<FuncInfo>emptyList()));
+        assertNotEquals(
+                layout,
+                cache.layoutKey(
+                        "B",
+                        Collections.<ClassInfo>emptyList(),
+                        Collections.<GlobalVarInfo>emptyList(),
+                        Collections.<FuncInfo>emptyList()));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntry() {
+        FunctionCache cache = new FunctionCache(2);
+        cache.put("a", new FunctionBuffer());
+        cache.put("b", new FunctionBuffer());
+        assertNotNull(cache.get("a"));
+        cache.put("c", new FunctionBuffer());
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+}
@@ -0,0 +1,157 @@
+package chocopy.common.codegen;
+
+import chocopy.common.analysis.types.Type;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static chocopy.common.codegen.RiscVBackend.Register.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of {@link FunctionMerger} on short programs. */
+public class FunctionMergerTest {
+
+    /** The backend the code under test is emitted with. */
+    private final RiscVBackend backend = new RiscVBackend();
+
+    /** The merger under test, of functions f, g and h. */
+    private final FunctionMerger merger =
+            new FunctionMerger(Arrays.asList(function("f"), function("g"), function("h")));
+
+    /** Returns the description of function NAME. */
+    private static FuncInfo function(String name) {
+        return new FuncInfo(name, 0, Type.INT_TYPE, null, null, null);
+    }
+
+    /** Emit function NAME, which counts down from VALUE in a loop, calls itself, and returns. */
+    private void emitFunction(String name, int value) {
+        Label loop = new Label(name + ".loop");
+        backend.emitGlobalLabel(new Label("$" + name));
+        backend.emitADDI(SP, SP, "-@" + name + ".size", "Reserve frame of " + name);
+        backend.emitLI(A0, value, null);
+        backend.emitLocalLabel(loop, null);
+        backend.emitADDI(A0, A0, -1, null);
+        backend.emitBNEZ(A0, loop, null);
+        backend.emitJAL(new Label("$" + name), null);
+        backend.defineSym(name + ".size", 16);
+        backend.emitADDI(SP, SP, "@" + name + ".size", null);
+        backend.emitJR(RA, null);
+    }
+
+    /** Emit main, which calls f and g. */
+    private void emitMain() {
+        backend.startCode();
+        backend.emitGlobalLabel(new Label("main"));
+        backend.emitJAL(new Label("$f"), null);
+        backend.emitJAL(new Label("$g"), null);
+        backend.emitJR(RA, null);
+    }
+
+    /** Emit a table holding the addresses of f and g. */
+    private void emitTable() {
+        backend.startData();
+        backend.emitGlobalLabel(new Label("table"));
+        backend.emitWordAddress(new Label("$f"), null);
+        backend.emitWordAddress(new Label("$g"), null);
+    }
+
+    /** Returns the code emitted to BACKEND after merging, one entry per string. */
+    private List<String> merge() {
+        List<Instruction> code = backend.getPending();
+        merger.merge(code);
+        List<String> result = new ArrayList<>();
+        for (Instruction insn : code) {
+            result.add(insn.toString());
+        }
+        return result;
+    }
+
+    @Test
+    public void mergesIdenticalFunctionsAndRedirectsReferences() {
+        emitMain();
+        emitFunction("f", 3);
+        emitFunction("g", 3);
+        emitTable();
+        List<String> code = merge();
+        assertEquals(1, merger.getMergedCount());
+        assertFalse(code.contains("$g:"));
+        assertFalse(code.contains("g.loop:"));
+        assertEquals(3, Collections.frequency(code, "jal $f"));
+        assertEquals(2, Collections.frequency(code, ".word $f"));
+    }
+
+    @Test
+    public void keepsFunctionsThatDiffer() {
+        emitMain();
+        emitFunction("f", 3);
+        emitFunction("g", 4);
+        emitTable();
+        List<String> code = merge();
+        assertEquals(0, merger.getMergedCount());
+        assertTrue(code.contains("$g:"));
+        assertTrue(code.contains(".word $g"));
+    }
+
+    @Test
+    public void keepsCopyEnteredByFallingThrough() {
+        emitMain();
+        emitFunction("f", 3);
+        backend.emitGlobalLabel(new Label("other"));
+        backend.emitLI(A0, 1, null);
+        emitFunction("g", 3);
+        List<String> code = merge();
+        assertEquals(0, merger.getMergedCount());
+        assertTrue(code.contains("$g:"));
+        assertTrue(code.contains("jal $g"));
+    }
+
+    @Test
+    public void keepsCopyLeftByFallingThrough() {
+        emitMain();
+        emitFunction("f", 3);
+        backend.emitLI(A0, 1, null);
+        backend.emitGlobalLabel(new Label("other"));
+        backend.emitJR(RA, null);
+        emitFunction("g", 3);
+        backend.emitLI(A0, 1, null);
+        backend.emitGlobalLabel(new Label("next"));
+        backend.emitJR(RA, null);
+        List<String> code = merge();
+        assertEquals(0, merger.getMergedCount());
+        assertTrue(code.contains("$g:"));
+    }
+
+    @Test
+    public void keepsCopyWhoseLocalLabelIsReferencedFromOutside() {
+        emitMain();
+        emitFunction("f", 3);
+        emitFunction("g", 3);
+        backend.emitGlobalLabel(new Label("other"));
+        backend.emitJ(new Label("g.loop"), null);
+        List<String> code = merge();
+        assertEquals(0, merger.getMergedCount());
+        assertTrue(code.contains("g.loop:"));
+    }
+
+    @Test
+    public void mergesEveryLaterCopyIntoFirst() {
+        emitMain();
+        emitFunction("f", 3);
+        emitFunction("g", 3);
+        emitFunction("h", 3);
+        backend.emitGlobalLabel(new Label("other"));
+        backend.emitJAL(new Label("$h"), null);
+        backend.emitJR(RA, null);
+        List<String> code = merge();
+        assertEquals(2, merger.getMergedCount());
+        assertFalse(code.contains("$h:"));
+        assertFalse(code.contains("jal $h"));
+        assertEquals(4, Collections.frequency(code, "jal $f"));
+    }
+}
@@ -0,0 +1,109 @@
+package chocopy.common.codegen;
+
+import chocopy.pa3.CodeGenImpl;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static chocopy.common.Utils.pad;
+import static chocopy.pa3.SamplePrograms.read;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the rendering of {@link LibraryRoutine}s, and of their cache in CodeGenBase. */
+public class LibraryRoutineTest {
+
+    /** A program printing strings, and so using print and its string constants. */
+    private static final Path PROGRAM = sample("object_method_dispatch");
+
+    /**
+     * A generator of its own class, so that its routines are read apart from those of other
+     * generators, which records the routines it reads.
+     */
+    private static final class ReadingCodeGen extends CodeGenImpl {
+
+        /** The source of each routine read by generators of this class, by name. */
+        static final Map<String, String> reads = new ConcurrentHashMap<>();
+
+        ReadingCodeGen(RiscVBackend backend) {
+            super(backend);
+        }
+
+        @Override
+        protected String getStandardLibraryCode(String name, String lib) {
+            String source = super.getStandardLibraryCode(name, lib);
+            assertNull(reads.put(lib + name, source));
+            return source;
+        }
+    }
+
+    /**
+     * Returns SOURCE with each STRING["..."] notation replaced by the padded label of its string
+     * in CONSTANTS, by searching SOURCE.
+     */
+    private static String substitute(String source, Constants constants) {
+        Matcher matcher = Pattern.compile("STRING\\[\"(.*?)\"\\]").matcher(source);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            String label = constants.getStrConstant(matcher.group(1)).toString();
+            String padded = pad(label, ' ', matcher.end() - matcher.start(), false);
+            matcher.appendReplacement(result, Matcher.quoteReplacement(padded));
+        }
+        return matcher.appendTail(result).toString();
+    }
+
+    @Test
+    public void leavesSourceWithoutNotations() {
+        String source = "  li a0, 1\n  jr ra\n";
+        assertSame(source, new LibraryRoutine(source).render(new Constants()));
+    }
+
+    @Test
+    public void replacesNotationsWithPaddedLabels() {
+        String source =
+                "  la a0, STRING[\"a\"]\n  la a1, STRING[\"bc\"] # c\n  la a2, STRING[\"a\"]";
+        Constants constants = new Constants();
+        String rendered = new LibraryRoutine(source).render(constants);
+        assertEquals(substitute(source, new Constants()), rendered);
+        assertEquals(source.length(), rendered.length());
+        assertTrue(rendered.contains(constants.getStrConstant("bc") + " "));
+    }
+
+    @Test
+    public void rendersLibraryRoutinesAsSubstitutionDoes() throws IOException {
+        new ReadingCodeGen(new RiscVBackend()).generate(read(PROGRAM));
+        String print = ReadingCodeGen.reads.get(CodeGenBase.LIBRARY_CODE_DIR + "$print");
+        assertNotNull(print);
+        assertTrue(print.contains("STRING[\""));
+        for (String source : ReadingCodeGen.reads.values()) {
+            LibraryRoutine routine = new LibraryRoutine(source);
+            assertEquals(substitute(source, new Constants()), routine.render(new Constants()));
+        }
+    }
+
+    @Test
+    public void readsEachRoutineOncePerGeneratorClass() throws IOException {
+        RiscVBackend first = new RiscVBackend();
+        new ReadingCodeGen(first).generate(read(PROGRAM));
+        int reads = ReadingCodeGen.reads.size();
+        assertTrue(reads > 0);
+
+        RiscVBackend second = new RiscVBackend();
+        new ReadingCodeGen(second).generate(read(PROGRAM));
+        assertEquals(reads, ReadingCodeGen.reads.size());
+        assertEquals(first.toString(), second.toString());
+        RiscVBackend plain = new RiscVBackend();
+        new CodeGenImpl(plain).generate(read(PROGRAM));
+        assertEquals(plain.toString(), second.toString());
+    }
+}
@@ -0,0 +1,128 @@
+package chocopy.common.codegen;
+
+import chocopy.pa3.CodeGenImpl;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import static chocopy.pa3.SamplePrograms.failures;
+import static chocopy.pa3.SamplePrograms.read;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests of {@link Linker}, on programs compiled against a runtime module. */
+public class LinkerTest {
+
+    /** A runtime module exporting f, with a private constant. */
+    private static final String RUNTIME =
+            ".equiv @x, 1\n"
+                    + ".text\n"
+                    + ".globl f\n"
+                    + "f:\n"
+                    + "  la a0, const_1\n"
+                    + "  jr ra\n"
+                    + ".data\n"
+                    + "const_1:\n"
+                    + "  .word 2";
+
+    /** A program importing f from RUNTIME, with a constant of the same name as RUNTIME's. */
+    private static final String PROGRAM =
+            ".equiv @x, 1\n"
+                    + ".extern f\n"
+                    + ".text\n"
+                    + "  jal f\n"
+                    + "  la a0, const_1\n"
+                    + ".data\n"
+                    + "const_1:\n"
+                    + "  .word 1";
+
+    /** The predefined classes and functions shared by the runtime and the programs. */
+    private static final Prelude PRELUDE = new CodeGenImpl(new RiscVBackend()).getPrelude();
+
+    /** Returns a new runtime module. */
+    private static Linker.Module runtime() {
+        RiscVBackend backend = new RiscVBackend();
+        new CodeGenImpl(backend, PRELUDE).generateRuntime();
+        return new Linker.Module(backend.toString());
+    }
+
+    /** Returns the module of the program whose typed AST is at PATH, compiled against RUNTIME. */
+    private static Linker.Module compile(Path path, Linker.Module runtime) throws IOException {
+        RiscVBackend backend = new RiscVBackend();
+        CodeGenBase cgen = new CodeGenImpl(backend, PRELUDE);
+        cgen.setRuntime(runtime);
+        cgen.generate(read(path));
+        return new Linker.Module(backend.toString());
+    }
+
+    /** Fail unless linking PROGRAM with RUNTIME throws an IllegalStateException. */
+    private static void assertRejected(String program, String runtime) {
+        try {
+            Linker.link(new Linker.Module(program), new Linker.Module(runtime));
+            fail("Linked modules that do not fit together");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void importsOnlyWhatRuntimeExports() throws IOException {
+        Linker.Module runtime = runtime();
+        Linker.Module program = compile(sample("object_method_dispatch"), runtime);
+        assertTrue(runtime.getExports().contains("alloc"));
+        assertTrue(program.getImports().contains("$print"));
+        assertTrue(runtime.getExports().containsAll(program.getImports()));
+        assertFalse(program.toString().contains("\nalloc:"));
+    }
+
+    @Test
+    public void runsEveryProgramLinkedWithRuntime() throws IOException {
+        Linker.Module runtime = runtime();
+        assertEquals(
+                new ArrayList<String>(),
+                failures(
+                        program ->
+                                Simulator.load(
+                                        Linker.link(compile(program, runtime), runtime))));
+    }
+
+    @Test
+    public void renamesClashingPrivateSymbolsOfRuntime() {
+        String image = Linker.link(new Linker.Module(PROGRAM), new Linker.Module(RUNTIME));
+        assertEquals(
+                ".equiv @x, 1\n"
+                        + ".text\n"
+                        + "  jal f\n"
+                        + "  la a0, const_1\n"
+                        + ".data\n"
+                        + "const_1:\n"
+                        + "  .word 1\n"
+                        + ".text\n"
+                        + ".globl f\n"
+                        + "f:\n"
+                        + "  la a0, rt.const_1\n"
+                        + "  jr ra\n"
+                        + ".data\n"
+                        + "rt.const_1:\n"
+                        + "  .word 2",
+                image);
+    }
+
+    @Test
+    public void rejectsModulesThatDoNotFit() {
+        // g is not exported
+        assertRejected(PROGRAM + "\n.extern g", RUNTIME);
+        // f is defined twice
+        assertRejected(PROGRAM + "\n.text\nf:\n  jr ra", RUNTIME);
+        // h is defined nowhere
+        assertRejected(PROGRAM + "\n.text\n  jal h", RUNTIME);
+        // @x has two values
+        assertRejected(PROGRAM.replace("@x, 1", "@x, 2"), RUNTIME);
+    }
+}
@@ -0,0 +1,149 @@
+package chocopy.common.codegen;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static chocopy.common.codegen.RiscVBackend.Register.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of {@link MachineOutliner} on short programs. */
+public class MachineOutlinerTest {
+
+    /** The backend the code under test is emitted with. */
+    private final RiscVBackend backend = new RiscVBackend();
+
+    /** The outliner under test. */
+    private final MachineOutliner outliner = new MachineOutliner();
+
+    /** Returns the code emitted to BACKEND after outlining, one entry per string. */
+    private List<String> outline() {
+        List<Instruction> code = backend.getPending();
+        outliner.outline(code);
+        List<String> result = new ArrayList<>();
+        for (Instruction insn : code) {
+            result.add(insn.toString().trim());
+        }
+        return result;
+    }
+
+    /** Emit the sequence of three instructions repeated in the tests. */
+    private void emitSequence() {
+        backend.emitLI(A0, 1, null);
+        backend.emitLI(A1, 2, null);
+        backend.emitADD(A0, A0, A1, null);
+    }
+
+    /** Emit the data section. */
+    private void emitData() {
+        backend.startData();
+        backend.emitGlobalLabel(new Label("x"));
+        backend.emitWordLiteral(0, null);
+    }
+
+    @Test
+    public void callsSequenceThroughLinkRegister() {
+        backend.startCode();
+        for (int i = 0; i < 3; i += 1) {
+            backend.emitGlobalLabel(new Label("f" + i));
+            emitSequence();
+            backend.emitLI(T0, i, null);
+            backend.emitJR(RA, null);
+        }
+        emitData();
+        List<String> code = outline();
+        assertEquals(1, outliner.getOutlinedCount());
+        assertEquals(3 * 12 - (3 * 4 + 12 + 4), outliner.getBytesSaved());
+        assertEquals(3, Collections.frequency(code, "jal tp, outlined.0"));
+        int body = code.indexOf("outlined.0:");
+        assertEquals(
+                Arrays.asList("li a0, 1", "li a1, 2", "add a0, a0, a1", "jr tp"),
+                code.subList(body + 1, body + 5));
+        assertEquals(".data", code.get(body + 5));
+    }
+
+    @Test
+    public void jumpsToSequenceEndingInReturn() {
+        backend.startCode();
+        for (int i = 0; i < 3; i += 1) {
+            backend.emitGlobalLabel(new Label("f" + i));
+            backend.emitLI(T0, i, null);
+            emitSequence();
+            backend.emitJR(RA, null);
+        }
+        List<String> code = outline();
+        assertEquals(1, outliner.getOutlinedCount());
+        assertEquals(3, Collections.frequency(code, "j outlined.0"));
+        assertEquals(
+                Arrays.asList("outlined.0:", "li a0, 1", "li a1, 2", "add a0, a0, a1", "jr ra"),
+                code.subList(code.size() - 5, code.size()));
+    }
+
+    @Test
+    public void callsSequenceEndingInCall() {
+        backend.startCode();
+        for (int i = 0; i < 3; i += 1) {
+            backend.emitGlobalLabel(new Label("f" + i));
+            emitSequence();
+            backend.emitJAL(new Label("g"), null);
+            backend.emitLI(T0, i, null);
+            backend.emitJR(RA, null);
+        }
+        List<String> code = outline();
+        assertEquals(1, outliner.getOutlinedCount());
+        assertEquals(3, Collections.frequency(code, "jal outlined.0"));
+        assertEquals(
+                Arrays.asList("outlined.0:", "li a0, 1", "li a1, 2", "add a0, a0, a1", "j g"),
+                code.subList(code.size() - 5, code.size()));
+    }
+
+    @Test
+    public void keepsSequencesInLoops() {
+        backend.startCode();
+        for (int i = 0; i < 3; i += 1) {
+            Label loop = new Label("loop" + i);
+            backend.emitGlobalLabel(new Label("f" + i));
+            backend.emitLocalLabel(loop, null);
+            emitSequence();
+            backend.emitBNEZ(T0, loop, null);
+            backend.emitLI(T0, i, null);
+            backend.emitJR(RA, null);
+        }
+        outline();
+        assertEquals(0, outliner.getOutlinedCount());
+    }
+
+    @Test
+    public void keepsSequencesOfRecursiveFunctions() {
+        backend.startCode();
+        for (int i = 0; i < 3; i += 1) {
+            backend.emitGlobalLabel(new Label("f" + i));
+            emitSequence();
+            backend.emitLI(T0, i, null);
+            backend.emitJAL(new Label("f" + (2 - i)), null);
+            backend.emitJR(RA, null);
+        }
+        outline();
+        // f1 calls itself, and f0 and f2 call each other
+        assertEquals(0, outliner.getOutlinedCount());
+    }
+
+    @Test
+    public void keepsSequencesNotWorthOutlining() {
+        backend.startCode();
+        for (int i = 0; i < 2; i += 1) {
+            backend.emitGlobalLabel(new Label("f" + i));
+            emitSequence();
+            backend.emitLI(T0, i, null);
+            backend.emitJR(RA, null);
+        }
+        // Two copies of 12 bytes would cost two calls, a copy and a return: 8 + 12 + 4 bytes
+        List<String> code = outline();
+        assertEquals(0, outliner.getOutlinedCount());
+        assertTrue(code.contains("add a0, a0, a1"));
+    }
+}
@@ -0,0 +1,203 @@
+package chocopy.common.codegen;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static chocopy.common.codegen.RiscVBackend.Register.*;
+import static org.junit.Assert.assertEquals;
+
+/** Tests of the rules of {@link PeepholeOptimizer} on short instruction lists. */
+public class PeepholeOptimizerTest {
+
+    /** The backend the code under test is emitted with. */
+    private final RiscVBackend backend = new RiscVBackend();
+
+    /** The optimizer under test. */
+    private final PeepholeOptimizer optimizer = new PeepholeOptimizer();
+
+    /** Returns the code emitted to BACKEND after optimizing it, one entry per string. */
+    private List<String> optimize() {
+        List<Instruction> code = backend.getPending();
+        optimizer.optimize(code);
+        List<String> result = new ArrayList<>();
+        for (Instruction insn : code) {
+            result.add(insn.toString());
+        }
+        return result;
+    }
+
+    /** Returns the number of applications of RULE. */
+    private int hits(PeepholeOptimizer.Rule rule) {
+        return optimizer.getHits().get(rule);
+    }
+
+    @Test
+    public void forwardsStoreToLoad() {
+        backend.emitSW(A0, FP, -12, null);
+        backend.emitLW(A1, FP, -12, null);
+        assertEquals(Arrays.asList("sw a0, -12(fp)", "mv a1, a0"), optimize());
+        assertEquals(1, hits(PeepholeOptimizer.Rule.FORWARD_STORE_TO_LOAD));
+    }
+
+    @Test
+    public void removesLoadOfStoredRegister() {
+        backend.emitSW(A0, FP, -12, null);
+        backend.emitADDI(T0, T0, 1, null);
+        backend.emitLW(A0, FP, -12, null);
+        assertEquals(Arrays.asList("sw a0, -12(fp)", "addi t0, t0, 1"), optimize());
+    }
+
+    @Test
+    public void forwardsPastStoresToOtherSlots() {
+        backend.emitSW(A0, FP, -12, null);
+        backend.emitSW(A1, FP, -16, null);
+        backend.emitLW(T0, FP, -12, null);
+        assertEquals(
+                Arrays.asList("sw a0, -12(fp)", "sw a1, -16(fp)", "mv t0, a0"), optimize());
+    }
+
+    @Test
+    public void doesNotForwardOverwrittenRegister() {
+        backend.emitSW(A0, FP, -12, null);
+        backend.emitLI(A0, 1, null);
+        backend.emitLW(A1, FP, -12, null);
+        assertEquals(
+                Arrays.asList("sw a0, -12(fp)", "li a0, 1", "lw a1, -12(fp)"), optimize());
+    }
+
+    @Test
+    public void doesNotForwardOverChangedBase() {
+        backend.emitSW(A0, SP, 0, null);
+        backend.emitADDI(SP, SP, -16, null);
+        backend.emitLW(A1, SP, 0, null);
+        assertEquals(
+                Arrays.asList("sw a0, 0(sp)", "addi sp, sp, -16", "lw a1, 0(sp)"), optimize());
+    }
+
+    @Test
+    public void doesNotForwardOverStoreThatMayAlias() {
+        backend.emitSW(A0, FP, -12, null);
+        backend.emitSW(A1, T0, 0, null);
+        backend.emitLW(A2, FP, -12, null);
+        assertEquals(
+                Arrays.asList("sw a0, -12(fp)", "sw a1, 0(t0)", "lw a2, -12(fp)"), optimize());
+    }
+
+    @Test
+    public void doesNotForwardAcrossLabel() {
+        backend.emitSW(A0, FP, -12, null);
+        backend.emitLocalLabel(new Label("loop"), null);
+        backend.emitLW(A1, FP, -12, null);
+        assertEquals(Arrays.asList("sw a0, -12(fp)", "loop:", "lw a1, -12(fp)"), optimize());
+    }
+
+    @Test
+    public void doesNotForwardAcrossText() {
+        backend.emitSW(A0, FP, -12, null);
+        backend.emitInsn("li a0, 2", null);
+        backend.emitLW(A1, FP, -12, null);
+        assertEquals(Arrays.asList("sw a0, -12(fp)", "li a0, 2", "lw a1, -12(fp)"), optimize());
+    }
+
+    @Test
+    public void removesRedundantStore() {
+        backend.emitLW(A0, FP, -12, null);
+        backend.emitSW(A0, FP, -12, null);
+        assertEquals(Arrays.asList("lw a0, -12(fp)"), optimize());
+        assertEquals(1, hits(PeepholeOptimizer.Rule.REDUNDANT_STORE));
+    }
+
+    @Test
+    public void keepsStoreAfterLoadOfBase() {
+        backend.emitLW(FP, FP, -12, null);
+        backend.emitSW(FP, FP, -12, null);
+        assertEquals(Arrays.asList("lw fp, -12(fp)", "sw fp, -12(fp)"), optimize());
+    }
+
+    @Test
+    public void removesSelfMoveAndInPlaceZeroAddition() {
+        backend.emitMV(A0, A0, null);
+        backend.emitADDI(SP, SP, 0, null);
+        backend.emitADDI(A0, A1, 0, null);
+        backend.emitADDI(SP, SP, "@f.size", null);
+        assertEquals(Arrays.asList("addi a0, a1, 0", "addi sp, sp, @f.size"), optimize());
+        assertEquals(1, hits(PeepholeOptimizer.Rule.SELF_MOVE));
+        assertEquals(1, hits(PeepholeOptimizer.Rule.ZERO_ADDI));
+    }
+
+    @Test
+    public void removesJumpsToNextLabel() {
+        backend.emitBEQZ(A0, new Label("next"), null);
+        backend.emitInsn("", "A comment");
+        backend.emitLocalLabel(new Label("other"), null);
+        backend.emitLocalLabel(new Label("next"), null);
+        backend.emitJ(new Label("end"), null);
+        backend.emitLocalLabel(new Label("end"), null);
+        backend.emitJR(RA, null);
+        assertEquals(Arrays.asList("", "other:", "next:", "end:", "jr ra"), optimize());
+        assertEquals(2, hits(PeepholeOptimizer.Rule.JUMP_TO_NEXT));
+    }
+
+    @Test
+    public void threadsJumpsToJumps() {
+        backend.emitBNEZ(A0, new Label("first"), null);
+        backend.emitJR(RA, null);
+        backend.emitLocalLabel(new Label("first"), null);
+        backend.emitJ(new Label("second"), null);
+        backend.emitLocalLabel(new Label("between"), null);
+        backend.emitLI(A0, 1, null);
+        backend.emitLocalLabel(new Label("second"), null);
+        backend.emitJ(new Label("third"), null);
+        backend.emitLocalLabel(new Label("elsewhere"), null);
+        backend.emitLI(A0, 2, null);
+        backend.emitLocalLabel(new Label("third"), null);
+        backend.emitJR(RA, null);
+        List<String> code = optimize();
+        assertEquals("bnez a0, third", code.get(0));
+        assertEquals("j third", code.get(3));
+    }
+
+    @Test
+    public void doesNotThreadJumpToItself() {
+        backend.emitLocalLabel(new Label("spin"), null);
+        backend.emitJ(new Label("spin"), null);
+        assertEquals(Arrays.asList("spin:", "j spin"), optimize());
+    }
+
+    @Test
+    public void invertsBranchOverJump() {
+        backend.emitBLT(A0, A1, new Label("skip"), null);
+        backend.emitJ(new Label("far"), null);
+        backend.emitLocalLabel(new Label("skip"), null);
+        backend.emitLI(A0, 1, null);
+        backend.emitLocalLabel(new Label("far"), null);
+        backend.emitJR(RA, null);
+        assertEquals(
+                Arrays.asList("bge a0, a1, far", "skip:", "li a0, 1", "far:", "jr ra"),
+                optimize());
+        assertEquals(1, hits(PeepholeOptimizer.Rule.BRANCH_OVER_JUMP));
+    }
+
+    @Test
+    public void removesUnreachableCode() {
+        backend.emitJR(RA, null);
+        backend.emitLI(A0, 1, null);
+        backend.emitMV(A1, A0, null);
+        backend.emitLocalLabel(new Label("target"), null);
+        backend.emitLI(A0, 2, null);
+        assertEquals(Arrays.asList("jr ra", "target:", "li a0, 2"), optimize());
+        assertEquals(2, hits(PeepholeOptimizer.Rule.UNREACHABLE));
+    }
+
+    @Test
+    public void keepsCodeAfterCall() {
+        backend.emitJAL(new Label("f"), null);
+        backend.emitLI(A0, 1, null);
+        backend.emitLocalLabel(new Label("f"), null);
+        assertEquals(Arrays.asList("jal f", "li a0, 1", "f:"), optimize());
+        assertEquals(0, optimizer.getTotalHits());
+    }
+}
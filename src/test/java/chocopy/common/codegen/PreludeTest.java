@@ -0,0 +1,91 @@
+package chocopy.common.codegen;
+
+import chocopy.pa3.CodeGenImpl;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static chocopy.pa3.SamplePrograms.programs;
+import static chocopy.pa3.SamplePrograms.read;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of generators sharing their predefined classes and functions through a {@link Prelude}. */
+public class PreludeTest {
+
+    /** Returns the code generated for the typed AST at PATH, starting from PRELUDE. */
+    private static String compile(Path path, Prelude prelude) throws IOException {
+        RiscVBackend backend = new RiscVBackend();
+        new CodeGenImpl(backend, prelude).generate(read(path));
+        return backend.toString();
+    }
+
+    /** Returns the code generated for the typed AST at PATH by a generator of its own. */
+    private static String compile(Path path) throws IOException {
+        RiscVBackend backend = new RiscVBackend();
+        new CodeGenImpl(backend).generate(read(path));
+        return backend.toString();
+    }
+
+    @Test
+    public void generatesSameCodeAsFreshGenerator() throws IOException {
+        Prelude prelude = new CodeGenImpl(new RiscVBackend()).getPrelude();
+        for (int round = 0; round < 2; round += 1) {
+            for (Path program : programs()) {
+                assertEquals(program.toString(), compile(program), compile(program, prelude));
+            }
+        }
+    }
+
+    @Test
+    public void sharesPredefinedDescriptors() {
+        CodeGenBase first = new CodeGenImpl(new RiscVBackend());
+        CodeGenBase second = new CodeGenImpl(new RiscVBackend(), first.getPrelude());
+        assertSame(first.getPrelude(), second.getPrelude());
+        assertSame(first.printFunc, second.printFunc);
+        assertSame(first.objectClass, second.objectClass);
+        assertSame(first.globalSymbols.get("len"), second.globalSymbols.get("len"));
+        assertEquals(first.nextTypeTag, second.nextTypeTag);
+
+        CodeGenBase fresh = new CodeGenImpl(new RiscVBackend());
+        assertNotSame(first.getPrelude(), fresh.getPrelude());
+        assertNotSame(first.printFunc, fresh.printFunc);
+    }
+
+    @Test
+    public void keepsPredefinedDescriptorsUnchanged() throws IOException {
+        Prelude prelude = new CodeGenImpl(new RiscVBackend()).getPrelude();
+        int classes = prelude.classes.size();
+        int functions = prelude.functions.size();
+        int symbols = prelude.symbols.size();
+        int objectMethods = prelude.objectClass.getMethods().size();
+        for (Path program : programs()) {
+            compile(program, prelude);
+        }
+        assertEquals(classes, prelude.classes.size());
+        assertEquals(functions, prelude.functions.size());
+        assertEquals(symbols, prelude.symbols.size());
+        assertEquals(objectMethods, prelude.objectClass.getMethods().size());
+    }
+
+    @Test
+    public void recognizesOnlyItsOwnDescriptors() throws IOException {
+        CodeGenBase cgen = new CodeGenImpl(new RiscVBackend());
+        Prelude prelude = cgen.getPrelude();
+        assertTrue(prelude.isPredefined(prelude.printFunc));
+        assertTrue(prelude.isPredefined(prelude.objectClass.getMethods().get(0)));
+        assertTrue(prelude.isPredefined(prelude.listClass));
+
+        cgen.generate(read(sample("nested2")));
+        assertFalse(prelude.isPredefined((FuncInfo) cgen.globalSymbols.get("foo")));
+        Prelude other = new CodeGenImpl(new RiscVBackend()).getPrelude();
+        assertFalse(prelude.isPredefined(other.printFunc));
+        assertFalse(prelude.isPredefined(other.objectClass));
+    }
+}
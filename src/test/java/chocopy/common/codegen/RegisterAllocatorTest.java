@@ -0,0 +1,232 @@
+package chocopy.common.codegen;
+
+import chocopy.common.codegen.RiscVBackend.Register;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static chocopy.common.codegen.RiscVBackend.Register.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link RegisterAllocator} on functions laid out as the code generator lays them out,
+ * which are run in the {@link Simulator} after allocation.
+ */
+public class RegisterAllocatorTest {
+
+    /** The FP-relative offset of the first local, below the return address and control link. */
+    private static final int FIRST_LOCAL = -12;
+
+    /** Matches an FP-relative load or store, capturing its offset. */
+    private static final Pattern FP_ACCESS = Pattern.compile("\\b[ls]w \\w+, (-?\\d+)\\(fp\\)");
+
+    /** The backend the program under test is emitted with. */
+    private final RiscVBackend backend = new RiscVBackend();
+
+    /** The number of slots of f promoted to registers. */
+    private int promoted;
+
+    /** Returns the FP-relative offset of local I. */
+    private static int local(int i) {
+        return FIRST_LOCAL - 4 * i;
+    }
+
+    /**
+     * Emit main, which sets S1-S9 to 1-9, calls f, and prints what f returns and the sum of
+     * S1-S9 after the call, each on a line.
+     */
+    private void emitMain() {
+        backend.startCode();
+        backend.emitGlobalLabel(new Label("main"));
+        Register[] saved = {S1, S2, S3, S4, S5, S6, S7, S8, S9};
+        for (int i = 0; i < saved.length; i += 1) {
+            backend.emitLI(saved[i], i + 1, null);
+        }
+        backend.emitJAL(new Label("f"), null);
+        backend.emitMV(A1, A0, null);
+        emitPrint();
+        backend.emitMV(A1, ZERO, null);
+        for (Register reg : saved) {
+            backend.emitADD(A1, A1, reg, null);
+        }
+        emitPrint();
+        backend.emitLI(A0, 10, null);
+        backend.emitEcall(null);
+    }
+
+    /** Emit the printing of A1 and a newline. */
+    private void emitPrint() {
+        backend.emitLI(A0, 1, null);
+        backend.emitEcall(null);
+        backend.emitLI(A0, 11, null);
+        backend.emitLI(A1, (int) '\n', null);
+        backend.emitEcall(null);
+    }
+
+    /** Emit g, which overwrites every caller-saved register. */
+    private void emitClobber() {
+        backend.emitGlobalLabel(new Label("g"));
+        for (Register reg : new Register[] {T0, T1, T2, T3, T4, T5, T6, A1, A2, A3, A4, A5, A6}) {
+            backend.emitLI(reg, -1, null);
+        }
+        backend.emitLI(A0, -1, null);
+        backend.emitJR(RA, null);
+    }
+
+    /** Emit the prologue of f. */
+    private void emitPrologue() {
+        backend.emitGlobalLabel(new Label("f"));
+        backend.emitADDI(SP, SP, "-@f.size", null);
+        backend.emitSW(RA, SP, "@f.size-4", null);
+        backend.emitSW(FP, SP, "@f.size-8", null);
+        backend.emitADDI(FP, SP, "@f.size", null);
+    }
+
+    /**
+     * Emit the epilogue of f, whose frame holds LOCALS locals, and allocate registers for the
+     * code of f from MARK on.
+     */
+    private void emitEpilogue(int locals, int mark) {
+        backend.emitLocalLabel(new Label("f.epilogue"), null);
+        backend.defineSym("@f.size", (4 * (locals + 2) + 15) / 16 * 16);
+        backend.emitLW(RA, FP, -4, null);
+        backend.emitLW(FP, FP, -8, null);
+        backend.emitADDI(SP, SP, "@f.size", null);
+        backend.emitJR(RA, null);
+        promoted =
+                new RegisterAllocator(backend.codeSince(mark), "@f.size", Integer.MAX_VALUE, true)
+                        .allocate();
+    }
+
+    /** Returns the output of the program emitted. */
+    private String run() throws IOException {
+        StringBuilder out = new StringBuilder();
+        Simulator simulator = Simulator.load(backend.toString());
+        assertEquals(0, simulator.run(new ByteArrayInputStream(new byte[0]), out));
+        return out.toString();
+    }
+
+    /** Returns the offsets of the FP-relative loads and stores in the code of f. */
+    private Set<Integer> memorySlots() {
+        String asm = backend.toString();
+        Matcher m = FP_ACCESS.matcher(asm.substring(asm.indexOf("\nf:")));
+        Set<Integer> offsets = new TreeSet<>();
+        while (m.find()) {
+            offsets.add(Integer.parseInt(m.group(1)));
+        }
+        return offsets;
+    }
+
+    @Test
+    public void spillsWhatDoesNotFitInCalleeSavedRegisters() throws IOException {
+        emitMain();
+        int mark = backend.mark();
+        emitPrologue();
+        // Locals 0-11 hold 1-12 and local 12 their running sum; all of them live across calls
+        int locals = 13;
+        int sum = local(12);
+        backend.emitSW(ZERO, FP, sum, null);
+        for (int i = 0; i < 12; i += 1) {
+            backend.emitLI(A0, i + 1, null);
+            backend.emitSW(A0, FP, local(i), null);
+        }
+        for (int round = 0; round < 4; round += 1) {
+            backend.emitJAL(new Label("g"), null);
+            for (int i = 0; i < 12; i += 1) {
+                backend.emitLW(A0, FP, sum, null);
+                backend.emitLW(T0, FP, local(i), null);
+                backend.emitADD(A0, A0, T0, null);
+                backend.emitSW(A0, FP, sum, null);
+            }
+        }
+        backend.emitJAL(new Label("g"), null);
+        backend.emitLW(A0, FP, sum, null);
+        emitEpilogue(locals, mark);
+        emitClobber();
+
+        // Only the nine callee-saved registers can hold values across calls
+        assertEquals(9, promoted);
+        String asm = backend.toString();
+        for (int i = 1; i <= 9; i += 1) {
+            assertTrue("s" + i + " saved", asm.contains("sw s" + i + ", "));
+            assertTrue("s" + i + " restored", asm.contains("lw s" + i + ", "));
+        }
+        Set<Integer> inMemory = memorySlots();
+        int spilled = 0;
+        for (int i = 0; i <= 12; i += 1) {
+            if (inMemory.contains(local(i))) {
+                spilled += 1;
+            }
+        }
+        assertEquals(4, spilled);
+        assertEquals(4 * 78 + "\n45\n", run());
+    }
+
+    @Test
+    public void usesCallerSavedRegisterForSlotNotLiveAcrossCall() throws IOException {
+        emitMain();
+        int mark = backend.mark();
+        emitPrologue();
+        backend.emitJAL(new Label("g"), null);
+        backend.emitLI(A0, 5, null);
+        backend.emitSW(A0, FP, local(0), null);
+        for (int i = 0; i < 3; i += 1) {
+            backend.emitLW(T0, FP, local(0), null);
+            backend.emitADD(A0, A0, T0, null);
+        }
+        emitEpilogue(1, mark);
+        emitClobber();
+
+        assertEquals(1, promoted);
+        String asm = backend.toString();
+        assertFalse(memorySlots().contains(local(0)));
+        assertFalse(asm.contains("sw s1, "));
+        assertTrue(asm.contains(".equiv @f.size, 16"));
+        assertEquals("20\n45\n", run());
+    }
+
+    @Test
+    public void keepsRarelyUsedSlotInMemory() throws IOException {
+        emitMain();
+        int mark = backend.mark();
+        emitPrologue();
+        backend.emitLI(A0, 5, null);
+        backend.emitSW(A0, FP, local(0), null);
+        backend.emitJAL(new Label("g"), null);
+        backend.emitLW(A0, FP, local(0), null);
+        emitEpilogue(1, mark);
+        emitClobber();
+
+        // A save and a restore would cost more than the two accesses saved
+        assertEquals(0, promoted);
+        assertTrue(memorySlots().contains(local(0)));
+        assertEquals("5\n45\n", run());
+    }
+
+    @Test
+    public void leavesFunctionWithTextAlone() throws IOException {
+        emitMain();
+        int mark = backend.mark();
+        emitPrologue();
+        backend.emitLI(A0, 5, null);
+        backend.emitSW(A0, FP, local(0), null);
+        backend.emitInsn("addi a0, a0, 1", null);
+        for (int i = 0; i < 3; i += 1) {
+            backend.emitLW(T0, FP, local(0), null);
+            backend.emitADD(A0, A0, T0, null);
+        }
+        emitEpilogue(1, mark);
+        emitClobber();
+
+        assertEquals(0, promoted);
+        assertEquals("21\n45\n", run());
+    }
+}
@@ -0,0 +1,130 @@
+package chocopy.common.codegen;
+
+import chocopy.pa3.StudentCodeGen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static chocopy.pa3.SamplePrograms.compile;
+import static chocopy.pa3.SamplePrograms.compileWithReference;
+import static chocopy.pa3.SamplePrograms.failures;
+import static chocopy.pa3.SamplePrograms.read;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link Simulator}: runs of the code generated for the sample and benchmark programs,
+ * and of short programs.
+ */
+public class SimulatorTest {
+
+    @Test
+    public void runsProgramsWithExpectedOutput() throws IOException {
+        assertEquals(
+                new ArrayList<String>(), failures(program -> Simulator.load(compile(program))));
+    }
+
+    @Test
+    public void runsCompressedImagesOfPrograms() throws IOException {
+        List<String> failures =
+                failures(
+                        program -> {
+                            Assembler.Image image = StudentCodeGen.assemble(read(program), false);
+                            assertTrue(image.compressed);
+                            return new Simulator(image);
+                        });
+        assertEquals(new ArrayList<String>(), failures);
+    }
+
+    @Test
+    public void runsExecutablesOfPrograms() throws IOException {
+        assertEquals(
+                new ArrayList<String>(),
+                failures(
+                        program ->
+                                Simulator.loadElf(
+                                        StudentCodeGen.processToElf(read(program), false))));
+    }
+
+    @Test
+    public void runsReferenceOutput() throws IOException {
+        assertEquals(
+                new ArrayList<String>(),
+                failures(program -> Simulator.load(compileWithReference(program))));
+    }
+
+    @Test
+    public void runsCompressedCode() throws IOException {
+        String asm =
+                String.join(
+                        "\n",
+                        ".text",
+                        "main:",
+                        "addi sp, sp, -16",
+                        "li a1, 0",
+                        "li a2, 5",
+                        "loop:",
+                        "add a1, a1, a2",
+                        "addi a2, a2, -1",
+                        "bnez a2, loop",
+                        "sw a1, 12(sp)",
+                        "jal twice",
+                        "lw a2, 12(sp)",
+                        "sub a1, a1, a2",
+                        "slli a1, a1, 2",
+                        "srai a1, a1, 1",
+                        "mv a2, sp",
+                        "sw a1, 4(a2)",
+                        "lw a1, 4(a2)",
+                        "addi sp, sp, 16",
+                        "li a0, 1",
+                        "ecall",
+                        "li a0, 10",
+                        "ecall",
+                        "twice:",
+                        "add a1, a1, a1",
+                        "jr ra");
+        Assembler assembler = new Assembler();
+        assembler.setCompressed(true);
+        assembler.addText(asm);
+        Assembler.Image image = assembler.assemble();
+        // Every instruction but the ecalls, which have no compressed form
+        assertEquals(image.instructionCount - 2, image.compressedCount);
+        StringBuilder out = new StringBuilder();
+        assertEquals(0, new Simulator(image).run(new ByteArrayInputStream(new byte[0]), out));
+        // (2 * 15 - 15) * 4 / 2
+        assertEquals("30", out.toString());
+    }
+
+    @Test
+    public void printsAndExits() throws IOException {
+        String asm =
+                String.join(
+                        "\n",
+                        ".text",
+                        "main:",
+                        "li a0, 1",
+                        "li a1, -42",
+                        "ecall",
+                        "li a0, 11",
+                        "li a1, 10",
+                        "ecall",
+                        "li a0, 17",
+                        "li a1, 3",
+                        "ecall");
+        StringBuilder out = new StringBuilder();
+        assertEquals(3, Simulator.load(asm).run(new ByteArrayInputStream(new byte[0]), out));
+        assertEquals("-42\nExited with error code 3\n", out.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stopsAtInstructionLimit() throws IOException {
+        Simulator simulator = Simulator.load(".text\nmain:\nj main");
+        simulator.setInstructionLimit(1000);
+        simulator.run(new ByteArrayInputStream(new byte[0]), new StringBuilder());
+    }
+}
@@ -0,0 +1,95 @@
+package chocopy.common.codegen;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Tests of the repeated substrings found by {@link SuffixTree}. */
+public class SuffixTreeTest {
+
+    /** Returns the repeats of STR of length at least MINLENGTH, as "LENGTH@STARTS" strings. */
+    private static List<String> repeats(int[] str, int minLength) {
+        List<String> result = new ArrayList<>();
+        for (SuffixTree.Repeat repeat : new SuffixTree(str).repeats(minLength)) {
+            int[] starts = repeat.starts.clone();
+            Arrays.sort(starts);
+            result.add(repeat.length + "@" + Arrays.toString(starts));
+        }
+        result.sort(null);
+        return result;
+    }
+
+    @Test
+    public void findsLongestRepeatsAtEachSetOfPositions() {
+        // b a n a n a $: "ana" at 1 and 3 subsumes "an", and "na" occurs at 2 and 4
+        int[] banana = {1, 2, 3, 2, 3, 2, -1};
+        assertEquals(Arrays.asList("2@[2, 4]", "3@[1, 3]"), repeats(banana, 2));
+        assertEquals(Arrays.asList("3@[1, 3]"), repeats(banana, 3));
+    }
+
+    @Test
+    public void findsOverlappingOccurrences() {
+        int[] str = {7, 7, 7, 7, -1};
+        assertEquals(Arrays.asList("2@[0, 1, 2]", "3@[0, 1]"), repeats(str, 2));
+    }
+
+    @Test
+    public void findsNothingInStringWithoutRepeats() {
+        assertEquals(Arrays.asList(), repeats(new int[] {1, 2, 3, 4, -1}, 1));
+    }
+
+    @Test
+    public void agreesWithExhaustiveSearch() {
+        Random random = new Random(2130);
+        for (int round = 0; round < 200; round += 1) {
+            int[] str = new int[1 + random.nextInt(40)];
+            for (int i = 0; i < str.length - 1; i += 1) {
+                str[i] = random.nextInt(3);
+            }
+            str[str.length - 1] = -1;
+
+            // Every substring occurring twice, by its occurrences, with the longest length
+            Map<String, Integer> expected = new HashMap<>();
+            for (int length = 2; length < str.length; length += 1) {
+                for (int i = 0; i + length < str.length; i += 1) {
+                    List<Integer> starts = new ArrayList<>();
+                    for (int j = 0; j + length < str.length; j += 1) {
+                        if (Arrays.equals(
+                                Arrays.copyOfRange(str, i, i + length),
+                                Arrays.copyOfRange(str, j, j + length))) {
+                            starts.add(j);
+                        }
+                    }
+                    if (starts.size() >= 2) {
+                        expected.merge(starts.toString(), length, Math::max);
+                    }
+                }
+            }
+
+            List<String> actual = new ArrayList<>();
+            for (SuffixTree.Repeat repeat : new SuffixTree(str).repeats(2)) {
+                int[] starts = repeat.starts.clone();
+                Arrays.sort(starts);
+                for (int start : starts) {
+                    assertArrayEquals(
+                            Arrays.copyOfRange(str, starts[0], starts[0] + repeat.length),
+                            Arrays.copyOfRange(str, start, start + repeat.length));
+                }
+                actual.add(Arrays.toString(starts));
+                assertEquals(expected.get(Arrays.toString(starts)), (Integer) repeat.length);
+            }
+            actual.sort(null);
+            List<String> all = new ArrayList<>(expected.keySet());
+            all.sort(null);
+            assertEquals(Arrays.toString(str), all, actual);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package chocopy.pa3;
+
+import chocopy.common.codegen.CompileMetrics;
+import chocopy.common.codegen.Simulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static chocopy.pa3.SamplePrograms.SAMPLES;
+import static chocopy.pa3.SamplePrograms.compile;
+import static chocopy.pa3.SamplePrograms.expectedOutput;
+import static chocopy.pa3.SamplePrograms.run;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of {@link BatchCompiler}, writing to a temporary directory. */
+public class BatchCompilerTest {
+
+    /** The directory receiving the output of the compiler. */
+    private Path outputDir;
+
+    @Before
+    public void createOutputDir() throws IOException {
+        outputDir = Files.createTempDirectory("batch");
+    }
+
+    @After
+    public void deleteOutputDir() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(outputDir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(outputDir);
+    }
+
+    /**
+     * Returns the results of compiling INPUTS on three threads with at most two files in flight,
+     * to ELF executables iff ELF.
+     */
+    private List<BatchCompiler.Result> compileAll(List<Path> inputs, boolean elf)
+            throws InterruptedException {
+        BatchCompiler compiler = new BatchCompiler(3, 2, outputDir, elf);
+        try {
+            return compiler.compile(inputs);
+        } finally {
+            compiler.shutdown();
+        }
+    }
+
+    @Test
+    public void writesSameCodeAsCompilingOneByOne() throws IOException, InterruptedException {
+        List<Path> inputs = BatchCompiler.inputs(SAMPLES);
+        List<BatchCompiler.Result> results = compileAll(inputs, false);
+        assertEquals(inputs.size(), results.size());
+        for (int i = 0; i < inputs.size(); i += 1) {
+            BatchCompiler.Result result = results.get(i);
+            Path input = inputs.get(i);
+            assertEquals(input, result.input);
+            assertNull(input.toString(), result.error);
+            Path output = outputDir.resolve(input.getFileName() + ".s");
+            String asm = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+            assertEquals(input.toString(), compile(input), asm);
+            assertTrue(result.metrics.getNanos(CompileMetrics.Phase.EMIT_TOP_LEVEL) > 0);
+        }
+    }
+
+    @Test
+    public void writesExecutables() throws IOException, InterruptedException {
+        List<Path> inputs = Arrays.asList(sample("call"), sample("object_method_dispatch"));
+        for (BatchCompiler.Result result : compileAll(inputs, true)) {
+            assertNull(result.error);
+            assertTrue(result.textBytes > 0);
+            Path output = outputDir.resolve(result.input.getFileName() + ".elf");
+            Simulator simulator = Simulator.loadElf(Files.readAllBytes(output));
+            assertEquals(expectedOutput(result.input), run(simulator, result.input));
+        }
+    }
+
+    @Test
+    public void readsInputsFromManifest() throws IOException {
+        Path manifest = outputDir.resolve("manifest");
+        Files.write(
+                manifest,
+                Arrays.asList("# Two programs", "", "b.ast.typed", "  a.ast.typed  "),
+                StandardCharsets.UTF_8);
+        assertEquals(
+                Arrays.asList(
+                        outputDir.toAbsolutePath().resolve("b.ast.typed"),
+                        outputDir.toAbsolutePath().resolve("a.ast.typed")),
+                BatchCompiler.inputs(manifest));
+    }
+
+    @Test
+    public void reportsFailedInputs() throws IOException, InterruptedException {
+        Path missing = outputDir.resolve("missing.py.ast.typed");
+        List<Path> inputs = new ArrayList<>(Arrays.asList(sample("call"), missing));
+        List<BatchCompiler.Result> results = compileAll(inputs, false);
+        assertNull(results.get(0).error);
+        assertNotNull(results.get(1).error);
+        String report = BatchCompiler.report(results, 1_000_000_000L, 1);
+        assertTrue(report, report.startsWith("Compiled 2 files (1 failed) in 1.000 s"));
+        assertTrue(report, report.contains("FAILED " + missing));
+        assertTrue(report, report.contains("emitFunctions"));
+    }
+}
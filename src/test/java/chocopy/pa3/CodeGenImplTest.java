@@ -0,0 +1,34 @@
+package chocopy.pa3;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static chocopy.pa3.SamplePrograms.compile;
+import static chocopy.pa3.SamplePrograms.expectedOutput;
+import static chocopy.pa3.SamplePrograms.run;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/** Tests of the evaluation of int and bool expressions in registers by {@link CodeGenImpl}. */
+public class CodeGenImplTest {
+
+    @Test
+    public void evaluatesDeepExpressionsWithoutSpilling() throws IOException {
+        Path program = sample("expr_register_need");
+        String asm = compile(program);
+        assertFalse(asm.contains("(BinaryExpr left result)"));
+        assertEquals(expectedOutput(program), run(asm, program));
+    }
+
+    @Test
+    public void failsDivisionBeforeEvaluatingRightOperand() throws IOException {
+        String[] names = {"error_div_zero_eval_order", "error_mod_zero_eval_order"};
+        for (String name : names) {
+            Path program = sample(name);
+            assertEquals(name, expectedOutput(program), run(compile(program), program));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package chocopy.pa3;
+
+import chocopy.common.codegen.Simulator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+/** Round trips of requests through a running {@link CompileServer}. */
+public class CompileServerTest {
+
+    /** Mapper to-and-from serialized JSON. */
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /** A program printing 42. */
+    private static final String PROGRAM =
+            "def f(x: int) -> int:\n" + "    return x * 2\n" + "\n" + "print(f(21))\n";
+
+    /** The server under test. */
+    private HttpServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new CompileServer(Paths.get("web")).start(0, 2);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    /** Skip the test unless the reference passes are on the class path. */
+    private static void assumeReferencePasses() {
+        try {
+            Class.forName("chocopy.reference.RefParser");
+        } catch (ClassNotFoundException e) {
+            assumeNoException("The reference passes are not on the class path", e);
+        }
+    }
+
+    /** Returns a connection for METHOD to PATH on the server. */
+    private HttpURLConnection connect(String method, String path) throws IOException {
+        URL url = new URL("http", "localhost", server.getAddress().getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    /** Returns the body of the response on CONNECTION, whatever its status. */
+    private static String body(HttpURLConnection connection) throws IOException {
+        InputStream in =
+                connection.getResponseCode() < 400
+                        ? connection.getInputStream()
+                        : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            bytes.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** Returns the connection on which BODY was posted to /compile. */
+    private HttpURLConnection post(String body) throws IOException {
+        HttpURLConnection connection = connect("POST", "/compile");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    /** Returns the response to compiling SOURCE with PASSES, or the default passes if null. */
+    private JsonNode compile(String source, String passes) throws IOException {
+        ObjectNode request = mapper.createObjectNode();
+        request.put("input", source);
+        if (passes != null) {
+            request.put("passes", passes);
+        }
+        HttpURLConnection connection = post(mapper.writeValueAsString(request));
+        String body = body(connection);
+        assertEquals(body, 200, connection.getResponseCode());
+        return mapper.readTree(body);
+    }
+
+    /** Returns the output of running ASM. */
+    private static String run(String asm) throws IOException {
+        StringBuilder out = new StringBuilder();
+        Simulator.load(asm).run(new ByteArrayInputStream(new byte[0]), out);
+        return out.toString();
+    }
+
+    @Test
+    public void compilesProgramToAssembly() throws IOException {
+        assumeReferencePasses();
+        JsonNode response = compile(PROGRAM, "rrs");
+        assertEquals("42\n", run(response.get("asm").asText()));
+        assertTrue(response.get("metrics").get("instructionsEmitted").asLong() > 0);
+    }
+
+    @Test
+    public void runsReferencePassesByDefault() throws IOException {
+        assumeReferencePasses();
+        assertEquals("42\n", run(compile(PROGRAM, null).get("asm").asText()));
+        // This assignment has no parser or analysis of its own, so the reference ones stand in
+        assertEquals("42\n", run(compile(PROGRAM, "sss").get("asm").asText()));
+    }
+
+    @Test
+    public void answersWithProgramWhenPassReportsErrors() throws IOException {
+        assumeReferencePasses();
+        JsonNode response = compile("x: int = True\n", "rrs");
+        assertFalse(response.has("asm"));
+        assertEquals("Program", response.get("kind").asText());
+        assertEquals(1, response.get("errors").get("errors").size());
+    }
+
+    @Test
+    public void countsRequestsInStats() throws IOException {
+        post("not json").getResponseCode();
+        JsonNode stats = mapper.readTree(body(connect("GET", "/stats")));
+        assertTrue(stats.get("requests").asLong() >= 1);
+        assertTrue(stats.has("phaseMillis"));
+    }
+
+    @Test
+    public void rejectsMalformedRequest() throws IOException {
+        assertEquals(400, post("not json").getResponseCode());
+        assertEquals(400, post("{\"passes\": \"rrs\"}").getResponseCode());
+    }
+
+    @Test
+    public void rejectsCompileWithoutPost() throws IOException {
+        assertEquals(405, connect("GET", "/compile").getResponseCode());
+    }
+}
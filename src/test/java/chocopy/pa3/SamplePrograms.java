@@ -0,0 +1,156 @@
+package chocopy.pa3;
+
+import chocopy.common.astnodes.Node;
+import chocopy.common.astnodes.Program;
+import chocopy.common.codegen.Simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * The sample and benchmark programs of the test data, with the compilation and runs of them that
+ * the tests share. Each program is named by the path of its typed AST.
+ */
+public final class SamplePrograms {
+
+    /** The directory of the sample programs. */
+    public static final Path SAMPLES = Paths.get("src/test/data/pa3/sample");
+
+    /** The directory of the benchmark programs. */
+    public static final Path BENCHMARKS = Paths.get("src/test/data/pa3/benchmarks");
+
+    /** No program of the test data should take longer than this. */
+    private static final long INSTRUCTION_LIMIT = 100_000_000;
+
+    private SamplePrograms() {}
+
+    /** Returns the typed AST of sample NAME. */
+    public static Path sample(String name) {
+        return SAMPLES.resolve(name + ".py.ast.typed");
+    }
+
+    /** Returns the typed ASTs in DIRECTORY that have an expected output, in order of name. */
+    public static List<Path> withExpectedOutput(Path directory) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.ast.typed")) {
+            for (Path file : files) {
+                if (Files.exists(Paths.get(file + ".s.result"))) {
+                    result.add(file);
+                }
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    /** Returns the sample and benchmark programs with an expected output. */
+    public static List<Path> programs() throws IOException {
+        List<Path> programs = new ArrayList<>(withExpectedOutput(SAMPLES));
+        programs.addAll(withExpectedOutput(BENCHMARKS));
+        assertFalse("No programs found", programs.isEmpty());
+        return programs;
+    }
+
+    /** Produces the simulator of a program of the test data. */
+    public interface Loader {
+        /** Returns the simulator of the program whose typed AST is at PATH. */
+        Simulator load(Path path) throws IOException;
+    }
+
+    /**
+     * Returns the sample and benchmark programs whose simulators, as given by LOADER, give an
+     * unexpected output.
+     */
+    public static List<String> failures(Loader loader) throws IOException {
+        List<String> failures = new ArrayList<>();
+        for (Path program : programs()) {
+            String output;
+            try {
+                output = run(loader.load(program), program);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                output = e.toString();
+            }
+            if (!output.equals(expectedOutput(program))) {
+                failures.add(program.toString());
+            }
+        }
+        return failures;
+    }
+
+    /** Returns the program whose typed AST is at PATH. */
+    public static Program read(Path path) throws IOException {
+        return (Program) Node.fromJSON(contents(path));
+    }
+
+    /** Returns the code generated for the typed AST at PATH. */
+    public static String compile(Path path) throws IOException {
+        return StudentCodeGen.process(read(path), false);
+    }
+
+    /**
+     * Returns the code the reference generator emits for the typed AST at PATH. Skips the test
+     * if chocopy-ref.jar is not on the class path.
+     */
+    public static String compileWithReference(Path path) throws IOException {
+        Method process = null;
+        try {
+            process =
+                    Class.forName("chocopy.reference.RefCodeGen")
+                            .getMethod("process", Program.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            assumeNoException("The reference code generator is not on the class path", e);
+        }
+        try {
+            return (String) process.invoke(null, read(path));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** Returns the expected output of the program at PATH. */
+    public static String expectedOutput(Path path) throws IOException {
+        return contents(Paths.get(path + ".s.result"));
+    }
+
+    /** Returns the output of running ASM on the input of the program at PATH, if any. */
+    public static String run(String asm, Path path) throws IOException {
+        return run(Simulator.load(asm), path);
+    }
+
+    /**
+     * Returns the output of running SIMULATOR on the input of the program at PATH, if any. The
+     * output ends with the exit code, if not 0.
+     */
+    public static String run(Simulator simulator, Path path) throws IOException {
+        Path inputFile = Paths.get(path + ".in");
+        StringBuilder out = new StringBuilder();
+        simulator.setInstructionLimit(INSTRUCTION_LIMIT);
+        try (InputStream input =
+                Files.exists(inputFile)
+                        ? Files.newInputStream(inputFile)
+                        : new ByteArrayInputStream(new byte[0])) {
+            simulator.run(input, out);
+        }
+        return out.toString();
+    }
+
+    /** Returns the contents of the file at PATH. */
+    private static String contents(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+package chocopy.pa3;
+
+import chocopy.common.codegen.Assembler;
+import chocopy.common.codegen.CompileMetrics;
+import chocopy.common.codegen.Linker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Path;
+
+import static chocopy.pa3.SamplePrograms.compile;
+import static chocopy.pa3.SamplePrograms.expectedOutput;
+import static chocopy.pa3.SamplePrograms.read;
+import static chocopy.pa3.SamplePrograms.run;
+import static chocopy.pa3.SamplePrograms.sample;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the entry points of {@link StudentCodeGen}. */
+public class StudentCodeGenTest {
+
+    /** The program compiled. */
+    private static final Path PROGRAM = sample("object_method_dispatch");
+
+    /** The value of RUNTIME_PROPERTY before the test, or null if it was not set. */
+    private String runtimeMode;
+
+    @Before
+    public void saveRuntimeMode() {
+        runtimeMode = System.getProperty(StudentCodeGen.RUNTIME_PROPERTY);
+    }
+
+    @After
+    public void restoreRuntimeMode() {
+        setRuntimeMode(runtimeMode);
+    }
+
+    /** Compile the runtime library as MODE says, or inline if it is null. */
+    private static void setRuntimeMode(String mode) {
+        if (mode == null) {
+            System.clearProperty(StudentCodeGen.RUNTIME_PROPERTY);
+        } else {
+            System.setProperty(StudentCodeGen.RUNTIME_PROPERTY, mode);
+        }
+    }
+
+    /** Returns ASM, compiled separately, linked with the runtime module. */
+    private static String link(String asm) {
+        return Linker.link(
+                new Linker.Module(asm), new Linker.Module(StudentCodeGen.getRuntime()));
+    }
+
+    /** Returns the code streamed for PROGRAM. */
+    private static String stream() throws IOException {
+        StringWriter out = new StringWriter();
+        assertTrue(StudentCodeGen.process(read(PROGRAM), false, out));
+        return out.toString();
+    }
+
+    @Test
+    public void recordsMetricsOfCallerWhenGeneratingAssembly() throws IOException {
+        CompileMetrics metrics = new CompileMetrics();
+        String asm = StudentCodeGen.process(read(PROGRAM), false, null, metrics);
+        assertEquals(compile(PROGRAM), asm);
+        assertTrue(metrics.getInstructionsEmitted() > 0);
+        assertTrue(metrics.getNanos(CompileMetrics.Phase.EMIT_FUNCTIONS) > 0);
+        assertTrue(metrics.toJSON().contains("\"functionsEmitted\""));
+    }
+
+    @Test
+    public void recordsMetricsOfCallerWhenAssembling() throws IOException {
+        CompileMetrics metrics = new CompileMetrics();
+        Assembler.Image image = StudentCodeGen.assemble(read(PROGRAM), false, metrics);
+        assertNotNull(image);
+        assertTrue(metrics.getNanos(CompileMetrics.Phase.ASSEMBLE) > 0);
+        assertTrue(metrics.toJSON().contains("\"textBytes\":" + image.text.length));
+    }
+
+    @Test
+    public void emitsRuntimeInlineByDefault() throws IOException {
+        setRuntimeMode(null);
+        String asm = StudentCodeGen.process(read(PROGRAM), false);
+        assertFalse(asm.contains(".extern"));
+        assertTrue(asm.contains("\nalloc:"));
+        assertEquals(expectedOutput(PROGRAM), run(asm, PROGRAM));
+        assertEquals(expectedOutput(PROGRAM), run(stream(), PROGRAM));
+    }
+
+    @Test
+    public void importsRuntimeWhenSeparate() throws IOException {
+        setRuntimeMode("separate");
+        String asm = StudentCodeGen.process(read(PROGRAM), false);
+        assertTrue(asm.contains(".extern"));
+        assertFalse(asm.contains("\nalloc:"));
+        assertTrue(StudentCodeGen.getRuntime().contains("\nalloc:"));
+        assertEquals(expectedOutput(PROGRAM), run(link(asm), PROGRAM));
+        assertEquals(expectedOutput(PROGRAM), run(link(stream()), PROGRAM));
+    }
+
+    @Test
+    public void linksWithRuntimeWhenLinking() throws IOException {
+        setRuntimeMode("separate");
+        String separate = StudentCodeGen.process(read(PROGRAM), false);
+        Assembler.Image separateImage = StudentCodeGen.assemble(read(PROGRAM), false);
+        setRuntimeMode("link");
+        String asm = StudentCodeGen.process(read(PROGRAM), false);
+        assertEquals(link(separate), asm);
+        assertEquals(asm, stream());
+        assertEquals(expectedOutput(PROGRAM), run(asm, PROGRAM));
+        assertArrayEquals(
+                separateImage.text, StudentCodeGen.assemble(read(PROGRAM), false).text);
+    }
+}
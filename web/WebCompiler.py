@@ -46,7 +46,9 @@ class WebCompiler(http.server.SimpleHTTPRequestHandler):
 
                 if file_exists(ref_jar):
                     fat_jar = "../target/assignment.jar"
-                    classpath = classpath + classpath_separator + fat_jar
+                    # The reference JAR has its own copies of the chocopy.common
+                    # classes, so those of the assignment must come first.
+                    classpath = fat_jar + classpath_separator + classpath
                 else:
                     fat_jar = "../target/chocopy-ref.jar"
                     classpath = fat_jar